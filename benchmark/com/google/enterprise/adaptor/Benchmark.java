@@ -0,0 +1,30 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+/**
+ * One operation measured by {@link BenchmarkRunner}. Any data the operation
+ * needs is prepared before it is measured, typically in the constructor.
+ */
+interface Benchmark {
+  /** Name used in reports and to compare with a baseline. */
+  String getName();
+
+  /**
+   * Performs the operation once. The result is consumed by the runner so the
+   * JIT cannot remove the work that produced it.
+   */
+  Object run() throws Exception;
+}
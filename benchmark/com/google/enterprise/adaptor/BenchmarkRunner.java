@@ -0,0 +1,313 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Runs {@link Benchmark}s in the manner of JMH: each is warmed up, then timed
+ * over several iterations, and its mean time and allocation per operation are
+ * reported. Footprint benchmarks are not timed; instead many of their results
+ * are kept alive and the heap they retain per operation is reported. Results
+ * are written as JSON, and timings are compared with the results of an
+ * earlier run if one is given as a baseline.
+ *
+ * <p>Usage: {@code ant benchmark [-Dbenchmark.args="[--filter=REGEX]
+ * [--baseline=FILE] [--results=FILE] [--warmupMillis=N]
+ * [--iterationMillis=N] [--iterations=N] [--retainedCount=N]
+ * [--threshold=PERCENT]"]}
+ */
+public class BenchmarkRunner {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /** Held so that the level set on it is not lost to garbage collection. */
+  private static final Logger libraryLog
+      = Logger.getLogger("com.google.enterprise.adaptor");
+
+  private final long warmupMillis;
+  private final long iterationMillis;
+  private final int iterations;
+  /** Results are folded into this, so that they are not optimized away. */
+  private volatile int blackhole;
+
+  BenchmarkRunner(long warmupMillis, long iterationMillis, int iterations) {
+    this.warmupMillis = warmupMillis;
+    this.iterationMillis = iterationMillis;
+    this.iterations = iterations;
+  }
+
+  /** Result of running one benchmark. */
+  static class Result {
+    final double nanosPerOp;
+    final double stddevNanosPerOp;
+    /** Bytes allocated per operation, or {@code -1} if unknown. */
+    final double bytesPerOp;
+
+    Result(double nanosPerOp, double stddevNanosPerOp, double bytesPerOp) {
+      this.nanosPerOp = nanosPerOp;
+      this.stddevNanosPerOp = stddevNanosPerOp;
+      this.bytesPerOp = bytesPerOp;
+    }
+  }
+
+  Result run(Benchmark benchmark) throws Exception {
+    runFor(benchmark, TimeUnit.MILLISECONDS.toNanos(warmupMillis));
+    double[] nanosPerOp = new double[iterations];
+    long ops = 0;
+    long bytesBefore = allocatedBytes();
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      long iterationOps
+          = runFor(benchmark, TimeUnit.MILLISECONDS.toNanos(iterationMillis));
+      nanosPerOp[i] = (System.nanoTime() - start) / (double) iterationOps;
+      ops += iterationOps;
+    }
+    long bytesAfter = allocatedBytes();
+    double mean = 0;
+    for (double value : nanosPerOp) {
+      mean += value / iterations;
+    }
+    double variance = 0;
+    for (double value : nanosPerOp) {
+      variance += (value - mean) * (value - mean) / iterations;
+    }
+    double bytesPerOp = bytesBefore < 0 || bytesAfter < 0
+        ? -1 : (bytesAfter - bytesBefore) / (double) ops;
+    return new Result(mean, Math.sqrt(variance), bytesPerOp);
+  }
+
+  /**
+   * Bytes of heap retained per result of {@code benchmark}, measured as the
+   * growth of the used heap after full collections while {@code count}
+   * results are kept alive.
+   */
+  static double retainedBytes(Benchmark benchmark, int count)
+      throws Exception {
+    Object[] retained = new Object[count];
+    long before = usedHeapAfterGc();
+    for (int i = 0; i < count; i++) {
+      retained[i] = benchmark.run();
+    }
+    long after = usedHeapAfterGc();
+    if (retained[count - 1] == null) {
+      throw new IllegalStateException("Benchmark returned null");
+    }
+    return (after - before) / (double) count;
+  }
+
+  private static long usedHeapAfterGc() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // Collect until the used heap stops shrinking; one request is a hint.
+    for (int i = 0; i < 10; i++) {
+      System.gc();
+      Thread.sleep(50);
+      long now = runtime.totalMemory() - runtime.freeMemory();
+      if (now >= used) {
+        break;
+      }
+      used = now;
+    }
+    return used;
+  }
+
+  /** Runs at least once and until {@code nanos} have passed. */
+  private long runFor(Benchmark benchmark, long nanos) throws Exception {
+    long end = System.nanoTime() + nanos;
+    long ops = 0;
+    int hash = 0;
+    do {
+      Object result = benchmark.run();
+      hash += result == null ? 0 : System.identityHashCode(result);
+      ops++;
+    } while (System.nanoTime() - end < 0);
+    blackhole += hash;
+    return ops;
+  }
+
+  /** Bytes allocated so far by this thread, or {@code -1} if unknown. */
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean sunBean
+        = (com.sun.management.ThreadMXBean) bean;
+    if (!sunBean.isThreadAllocatedMemorySupported()
+        || !sunBean.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  public static void main(String[] args) throws Exception {
+    Pattern filter = Pattern.compile(".*");
+    File baseline = null;
+    File results = new File("build/benchmark-results.json");
+    long warmupMillis = 2000;
+    long iterationMillis = 1000;
+    int iterations = 5;
+    int retainedCount = 100000;
+    double threshold = 10;
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0) {
+        throw new IllegalArgumentException("Expected --name=value: " + arg);
+      }
+      String name = arg.substring(2, equals);
+      String value = arg.substring(equals + 1);
+      if ("filter".equals(name)) {
+        filter = Pattern.compile(value);
+      } else if ("baseline".equals(name)) {
+        baseline = new File(value);
+      } else if ("results".equals(name)) {
+        results = new File(value);
+      } else if ("warmupMillis".equals(name)) {
+        warmupMillis = Long.parseLong(value);
+      } else if ("iterationMillis".equals(name)) {
+        iterationMillis = Long.parseLong(value);
+      } else if ("iterations".equals(name)) {
+        iterations = Integer.parseInt(value);
+      } else if ("retainedCount".equals(name)) {
+        retainedCount = Integer.parseInt(value);
+      } else if ("threshold".equals(name)) {
+        threshold = Double.parseDouble(value);
+      } else {
+        throw new IllegalArgumentException("Unknown option: " + name);
+      }
+    }
+    // The library logs at INFO in some of the measured paths.
+    libraryLog.setLevel(Level.WARNING);
+
+    BenchmarkRunner runner
+        = new BenchmarkRunner(warmupMillis, iterationMillis, iterations);
+    Map<String, Object> report = new LinkedHashMap<String, Object>();
+    List<Benchmark> benchmarks = HotPathBenchmarks.all();
+    for (Benchmark benchmark : benchmarks) {
+      if (!filter.matcher(benchmark.getName()).find()) {
+        continue;
+      }
+      Result result = runner.run(benchmark);
+      System.out.println(String.format(Locale.ENGLISH,
+          "%-44s %14.1f ns/op  +- %10.1f  %12.0f B/op", benchmark.getName(),
+          result.nanosPerOp, result.stddevNanosPerOp, result.bytesPerOp));
+      Map<String, Object> entry = new LinkedHashMap<String, Object>();
+      entry.put("nanosPerOp", result.nanosPerOp);
+      entry.put("stddevNanosPerOp", result.stddevNanosPerOp);
+      entry.put("bytesPerOp", result.bytesPerOp);
+      report.put(benchmark.getName(), entry);
+    }
+    for (Benchmark footprint : HotPathBenchmarks.footprints()) {
+      if (!filter.matcher(footprint.getName()).find()) {
+        continue;
+      }
+      double bytes = retainedBytes(footprint, retainedCount);
+      System.out.println(String.format(Locale.ENGLISH,
+          "%-44s %14.1f retained B/op", footprint.getName(), bytes));
+      Map<String, Object> entry = new LinkedHashMap<String, Object>();
+      entry.put("retainedBytesPerOp", bytes);
+      report.put(footprint.getName(), entry);
+    }
+    writeJson(report, results);
+    System.out.println("Results written to " + results);
+    if (baseline != null) {
+      compare(readJson(baseline), report, threshold);
+    }
+  }
+
+  /**
+   * Prints the change of each benchmark from the baseline, marking those
+   * slower by more than {@code thresholdPercent}.
+   */
+  static void compare(Map<?, ?> baseline, Map<String, Object> report,
+      double thresholdPercent) {
+    System.out.println();
+    System.out.println(String.format(Locale.ENGLISH, "%-44s %14s %14s %8s",
+        "Benchmark", "Baseline ns", "Current ns", "Change"));
+    int regressions = 0;
+    for (Map.Entry<String, Object> entry : report.entrySet()) {
+      Map<?, ?> before = (Map<?, ?>) baseline.get(entry.getKey());
+      Double currentNanos
+          = (Double) ((Map<?, ?>) entry.getValue()).get("nanosPerOp");
+      if (currentNanos == null) {
+        // Footprints are reported, but not compared.
+        continue;
+      }
+      double current = currentNanos;
+      if (before == null) {
+        System.out.println(String.format(Locale.ENGLISH,
+            "%-44s %14s %14.1f %8s", entry.getKey(), "-", current, "new"));
+        continue;
+      }
+      double previous = ((Number) before.get("nanosPerOp")).doubleValue();
+      double change = (current - previous) / previous * 100;
+      boolean regressed = change > thresholdPercent;
+      if (regressed) {
+        regressions++;
+      }
+      System.out.println(String.format(Locale.ENGLISH,
+          "%-44s %14.1f %14.1f %+7.1f%%%s", entry.getKey(), previous, current,
+          change, regressed ? "  REGRESSION" : ""));
+    }
+    System.out.println(regressions + " regressions above " + thresholdPercent
+        + "%");
+  }
+
+  private static void writeJson(Map<String, Object> report, File file)
+      throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+    try {
+      JSONValue.writeJSONString(report, writer);
+      writer.write("\n");
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static Map<?, ?> readJson(File file) throws IOException {
+    Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8);
+    try {
+      Object parsed = JSONValue.parse(reader);
+      if (!(parsed instanceof JSONObject)) {
+        throw new IOException("Not a benchmark report: " + file);
+      }
+      return (Map<?, ?>) parsed;
+    } finally {
+      reader.close();
+    }
+  }
+}
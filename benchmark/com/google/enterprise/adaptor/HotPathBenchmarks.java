@@ -0,0 +1,510 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.enterprise.adaptor.prebuilt.DateFilter;
+import com.google.enterprise.adaptor.prebuilt.PrebuiltTransforms;
+import com.google.enterprise.adaptor.prebuilt.RegexFilter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Benchmarks of the library's hot paths, with generated data the size of
+ * what large deployments see: feeds of 5000 records, ACLs with thousands of
+ * principals and deep inheritance chains, and SAML batch authz requests of
+ * 500 queries.
+ */
+class HotPathBenchmarks {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int FEED_RECORDS = 5000;
+  private static final int ACL_PRINCIPALS = 2000;
+  private static final int INHERITANCE_DEPTH = 50;
+  private static final int AUTHZ_BATCH = 20;
+  private static final int SAML_AUTHZ_QUERIES = 500;
+
+  private HotPathBenchmarks() {}
+
+  static List<Benchmark> all() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    benchmarks.add(percentEncodeAscii());
+    benchmarks.add(percentEncodeUnicode());
+    benchmarks.add(formMetadataHeader());
+    benchmarks.add(formNamespacedAclHeader());
+    benchmarks.add(encodedNamespacedAclHeader());
+    benchmarks.add(aclTransformRepeated());
+    benchmarks.add(makeMetadataAndUrlXml());
+    benchmarks.add(isAuthorizedBatch());
+    benchmarks.add(commandStreamLister());
+    benchmarks.add(commandStreamAuthorizer());
+    benchmarks.add(metadataBuildAndIterate());
+    benchmarks.add(metadataTransformFilters());
+    benchmarks.add(metadataTransformPipeline());
+    GsaCommunicationHandler.bootstrapOpenSaml();
+    benchmarks.add(samlBatchAuthz(false));
+    benchmarks.add(samlBatchAuthz(true));
+    return benchmarks;
+  }
+
+  /**
+   * Benchmarks whose results are kept alive to measure their retained size,
+   * rather than timed.
+   */
+  static List<Benchmark> footprints() {
+    List<Benchmark> footprints = new ArrayList<Benchmark>();
+    footprints.add(recordWithMetadata());
+    return footprints;
+  }
+
+  private static Benchmark percentEncodeAscii() {
+    final String value = "Quarterly report/Q3 2017 (final) v2.docx";
+    return new NamedBenchmark("DocumentHandler.percentEncode/ascii") {
+      @Override
+      public Object run() {
+        return DocumentHandler.percentEncode(value);
+      }
+    };
+  }
+
+  private static Benchmark percentEncodeUnicode() {
+    final String value = "Jahresbericht \u00fcber Gr\u00f6\u00dfe \u2013 "
+        + "\u6771\u4eac\u30aa\u30d5\u30a3\u30b9";
+    return new NamedBenchmark("DocumentHandler.percentEncode/unicode") {
+      @Override
+      public Object run() {
+        return DocumentHandler.percentEncode(value);
+      }
+    };
+  }
+
+  private static Benchmark formMetadataHeader() {
+    final Metadata metadata = generateMetadata(50);
+    return new NamedBenchmark("DocumentHandler.formMetadataHeader") {
+      @Override
+      public Object run() {
+        return DocumentHandler.formMetadataHeader(metadata);
+      }
+    };
+  }
+
+  private static Benchmark formNamespacedAclHeader() {
+    final Acl acl = generateAcl(ACL_PRINCIPALS, new DocId("parent"));
+    final DocIdEncoder encoder = new MockDocIdCodec();
+    return new NamedBenchmark("DocumentHandler.formNamespacedAclHeader") {
+      @Override
+      public Object run() {
+        return DocumentHandler.formNamespacedAclHeader(acl, encoder);
+      }
+    };
+  }
+
+  /** The acl= value of X-Gsa-Doc-Controls, as sent for each document. */
+  private static Benchmark encodedNamespacedAclHeader() {
+    final Acl acl = generateAcl(ACL_PRINCIPALS, new DocId("parent"));
+    final DocIdEncoder encoder = new MockDocIdCodec();
+    return new NamedBenchmark("DocumentHandler.encodedNamespacedAclHeader") {
+      @Override
+      public Object run() {
+        StringBuilder sb = new StringBuilder("acl=");
+        DocumentHandler.appendEncodedNamespacedAclHeader(sb, acl, encoder);
+        return sb.toString();
+      }
+    };
+  }
+
+  /** Transforming an ACL that many documents share. */
+  private static Benchmark aclTransformRepeated() {
+    final Acl acl = generateAcl(ACL_PRINCIPALS, new DocId("parent"));
+    final AclTransform transform = new AclTransform(Collections.singletonList(
+        new AclTransform.Rule(
+            new AclTransform.MatchData(null, null, "DOMAIN", null),
+            new AclTransform.MatchData(null, null, "CORP", null))));
+    return new NamedBenchmark("AclTransform.transform/repeated") {
+      @Override
+      public Object run() {
+        return transform.transform(acl);
+      }
+    };
+  }
+
+  private static Benchmark makeMetadataAndUrlXml() {
+    final GsaFeedFileMaker maker = new GsaFeedFileMaker(new MockDocIdCodec(),
+        new AclTransform(Collections.<AclTransform.Rule>emptyList()));
+    final List<DocIdPusher.Record> records
+        = new ArrayList<DocIdPusher.Record>();
+    Date lastModified = new Date(1500000000000L);
+    for (int i = 0; i < FEED_RECORDS; i++) {
+      records.add(new DocIdPusher.Record.Builder(
+          new DocId("folder/" + (i / 100) + "/document " + i))
+          .setLastModified(lastModified).setCrawlImmediately(i % 2 == 0)
+          .build());
+    }
+    return new NamedBenchmark("GsaFeedFileMaker.makeMetadataAndUrlXml/5000") {
+      @Override
+      public Object run() {
+        return maker.makeMetadataAndUrlXml("benchmark", records);
+      }
+    };
+  }
+
+  /**
+   * A batch of documents whose ACLs do not decide, so each is decided at the
+   * top of a deep inheritance chain.
+   */
+  private static Benchmark isAuthorizedBatch() {
+    final Map<DocId, Acl> acls = new HashMap<DocId, Acl>();
+    DocId parent = null;
+    for (int i = 0; i < INHERITANCE_DEPTH; i++) {
+      DocId id = new DocId("chain/" + i);
+      Acl.Builder builder = new Acl.Builder(generateAcl(200, parent))
+          .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES);
+      if (parent == null) {
+        builder.setPermitGroups(Collections.singleton(
+            new GroupPrincipal("benchmark-group")));
+      }
+      acls.put(id, builder.build());
+      parent = id;
+    }
+    final List<DocId> batch = new ArrayList<DocId>();
+    for (int i = 0; i < AUTHZ_BATCH; i++) {
+      DocId id = new DocId("leaf/" + i);
+      acls.put(id, generateAcl(ACL_PRINCIPALS, parent));
+      batch.add(id);
+    }
+    final AuthnIdentity identity = new AuthnIdentityImpl.Builder(
+        new UserPrincipal("benchmark-user"))
+        .setGroups(Collections.singleton(
+            new GroupPrincipal("benchmark-group")))
+        .build();
+    final Acl.BatchRetriever retriever = new Acl.BatchRetriever() {
+      @Override
+      public Map<DocId, Acl> retrieveAcls(Set<DocId> ids) {
+        Map<DocId, Acl> found = new HashMap<DocId, Acl>();
+        for (DocId id : ids) {
+          if (acls.containsKey(id)) {
+            found.put(id, acls.get(id));
+          }
+        }
+        return found;
+      }
+    };
+    return new NamedBenchmark("Acl.isAuthorizedBatch/depth50x20") {
+      @Override
+      public Object run() throws IOException {
+        return Acl.isAuthorizedBatch(identity, batch, retriever);
+      }
+    };
+  }
+
+  private static Benchmark commandStreamLister() {
+    StringBuilder sb = new StringBuilder("GSA Adaptor Data Version 1 [\n]\n");
+    for (int i = 0; i < FEED_RECORDS; i++) {
+      sb.append("id=folder/").append(i / 100).append("/document ").append(i)
+          .append("\nlast-modified=1500000000\ncrawl-immediately\n");
+    }
+    final byte[] stream = sb.toString().getBytes(UTF_8);
+    return new NamedBenchmark("CommandStreamParser.readFromLister/5000") {
+      @Override
+      public Object run() throws Exception {
+        AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+        new CommandStreamParser(new ByteArrayInputStream(stream))
+            .readFromLister(pusher, null);
+        return pusher;
+      }
+    };
+  }
+
+  private static Benchmark commandStreamAuthorizer() {
+    StringBuilder sb = new StringBuilder("GSA Adaptor Data Version 1 [\n]\n");
+    for (int i = 0; i < FEED_RECORDS; i++) {
+      sb.append("id=document ").append(i).append("\nauthz-status=")
+          .append(i % 3 == 0 ? "DENY" : "PERMIT").append("\n");
+    }
+    final byte[] stream = sb.toString().getBytes(UTF_8);
+    return new NamedBenchmark("CommandStreamParser.readFromAuthorizer/5000") {
+      @Override
+      public Object run() throws Exception {
+        return new CommandStreamParser(new ByteArrayInputStream(stream))
+            .readFromAuthorizer();
+      }
+    };
+  }
+
+  private static Benchmark metadataBuildAndIterate() {
+    return new NamedBenchmark("Metadata.addAndIterate/100") {
+      @Override
+      public Object run() {
+        Metadata metadata = generateMetadata(100);
+        int length = 0;
+        for (Map.Entry<String, String> entry : metadata) {
+          length += entry.getKey().length() + entry.getValue().length();
+        }
+        return length;
+      }
+    };
+  }
+
+  /**
+   * Regex and date filters, which only read the metadata, as run on each
+   * document request. Includes building the document's metadata and params.
+   */
+  private static Benchmark metadataTransformFilters() {
+    final MetadataTransformPipeline pipeline = new MetadataTransformPipeline(
+        Arrays.asList(regexFilter(), dateFilter()),
+        Arrays.asList("regexFilter", "dateFilter"));
+    final Metadata document = generateDocumentMetadata();
+    return new NamedBenchmark("MetadataTransformPipeline.transform/filters") {
+      @Override
+      public Object run() {
+        Metadata metadata = new Metadata(document);
+        pipeline.transform(metadata, generateDocumentParams());
+        return metadata;
+      }
+    };
+  }
+
+  /**
+   * Copy, replace, regex and date transforms, as run on each document
+   * request. Includes building the document's metadata and params.
+   */
+  private static Benchmark metadataTransformPipeline() {
+    Map<String, String> copy = new HashMap<String, String>();
+    copy.put("1.from", "author");
+    copy.put("1.to", "contributors");
+    copy.put("2.from", "Department");
+    copy.put("2.to", "Group");
+    Map<String, String> replace = new HashMap<String, String>();
+    replace.put("key1", "title");
+    replace.put("key2", "contributors");
+    replace.put("pattern", "(?i)\\bdraft\\b");
+    replace.put("replacement", "Final");
+    final MetadataTransformPipeline pipeline = new MetadataTransformPipeline(
+        Arrays.asList(PrebuiltTransforms.copyMetadata(copy),
+            PrebuiltTransforms.replaceMetadata(replace), regexFilter(),
+            dateFilter()),
+        Arrays.asList("copy", "replace", "regexFilter", "dateFilter"));
+    final Metadata document = generateDocumentMetadata();
+    return new NamedBenchmark("MetadataTransformPipeline.transform/mixed") {
+      @Override
+      public Object run() {
+        Metadata metadata = new Metadata(document);
+        pipeline.transform(metadata, generateDocumentParams());
+        return metadata;
+      }
+    };
+  }
+
+  /** Skips documents that are not public; none of the generated ones. */
+  private static MetadataTransform regexFilter() {
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("key", "Classification");
+    config.put("pattern", "(PUBLIC)|(DECLASSIFIED)");
+    config.put("when", "not-found");
+    config.put("decision", "do-not-index");
+    return RegexFilter.create(config);
+  }
+
+  /** Skips documents not modified for ten years; none of the generated ones. */
+  private static MetadataTransform dateFilter() {
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("key", "Last_Modified_Date");
+    config.put("days", "3650");
+    return DateFilter.create(config);
+  }
+
+  /** The metadata of a typical document: 20 values over 12 keys. */
+  private static Metadata generateDocumentMetadata() {
+    Metadata metadata = new Metadata();
+    metadata.add("title", "Quarterly report Q3 2017 (draft)");
+    metadata.add("author", "Polly Hedra");
+    metadata.add("author", "Lee Cheng");
+    metadata.add("Department", "Finance");
+    metadata.add("Classification", "PUBLIC");
+    metadata.add("Last_Modified_Date", "2017-06-30");
+    metadata.add("Created_Date", "2017-04-02");
+    metadata.add("mimeType", "application/vnd.ms-excel");
+    metadata.add("Language", "en");
+    metadata.add("Owner", "DOMAIN\\phedra");
+    for (int i = 0; i < 6; i++) {
+      metadata.add("keywords", "keyword " + i);
+    }
+    for (int i = 0; i < 4; i++) {
+      metadata.add("Folder", "Shared/Finance/Reports/" + (2014 + i));
+    }
+    return metadata;
+  }
+
+  /** The params the library sets for each document request. */
+  private static Map<String, String> generateDocumentParams() {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(MetadataTransform.KEY_DOC_ID,
+        "Shared/Finance/Reports/2017/q3.xls");
+    params.put(MetadataTransform.KEY_CONTENT_TYPE,
+        "application/vnd.ms-excel");
+    params.put(MetadataTransform.KEY_LAST_MODIFIED_MILLIS_UTC,
+        "1498780800000");
+    params.put(MetadataTransform.KEY_CRAWL_ONCE, "false");
+    params.put(MetadataTransform.KEY_LOCK, "false");
+    return params;
+  }
+
+  /**
+   * A large batch authz request from the GSA, decoded and encoded with either
+   * OpenSAML or the streaming codec.
+   */
+  private static Benchmark samlBatchAuthz(boolean streaming) {
+    SamlMetadata metadata = new SamlMetadata("localhost", 80, "localhost",
+        "http://google.com/enterprise/gsa/security-manager",
+        "http://google.com/enterprise/gsa/adaptor");
+    final SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(
+        new PermitAllAuthority(), new MockDocIdCodec(), metadata,
+        Principal.DomainFormat.DNS, streaming);
+    final byte[] request = generateAuthzRequest(SAML_AUTHZ_QUERIES);
+    return new NamedBenchmark("SamlBatchAuthzHandler.handle/"
+        + (streaming ? "streaming" : "opensaml") + SAML_AUTHZ_QUERIES) {
+      @Override
+      public Object run() throws IOException {
+        MockHttpExchange ex = new MockHttpExchange("POST", "/",
+            new MockHttpContext(handler, "/"));
+        ex.setRequestBody(new ByteArrayInputStream(request));
+        handler.handle(ex);
+        if (ex.getResponseCode() != 200) {
+          throw new IllegalStateException(
+              "Unexpected response code: " + ex.getResponseCode());
+        }
+        return ex;
+      }
+    };
+  }
+
+  /**
+   * A feed record with the metadata a typical document carries. Keys are new
+   * strings each time, as they would be when read from a repository.
+   */
+  private static Benchmark recordWithMetadata() {
+    final String[] keys = {"author", "title", "mimeType", "department",
+        "keywords", "created", "modified", "owner"};
+    return new NamedBenchmark("DocIdPusher.Record/metadata") {
+      private int count;
+
+      @Override
+      public Object run() {
+        int i = count++;
+        DocIdPusher.Record.Builder builder = new DocIdPusher.Record.Builder(
+            new DocId("folder/" + (i / 100) + "/document " + i));
+        for (int k = 0; k < keys.length; k++) {
+          builder.addMetadata(new String(keys[k]), "value " + k + " " + i);
+        }
+        for (int k = 0; k < 4; k++) {
+          builder.addMetadata(new String("keywords"), "keyword " + k + i);
+        }
+        return builder.build();
+      }
+    };
+  }
+
+  /** SOAP request with {@code queries} authz decision queries. */
+  private static byte[] generateAuthzRequest(int queries) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+        .append("<soap11:Envelope xmlns:soap11=")
+        .append("\"http://schemas.xmlsoap.org/soap/envelope/\">")
+        .append("<soap11:Body>");
+    for (int i = 0; i < queries; i++) {
+      sb.append("<samlp:AuthzDecisionQuery ID=\"query").append(i)
+          .append("\" IssueInstant=\"2009-10-20T17:52:29Z\" Version=\"2.0\"")
+          .append(" Resource=\"http://localhost/doc/").append(i).append("\"")
+          .append(" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\"")
+          .append(" xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\">")
+          .append("<saml:Issuer>http://google.com/enterprise/gsa/")
+          .append("security-manager</saml:Issuer>")
+          .append("<saml:Subject><saml:NameID>Polly Hedra</saml:NameID>")
+          .append("</saml:Subject>")
+          .append("<saml:Action Namespace=")
+          .append("\"urn:oasis:names:tc:SAML:1.0:action:ghpp\">GET")
+          .append("</saml:Action>")
+          .append("</samlp:AuthzDecisionQuery>");
+    }
+    sb.append("</soap11:Body></soap11:Envelope>");
+    return sb.toString().getBytes(UTF_8);
+  }
+
+  /** Metadata with {@code entries} values spread over a few keys. */
+  private static Metadata generateMetadata(int entries) {
+    Metadata metadata = new Metadata();
+    for (int i = 0; i < entries; i++) {
+      metadata.add("key-" + (i % 10),
+          "value, with \u00fcn\u00efc\u00f6d\u00e9 & punctuation " + i);
+    }
+    return metadata;
+  }
+
+  /** ACL that permits and denies {@code principals} users and groups each. */
+  private static Acl generateAcl(int principals, DocId inheritFrom) {
+    Set<UserPrincipal> permitUsers = new HashSet<UserPrincipal>();
+    Set<GroupPrincipal> permitGroups = new HashSet<GroupPrincipal>();
+    Set<UserPrincipal> denyUsers = new HashSet<UserPrincipal>();
+    Set<GroupPrincipal> denyGroups = new HashSet<GroupPrincipal>();
+    for (int i = 0; i < principals / 4; i++) {
+      permitUsers.add(new UserPrincipal("DOMAIN\\user" + i, "Default"));
+      permitGroups.add(new GroupPrincipal("DOMAIN\\group" + i, "Default"));
+      denyUsers.add(new UserPrincipal("DOMAIN\\denied" + i, "Default"));
+      denyGroups.add(new GroupPrincipal("DOMAIN\\blocked" + i, "Default"));
+    }
+    Acl.Builder builder = new Acl.Builder().setPermitUsers(permitUsers)
+        .setPermitGroups(permitGroups).setDenyUsers(denyUsers)
+        .setDenyGroups(denyGroups).setEverythingCaseInsensitive();
+    if (inheritFrom != null) {
+      builder.setInheritFrom(inheritFrom);
+    }
+    return builder.build();
+  }
+
+  private static class PermitAllAuthority implements AuthzAuthority {
+    @Override
+    public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+        Collection<DocId> ids) {
+      Map<DocId, AuthzStatus> result = new HashMap<DocId, AuthzStatus>();
+      for (DocId id : ids) {
+        result.put(id, AuthzStatus.PERMIT);
+      }
+      return result;
+    }
+  }
+
+  private abstract static class NamedBenchmark implements Benchmark {
+    private final String name;
+
+    NamedBenchmark(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+  }
+}
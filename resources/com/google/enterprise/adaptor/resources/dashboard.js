@@ -133,6 +133,8 @@ function getStatsCallback(result, error) {
       data.simpleStats.numTotalNonGsaRequests);
   $('#gaf-num-unique-non-gsa-requests').text(
       notAvailableInReducedMemMode(data.simpleStats.numUniqueNonGsaRequests));
+  $('#gaf-num-total-coalesced-requests').text(
+      data.simpleStats.numTotalCoalescedRequests);
   $('#gaf-when-started').text(String(new Date(data.simpleStats.whenStarted)));
   $('#gaf-time-resolution').text(data.simpleStats.timeResolution);
   $('#gaf-num-total-groups-pushed').text(
@@ -355,6 +357,26 @@ function startIncrementalFeedPush() {
   });
 }
 
+function startFeedReplay() {
+  var sending = $('#gaf-start-feed-replay-sending');
+  sending.show();
+  rpc('startFeedReplay', [true], function(result, error) {
+    sending.hide();
+    if (result === null) {
+      alert("Disconnected from adaptor.  Press the 'OK' button to return to "
+            + "the login page.");
+      location.reload();
+      throw error !== null ? error : "Invalid response from server";
+    }
+    var notificationSpan = result ? $('#gaf-start-feed-replay-success')
+        : $('#gaf-start-feed-replay-already-running');
+    notificationSpan.show();
+    window.setTimeout(function() {
+      notificationSpan.fadeOut();
+    }, 5000);
+  });
+}
+
 function encodeSensitiveValue() {
   var valuesArray = $('#gaf-sec-form').serializeArray();
   var values = {};
@@ -476,6 +498,7 @@ $(document).ready(function() {
   rpc('encodeSensitiveValue', ["", "ENCRYPTED"], isEncryptionSupportedCallback);
   $('#gaf-incremental-feed-push').click(startIncrementalFeedPush);
   $('#gaf-start-feed-push').click(startFeedPush);
+  $('#gaf-start-feed-replay').click(startFeedReplay);
   $('#gaf-sec-runenc').click(encodeSensitiveValue);
   $('#gaf-stop-adaptor').click(stopAdaptor);
 });
@@ -0,0 +1,178 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of a value computed from an {@link Acl}, for the common case
+ * of a few distinct ACLs being shared by very many documents. An ACL instance
+ * seen before is found by identity without looking at its principals. Other
+ * instances are found by comparing their principals' exact names, so a cached
+ * value is never reused for an ACL that is merely {@code equals()} because it
+ * uses a different domain format or case.
+ *
+ * <p>This class is thread-safe. {@link #compute} may be called more than once
+ * for the same ACL by concurrent callers.
+ *
+ * @param <V> type of the computed value
+ */
+abstract class AclCache<V> {
+  /** Maximum number of distinct ACLs kept by default. */
+  public static final int DEFAULT_MAXIMUM_SIZE = 100;
+
+  private final ConcurrentMap<Acl, V> byIdentity;
+  private final ConcurrentMap<ExactKey, V> byValue;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maximumSize maximum number of distinct ACLs kept; the least
+   *     recently used are dropped when there are more
+   */
+  public AclCache(int maximumSize) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize must be positive");
+    }
+    // Weak keys are compared by identity.
+    this.byIdentity = CacheBuilder.newBuilder().weakKeys()
+        .maximumSize(maximumSize).<Acl, V>build().asMap();
+    this.byValue = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize).<ExactKey, V>build().asMap();
+  }
+
+  /** Returns the value for {@code acl}, computing it if it is not cached. */
+  public V get(Acl acl) {
+    if (acl == null) {
+      throw new NullPointerException();
+    }
+    V value = byIdentity.get(acl);
+    if (value != null) {
+      hits.incrementAndGet();
+      return value;
+    }
+    ExactKey key = new ExactKey(acl);
+    value = byValue.get(key);
+    if (value != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      value = compute(acl);
+      V existing = byValue.putIfAbsent(key, value);
+      if (existing != null) {
+        value = existing;
+      }
+    }
+    byIdentity.put(acl, value);
+    return value;
+  }
+
+  /** Computes the value for an ACL that is not in the cache. */
+  protected abstract V compute(Acl acl);
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Key that matches ACLs whose principals have identical types, names and
+   * namespaces, in the same order, and that have the same inheritance.
+   */
+  private static final class ExactKey {
+    private final Acl acl;
+    private final int hash;
+
+    ExactKey(Acl acl) {
+      this.acl = acl;
+      int h = acl.getInheritanceType().hashCode();
+      h = 31 * h + (acl.isEverythingCaseSensitive() ? 1 : 0);
+      h = 31 * h + hashOrZero(acl.getInheritFrom());
+      h = 31 * h + hashOrZero(acl.getInheritFromFragment());
+      h = 31 * h + hash(acl.getPermitGroups());
+      h = 31 * h + hash(acl.getDenyGroups());
+      h = 31 * h + hash(acl.getPermitUsers());
+      h = 31 * h + hash(acl.getDenyUsers());
+      this.hash = h;
+    }
+
+    private static int hashOrZero(Object o) {
+      return o == null ? 0 : o.hashCode();
+    }
+
+    private static int hash(Collection<? extends Principal> principals) {
+      int h = 1;
+      for (Principal p : principals) {
+        h = 31 * h + p.getName().hashCode();
+        h = 31 * h + p.getNamespace().hashCode();
+      }
+      return h;
+    }
+
+    private static boolean same(Collection<? extends Principal> a,
+        Collection<? extends Principal> b) {
+      if (a.size() != b.size()) {
+        return false;
+      }
+      Iterator<? extends Principal> bi = b.iterator();
+      for (Principal pa : a) {
+        Principal pb = bi.next();
+        if (pa.isUser() != pb.isUser() || !pa.getName().equals(pb.getName())
+            || !pa.getNamespace().equals(pb.getNamespace())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean equal(Object a, Object b) {
+      return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ExactKey)) {
+        return false;
+      }
+      ExactKey k = (ExactKey) o;
+      Acl other = k.acl;
+      return hash == k.hash
+          && acl.getInheritanceType() == other.getInheritanceType()
+          && acl.isEverythingCaseSensitive()
+              == other.isEverythingCaseSensitive()
+          && equal(acl.getInheritFrom(), other.getInheritFrom())
+          && equal(acl.getInheritFromFragment(),
+              other.getInheritFromFragment())
+          && same(acl.getPermitGroups(), other.getPermitGroups())
+          && same(acl.getDenyGroups(), other.getDenyGroups())
+          && same(acl.getPermitUsers(), other.getPermitUsers())
+          && same(acl.getDenyUsers(), other.getDenyUsers());
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -35,11 +35,29 @@ final class AclTransform {
   private static final Logger log
       = Logger.getLogger(AclTransform.class.getName());
   private final List<Rule> rules;
+  /**
+   * Transformed ACLs, since the same few ACLs are commonly used by very many
+   * documents.
+   */
+  private final AclCache<Acl> transformed
+      = new AclCache<Acl>(AclCache.DEFAULT_MAXIMUM_SIZE) {
+        @Override
+        protected Acl compute(Acl acl) {
+          return new Acl.Builder(acl)
+              .setPermits(transformInternal(acl.getPermits()))
+              .setDenies(transformInternal(acl.getDenies()))
+              .build();
+        }
+      };
 
   public AclTransform(List<Rule> rules) {
     this.rules = Collections.unmodifiableList(new ArrayList<Rule>(rules));
   }
 
+  /**
+   * Returns {@code acl} with its principals transformed. Repeated ACLs are
+   * transformed only once, and the same instance is returned for them.
+   */
   public Acl transform(Acl acl) {
     if (acl == null) {
       return null;
@@ -47,10 +65,7 @@ final class AclTransform {
     if (rules.isEmpty()) {
       return acl;
     }
-    return new Acl.Builder(acl)
-        .setPermits(transformInternal(acl.getPermits()))
-        .setDenies(transformInternal(acl.getDenies()))
-        .build();
+    return transformed.get(acl);
   }
 
   public <T extends Principal> Collection<T> transform(
@@ -0,0 +1,74 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+/**
+ * Decides which ticks of a fixed-rate timer should poll for incremental
+ * changes. Each poll that finds no changes doubles the number of ticks until
+ * the next poll, up to a maximum; a poll that finds changes returns to polling
+ * every tick.
+ *
+ * <p>This class is thread-safe.
+ */
+class AdaptivePollSchedule {
+  private final long tickMillis;
+  private final long maxTicks;
+  /** Number of ticks between polls. */
+  private long ticksPerPoll = 1;
+  /** Number of ticks since the last poll became due. */
+  private long ticks;
+
+  /**
+   * @param tickMillis period of the timer, which is the shortest time between
+   *     polls
+   * @param maxPeriodMillis longest time between polls, at least {@code
+   *     tickMillis}
+   */
+  public AdaptivePollSchedule(long tickMillis, long maxPeriodMillis) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("tickMillis must be positive");
+    }
+    if (maxPeriodMillis < tickMillis) {
+      throw new IllegalArgumentException(
+          "maxPeriodMillis must be at least tickMillis");
+    }
+    this.tickMillis = tickMillis;
+    this.maxTicks = maxPeriodMillis / tickMillis;
+  }
+
+  /** Counts one tick of the timer and returns whether a poll is due. */
+  public synchronized boolean tick() {
+    ticks++;
+    if (ticks < ticksPerPoll) {
+      return false;
+    }
+    ticks = 0;
+    return true;
+  }
+
+  /** Adapts the time until the next poll to the outcome of a poll. */
+  public synchronized void recordPoll(boolean foundChanges) {
+    if (foundChanges) {
+      ticksPerPoll = 1;
+    } else {
+      ticksPerPoll = Math.min(ticksPerPoll * 2, maxTicks);
+    }
+  }
+
+  /** Current time between polls. */
+  public synchronized long getPeriodMillis() {
+    return ticksPerPoll * tickMillis;
+  }
+}
@@ -143,4 +143,12 @@ public interface AdaptorContext {
    * @param authzAuthority makes access decisions
    */
   public void setAuthzAuthority(AuthzAuthority authzAuthority);
+
+  /**
+   * Register a heartbeat probe, so GSA heartbeats can be answered without
+   * retrieving document content. Registration may not occur after {@link
+   * Adaptor#init}.
+   * @param heartbeatProbe checks whether documents exist
+   */
+  public void setHeartbeatProbe(HeartbeatProbe heartbeatProbe);
 }
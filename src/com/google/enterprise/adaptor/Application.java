@@ -36,7 +36,6 @@ import java.util.Arrays;
 import java.util.Locale;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
@@ -373,8 +372,9 @@ public final class Application {
 
     int maxThreads = config.getServerMaxWorkerThreads();
     int queueCapacity = config.getServerQueueCapacity();
+    // Resizable so that a modified queueCapacity can take effect live.
     BlockingQueue<Runnable> blockingQueue
-        = new ArrayBlockingQueue<Runnable>(queueCapacity);
+        = new ResizableBlockingQueue<Runnable>(queueCapacity);
     // The Executor can't reject jobs directly, because HttpServer does not
     // appear to handle that case.
     RejectedExecutionHandler policy
@@ -33,7 +33,7 @@ class AsyncDocIdSender implements AsyncDocIdPusher,
       = Logger.getLogger(AsyncDocIdSender.class.getName());
 
   private final ItemPusher itemPusher;
-  private final int maxBatchSize;
+  private volatile int maxBatchSize;
   private final long maxLatency;
   private final TimeUnit maxLatencyUnit;
   private final BlockingQueue<DocIdSender.Item> queue;
@@ -91,6 +91,19 @@ class AsyncDocIdSender implements AsyncDocIdPusher,
     return asyncPushItem(new DocIdSender.AclItem(docId, null, acl));
   }
 
+  /** Maximum number of items sent in one batch. */
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /** Changes the batch size, starting with the next batch. */
+  public void setMaxBatchSize(int maxBatchSize) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("maxBatchSize must be positive");
+    }
+    this.maxBatchSize = maxBatchSize;
+  }
+
   public Runnable worker() {
     return worker;
   }
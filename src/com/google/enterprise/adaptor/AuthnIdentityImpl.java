@@ -14,8 +14,15 @@
 
 package com.google.enterprise.adaptor;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -64,6 +71,74 @@ class AuthnIdentityImpl implements AuthnIdentity {
         + "groups=" + groups + ")";
   }
 
+  /**
+   * Writes the user and groups of {@code identity} to {@code out} in a compact
+   * binary form, readable by {@link #readFrom}. Each distinct group namespace
+   * is written only once. The password is never written.
+   */
+  static void writeTo(AuthnIdentity identity, DataOutput out)
+      throws IOException {
+    UserPrincipal user = identity.getUser();
+    out.writeUTF(user.getName());
+    out.writeUTF(user.getNamespace());
+    Set<GroupPrincipal> groups = identity.getGroups();
+    if (groups == null) {
+      out.writeInt(-1);
+      return;
+    }
+    Map<String, Integer> namespaces = new LinkedHashMap<String, Integer>();
+    for (GroupPrincipal group : groups) {
+      if (!namespaces.containsKey(group.getNamespace())) {
+        namespaces.put(group.getNamespace(), namespaces.size());
+      }
+    }
+    out.writeInt(namespaces.size());
+    for (String namespace : namespaces.keySet()) {
+      out.writeUTF(namespace);
+    }
+    out.writeInt(groups.size());
+    for (GroupPrincipal group : groups) {
+      out.writeUTF(group.getName());
+      out.writeInt(namespaces.get(group.getNamespace()));
+    }
+  }
+
+  /**
+   * Reads an identity previously written by {@link #writeTo}. The returned
+   * identity has no password.
+   *
+   * @throws IOException if reading fails or the data is malformed
+   */
+  static AuthnIdentityImpl readFrom(DataInput in) throws IOException {
+    UserPrincipal user = new UserPrincipal(in.readUTF(), in.readUTF());
+    int namespaceCount = in.readInt();
+    if (namespaceCount == -1) {
+      return new Builder(user).build();
+    }
+    if (namespaceCount < 0) {
+      throw new IOException("Invalid namespace count: " + namespaceCount);
+    }
+    List<String> namespaces = new ArrayList<String>(namespaceCount);
+    for (int i = 0; i < namespaceCount; i++) {
+      namespaces.add(in.readUTF());
+    }
+    int groupCount = in.readInt();
+    if (groupCount < 0) {
+      throw new IOException("Invalid group count: " + groupCount);
+    }
+    Set<GroupPrincipal> groups = new HashSet<GroupPrincipal>();
+    for (int i = 0; i < groupCount; i++) {
+      String name = in.readUTF();
+      int namespace = in.readInt();
+      if (namespace < 0 || namespace >= namespaceCount) {
+        throw new IOException("Invalid namespace index: " + namespace);
+      }
+      groups.add(new GroupPrincipal(name, namespaces.get(namespace)));
+    }
+    return new AuthnIdentityImpl(user, null,
+        Collections.unmodifiableSet(groups));
+  }
+
   /**
    * Builder for creating {@link AuthnIdentityImpl} instances.
    */
@@ -0,0 +1,817 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static java.util.Map.Entry;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lets concurrent requests for the same document share a single call to
+ * {@link Adaptor#getDocContent}. The first request calls the adaptor with its
+ * own {@link Response}, wrapped to also record everything the adaptor
+ * provides, so it is not delayed by the sharing. Requests that arrive while
+ * the call is in progress follow it: they replay the recorded headers onto
+ * their own {@code Response} once the adaptor starts providing content, and
+ * then receive the content as the adaptor writes it. Transforms and headers
+ * are still decided per request.
+ *
+ * <p>Content is only teed to followers when there are any. It is kept in
+ * memory and moved to a temporary file once it grows large, so that followers
+ * that are slower than the first request do not slow it down. If no request
+ * has followed by the time the adaptor starts providing content, the content
+ * is not buffered at all and later requests make their own call.
+ *
+ * <p>Requests only share a call when the adaptor would see the same {@link
+ * Request}: the same {@code DocId}, the same last access time, and the same
+ * kind of client, since {@link Request#canRespondWithNoContent} differs
+ * between the GSA and other clients. Only requests that passed authorization
+ * get here.
+ */
+class CoalescingRetriever {
+  private static final Logger log
+      = Logger.getLogger(CoalescingRetriever.class.getName());
+  /** Content larger than this is moved to a temporary file. */
+  private static final int DEFAULT_MEMORY_BUFFER_BYTES = 1024 * 1024;
+
+  private final Adaptor adaptor;
+  private final Journal journal;
+  private final int memoryBufferBytes;
+  private final ConcurrentMap<Key, Flight> inFlight
+      = new ConcurrentHashMap<Key, Flight>();
+
+  public CoalescingRetriever(Adaptor adaptor, Journal journal) {
+    this(adaptor, journal, DEFAULT_MEMORY_BUFFER_BYTES);
+  }
+
+  @VisibleForTesting
+  CoalescingRetriever(Adaptor adaptor, Journal journal,
+      int memoryBufferBytes) {
+    if (adaptor == null || journal == null) {
+      throw new NullPointerException();
+    }
+    if (memoryBufferBytes < 0) {
+      throw new IllegalArgumentException(
+          "memoryBufferBytes must not be negative");
+    }
+    this.adaptor = adaptor;
+    this.journal = journal;
+    this.memoryBufferBytes = memoryBufferBytes;
+  }
+
+  /**
+   * Provides the document to {@code response}, either by calling the adaptor
+   * or by following a concurrent call for an equivalent request. Exceptions
+   * from the adaptor are thrown to every request that shared the call.
+   *
+   * @param fromGsa whether the request is from the GSA or another fully
+   *     trusted client
+   */
+  public void getDocContent(Request request, Response response,
+      boolean fromGsa) throws IOException, InterruptedException {
+    Key key = new Key(request.getDocId(), request.getLastAccessTime(),
+        fromGsa);
+    while (true) {
+      Flight existing = inFlight.get(key);
+      if (existing == null) {
+        Flight flight = new Flight(key, response);
+        if (inFlight.putIfAbsent(key, flight) == null) {
+          try {
+            flight.retrieve(request);
+          } finally {
+            flight.land();
+          }
+          return;
+        }
+      } else if (existing.follow()) {
+        journal.recordCoalescedRequest();
+        log.log(Level.FINE, "Sharing retrieval of {0}", key.docId);
+        try {
+          existing.replay(response);
+        } finally {
+          existing.release();
+        }
+        return;
+      }
+      // The flight stopped accepting followers before we could join it.
+      // Try again.
+    }
+  }
+
+  /** Number of distinct retrievals currently accepting followers. */
+  @VisibleForTesting
+  int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  private static final class Key {
+    private final DocId docId;
+    private final Date lastAccessTime;
+    private final boolean fromGsa;
+
+    Key(DocId docId, Date lastAccessTime, boolean fromGsa) {
+      this.docId = docId;
+      this.lastAccessTime = lastAccessTime;
+      this.fromGsa = fromGsa;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return docId.equals(k.docId) && fromGsa == k.fromGsa
+          && (lastAccessTime == null ? k.lastAccessTime == null
+              : lastAccessTime.equals(k.lastAccessTime));
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * docId.hashCode()
+          + (lastAccessTime == null ? 0 : lastAccessTime.hashCode())
+          + (fromGsa ? 1 : 0);
+    }
+  }
+
+  /**
+   * One call to the adaptor, shared by the request that made it and the
+   * requests that followed it.
+   */
+  private class Flight {
+    private final Key key;
+    private final TeeResponse recording;
+    /** Counted down once the headers are final or the call is done. */
+    private final CountDownLatch contentStarted = new CountDownLatch(1);
+    private final CountDownLatch done = new CountDownLatch(1);
+    /** Requests using the flight that have not yet released it. */
+    private int participants = 1;
+    private boolean acceptingFollowers = true;
+    /** Content for followers, or {@code null} if there are none. */
+    private ContentBuffer content;
+    private Throwable failure;
+
+    Flight(Key key, Response leader) {
+      this.key = key;
+      this.recording = new TeeResponse(this, leader);
+    }
+
+    synchronized boolean follow() {
+      if (!acceptingFollowers) {
+        return false;
+      }
+      participants++;
+      return true;
+    }
+
+    void retrieve(Request request) throws IOException, InterruptedException {
+      try {
+        adaptor.getDocContent(request, recording);
+      } catch (IOException e) {
+        failure = e;
+        throw e;
+      } catch (InterruptedException e) {
+        failure = e;
+        throw e;
+      } catch (RuntimeException e) {
+        failure = e;
+        throw e;
+      } catch (Error e) {
+        failure = e;
+        throw e;
+      } finally {
+        ContentBuffer buffer;
+        synchronized (this) {
+          buffer = content;
+        }
+        if (buffer != null) {
+          buffer.finish(failure);
+        }
+        contentStarted.countDown();
+        done.countDown();
+      }
+      // Followers have all the content, even if this request failed.
+      recording.finish();
+    }
+
+    /**
+     * Called once the adaptor starts providing content. Starts buffering the
+     * content if there are followers, and otherwise stops accepting them.
+     */
+    ContentBuffer startContent() {
+      boolean alone;
+      ContentBuffer buffer = null;
+      synchronized (this) {
+        alone = participants == 1;
+        if (alone) {
+          acceptingFollowers = false;
+        } else {
+          content = buffer = new ContentBuffer(memoryBufferBytes);
+        }
+      }
+      if (alone) {
+        inFlight.remove(key, this);
+      }
+      contentStarted.countDown();
+      return buffer;
+    }
+
+    /** Called by the request that made the call, once it is done. */
+    void land() {
+      inFlight.remove(key, this);
+      synchronized (this) {
+        acceptingFollowers = false;
+      }
+      release();
+    }
+
+    /** Provides everything the adaptor provides to a follower. */
+    void replay(Response response) throws IOException, InterruptedException {
+      contentStarted.await();
+      if (recording.outcome != Outcome.CONTENT) {
+        done.await();
+        checkFailure();
+        recording.replay(response);
+        return;
+      }
+      ContentBuffer buffer;
+      synchronized (this) {
+        buffer = content;
+      }
+      recording.replayHeaders(response);
+      OutputStream os = response.getOutputStream();
+      InputStream is = buffer.openInputStream();
+      try {
+        IOHelper.copyStream(is, os);
+      } finally {
+        is.close();
+      }
+      os.close();
+    }
+
+    private void checkFailure() throws IOException {
+      if (failure == null) {
+        return;
+      }
+      if (failure instanceof IOException) {
+        throw new IOException("Shared retrieval failed", failure);
+      } else if (failure instanceof InterruptedException) {
+        throw new RuntimeException("Shared retrieval interrupted", failure);
+      } else {
+        throw new RuntimeException("Shared retrieval failed", failure);
+      }
+    }
+
+    void release() {
+      boolean last;
+      ContentBuffer buffer;
+      synchronized (this) {
+        last = --participants == 0 && !acceptingFollowers;
+        buffer = content;
+      }
+      if (last && buffer != null) {
+        buffer.discard();
+      }
+    }
+  }
+
+  private enum Outcome {
+    NONE, NOT_MODIFIED, NOT_FOUND, NO_CONTENT, CONTENT,
+  }
+
+  /**
+   * Passes what the adaptor provides to the {@code Response} of the request
+   * that made the call, and records it for followers.
+   */
+  private class TeeResponse implements Response {
+    private final Flight flight;
+    private final Response leader;
+    private Outcome outcome = Outcome.NONE;
+    private TeeOutputStream os;
+    private String contentType;
+    private Date lastModified;
+    private final Metadata metadata = new Metadata();
+    private Acl acl;
+    private boolean secure;
+    private final List<URI> anchorUris = new ArrayList<URI>();
+    private final List<String> anchorTexts = new ArrayList<String>();
+    private boolean noIndex;
+    private boolean noFollow;
+    private boolean noArchive;
+    private URI displayUrl;
+    private boolean crawlOnce;
+    private boolean lock;
+    private final Map<String, Acl> fragments = new TreeMap<String, Acl>();
+    private final Map<String, String> params = new TreeMap<String, String>();
+
+    TeeResponse(Flight flight, Response leader) {
+      this.flight = flight;
+      this.leader = leader;
+    }
+
+    private void checkSetup() {
+      if (outcome != Outcome.NONE) {
+        throw new IllegalStateException("Already responded");
+      }
+    }
+
+    @Override
+    public void respondNotModified() throws IOException {
+      checkSetup();
+      leader.respondNotModified();
+      outcome = Outcome.NOT_MODIFIED;
+    }
+
+    @Override
+    public void respondNotFound() throws IOException {
+      checkSetup();
+      leader.respondNotFound();
+      outcome = Outcome.NOT_FOUND;
+    }
+
+    @Override
+    public void respondNoContent() throws IOException {
+      checkSetup();
+      leader.respondNoContent();
+      outcome = Outcome.NO_CONTENT;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      switch (outcome) {
+        case NONE:
+          break;
+        case CONTENT:
+          return os;
+        case NOT_MODIFIED:
+          throw new IllegalStateException("respondNotModified already called");
+        case NOT_FOUND:
+          throw new IllegalStateException("respondNotFound already called");
+        case NO_CONTENT:
+          throw new IllegalStateException("respondNoContent already called");
+        default:
+          throw new IllegalStateException("Already responded");
+      }
+      OutputStream leaderOs = leader.getOutputStream();
+      outcome = Outcome.CONTENT;
+      os = new TeeOutputStream(leaderOs, flight.startContent());
+      return os;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+      checkSetup();
+      leader.setContentType(contentType);
+      this.contentType = contentType;
+    }
+
+    @Override
+    public void setLastModified(Date lastModified) {
+      checkSetup();
+      leader.setLastModified(lastModified);
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public void addMetadata(String key, String value) {
+      checkSetup();
+      leader.addMetadata(key, value);
+      metadata.add(key, value);
+    }
+
+    @Override
+    public void setAcl(Acl acl) {
+      checkSetup();
+      leader.setAcl(acl);
+      this.acl = acl;
+    }
+
+    @Override
+    public void putNamedResource(String fragment, Acl acl) {
+      checkSetup();
+      leader.putNamedResource(fragment, acl);
+      fragments.put(fragment, acl);
+    }
+
+    @Override
+    public void setSecure(boolean secure) {
+      checkSetup();
+      leader.setSecure(secure);
+      this.secure = secure;
+    }
+
+    @Override
+    public void addAnchor(URI uri, String text) {
+      checkSetup();
+      if (uri == null) {
+        throw new NullPointerException();
+      }
+      leader.addAnchor(uri, text);
+      anchorUris.add(uri);
+      anchorTexts.add(text);
+    }
+
+    @Override
+    public void setNoIndex(boolean noIndex) {
+      checkSetup();
+      leader.setNoIndex(noIndex);
+      this.noIndex = noIndex;
+    }
+
+    @Override
+    public void setNoFollow(boolean noFollow) {
+      checkSetup();
+      leader.setNoFollow(noFollow);
+      this.noFollow = noFollow;
+    }
+
+    @Override
+    public void setNoArchive(boolean noArchive) {
+      checkSetup();
+      leader.setNoArchive(noArchive);
+      this.noArchive = noArchive;
+    }
+
+    @Override
+    public void setDisplayUrl(URI displayUrl) {
+      checkSetup();
+      leader.setDisplayUrl(displayUrl);
+      this.displayUrl = displayUrl;
+    }
+
+    @Override
+    public void setCrawlOnce(boolean crawlOnce) {
+      checkSetup();
+      leader.setCrawlOnce(crawlOnce);
+      this.crawlOnce = crawlOnce;
+    }
+
+    @Override
+    public void setLock(boolean lock) {
+      checkSetup();
+      leader.setLock(lock);
+      this.lock = lock;
+    }
+
+    @Override
+    public void setParam(String key, String value) {
+      checkSetup();
+      leader.setParam(key, value);
+      params.put(key, value);
+    }
+
+    /**
+     * Called once the adaptor returns successfully. Throws the failure of the
+     * request that made the call, if writing to it failed while content was
+     * still being provided to followers.
+     */
+    void finish() throws IOException {
+      if (os != null && os.leaderFailure != null) {
+        throw os.leaderFailure;
+      }
+    }
+
+    /** Provides everything but the outcome to {@code response}. */
+    void replayHeaders(Response response) {
+      if (contentType != null) {
+        response.setContentType(contentType);
+      }
+      if (lastModified != null) {
+        response.setLastModified(lastModified);
+      }
+      for (Entry<String, String> item : metadata) {
+        response.addMetadata(item.getKey(), item.getValue());
+      }
+      response.setAcl(acl);
+      for (Map.Entry<String, Acl> fragment : fragments.entrySet()) {
+        response.putNamedResource(fragment.getKey(), fragment.getValue());
+      }
+      response.setSecure(secure);
+      for (int i = 0; i < anchorUris.size(); i++) {
+        response.addAnchor(anchorUris.get(i), anchorTexts.get(i));
+      }
+      response.setNoIndex(noIndex);
+      response.setNoFollow(noFollow);
+      response.setNoArchive(noArchive);
+      if (displayUrl != null) {
+        response.setDisplayUrl(displayUrl);
+      }
+      response.setCrawlOnce(crawlOnce);
+      response.setLock(lock);
+      for (Map.Entry<String, String> param : params.entrySet()) {
+        response.setParam(param.getKey(), param.getValue());
+      }
+    }
+
+    /** Provides everything the adaptor provided without content. */
+    void replay(Response response) throws IOException {
+      replayHeaders(response);
+      switch (outcome) {
+        case NONE:
+          // Let the response complain that the adaptor did not respond.
+          break;
+        case NOT_MODIFIED:
+          response.respondNotModified();
+          break;
+        case NOT_FOUND:
+          response.respondNotFound();
+          break;
+        case NO_CONTENT:
+          response.respondNoContent();
+          break;
+        default:
+          throw new IllegalStateException("unexpected outcome: " + outcome);
+      }
+    }
+  }
+
+  /**
+   * Writes content to the request that made the call and, if there are
+   * followers, to a buffer they read from. If writing to the request that
+   * made the call fails, such as because its client went away, content
+   * continues to be provided to the followers.
+   */
+  private static class TeeOutputStream extends OutputStream {
+    private OutputStream leader;
+    private final ContentBuffer buffer;
+    private IOException leaderFailure;
+
+    TeeOutputStream(OutputStream leader, ContentBuffer buffer) {
+      this.leader = leader;
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (leader != null) {
+        try {
+          leader.write(b, off, len);
+        } catch (IOException e) {
+          leaderFailed(e);
+        }
+      }
+      if (buffer != null) {
+        buffer.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (leader != null) {
+        try {
+          leader.flush();
+        } catch (IOException e) {
+          leaderFailed(e);
+        }
+      }
+    }
+
+    /** Closes the leader's stream. Followers are done once the call is. */
+    @Override
+    public void close() throws IOException {
+      if (leader != null) {
+        try {
+          leader.close();
+        } catch (IOException e) {
+          leaderFailed(e);
+        }
+      }
+    }
+
+    private void leaderFailed(IOException e) throws IOException {
+      if (buffer == null) {
+        throw e;
+      }
+      log.log(Level.FINE, "Continuing shared retrieval for followers", e);
+      leaderFailure = e;
+      leader = null;
+    }
+  }
+
+  /**
+   * Buffers content in memory until it exceeds a limit, and then in a
+   * temporary file. Readers receive the content as it is written, and reach
+   * the end once it is {@linkplain #finish finished}.
+   */
+  @VisibleForTesting
+  static class ContentBuffer extends OutputStream {
+    private final int memoryLimit;
+    /** Content, until it is moved to {@link #file}. */
+    private ExposedByteArrayOutputStream memory
+        = new ExposedByteArrayOutputStream();
+    private File file;
+    private OutputStream fileOs;
+    /** Number of bytes written. */
+    private long length;
+    /** Number of bytes readers may read from the file without flushing. */
+    private long flushedLength;
+    private boolean finished;
+    private Throwable failure;
+    private boolean discarded;
+
+    ContentBuffer(int memoryLimit) {
+      this.memoryLimit = memoryLimit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len)
+        throws IOException {
+      if (finished || discarded) {
+        throw new IOException("Stream closed");
+      }
+      if (fileOs == null && memory.size() + len > memoryLimit) {
+        file = File.createTempFile("adaptorlib-coalesced", ".tmp");
+        fileOs = new BufferedOutputStream(new FileOutputStream(file));
+        memory.writeTo(fileOs);
+        fileOs.flush();
+        flushedLength = length;
+        memory = null;
+      }
+      if (fileOs != null) {
+        fileOs.write(b, off, len);
+      } else {
+        memory.write(b, off, len);
+        flushedLength += len;
+      }
+      length += len;
+      notifyAll();
+    }
+
+    /**
+     * Marks the end of the content, which readers receive as an {@code
+     * IOException} if {@code failure} is not {@code null}.
+     */
+    synchronized void finish(Throwable failure) {
+      if (fileOs != null) {
+        try {
+          fileOs.close();
+          flushedLength = length;
+        } catch (IOException ex) {
+          if (failure == null) {
+            failure = ex;
+          }
+        }
+      }
+      this.failure = failure;
+      finished = true;
+      notifyAll();
+    }
+
+    boolean isInFile() {
+      return file != null;
+    }
+
+    /** Returns a stream that reads the content from the beginning. */
+    InputStream openInputStream() {
+      return new ContentReader();
+    }
+
+    synchronized void discard() {
+      discarded = true;
+      memory = null;
+      notifyAll();
+      if (fileOs != null) {
+        try {
+          fileOs.close();
+        } catch (IOException ex) {
+          log.log(Level.FINE, "Could not close " + file, ex);
+        }
+      }
+      if (file != null && !file.delete()) {
+        log.log(Level.WARNING, "Could not delete {0}", file);
+      }
+    }
+
+    /** Reads content, waiting for it to be written. */
+    private class ContentReader extends InputStream {
+      private long position;
+      private InputStream fileIs;
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        long available;
+        synchronized (ContentBuffer.this) {
+          while (true) {
+            if (discarded) {
+              throw new IOException("Content discarded");
+            }
+            if (failure != null) {
+              throw new IOException("Shared retrieval failed", failure);
+            }
+            if (position < flushedLength) {
+              break;
+            }
+            if (length > flushedLength) {
+              // Only this reader is waiting for the bytes in the buffer.
+              fileOs.flush();
+              flushedLength = length;
+              continue;
+            }
+            if (finished) {
+              return -1;
+            }
+            try {
+              ContentBuffer.this.wait();
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException();
+            }
+          }
+          available = flushedLength - position;
+          if (memory != null) {
+            int read = (int) Math.min(len, available);
+            memory.copyTo((int) position, b, off, read);
+            position += read;
+            return read;
+          }
+        }
+        // Bytes up to flushedLength are in the file and never change, so
+        // they can be read without holding the lock.
+        if (fileIs == null) {
+          fileIs = new FileInputStream(file);
+          long skipped = 0;
+          while (skipped < position) {
+            long n = fileIs.skip(position - skipped);
+            if (n <= 0) {
+              throw new IOException("Could not skip to " + position);
+            }
+            skipped += n;
+          }
+        }
+        int read = fileIs.read(b, off, (int) Math.min(len, available));
+        if (read < 0) {
+          throw new IOException("Unexpected end of " + file);
+        }
+        position += read;
+        return read;
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (fileIs != null) {
+          fileIs.close();
+        }
+      }
+    }
+  }
+
+  /** Lets readers copy from the buffer without copying all of it. */
+  private static class ExposedByteArrayOutputStream
+      extends ByteArrayOutputStream {
+    void copyTo(int position, byte[] b, int off, int len) {
+      System.arraycopy(buf, position, b, off, len);
+    }
+  }
+}
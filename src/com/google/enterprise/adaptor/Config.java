@@ -36,6 +36,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -60,10 +61,27 @@ import java.util.regex.Pattern;
  * <tr><td> </td><td>adaptor.fullListingSchedule </td><td> when to invoke 
  *     {@link Adaptor#getDocIds Adaptor.getDocIds}, in cron format (minute,
  *     hour,  day of month, month, day of week).  Defaults to 0 3 * * *
+ * <tr><td> </td><td>adaptor.fullListingJitterSecs </td><td> maximum number
+ *     of seconds a scheduled full listing is delayed by, chosen at random each
+ *     time, so that adaptors sharing a schedule do not all push at once.
+ *     Defaults to 0
+ * <tr><td> </td><td>adaptor.fullListingDeferAboveGsaRequestsPerMin </td><td>
+ *     number of document requests from the GSA in the last minute above which
+ *     a scheduled full listing is deferred, because the GSA is still busy
+ *     crawling. Zero disables deferring. Defaults to 0
+ * <tr><td> </td><td>adaptor.fullListingMaxDeferralSecs </td><td> maximum
+ *     number of seconds a full listing is deferred by, after which it starts
+ *     regardless of the GSA's load. Defaults to 3600
  * <tr><td> </td><td>adaptor.incrementalPollPeriodSecs </td><td> number
  *     of seconds between invocations of {@link
  *     PollingIncrementalLister#getModifiedDocIds
  *     PollingIncrementalLister.getModifiedDocIds}.    Defaults to 900
+ * <tr><td> </td><td>adaptor.incrementalPollMaxPeriodSecs </td><td> maximum
+ *     number of seconds between incremental polls. Each poll that finds no
+ *     changes doubles the time until the next one, up to this maximum; a poll
+ *     that finds changes returns to adaptor.incrementalPollPeriodSecs.
+ *     Defaults to same value as adaptor.incrementalPollPeriodSecs, which
+ *     polls at a fixed rate
  * <tr><td> </td><td>adaptor.docContentTimeoutSecs </td><td> number of seconds
  *     adaptor has to complete sending content before it is interrupted. Timing
  *     starts when sending content starts. Defaults to 180
@@ -73,6 +91,28 @@ import java.util.regex.Pattern;
  * <tr><td> </td><td>adaptor.heartbeatTimeoutSecs </td><td> number of seconds
  *     adaptor has to send a heartbeat response before it is interrupted.
  *     Defaults to same value as adaptor.docHeaderTimeoutSecs.
+ * <tr><td> </td><td>adaptor.coalesceDocRequests </td><td> whether
+ *     concurrent requests for the same document share a single call to
+ *     {@link Adaptor#getDocContent}. Content is streamed to each request as
+ *     the adaptor writes it, and is only buffered, in memory and then in a
+ *     temporary file, while another request is sharing it. Defaults to false
+ * <tr><td> </td><td>adaptor.heartbeatProbeCacheSecs </td><td> number of
+ *     seconds the answer of a {@link HeartbeatProbe} for a document is reused
+ *     for later heartbeats of the same document. Zero disables reusing them.
+ *     Defaults to 10
+ * <tr><td> </td><td>adaptor.sensitiveValueCacheSecs </td><td> number of
+ *     seconds a value decoded by {@link SensitiveValueDecoder} is remembered,
+ *     so that decoding it again is fast. Expired values are removed in the
+ *     background, within a quarter of that time after they expire. Zero
+ *     disables remembering them. Defaults to 60
+ * <tr><td> </td><td>adaptor.configPollPeriodSecs </td><td> number of
+ *     seconds between checks of whether the configuration file was modified.
+ *     A modified file is reloaded once it is unchanged for a check, which is
+ *     one to two periods after it was written, and some settings, like
+ *     server.maxWorkerThreads, server.queueCapacity, feed.maxUrls, the
+ *     document timeouts and the transform pipelines, take effect without
+ *     restarting. Adaptors are not notified of reloads, so their own settings
+ *     still require a restart. Zero disables checking. Defaults to 30
  * <tr><td> </td><td>adaptor.disableFullAndIncrementalListing </td><td>
  *      whether to disable calls to {@link Adaptor#getDocIds Adaptor.getDocIds}
  *      and {@link PollingIncrementalLister#getModifiedDocIds
@@ -114,6 +154,27 @@ import java.util.regex.Pattern;
  *     which all feeds sent to the GSA will be archived.  Feeds that failed to
  *     be sent to the GSA will be tagged with "FAILED" in the file name.
  *     If no directory is specified, feed files will not be saved.
+ * <tr><td> </td><td>feed.archiveSegmented </td><td> when true, feeds are
+ *     archived on a background thread into gzip-compressed segment files,
+ *     each with an index of the feeds it contains, instead of one file per
+ *     feed. Defaults to false
+ * <tr><td> </td><td>feed.archiveSegmentMaxBytes </td><td> uncompressed size
+ *     in bytes at which a new archive segment is started. Defaults to
+ *     67108864
+ * <tr><td> </td><td>feed.archiveSegmentMaxSecs </td><td> age in seconds at
+ *     which a new archive segment is started. Defaults to 3600
+ * <tr><td> </td><td>feed.archiveMaxTotalBytes </td><td> compressed size in
+ *     bytes of all archive segments above which the oldest are deleted. Zero
+ *     keeps all segments. Defaults to 1073741824
+ * <tr><td> </td><td>feed.archiveQueueSize </td><td> number of feeds that may
+ *     wait to be written to an archive segment before pushing waits.
+ *     Defaults to 16
+ * <tr><td> </td><td>feed.replayThreads </td><td> number of archived feeds
+ *     sent to the GSA at once when replaying the feed archive. Feeds of the
+ *     same datasource are always sent one at a time, in order. Defaults to 2
+ * <tr><td> </td><td>feed.replayMaxFeedsPerMin </td><td> maximum number of
+ *     archived feeds sent to the GSA per minute when replaying the feed
+ *     archive. Zero disables the limit. Defaults to 60
  * <tr><td> </td><td>gsa.version </td><td> version number used to configure
  *     expected GSA features.  Defaults to acquiring from GSA.
  *     Uses 7.0.14-114 if acquiring fails.
@@ -161,6 +222,10 @@ import java.util.regex.Pattern;
  * <tr><td> </td><td>server.maxWorkerThreads </td><td> number of maximum
  *     simultenous retrievals  allowed.  Defaults to 16
  * <tr><td> </td><td>server.port </td><td> retriever port.  Defaults to 5678
+ * <tr><td> </td><td>server.proxyMaxConnections </td><td> when several
+ *     adaptors run in one Service, the maximum number of requests proxied to
+ *     each of them at once. Further requests wait up to 30 seconds for a
+ *     connection and are then rejected. Defaults to 64
  * <tr><td> </td><td>server.queueCapacity </td><td> max retriever queue size.
  *     Defaults to  160
  * <tr><td> </td><td>server.reverseProxyPort </td><td> port used in
@@ -174,6 +239,12 @@ import java.util.regex.Pattern;
  *     http://google.com/enterprise/gsa/adaptor
  * <tr><td> </td><td>server.secure </td><td> enables https and certificate
  *     checking. Defaults to false
+ * <tr><td> </td><td>server.sharedSessionDirectory </td><td> directory,
+ *     shared by several adaptor instances, in which authenticated user
+ *     identities are stored so that a user authenticated by one instance does
+ *     not need to authenticate again with the others. The instances must use
+ *     the same server.port so that they use the same session cookie.
+ *     Defaults to empty string "" and means that sessions are not shared.
  * <tr><td> </td><td>server.httpBasic.username </td><td> enables http basic
  *     authentication on all content requests. When enabled, requests receive
  *     HTTP 401 if correct username and password are not provided.  Once 
@@ -193,6 +264,14 @@ import java.util.regex.Pattern;
  *     content transform pipeline. Defaults to no-pipeline</td></tr>
  * <tr><td> </td><td>saml.idpExpirationMillis </td><td> Expiration time
  *     sent in SAML Authentication response. Defaults to 30,000 milliseconds.
+ * <tr><td> </td><td>saml.parserPoolSize </td><td> number of idle XML
+ *     parsers kept for reuse when decoding SAML messages. Defaults to 16
+ * <tr><td> </td><td>saml.backChannelMaxConnections </td><td> maximum number
+ *     of concurrent back-channel requests, like artifact resolution, to the
+ *     GSA. Defaults to 16
+ * <tr><td> </td><td>saml.backChannelTimeoutMillis </td><td> connect and read
+ *     timeout of back-channel requests to the GSA, which is also how long a
+ *     request waits for a free connection. Defaults to 30,000 milliseconds
  * </table>
  */
 public class Config {
@@ -214,6 +293,11 @@ public class Config {
    */
   private File configFile;
   private long configFileLastModified;
+  /**
+   * Modification time of the config file seen by the previous check, which
+   * has to stay the same for another check before the file is reloaded.
+   */
+  private long pendingLastModified;
   /**
    * Map from config key to computer that generates the value for the key. These
    * generated values are generally due to one value being formed from other
@@ -221,15 +305,20 @@ public class Config {
    */
   private Map<String, ValueComputer> computeMap
       = new HashMap<String, ValueComputer>();
+  /** Notified when reloading the config file changes values. */
+  private final List<ConfigModificationListener> modificationListeners
+      = new CopyOnWriteArrayList<ConfigModificationListener>();
 
   public Config() {
-    String hostname = null;
-    try {
-      hostname = InetAddress.getLocalHost().getCanonicalHostName();
-      hostname = hostname.toLowerCase(Locale.ENGLISH);  // work around GSA 7.0
-    } catch (UnknownHostException ex) {
-      // Ignore
-    }
+    this(lookUpHostname());
+  }
+
+  /**
+   * Creates a config without looking up the local hostname.
+   *
+   * @param hostname default of server.hostname
+   */
+  private Config(String hostname) {
     addKey("server.hostname", hostname);
     addKey("server.port", "5678");
     addKey("server.reverseProxyPort", "GENERATE", new ValueComputer() {
@@ -261,7 +350,9 @@ public class Config {
     // A queue that takes one second to drain, assuming 16 threads and 100 ms
     // for each request.
     addKey("server.queueCapacity", "160");
+    addKey("server.proxyMaxConnections", "64");
     addKey("server.useCompression", "false");
+    addKey("server.sharedSessionDirectory", "");
     addKey("server.asyncDocIdSenderQueueSize", "GENERATE",
         new ValueComputer() {
           public String compute(String rawValue) {
@@ -284,6 +375,13 @@ public class Config {
     addKey("gsa.scoringType", "content");
     addKey("docId.isUrl", "false");
     addKey("feed.archiveDirectory", "");
+    addKey("feed.archiveSegmented", "false");
+    addKey("feed.archiveSegmentMaxBytes", "67108864");
+    addKey("feed.archiveSegmentMaxSecs", "3600");
+    addKey("feed.archiveMaxTotalBytes", "1073741824");
+    addKey("feed.archiveQueueSize", "16");
+    addKey("feed.replayThreads", "2");
+    addKey("feed.replayMaxFeedsPerMin", "60");
     addKey("feed.name", "GENERATE", new ValueComputer() {
           public String compute(String rawValue) {
             if ("GENERATE".equals(rawValue)) {
@@ -302,11 +400,19 @@ public class Config {
     addKey("adaptor.domainFormat", "DNS");
     // 3:00 AM every day.
     addKey("adaptor.fullListingSchedule", "0 3 * * *");
+    addKey("adaptor.fullListingJitterSecs", "0");
+    addKey("adaptor.fullListingDeferAboveGsaRequestsPerMin", "0");
+    addKey("adaptor.fullListingMaxDeferralSecs", "3600");
     // 15 minutes.
     addKey("adaptor.incrementalPollPeriodSecs", "900");
+    addKey("adaptor.incrementalPollMaxPeriodSecs", "");
     addKey("adaptor.docContentTimeoutSecs", "180");
     addKey("adaptor.docHeaderTimeoutSecs", "30");
     addKey("adaptor.heartbeatTimeoutSecs", "");
+    addKey("adaptor.heartbeatProbeCacheSecs", "10");
+    addKey("adaptor.coalesceDocRequests", "false");
+    addKey("adaptor.sensitiveValueCacheSecs", "60");
+    addKey("adaptor.configPollPeriodSecs", "30");
     addKey("metadata.transform.pipeline", "");
     addKey("content.transform.pipeline", "");
     addKey("journal.reducedMem", "true");
@@ -330,6 +436,20 @@ public class Config {
         });
     addKey("adaptor.markAllDocsAsPublic", "false");
     addKey("saml.idpExpirationMillis", "30000");
+    addKey("saml.parserPoolSize", "16");
+    addKey("saml.backChannelMaxConnections", "16");
+    addKey("saml.backChannelTimeoutMillis", "30000");
+  }
+
+  private static String lookUpHostname() {
+    String hostname = null;
+    try {
+      hostname = InetAddress.getLocalHost().getCanonicalHostName();
+      hostname = hostname.toLowerCase(Locale.ENGLISH);  // work around GSA 7.0
+    } catch (UnknownHostException ex) {
+      // Ignore
+    }
+    return hostname;
   }
 
   public Set<String> getAllKeys() {
@@ -361,6 +481,46 @@ public class Config {
     return getValue("feed.archiveDirectory");
   }
 
+  boolean isFeedArchiveSegmented() {
+    return Boolean.parseBoolean(getValue("feed.archiveSegmented"));
+  }
+
+  long getFeedArchiveSegmentMaxBytes() {
+    long bytes = getNonNegativeLong("feed.archiveSegmentMaxBytes");
+    if (bytes == 0) {
+      throw new InvalidConfigurationException("Invalid value for "
+          + "feed.archiveSegmentMaxBytes. The value must be positive.");
+    }
+    return bytes;
+  }
+
+  long getFeedArchiveSegmentMaxMillis() {
+    return validateTimeout("feed.archiveSegmentMaxSecs");
+  }
+
+  long getFeedArchiveMaxTotalBytes() {
+    return getNonNegativeLong("feed.archiveMaxTotalBytes");
+  }
+
+  int getFeedArchiveQueueSize() {
+    return getPositiveInt("feed.archiveQueueSize");
+  }
+
+  int getFeedReplayThreads() {
+    return getPositiveInt("feed.replayThreads");
+  }
+
+  int getFeedReplayMaxFeedsPerMin() {
+    long feeds = getNonNegativeLong("feed.replayMaxFeedsPerMin");
+    if (feeds > Integer.MAX_VALUE) {
+      throw new InvalidConfigurationException("Invalid value for "
+          + "feed.replayMaxFeedsPerMin. The value may not exceed "
+          + Integer.MAX_VALUE);
+    }
+    return (int) feeds;
+  }
+
+
   String getFeedName() {
     return getValue("feed.name");
   }
@@ -537,6 +697,13 @@ public class Config {
     return Integer.parseInt(getValue("server.queueCapacity"));
   }
 
+  /**
+   * The maximum number of requests a Service proxies to each adaptor at once.
+   */
+  int getServerProxyMaxConnections() {
+    return getPositiveInt("server.proxyMaxConnections");
+  }
+
   String getServerSamlEntityId() {
     return getValue("server.samlEntityId");
   }
@@ -545,6 +712,10 @@ public class Config {
     return Boolean.parseBoolean(getValue("server.useCompression"));
   }
 
+  String getServerSharedSessionDirectory() {
+    return getValue("server.sharedSessionDirectory").trim();
+  }
+
   boolean doesGsaAcceptDocControlsHeader() {
     return Boolean.parseBoolean(getValue("gsa.acceptsDocControlsHeader"));
   }
@@ -612,6 +783,14 @@ public class Config {
     return Boolean.parseBoolean(getValue("adaptor.pushDocIdsOnStartup"));
   }
 
+  /**
+   * Whether concurrent requests for the same document share one call to
+   * {@link Adaptor#getDocContent}. Defaults to {@code false}.
+   */
+  boolean isAdaptorToCoalesceDocRequests() {
+    return Boolean.parseBoolean(getValue("adaptor.coalesceDocRequests"));
+  }
+
   /**
    * Whether adaptor tells GSA all documents are public, regardless of their
    * ACLs. Defaults to {@code false}.
@@ -661,10 +840,42 @@ public class Config {
     }
   }
 
+  long getAdaptorFullListingJitterMillis() {
+    return getNonNegativeSecsAsMillis("adaptor.fullListingJitterSecs");
+  }
+
+  /**
+   * Number of GSA document requests in the last minute above which full
+   * listings are deferred, or {@code 0} if they are never deferred.
+   */
+  long getAdaptorFullListingDeferAboveGsaRequestsPerMin() {
+    return getNonNegativeLong(
+        "adaptor.fullListingDeferAboveGsaRequestsPerMin");
+  }
+
+  long getAdaptorFullListingMaxDeferralMillis() {
+    return getNonNegativeSecsAsMillis("adaptor.fullListingMaxDeferralSecs");
+  }
+
   long getAdaptorIncrementalPollPeriodMillis() {
     return validateTimeout("adaptor.incrementalPollPeriodSecs");
   }
 
+  long getAdaptorIncrementalPollMaxPeriodMillis() {
+    if (getValue("adaptor.incrementalPollMaxPeriodSecs").trim().length()
+        == 0) {
+      // if empty, polling does not back off
+      return getAdaptorIncrementalPollPeriodMillis();
+    }
+    long maxPeriod = validateTimeout("adaptor.incrementalPollMaxPeriodSecs");
+    if (maxPeriod < getAdaptorIncrementalPollPeriodMillis()) {
+      throw new InvalidConfigurationException("Invalid value for "
+          + "adaptor.incrementalPollMaxPeriodSecs. The value may not be less "
+          + "than adaptor.incrementalPollPeriodSecs.");
+    }
+    return maxPeriod;
+  }
+
   long getAdaptorDocHeaderTimeoutMillis() {
     return validateTimeout("adaptor.docHeaderTimeoutSecs");
   }
@@ -682,6 +893,62 @@ public class Config {
     }
   }
 
+  long getAdaptorConfigPollPeriodMillis() {
+    return getNonNegativeSecsAsMillis("adaptor.configPollPeriodSecs");
+  }
+
+  long getAdaptorHeartbeatProbeCacheMillis() {
+    return getNonNegativeSecsAsMillis("adaptor.heartbeatProbeCacheSecs");
+  }
+
+  long getAdaptorSensitiveValueCacheMillis() {
+    return getNonNegativeSecsAsMillis("adaptor.sensitiveValueCacheSecs");
+  }
+
+  private int getPositiveInt(String property) {
+    int value;
+    try {
+      value = Integer.parseInt(getValue(property).trim());
+    } catch (NumberFormatException nfe) {
+      value = 0;
+    }
+    if (value <= 0) {
+      throw new InvalidConfigurationException("Invalid value for " + property
+          + ". Only a positive integer value is accepted.");
+    }
+    return value;
+  }
+
+  private long getNonNegativeLong(String property) {
+    long value;
+    try {
+      value = Long.parseLong(getValue(property).trim());
+    } catch (NumberFormatException nfe) {
+      throw new InvalidConfigurationException("Invalid value for " + property
+          + ". Only a non-negative integer value is accepted.");
+    }
+    if (value < 0) {
+      throw new InvalidConfigurationException("Invalid value for " + property
+          + ". Negative values are not accepted.");
+    }
+    return value;
+  }
+
+  private long getNonNegativeSecsAsMillis(String property) {
+    long seconds;
+    try {
+      seconds = Long.parseLong(getValue(property).trim());
+    } catch (NumberFormatException nfe) {
+      throw new InvalidConfigurationException("Invalid value for " + property
+          + ". Only a non-negative integer value is accepted.");
+    }
+    if (seconds < 0 || seconds > (Long.MAX_VALUE / 1000)) {
+      throw new InvalidConfigurationException("Invalid value for " + property
+          + ". The value must be between 0 and " + (Long.MAX_VALUE / 1000));
+    }
+    return seconds * 1000;
+  }
+
   /**
    * Returns a list of maps correspending to each transform in the pipeline.
    * Each map is the configuration entries for that transform. The 'name'
@@ -822,6 +1089,18 @@ public class Config {
     return Integer.parseInt(getValue("saml.idpExpirationMillis"));
   }
 
+  int getSamlParserPoolSize() {
+    return Integer.parseInt(getValue("saml.parserPoolSize"));
+  }
+
+  int getSamlBackChannelMaxConnections() {
+    return Integer.parseInt(getValue("saml.backChannelMaxConnections"));
+  }
+
+  int getSamlBackChannelTimeoutMillis() {
+    return Integer.parseInt(getValue("saml.backChannelTimeoutMillis"));
+  }
+
   /**
    * Load user-provided configuration file.
    * @param configFile to be loaded
@@ -866,6 +1145,84 @@ public class Config {
     log.info("New configuration file loaded");
   }
 
+  /**
+   * Reloads the config file if it was modified since it was loaded, and
+   * notifies listeners of the keys whose values changed. Values set with
+   * {@link #setValue} continue to override those in the file. A modified
+   * file is only reloaded once its modification time is the same as on the
+   * previous call, so that a file that is still being written is not loaded.
+   *
+   * @return {@code true} if the config file was reloaded
+   * @throws IOException if the modified file could not be read
+   * @throws InvalidConfigurationException if the modified file is invalid, in
+   *     which case the previous configuration remains in use
+   */
+  public boolean ensureLatestConfigLoaded() throws IOException {
+    Properties oldProperties;
+    Set<String> modifiedKeys;
+    synchronized (this) {
+      if (configFile == null) {
+        return false;
+      }
+      long lastModified = configFile.lastModified();
+      if (lastModified == configFileLastModified) {
+        return false;
+      }
+      if (lastModified != pendingLastModified) {
+        pendingLastModified = lastModified;
+        return false;
+      }
+      oldProperties = config;
+      load(configFile);
+      modifiedKeys = findModifiedKeys(oldProperties, config);
+    }
+    if (modifiedKeys.isEmpty()) {
+      return true;
+    }
+    // The old properties still chain to the current defaults, which are not
+    // changed by reloading.
+    Config oldConfig = new Config(defaultConfig.getProperty("server.hostname"));
+    oldConfig.config = oldProperties;
+    log.log(Level.INFO, "Configuration modified: {0}", modifiedKeys);
+    ConfigModificationEvent ev
+        = new ConfigModificationEvent(this, oldConfig, modifiedKeys);
+    for (ConfigModificationListener listener : modificationListeners) {
+      try {
+        listener.configModified(ev);
+      } catch (RuntimeException ex) {
+        log.log(Level.WARNING, "Failed to apply modified configuration", ex);
+      }
+    }
+    return true;
+  }
+
+  private static Set<String> findModifiedKeys(Properties oldProperties,
+      Properties newProperties) {
+    Set<String> keys = new HashSet<String>(oldProperties.stringPropertyNames());
+    keys.addAll(newProperties.stringPropertyNames());
+    Set<String> modified = new HashSet<String>();
+    for (String key : keys) {
+      String oldValue = oldProperties.getProperty(key);
+      String newValue = newProperties.getProperty(key);
+      if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+        modified.add(key);
+      }
+    }
+    return modified;
+  }
+
+  void addConfigModificationListener(ConfigModificationListener listener) {
+    if (listener == null) {
+      throw new NullPointerException();
+    }
+    modificationListeners.add(listener);
+  }
+
+  void removeConfigModificationListener(
+      ConfigModificationListener listener) {
+    modificationListeners.remove(listener);
+  }
+
   Reader createReader(File configFile) throws IOException {
     return new InputStreamReader(
         new BufferedInputStream(new FileInputStream(configFile)),
@@ -1,5 +1,6 @@
 package com.google.enterprise.adaptor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Calendar;
@@ -7,7 +8,9 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.EnumMap;
 import java.util.GregorianCalendar;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.TimeZone;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -28,6 +31,7 @@ class CronScheduler {
   private final ScheduledExecutorService executor;
   private final TimeProvider timeProvider;
   private final TimeZone timeZone;
+  private final Random random;
 
   public CronScheduler(ScheduledExecutorService executor) {
     this(executor, new SystemTimeProvider(), TimeZone.getDefault());
@@ -35,12 +39,18 @@ class CronScheduler {
 
   CronScheduler(ScheduledExecutorService executor, TimeProvider timeProvider,
       TimeZone timeZone) {
+    this(executor, timeProvider, timeZone, new Random());
+  }
+
+  CronScheduler(ScheduledExecutorService executor, TimeProvider timeProvider,
+      TimeZone timeZone, Random random) {
     if (executor == null) {
       throw new NullPointerException();
     }
     this.executor = executor;
     this.timeProvider = timeProvider;
     this.timeZone = timeZone;
+    this.random = random;
   }
 
   /**
@@ -52,9 +62,29 @@ class CronScheduler {
    */
   public Future<?> schedule(String pattern, Runnable runnable)
       throws IllegalArgumentException {
+    return schedule(pattern, 0, runnable);
+  }
+
+  /**
+   * Same as {@link #schedule(String, Runnable)}, except that each time the
+   * pattern matches, the runnable is delayed by a random amount of time
+   * between zero and {@code maxJitterMillis}, inclusive. This spreads out the
+   * load when many instances share the same schedule. When delayed, the
+   * runnable may take longer than a minute to run.
+   *
+   * @return a Future representing pending completion of the task, and whose
+   *     get() method will throw an exception upon cancellation. Cancelling it
+   *     also cancels any delayed run that has not started yet.
+   */
+  public Future<?> schedule(String pattern, long maxJitterMillis,
+      Runnable runnable) throws IllegalArgumentException {
+    if (maxJitterMillis < 0) {
+      throw new IllegalArgumentException(
+          "maxJitterMillis must not be negative");
+    }
     CronPattern compiledPattern = CronPattern.create(pattern);
     CronFilterRunnable toRun
-        = new CronFilterRunnable(compiledPattern, runnable);
+        = new CronFilterRunnable(compiledPattern, maxJitterMillis, runnable);
     final long minuteMillis = 60 * 1000;
     long delayToNextMinuteMillis
         = minuteMillis - (timeProvider.currentTimeMillis() % minuteMillis);
@@ -82,10 +112,20 @@ class CronScheduler {
    */
   private class CronFilterRunnable implements Runnable {
     private volatile CronPattern pattern;
+    private final long maxJitterMillis;
     private final Runnable delegate;
-
-    public CronFilterRunnable(CronPattern pattern, Runnable delegate) {
+    /**
+     * Delayed runs of {@link #delegate} that may not have started. There can
+     * be several when the jitter exceeds the time between matches.
+     */
+    private final List<Future<?>> delayed = new ArrayList<Future<?>>();
+    /** Whether {@link #cancelDelayed} was called. Guarded by this. */
+    private boolean cancelled;
+
+    public CronFilterRunnable(CronPattern pattern, long maxJitterMillis,
+        Runnable delegate) {
       this.pattern = pattern;
+      this.maxJitterMillis = maxJitterMillis;
       this.delegate = delegate;
     }
 
@@ -93,8 +133,23 @@ class CronScheduler {
     public void run() {
       try {
         Date now = new Date(timeProvider.currentTimeMillis());
-        if (pattern.matches(now, timeZone)) {
-          delegate.run();
+        if (!pattern.matches(now, timeZone)) {
+          return;
+        }
+        long jitterMillis = 0;
+        if (maxJitterMillis > 0) {
+          jitterMillis = (long) (random.nextDouble() * (maxJitterMillis + 1));
+        }
+        if (jitterMillis == 0) {
+          runDelegate();
+        } else {
+          log.log(Level.FINE, "Delaying cron task by {0} ms", jitterMillis);
+          addDelayed(executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+              runDelegate();
+            }
+          }, jitterMillis, TimeUnit.MILLISECONDS));
         }
       } catch (Throwable t) {
         // We need to prevent any exceptions from being thrown, because that
@@ -103,6 +158,36 @@ class CronScheduler {
       }
     }
 
+    private void runDelegate() {
+      try {
+        delegate.run();
+      } catch (Throwable t) {
+        log.log(Level.WARNING, "Failure during cron task", t);
+      }
+    }
+
+    private synchronized void addDelayed(Future<?> future) {
+      if (cancelled) {
+        future.cancel(false);
+        return;
+      }
+      for (Iterator<Future<?>> it = delayed.iterator(); it.hasNext();) {
+        if (it.next().isDone()) {
+          it.remove();
+        }
+      }
+      delayed.add(future);
+    }
+
+    /** Cancels all delayed runs, including any scheduled from now on. */
+    public synchronized void cancelDelayed() {
+      cancelled = true;
+      for (Future<?> future : delayed) {
+        future.cancel(false);
+      }
+      delayed.clear();
+    }
+
     public CronPattern getPattern() {
       return pattern;
     }
@@ -164,6 +249,12 @@ class CronScheduler {
       return delegate;
     }
 
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      runnable.cancelDelayed();
+      return super.cancel(mayInterruptIfRunning);
+    }
+
     public CronFilterRunnable getCronFilterRunnable() {
       return runnable;
     }
@@ -14,6 +14,9 @@
 
 package com.google.enterprise.adaptor;
 
+import com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil;
+import com.google.enterprise.adaptor.secmgr.saml.SamlParserPool;
+
 import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -28,6 +31,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
@@ -63,12 +67,29 @@ class Dashboard {
     sources.add(new LastPushStatusSource(journal));
     sources.add(new RetrieverStatusSource(journal));
     sources.add(new GsaCrawlingStatusSource(journal));
+    sources.add(new SessionStatusSource(sessionManager));
+    if (config.isServerSecure()) {
+      sources.add(new SamlParserPoolStatusSource(OpenSamlUtil.getParserPool()));
+    }
+    if (gsaCommHandler.getBackChannelClient() != null) {
+      sources.add(new BackChannelStatusSource(
+          gsaCommHandler.getBackChannelClient()));
+    }
+    if (gsaCommHandler.getFeedReplayer() != null) {
+      sources.add(gsaCommHandler.getFeedReplayer());
+    }
+    if (gsaCommHandler.getSegmentedArchiver() != null) {
+      sources.add(new FeedArchiveStatusSource(
+          gsaCommHandler.getSegmentedArchiver()));
+    }
     sources.addAll(adaptorSources);
 
     rpcHandler = new RpcHandler(sessionManager);
     rpcHandler.registerRpcMethod("startFeedPush", new StartFeedPushRpcMethod());
     rpcHandler.registerRpcMethod("startIncrementalFeedPush",
         new StartIncrementalFeedPushRpcMethod());
+    rpcHandler.registerRpcMethod("startFeedReplay",
+        new StartFeedReplayRpcMethod(gsaCommHandler));
     rpcHandler.registerRpcMethod("getLog", circularLogRpcMethod);
     rpcHandler.registerRpcMethod("getConfig", new ConfigRpcMethod(config));
     rpcHandler.registerRpcMethod("getStatuses", new StatusRpcMethod(sources));
@@ -143,6 +164,49 @@ class Dashboard {
     }
   }
 
+  /**
+   * Replays archived feeds. The optional parameters are whether to replay only
+   * failed feeds, which defaults to true, and the earliest and latest archive
+   * times of feeds to replay, in milliseconds since the epoch.
+   */
+  static class StartFeedReplayRpcMethod implements RpcHandler.RpcMethod {
+    private final GsaCommunicationHandler gsaCommHandler;
+
+    public StartFeedReplayRpcMethod(GsaCommunicationHandler gsaCommHandler) {
+      this.gsaCommHandler = gsaCommHandler;
+    }
+
+    @Override
+    public Object run(List request) {
+      boolean failedOnly = true;
+      long fromMillis = 0;
+      long toMillis = Long.MAX_VALUE;
+      int size = request == null ? 0 : request.size();
+      if (size != 0 && size != 1 && size != 3) {
+        throw new IllegalArgumentException("Optional parameters are: whether "
+            + "to replay only failed feeds, then earliest and latest time");
+      }
+      if (size > 0) {
+        if (!(request.get(0) instanceof Boolean)) {
+          throw new IllegalArgumentException(
+              "Whether to replay only failed feeds must be a boolean");
+        }
+        failedOnly = (Boolean) request.get(0);
+      }
+      if (size > 2) {
+        if (!(request.get(1) instanceof Number)
+            || !(request.get(2) instanceof Number)) {
+          throw new IllegalArgumentException(
+              "Earliest and latest time must be numbers");
+        }
+        fromMillis = ((Number) request.get(1)).longValue();
+        toMillis = ((Number) request.get(2)).longValue();
+      }
+      return gsaCommHandler.checkAndScheduleFeedReplay(failedOnly, fromMillis,
+          toMillis);
+    }
+  }
+
   static class CircularLogRpcMethod implements RpcHandler.RpcMethod,
       Closeable {
     private final CircularBufferHandler circularLog
@@ -385,4 +449,124 @@ class Dashboard {
       return Translation.STATUS_CRAWLING.toString(locale);
     }
   }
+
+  static class SessionStatusSource implements StatusSource {
+    private final SessionManager<?> sessionManager;
+
+    public SessionStatusSource(SessionManager<?> sessionManager) {
+      this.sessionManager = sessionManager;
+    }
+
+    @Override
+    public Status retrieveStatus() {
+      return new TranslationStatus(Status.Code.NORMAL,
+          Translation.STATUS_SESSIONS_ACTIVE,
+          sessionManager.getSessionCount(),
+          sessionManager.getLastCleanupExpiredSessions(),
+          TimeUnit.NANOSECONDS.toMillis(
+              sessionManager.getLastCleanupDurationNanos()));
+    }
+
+    @Override
+    public String getName(Locale locale) {
+      return Translation.STATUS_SESSIONS.toString(locale);
+    }
+  }
+
+  static class SamlParserPoolStatusSource implements StatusSource {
+    private final SamlParserPool pool;
+
+    public SamlParserPoolStatusSource(SamlParserPool pool) {
+      this.pool = pool;
+    }
+
+    @Override
+    public Status retrieveStatus() {
+      return new TranslationStatus(Status.Code.NORMAL,
+          Translation.STATUS_SAML_PARSER_POOL_USAGE, pool.getHits(),
+          pool.getMisses(), TimeUnit.NANOSECONDS.toMillis(
+              pool.getCreateNanos()));
+    }
+
+    @Override
+    public String getName(Locale locale) {
+      return Translation.STATUS_SAML_PARSER_POOL.toString(locale);
+    }
+  }
+
+  static class BackChannelStatusSource implements StatusSource {
+    private final PooledHttpClient client;
+
+    public BackChannelStatusSource(PooledHttpClient client) {
+      this.client = client;
+    }
+
+    @Override
+    public Status retrieveStatus() {
+      LatencyHistogram latency = client.getLatency();
+      return new TranslationStatus(Status.Code.NORMAL,
+          Translation.STATUS_BACK_CHANNEL_REQUESTS, latency.getCount(),
+          client.getFailureCount(), latency.getPercentile(50),
+          latency.getPercentile(90), latency.getPercentile(99),
+          latency.getMax(), client.getActiveConnections(),
+          client.getMaxConnections());
+    }
+
+    @Override
+    public String getName(Locale locale) {
+      return Translation.STATUS_BACK_CHANNEL.toString(locale);
+    }
+  }
+
+  static class ReverseProxyStatusSource implements StatusSource {
+    private final String name;
+    private final ReverseProxyHandler handler;
+
+    public ReverseProxyStatusSource(String name, ReverseProxyHandler handler) {
+      this.name = name;
+      this.handler = handler;
+    }
+
+    @Override
+    public Status retrieveStatus() {
+      LatencyHistogram latency = handler.getLatency();
+      Status.Code code = handler.getRejectionCount() > 0
+          ? Status.Code.WARNING : Status.Code.NORMAL;
+      return new TranslationStatus(code,
+          Translation.STATUS_REVERSE_PROXY_REQUESTS, latency.getCount(),
+          handler.getFailureCount(), handler.getRejectionCount(),
+          latency.getPercentile(50), latency.getPercentile(90),
+          latency.getPercentile(99), latency.getMax(),
+          handler.getActiveConnections(), handler.getMaxConnections());
+    }
+
+    @Override
+    public String getName(Locale locale) {
+      return Translation.STATUS_REVERSE_PROXY.toString(locale, name);
+    }
+  }
+
+  static class FeedArchiveStatusSource implements StatusSource {
+    private final SegmentedFeedArchiver archiver;
+
+    public FeedArchiveStatusSource(SegmentedFeedArchiver archiver) {
+      this.archiver = archiver;
+    }
+
+    @Override
+    public Status retrieveStatus() {
+      Status.Code code = archiver.getFailureCount() > 0
+          ? Status.Code.WARNING : Status.Code.NORMAL;
+      return new TranslationStatus(code,
+          Translation.STATUS_FEED_ARCHIVE_PROGRESS,
+          archiver.getArchivedCount(), archiver.getFailureCount(),
+          archiver.getQueueLength(), archiver.getBlockedCount(),
+          archiver.getBlockedMillis());
+    }
+
+    @Override
+    public String getName(Locale locale) {
+      return Translation.STATUS_FEED_ARCHIVE.toString(locale);
+    }
+  }
 }
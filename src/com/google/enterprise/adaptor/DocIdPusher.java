@@ -150,6 +150,10 @@ public interface DocIdPusher {
    * <p>If you plan on using the return code, then the provided map should have
    * a predictable iteration order, like {@link java.util.TreeMap}.
    *
+   * <p>When the same members appear in many groups, passing them through a
+   * {@link PrincipalInterner} while building {@code defs} lets all the
+   * definitions share one instance of each member.
+   *
    * @param defs map of group definitions
    * @param caseSensitive when comparing Principals
    * @return {@code null} on success, otherwise the first GroupPrincipal to fail
@@ -31,8 +31,6 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpsExchange;
 
-import org.json.simple.JSONObject;
-
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
@@ -64,6 +62,35 @@ class DocumentHandler implements HttpHandler {
   private static final Logger log
       = Logger.getLogger(DocumentHandler.class.getName());
   private static final Charset ENCODING = Charset.forName("UTF-8");
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+  /** ASCII characters left as-is by {@link #percentEncode}. */
+  private static final boolean[] UNRESERVED = new boolean[0x80];
+  static {
+    for (char c = 'a'; c <= 'z'; c++) {
+      UNRESERVED[c] = true;
+    }
+    for (char c = 'A'; c <= 'Z'; c++) {
+      UNRESERVED[c] = true;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      UNRESERVED[c] = true;
+    }
+    UNRESERVED['-'] = true;
+    UNRESERVED['_'] = true;
+    UNRESERVED['.'] = true;
+    UNRESERVED['~'] = true;
+  }
+  private static final int HEADER_INITIAL_CAPACITY = 256;
+  /** Per-thread buffer of {@link #percentEncode(String)}. */
+  private static final ThreadLocal<StringBuilder> ENCODE_BUFFER
+      = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+          return new StringBuilder(HEADER_INITIAL_CAPACITY);
+        }
+      };
+  /** Larger buffers are not kept, so a rare huge value is not held forever. */
+  private static final int MAX_RETAINED_BUFFER = 16 * 1024;
 
   private final DocIdDecoder docIdDecoder;
   private final DocIdEncoder docIdEncoder;
@@ -84,18 +111,24 @@ class DocumentHandler implements HttpHandler {
   private final Set<InetAddress> skipCertAddresses = new HashSet<InetAddress>();
 
   private final SamlServiceProvider samlServiceProvider;
-  private final MetadataTransformPipeline metadataTransform;
-  private final AclTransform aclTransform;
-  private final ContentTransformFactory contentTransformFactory;
+  // The transforms and timeouts can change while running; each response uses
+  // the values current when it was created.
+  private volatile MetadataTransformPipeline metadataTransform;
+  private volatile AclTransform aclTransform;
+  /** The acl= value of X-Gsa-Doc-Controls for recently sent ACLs. */
+  private final AclCache<String> docControlsAcls;
+  private volatile ContentTransformFactory contentTransformFactory;
   private final boolean useCompression;
   private final boolean sendDocControls;
   private final boolean markDocsPublic;
-  private final long headerTimeoutMillis;
-  private final long contentTimeoutMillis;
+  private volatile long headerTimeoutMillis;
+  private volatile long contentTimeoutMillis;
   private final String scoring;
   private final boolean alwaysGiveAcl;
   private final GsaVersion gsaVersion;
   private final boolean gsaSupports204;
+  /** Shares calls to the adaptor between requests, or {@code null}. */
+  private final CoalescingRetriever coalescer;
 
   /**
    * {@code samlServiceProvider}, {@code metadataTransform} and
@@ -115,7 +148,7 @@ class DocumentHandler implements HttpHandler {
                          long headerTimeoutMillis,
                          long contentTimeoutMillis, String scoringType,
                          boolean provideAclsAndMetadata,
-                         GsaVersion gsaVersion) {
+                         GsaVersion gsaVersion, boolean coalesceRequests) {
     if (docIdDecoder == null || docIdEncoder == null || journal == null
         || adaptor == null || aclTransform == null || watchdog == null
         || pusher == null || scoringType == null || gsaVersion == null) {
@@ -129,6 +162,12 @@ class DocumentHandler implements HttpHandler {
     this.samlServiceProvider = samlServiceProvider;
     this.metadataTransform = metadataTransform;
     this.aclTransform = aclTransform;
+    this.docControlsAcls = new AclCache<String>(AclCache.DEFAULT_MAXIMUM_SIZE) {
+      @Override
+      protected String compute(Acl acl) {
+        return formDocControlsAcl(acl);
+      }
+    };
     this.contentTransformFactory = contentTransformFactory;
     this.useCompression = useCompression;
     this.watchdog = watchdog;
@@ -141,10 +180,33 @@ class DocumentHandler implements HttpHandler {
     this.alwaysGiveAcl = provideAclsAndMetadata;
     this.gsaVersion = gsaVersion;
     this.gsaSupports204 = gsaVersion.isAtLeast("7.4.0-0");
+    this.coalescer = coalesceRequests
+        ? new CoalescingRetriever(adaptor, journal) : null;
     initFullAccess(gsaHostname, fullAccessHosts);
     initSkipCertAddresses(skipCertHosts);
   }
 
+  /**
+   * Replaces the transforms used for later requests. {@code metadataTransform}
+   * and {@code contentTransformFactory} may be {@code null}.
+   */
+  void setTransforms(MetadataTransformPipeline metadataTransform,
+      AclTransform aclTransform,
+      ContentTransformFactory contentTransformFactory) {
+    if (aclTransform == null) {
+      throw new NullPointerException();
+    }
+    this.metadataTransform = metadataTransform;
+    this.aclTransform = aclTransform;
+    this.contentTransformFactory = contentTransformFactory;
+  }
+
+  /** Changes the timeouts of later requests. */
+  void setTimeouts(long headerTimeoutMillis, long contentTimeoutMillis) {
+    this.headerTimeoutMillis = headerTimeoutMillis;
+    this.contentTimeoutMillis = contentTimeoutMillis;
+  }
+
   private void initSkipCertAddresses(String[] skipCertCheckHosts) {
     for (String hostname : skipCertCheckHosts) {
       try {
@@ -309,6 +371,19 @@ class DocumentHandler implements HttpHandler {
     return !requestIsFromFullyTrustedClient(ex);
   }
 
+  /**
+   * Would {@link #handle} serve the document to this client without checking
+   * authorization? Only then may a cheaper answer, like that of a {@link
+   * HeartbeatProbe}, be given instead, since it reveals whether the document
+   * exists.
+   */
+  boolean isTrustedWithoutAuthz(HttpExchange ex) {
+    if ("SecMgr".equals(ex.getRequestHeaders().getFirst("User-Agent"))) {
+      return false;
+    }
+    return markDocsPublic || requestIsFromFullyTrustedClient(ex);
+  }
+
   @Override
   public void handle(HttpExchange ex) throws IOException {
     String requestMethod = ex.getRequestMethod();
@@ -327,7 +402,12 @@ class DocumentHandler implements HttpHandler {
       journal.recordRequestProcessingStart();
       watchdog.processingStarting(headerTimeoutMillis);
       try {
-        adaptor.getDocContent(request, response);
+        if (coalescer == null) {
+          adaptor.getDocContent(request, response);
+        } else {
+          coalescer.getDocContent(request, response,
+              requestIsFromFullyTrustedClient(ex));
+        }
       } catch (InterruptedException e) {
         journal.recordRequestProcessingFailure();
         throw new RuntimeException("Retriever interrupted: " + docId, e);
@@ -424,11 +504,11 @@ class DocumentHandler implements HttpHandler {
    * Format the GSA-specific metadata header value for crawl-time metadata.
    */
   static String formMetadataHeader(Metadata metadata) {
-    StringBuilder sb = new StringBuilder();
+    StringBuilder sb = new StringBuilder(HEADER_INITIAL_CAPACITY);
     for (Entry<String, String> item : metadata) {
       percentEncodeMapEntryPair(sb, item.getKey(), item.getValue());
     }
-    return (sb.length() == 0) ? "" : sb.substring(0, sb.length() - 1);
+    return sb.toString();
   }
 
   @VisibleForTesting
@@ -439,7 +519,11 @@ class DocumentHandler implements HttpHandler {
     if (Acl.EMPTY.equals(acl)) {
       acl = Acl.FAKE_EMPTY;
     }
-    StringBuilder sb = new StringBuilder();
+    int principals = acl.getPermitUsers().size() + acl.getPermitGroups().size()
+        + acl.getDenyUsers().size() + acl.getDenyGroups().size();
+    // Room for the key and a short name for each principal.
+    StringBuilder sb = new StringBuilder(
+        HEADER_INITIAL_CAPACITY + principals * 48);
     for (UserPrincipal permitUser : acl.getPermitUsers()) {
       String name = permitUser.getName();
       percentEncodeMapEntryPair(sb, "google:aclusers", name);
@@ -472,7 +556,7 @@ class DocumentHandler implements HttpHandler {
       percentEncodeMapEntryPair(sb, "google:aclinheritancetype",
           acl.getInheritanceType().getCommonForm());
     }
-    return sb.substring(0, sb.length() - 1);
+    return sb.toString();
   }
 
   @VisibleForTesting
@@ -480,89 +564,74 @@ class DocumentHandler implements HttpHandler {
     if (null == acl) {
       return "";
     }
-    if (Acl.EMPTY.equals(acl)) {
-      acl = Acl.FAKE_EMPTY;
-    }
-    Map<String, Object> gsaAcl = new TreeMap<String, Object>();
-    List<Map<String, String>> gsaAclEntries = makeGsaAclEntries(acl);    
-    if (!gsaAclEntries.isEmpty()) {
-      gsaAcl.put("entries", gsaAclEntries);
-    }
-    if (null != acl.getInheritFrom()) {
-      URI from = enc.encodeDocId(acl.getInheritFrom());
-      try {
-        // Although it is named "fragment", we use a query parameter because the
-        // GSA "normalizes" away fragments.
-        from = new URI(from.getScheme(), from.getAuthority(), from.getPath(),
-            acl.getInheritFromFragment(), null);
-      } catch (URISyntaxException ex) {
-        throw new AssertionError(ex);
-      }
-      gsaAcl.put("inherit_from", "" + from);
-    }
-    if (acl.getInheritanceType() != Acl.InheritanceType.LEAF_NODE) {
-      String type = "" + acl.getInheritanceType();
-      gsaAcl.put("inheritance_type", "" + type);
-    }
-    return JSONObject.toJSONString(gsaAcl);
+    StringBuilder sb = new StringBuilder(estimateNamespacedAclLength(acl));
+    new NamespacedAclHeaderWriter(sb, false, enc).write(fakeIfEmpty(acl));
+    return sb.toString();
   }
 
-  private static List<Map<String, String>> makeGsaAclEntries(Acl acl) {
-    List<Map<String, String>> princ = new ArrayList<Map<String, String>>();
-    for (Principal p : acl.getPermitGroups()) {
-      princ.add(makeGsaAclEntry("permit", acl, p));
-    }
-    for (Principal p : acl.getDenyGroups()) {
-      princ.add(makeGsaAclEntry("deny", acl, p));
-    }
-    for (Principal p : acl.getPermitUsers()) {
-      princ.add(makeGsaAclEntry("permit", acl, p));
-    }
-    for (Principal p : acl.getDenyUsers()) {
-      princ.add(makeGsaAclEntry("deny", acl, p));
+  /**
+   * Appends the percent-encoded form of {@link #formNamespacedAclHeader} to
+   * {@code sb}, without creating the unencoded header.
+   */
+  static void appendEncodedNamespacedAclHeader(StringBuilder sb, Acl acl,
+      DocIdEncoder enc) {
+    if (null == acl) {
+      return;
     }
-    return princ;
+    sb.ensureCapacity(sb.length() + 2 * estimateNamespacedAclLength(acl));
+    new NamespacedAclHeaderWriter(sb, true, enc).write(fakeIfEmpty(acl));
   }
 
-  private static Map<String, String> makeGsaAclEntry(String access,
-      Acl acl, Principal p) {
-    Map<String, String> gsaEntry = new TreeMap<String, String>();
-    gsaEntry.put("access", access);
-    gsaEntry.put("scope", p.isUser() ? "user" : "group");
-    gsaEntry.put("name", p.getName());
-    if (!Principal.DEFAULT_NAMESPACE.equals(p.getNamespace())) {
-      gsaEntry.put("namespace", p.getNamespace());
-    }
-    if (!acl.isEverythingCaseSensitive()) {
-      gsaEntry.put("case_sensitivity_type", "everything_case_insensitive");
-    }
-    return gsaEntry;
+  /** Forms the acl= value of the X-Gsa-Doc-Controls header. */
+  private String formDocControlsAcl(Acl acl) {
+    StringBuilder sb = new StringBuilder(HEADER_INITIAL_CAPACITY);
+    appendEncodedNamespacedAclHeader(sb.append("acl="), acl, docIdEncoder);
+    return sb.toString();
+  }
+
+  private static Acl fakeIfEmpty(Acl acl) {
+    return Acl.EMPTY.equals(acl) ? Acl.FAKE_EMPTY : acl;
+  }
+
+  /** Rough size of the JSON for {@code acl}, to pre-size builders. */
+  private static int estimateNamespacedAclLength(Acl acl) {
+    int principals = acl.getPermitUsers().size() + acl.getPermitGroups().size()
+        + acl.getDenyUsers().size() + acl.getDenyGroups().size();
+    return HEADER_INITIAL_CAPACITY + principals * 96;
   }
 
   /**
    * Format the GSA-specific anchor header value for extra crawl-time anchors.
    */
   static String formAnchorHeader(List<URI> uris, List<String> texts) {
-    StringBuilder sb = new StringBuilder();
+    StringBuilder sb = new StringBuilder(HEADER_INITIAL_CAPACITY);
     for (int i = 0; i < uris.size(); i++) {
       URI uri = uris.get(i);
       String text = texts.get(i);
       if (text == null) {
-        sb.append(percentEncode(uri.toString()));
-        sb.append(",");
+        if (sb.length() > 0) {
+          sb.append(',');
+        }
+        percentEncode(sb, uri.toString());
       } else {
         percentEncodeMapEntryPair(sb, text, uri.toString());
       }
     }
-    return (sb.length() == 0) ? "" : sb.substring(0, sb.length() - 1);
+    return sb.toString();
   }
 
+  /**
+   * Appends {@code key=value}, both percent-encoded, to a comma-separated list
+   * in {@code sb}.
+   */
   private static void percentEncodeMapEntryPair(StringBuilder sb, String key,
                                                 String value) {
-    sb.append(percentEncode(key));
-    sb.append("=");
-    sb.append(percentEncode(value));
-    sb.append(",");
+    if (sb.length() > 0) {
+      sb.append(',');
+    }
+    percentEncode(sb, key);
+    sb.append('=');
+    percentEncode(sb, value);
   }
 
   /**
@@ -573,28 +642,72 @@ class DocumentHandler implements HttpHandler {
    * are percent encoded.
    */
   static String percentEncode(String value) {
-    StringBuilder sb = new StringBuilder();
-    byte[] bytes = value.getBytes(ENCODING);
-    for (byte b : bytes) {
-      if ((b >= 'a' && b <= 'z')
-          || (b >= 'A' && b <= 'Z')
-          || (b >= '0' && b <= '9')
-          || b == '-' || b == '_' || b == '.' || b == '~') {
-        sb.append((char) b);
-      } else {
-        // Make sure it is positive
-        int i = b & 0xff;
-        String hex = Integer.toHexString(i).toUpperCase();
-        if (hex.length() > 2) {
-          throw new AssertionError();
-        }
-        while (hex.length() != 2) {
-          hex = "0" + hex;
+    int i = 0;
+    while (i < value.length() && isUnreserved(value.charAt(i))) {
+      i++;
+    }
+    if (i == value.length()) {
+      return value;
+    }
+    StringBuilder sb = ENCODE_BUFFER.get();
+    sb.setLength(0);
+    sb.append(value, 0, i);
+    percentEncode(sb, value, i, value.length());
+    String encoded = sb.toString();
+    if (sb.capacity() > MAX_RETAINED_BUFFER) {
+      ENCODE_BUFFER.remove();
+    }
+    return encoded;
+  }
+
+  /** Appends {@code value}, percent-encoded, to {@code sb}. */
+  static void percentEncode(StringBuilder sb, String value) {
+    percentEncode(sb, value, 0, value.length());
+  }
+
+  /**
+   * Encodes the characters of {@code value} from {@code start} to {@code end}
+   * to UTF-8 while percent-encoding them, without creating intermediate byte
+   * arrays or strings. Unpaired surrogates become '?', as with {@link
+   * String#getBytes}.
+   */
+  static void percentEncode(StringBuilder sb, String value, int start,
+      int end) {
+    for (int i = start; i < end; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        if (isUnreserved(c)) {
+          sb.append(c);
+        } else {
+          appendEscaped(sb, c);
         }
-        sb.append('%').append(hex);
+      } else if (c < 0x800) {
+        appendEscaped(sb, 0xC0 | (c >> 6));
+        appendEscaped(sb, 0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < end
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        appendEscaped(sb, 0xF0 | (codePoint >> 18));
+        appendEscaped(sb, 0x80 | ((codePoint >> 12) & 0x3F));
+        appendEscaped(sb, 0x80 | ((codePoint >> 6) & 0x3F));
+        appendEscaped(sb, 0x80 | (codePoint & 0x3F));
+      } else if (c >= Character.MIN_SURROGATE
+          && c <= Character.MAX_SURROGATE) {
+        appendEscaped(sb, '?');
+      } else {
+        appendEscaped(sb, 0xE0 | (c >> 12));
+        appendEscaped(sb, 0x80 | ((c >> 6) & 0x3F));
+        appendEscaped(sb, 0x80 | (c & 0x3F));
       }
     }
-    return sb.toString();
+  }
+
+  private static boolean isUnreserved(char c) {
+    return c < 0x80 && UNRESERVED[c];
+  }
+
+  private static void appendEscaped(StringBuilder sb, int b) {
+    sb.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
   }
 
   private class DocumentRequest implements Request {
@@ -707,6 +820,13 @@ class DocumentHandler implements HttpHandler {
    * need to be very aware of all the different possibilities.
    */
   private class DocumentResponse implements Response {
+    private final MetadataTransformPipeline metadataTransform
+        = DocumentHandler.this.metadataTransform;
+    private final AclTransform aclTransform = DocumentHandler.this.aclTransform;
+    private final ContentTransformFactory contentTransformFactory
+        = DocumentHandler.this.contentTransformFactory;
+    private final long contentTimeoutMillis
+        = DocumentHandler.this.contentTimeoutMillis;
     private Thread workingThread;
     private State state = State.SETUP;
     private HttpExchange ex;
@@ -1089,11 +1209,13 @@ class DocumentHandler implements HttpHandler {
         ex.getResponseHeaders().add("X-Gsa-External-Metadata",
              formMetadataHeader(metadata));
         if (sendDocControls) {
-          ex.getResponseHeaders().add("X-Gsa-Doc-Controls", "acl="
-              + percentEncode(formNamespacedAclHeader(acl, docIdEncoder)));
+          ex.getResponseHeaders().add("X-Gsa-Doc-Controls",
+              acl == null ? formDocControlsAcl(null)
+                  : docControlsAcls.get(acl));
           if (null != displayUrl) {
-            String link = "display_url=" + percentEncode("" + displayUrl);
-            ex.getResponseHeaders().add("X-Gsa-Doc-Controls", link);
+            StringBuilder sb = new StringBuilder(HEADER_INITIAL_CAPACITY);
+            percentEncode(sb.append("display_url="), displayUrl.toString());
+            ex.getResponseHeaders().add("X-Gsa-Doc-Controls", sb.toString());
           }
           ex.getResponseHeaders().add("X-Gsa-Doc-Controls",
               "crawl_once=" + crawlOnce);
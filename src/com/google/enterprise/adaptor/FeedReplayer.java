@@ -0,0 +1,375 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sends feeds from the feed archive to the GSA again, for example to recover
+ * the feeds that failed during a GSA outage without running a full push. Both
+ * the one-file-per-feed archives of {@link GsaFeedFileArchiver} and the
+ * segments of {@link SegmentedFeedArchiver} are read.
+ *
+ * <p>Feeds are sent at a limited rate. Feeds of the same datasource, or the
+ * same group source, are sent one at a time in the order they were archived,
+ * so that a feed deleting a document is never overtaken by an earlier one
+ * adding it. Feeds of different datasources are sent by a few threads at
+ * once. Each delivered feed is
+ * recorded in {@value #DELIVERED_FILE_NAME} in the archive directory and is
+ * not sent again by later replays, so an interrupted replay can simply be
+ * started again.
+ */
+class FeedReplayer implements StatusSource {
+  private static final Logger log
+      = Logger.getLogger(FeedReplayer.class.getName());
+  private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+  static final String DELIVERED_FILE_NAME = "replayed-feeds.txt";
+  /** File names created by {@link GsaFeedFileArchiver}. */
+  private static final Pattern FILE_NAME
+      = Pattern.compile("(FAILED-)?(.+)-[0-9]+\\.xml");
+  private static final Pattern DATASOURCE
+      = Pattern.compile("<datasource>([^<]*)</datasource>");
+  private static final Pattern FEEDTYPE
+      = Pattern.compile("<feedtype>([^<]*)</feedtype>");
+
+  private final File archiveDir;
+  private final GsaFeedFileSender sender;
+  private final boolean useCompression;
+  private final int threads;
+  private final long intervalNanos;
+
+  private final AtomicBoolean running = new AtomicBoolean();
+  private final AtomicBoolean started = new AtomicBoolean();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final Object rateLock = new Object();
+  /** Earliest time the next feed may be sent, from {@link System#nanoTime}. */
+  private long nextSendNanos;
+  private Writer deliveredWriter;
+
+  /**
+   * @param archiveDir directory feeds were archived in
+   * @param sender sends feeds to the GSA
+   * @param useCompression whether to compress feeds when sending them
+   * @param threads number of feeds of different datasources to send at once
+   * @param maxFeedsPerMinute maximum number of feeds sent per minute, or
+   *     {@code 0} for no limit
+   */
+  public FeedReplayer(File archiveDir, GsaFeedFileSender sender,
+      boolean useCompression, int threads, int maxFeedsPerMinute) {
+    if (archiveDir == null || sender == null) {
+      throw new NullPointerException();
+    }
+    if (threads <= 0 || maxFeedsPerMinute < 0) {
+      throw new IllegalArgumentException("Invalid replay limits");
+    }
+    this.archiveDir = archiveDir;
+    this.sender = sender;
+    this.useCompression = useCompression;
+    this.threads = threads;
+    this.intervalNanos = maxFeedsPerMinute == 0
+        ? 0 : TimeUnit.MINUTES.toNanos(1) / maxFeedsPerMinute;
+  }
+
+  /** Whether a replay is in progress. */
+  public boolean isRunning() {
+    return running.get();
+  }
+
+  /**
+   * Sends the archived feeds that were archived between {@code fromMillis}
+   * and {@code toMillis} and have not been delivered by an earlier replay,
+   * oldest first. Feeds that could not be sent are logged and skipped.
+   *
+   * @param failedOnly whether to only send feeds that failed to be sent when
+   *     they were archived
+   * @param fromMillis earliest archive time of feeds to send, inclusive
+   * @param toMillis latest archive time of feeds to send, inclusive
+   * @return {@code false} if a replay is already in progress
+   */
+  public boolean replay(boolean failedOnly, long fromMillis, long toMillis)
+      throws IOException, InterruptedException {
+    if (!running.compareAndSet(false, true)) {
+      return false;
+    }
+    try {
+      started.set(true);
+      total.set(0);
+      delivered.set(0);
+      failed.set(0);
+      skipped.set(0);
+      Set<String> deliveredKeys = readDeliveredKeys();
+      List<ArchivedFeed> feeds = new ArrayList<ArchivedFeed>();
+      for (ArchivedFeed feed : listArchivedFeeds()) {
+        if ((failedOnly && !feed.failed) || feed.timeMillis < fromMillis
+            || feed.timeMillis > toMillis) {
+          continue;
+        }
+        if (deliveredKeys.contains(feed.key)) {
+          skipped.incrementAndGet();
+          continue;
+        }
+        feeds.add(feed);
+      }
+      total.set(feeds.size());
+      log.log(Level.INFO, "Replaying {0} archived feeds", feeds.size());
+      deliveredWriter = new OutputStreamWriter(new FileOutputStream(
+          new File(archiveDir, DELIVERED_FILE_NAME), true), CHARSET_UTF8);
+      try {
+        sendAll(feeds);
+      } finally {
+        synchronized (this) {
+          deliveredWriter.close();
+          deliveredWriter = null;
+        }
+      }
+      log.log(Level.INFO, "Replayed {0} archived feeds. {1} failed",
+          new Object[] {delivered.get(), failed.get()});
+      return true;
+    } finally {
+      running.set(false);
+    }
+  }
+
+  /**
+   * Sends each feed on the single-threaded lane of its datasource, so that
+   * feeds of one datasource keep their order.
+   */
+  private void sendAll(List<ArchivedFeed> feeds)
+      throws InterruptedException {
+    ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("feedReplay-%d").build();
+    List<ExecutorService> lanes = new ArrayList<ExecutorService>(threads);
+    for (int i = 0; i < threads; i++) {
+      lanes.add(Executors.newSingleThreadExecutor(threadFactory));
+    }
+    // Limits how many feeds are held in memory while waiting to be sent.
+    final Semaphore permits = new Semaphore(threads);
+    try {
+      for (final ArchivedFeed feed : feeds) {
+        final String xml;
+        try {
+          if (feed.file != null) {
+            xml = Files.toString(feed.file, CHARSET_UTF8);
+          } else {
+            xml = SegmentedFeedArchiver.readFeed(feed.entry);
+          }
+        } catch (IOException ex) {
+          failed.incrementAndGet();
+          log.log(Level.WARNING, "Could not read archived feed " + feed.key,
+              ex);
+          continue;
+        }
+        int lane = (source(feed, xml).hashCode() & Integer.MAX_VALUE) % threads;
+        permits.acquire();
+        lanes.get(lane).execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              send(feed, xml);
+            } finally {
+              permits.release();
+            }
+          }
+        });
+      }
+      for (ExecutorService lane : lanes) {
+        lane.shutdown();
+      }
+      for (ExecutorService lane : lanes) {
+        lane.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      for (ExecutorService lane : lanes) {
+        lane.shutdownNow();
+      }
+    }
+  }
+
+  /** The group source or datasource that {@code xml} is sent to. */
+  private static String source(ArchivedFeed feed, String xml) {
+    if (xml.contains("<xmlgroups")) {
+      return feed.name;
+    }
+    return find(DATASOURCE, xml, feed.name);
+  }
+
+  private void send(ArchivedFeed feed, String xml) {
+    try {
+      awaitTurn();
+      String source = source(feed, xml);
+      if (xml.contains("<xmlgroups")) {
+        sender.sendGroups(source, xml, useCompression);
+      } else {
+        String feedtype = find(FEEDTYPE, xml, "metadata-and-url");
+        if ("full".equals(feedtype)) {
+          sender.sendFull(source, xml, useCompression);
+        } else if ("incremental".equals(feedtype)) {
+          sender.sendIncremental(source, xml, useCompression);
+        } else {
+          sender.sendMetadataAndUrl(source, xml, useCompression);
+        }
+      }
+      markDelivered(feed);
+      delivered.incrementAndGet();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      failed.incrementAndGet();
+    } catch (IOException ex) {
+      failed.incrementAndGet();
+      log.log(Level.WARNING, "Failed to replay archived feed " + feed.key, ex);
+    } catch (IllegalArgumentException ex) {
+      failed.incrementAndGet();
+      log.log(Level.WARNING, "Failed to replay archived feed " + feed.key, ex);
+    }
+  }
+
+  /** Waits until the rate limit allows another feed to be sent. */
+  private void awaitTurn() throws InterruptedException {
+    synchronized (rateLock) {
+      long now = System.nanoTime();
+      if (nextSendNanos - now > 0) {
+        TimeUnit.NANOSECONDS.sleep(nextSendNanos - now);
+        now = nextSendNanos;
+      }
+      nextSendNanos = now + intervalNanos;
+    }
+  }
+
+  private synchronized void markDelivered(ArchivedFeed feed)
+      throws IOException {
+    deliveredWriter.write(feed.key + "\n");
+    deliveredWriter.flush();
+  }
+
+  private Set<String> readDeliveredKeys() throws IOException {
+    File file = new File(archiveDir, DELIVERED_FILE_NAME);
+    if (!file.exists()) {
+      return Collections.emptySet();
+    }
+    return new HashSet<String>(Files.readLines(file, CHARSET_UTF8));
+  }
+
+  /**
+   * Lists the feeds in the archive directory: first those archived one per
+   * file, ordered by time, then those in segments, in the order archived.
+   */
+  List<ArchivedFeed> listArchivedFeeds() throws IOException {
+    File[] files = archiveDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return FILE_NAME.matcher(name).matches();
+      }
+    });
+    if (files == null) {
+      throw new IOException("Could not list " + archiveDir);
+    }
+    List<ArchivedFeed> feeds = new ArrayList<ArchivedFeed>();
+    for (File file : files) {
+      Matcher matcher = FILE_NAME.matcher(file.getName());
+      matcher.matches();
+      feeds.add(new ArchivedFeed(file.getName(), matcher.group(2),
+          matcher.group(1) != null, file.lastModified(), file, null));
+    }
+    Collections.sort(feeds, new Comparator<ArchivedFeed>() {
+      @Override
+      public int compare(ArchivedFeed a, ArchivedFeed b) {
+        return a.timeMillis < b.timeMillis ? -1
+            : (a.timeMillis == b.timeMillis ? 0 : 1);
+      }
+    });
+    for (SegmentedFeedArchiver.IndexEntry entry
+        : SegmentedFeedArchiver.readIndex(archiveDir)) {
+      feeds.add(new ArchivedFeed(entry.segment.getName() + ":" + entry.offset,
+          entry.feedName, entry.failed, entry.timeMillis, null, entry));
+    }
+    return feeds;
+  }
+
+  private static String find(Pattern pattern, String xml, String otherwise) {
+    Matcher matcher = pattern.matcher(xml);
+    return matcher.find() ? matcher.group(1).trim() : otherwise;
+  }
+
+  @Override
+  public Status retrieveStatus() {
+    if (!started.get()) {
+      return new TranslationStatus(Status.Code.UNAVAILABLE);
+    }
+    Status.Code code = failed.get() > 0
+        ? Status.Code.WARNING : Status.Code.NORMAL;
+    return new TranslationStatus(code,
+        running.get() ? Translation.STATUS_FEED_REPLAY_RUNNING
+        : Translation.STATUS_FEED_REPLAY_DONE,
+        delivered.get(), total.get(), failed.get(), skipped.get());
+  }
+
+  @Override
+  public String getName(Locale locale) {
+    return Translation.STATUS_FEED_REPLAY.toString(locale);
+  }
+
+  /** One archived feed, in its own file or in a segment. */
+  static class ArchivedFeed {
+    /** Identifies the feed in {@value #DELIVERED_FILE_NAME}. */
+    final String key;
+    final String name;
+    final boolean failed;
+    final long timeMillis;
+    /** File containing only this feed, or {@code null}. */
+    final File file;
+    /** Location of this feed in a segment, or {@code null}. */
+    final SegmentedFeedArchiver.IndexEntry entry;
+
+    ArchivedFeed(String key, String name, boolean failed, long timeMillis,
+        File file, SegmentedFeedArchiver.IndexEntry entry) {
+      this.key = key;
+      this.name = name;
+      this.failed = failed;
+      this.timeMillis = timeMillis;
+      this.file = file;
+      this.entry = entry;
+    }
+  }
+}
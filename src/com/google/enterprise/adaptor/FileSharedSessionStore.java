@@ -0,0 +1,226 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link SharedSessionStore} that keeps each identity in its own file within a
+ * directory, for use by adaptor instances that share a filesystem. Files are
+ * written to a temporary file and then renamed, so readers never see a
+ * partially-written identity.
+ *
+ * <p>Each file holds a format version, the expiration time and the identity
+ * as written by {@link AuthnIdentityImpl#writeTo}, which is typically a few
+ * hundred bytes. Files are named by a SHA-256 hash of the session id, so the
+ * ids cannot be recovered from a directory listing, and are only readable by
+ * their owner. The directory is created accessible only by its owner.
+ */
+class FileSharedSessionStore implements SharedSessionStore {
+  private static final Logger log
+      = Logger.getLogger(FileSharedSessionStore.class.getName());
+  private static final int VERSION = 1;
+  private static final String SUFFIX = ".session";
+  private static final String TEMP_SUFFIX = ".tmp";
+  /** Ending of the backups that {@link IOHelper#renameOver} may leave. */
+  private static final String BACKUP_SUFFIX
+      = IOHelper.backupFileFor(new File(SUFFIX)).getName();
+  /** Session ids longer than this are never generated by SessionManager. */
+  private static final int MAX_SESSION_ID_LENGTH = 128;
+  /** Age after which an abandoned temporary file is removed. */
+  private static final long TEMP_FILE_LIFETIME = 60 * 60 * 1000;
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final File directory;
+
+  /**
+   * @param directory directory in which to store identities; it is created if
+   *     it does not exist
+   * @throws IOException if {@code directory} cannot be created
+   */
+  public FileSharedSessionStore(File directory) throws IOException {
+    if (directory == null) {
+      throw new NullPointerException();
+    }
+    if (directory.mkdirs()) {
+      directory.setReadable(false, false);
+      directory.setWritable(false, false);
+      directory.setExecutable(false, false);
+      directory.setReadable(true, true);
+      directory.setWritable(true, true);
+      directory.setExecutable(true, true);
+    }
+    if (!directory.isDirectory()) {
+      throw new IOException("Could not create directory: " + directory);
+    }
+    this.directory = directory;
+  }
+
+  @Override
+  public void store(String sessionId, AuthnIdentity identity,
+      long expirationTimeMillis) throws IOException {
+    File file = fileFor(sessionId);
+    if (file == null) {
+      throw new IllegalArgumentException("Invalid session id");
+    }
+    File temp = File.createTempFile("session", TEMP_SUFFIX, directory);
+    boolean renamed = false;
+    try {
+      temp.setReadable(false, false);
+      temp.setReadable(true, true);
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        out.writeByte(VERSION);
+        out.writeLong(expirationTimeMillis);
+        AuthnIdentityImpl.writeTo(identity, out);
+      } finally {
+        out.close();
+      }
+      IOHelper.renameOver(temp, file);
+      renamed = true;
+    } finally {
+      if (!renamed) {
+        temp.delete();
+      }
+    }
+  }
+
+  @Override
+  public Entry load(String sessionId, long currentTimeMillis)
+      throws IOException {
+    File file = fileFor(sessionId);
+    if (file == null) {
+      return null;
+    }
+    DataInputStream in;
+    try {
+      in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+    } catch (FileNotFoundException ex) {
+      // An interrupted store may have left only the backup.
+      try {
+        in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(IOHelper.backupFileFor(file))));
+      } catch (FileNotFoundException ex2) {
+        return null;
+      }
+    }
+    try {
+      if (in.readByte() != VERSION) {
+        log.log(Level.FINE, "Ignoring session with unknown version: {0}",
+            file);
+        return null;
+      }
+      long expirationTimeMillis = in.readLong();
+      if (expirationTimeMillis < currentTimeMillis) {
+        return null;
+      }
+      return new Entry(AuthnIdentityImpl.readFrom(in), expirationTimeMillis);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public void remove(String sessionId) {
+    File file = fileFor(sessionId);
+    if (file != null) {
+      file.delete();
+      IOHelper.backupFileFor(file).delete();
+    }
+  }
+
+  @Override
+  public void removeExpired(long currentTimeMillis) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Could not list directory: " + directory);
+    }
+    int removed = 0;
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(TEMP_SUFFIX)) {
+        if (file.lastModified() + TEMP_FILE_LIFETIME < currentTimeMillis) {
+          file.delete();
+        }
+      } else if ((name.endsWith(SUFFIX) || name.endsWith(BACKUP_SUFFIX))
+          && isExpired(file, currentTimeMillis)) {
+        if (file.delete()) {
+          removed++;
+        }
+      }
+    }
+    log.log(Level.FINE, "Removed {0} expired shared sessions", removed);
+  }
+
+  /** Reads only the header of {@code file}. Unreadable files are expired. */
+  private boolean isExpired(File file, long currentTimeMillis) {
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        return in.readByte() != VERSION || in.readLong() < currentTimeMillis;
+      } finally {
+        in.close();
+      }
+    } catch (FileNotFoundException ex) {
+      // Concurrently removed.
+      return false;
+    } catch (IOException ex) {
+      log.log(Level.FINE, "Could not read shared session " + file, ex);
+      return true;
+    }
+  }
+
+  /**
+   * Returns the file for {@code sessionId}, or {@code null} if it is not a
+   * plausible session id. Session ids come from clients and are secrets, so
+   * the file is named by a hash of the id instead of the id itself.
+   */
+  private File fileFor(String sessionId) {
+    if (sessionId == null || sessionId.isEmpty()
+        || sessionId.length() > MAX_SESSION_ID_LENGTH) {
+      return null;
+    }
+    byte[] bytes;
+    try {
+      bytes = MessageDigest.getInstance("SHA-256")
+          .digest(sessionId.getBytes(CHARSET));
+    } catch (NoSuchAlgorithmException ex) {
+      // Every Java platform is required to support SHA-256.
+      throw new AssertionError(ex);
+    }
+    StringBuilder name = new StringBuilder(bytes.length * 2 + SUFFIX.length());
+    for (byte b : bytes) {
+      name.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+    }
+    name.append(SUFFIX);
+    return new File(directory, name.toString());
+  }
+}
@@ -16,6 +16,7 @@ package com.google.enterprise.adaptor;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil;
 
 import com.sun.net.httpserver.BasicAuthenticator;
 import com.sun.net.httpserver.Filter;
@@ -28,6 +29,7 @@ import com.sun.net.httpserver.HttpsServer;
 import org.opensaml.DefaultBootstrap;
 import org.opensaml.xml.ConfigurationException;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -49,15 +51,20 @@ import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -96,6 +103,12 @@ public final class GsaCommunicationHandler {
   private Future<?> sendDocIdsFuture;
   private HttpServerScope scope;
   private SessionManager<HttpExchange> sessionManager;
+  /** Client for SAML back-channel requests, or {@code null} if not secure. */
+  private PooledHttpClient backChannelClient;
+  /** Background feed archiver, or {@code null} if not enabled. */
+  private SegmentedFeedArchiver segmentedArchiver;
+  /** Replays the feed archive, or {@code null} if feeds are not archived. */
+  private FeedReplayer feedReplayer;
   /**
    * Executor for scheduling tasks in the future. These tasks <em>must</em>
    * complete quickly, as the executor purposely is single-threaded.
@@ -123,6 +136,9 @@ public final class GsaCommunicationHandler {
   private SensitiveValueCodec secureValueCodec;
   private KeyPair keyPair;
   private AclTransform aclTransform;
+  private GsaFeedFileMaker feedFileMaker;
+  /** Applies modified configuration while running. */
+  private LiveConfigListener liveConfigListener;
 
   private ShutdownWaiter waiter;
   private final List<Filter> commonFilters = Arrays.asList(new Filter[] {
@@ -185,7 +201,8 @@ public final class GsaCommunicationHandler {
         throw ex;
       }
     }
-    secureValueCodec = new SensitiveValueCodec(keyPair);
+    secureValueCodec = new SensitiveValueCodec(keyPair,
+        config.getAdaptorSensitiveValueCacheMillis());
 
     int port = server.getAddress().getPort();
     if (port != config.getServerPort()) {
@@ -203,6 +220,13 @@ public final class GsaCommunicationHandler {
           new SessionManager.HttpExchangeClientStore("sessid_" + port, secure),
           30 * 60 * 1000 /* session lifetime: 30 minutes */,
           5 * 60 * 1000 /* max cleanup frequency: 5 minutes */);
+    String sharedSessionDirectory = config.getServerSharedSessionDirectory();
+    if (!sharedSessionDirectory.isEmpty()) {
+      log.log(Level.CONFIG, "Sharing authenticated sessions using {0}",
+          sharedSessionDirectory);
+      sessionManager.setSharedStore(
+          new FileSharedSessionStore(new File(sharedSessionDirectory)));
+    }
 
     URI baseUri = config.getServerBaseUri();
     URI docUri;
@@ -226,7 +250,7 @@ public final class GsaCommunicationHandler {
         config.getGsaCharacterEncoding());
     aclTransform = createAclTransform();
     List<String> comments = formUsefulFeedFileComments(adaptor);
-    GsaFeedFileMaker fileMaker = new GsaFeedFileMaker(docIdCodec, aclTransform,
+    feedFileMaker = new GsaFeedFileMaker(docIdCodec, aclTransform,
         config.isGsa614FeedWorkaroundEnabled(),
         config.isGsa70AuthMethodWorkaroundEnabled(),
         config.isCrawlImmediatelyBitEnabled().isOverriden,
@@ -234,10 +258,27 @@ public final class GsaCommunicationHandler {
         config.isFeedNoRecrawlBitEnabled().isOverriden,
         config.isFeedNoRecrawlBitEnabled().value,
         comments);
-    GsaFeedFileArchiver fileArchiver =
-        new GsaFeedFileArchiver(config.getFeedArchiveDirectory());
-    docIdSender = new DocIdSender(fileMaker, fileSender, fileArchiver, journal,
-        config, adaptor);
+    FeedArchiver fileArchiver;
+    if (config.isFeedArchiveSegmented()
+        && !config.getFeedArchiveDirectory().isEmpty()) {
+      segmentedArchiver = new SegmentedFeedArchiver(
+          new File(config.getFeedArchiveDirectory()),
+          config.getFeedArchiveSegmentMaxBytes(),
+          config.getFeedArchiveSegmentMaxMillis(),
+          config.getFeedArchiveMaxTotalBytes(),
+          config.getFeedArchiveQueueSize());
+      fileArchiver = segmentedArchiver;
+    } else {
+      fileArchiver = new GsaFeedFileArchiver(config.getFeedArchiveDirectory());
+    }
+    if (!config.getFeedArchiveDirectory().isEmpty()) {
+      feedReplayer = new FeedReplayer(
+          new File(config.getFeedArchiveDirectory()), fileSender,
+          config.isServerToUseCompression(), config.getFeedReplayThreads(),
+          config.getFeedReplayMaxFeedsPerMin());
+    }
+    docIdSender = new DocIdSender(feedFileMaker, fileSender, fileArchiver,
+        journal, config, adaptor);
     asyncDocIdSender = new AsyncDocIdSender(docIdSender,
         config.getFeedMaxUrls() /* batch size */,
         5 /* max latency */, TimeUnit.MINUTES,
@@ -265,16 +306,11 @@ public final class GsaCommunicationHandler {
     // Usages of 'adaptor' are completely safe after this point.
     adaptorContext.freeze();
 
-    // Since we are white-listing particular keys for auto-update, things aren't
-    // ready enough to expose to adaptors.
-    /*if (adaptor instanceof ConfigModificationListener) {
-      config.addConfigModificationListener(
-          (ConfigModificationListener) adaptor);
-    }*/
-
     SamlServiceProvider samlServiceProvider = null;
     if (config.isServerSecure()) {
       bootstrapOpenSaml();
+      OpenSamlUtil.getParserPool().setMaxPoolSize(
+          config.getSamlParserPoolSize());
       SamlMetadata metadata = new SamlMetadata(config.getServerHostname(),
           config.getServerPort(), config.getGsaHostname(),
           config.getGsaSamlEntityId(), config.getServerSamlEntityId());
@@ -290,8 +326,11 @@ public final class GsaCommunicationHandler {
         log.config("Adaptor-based authentication not supported");
       }
       Principal.DomainFormat dmfmt = config.getDomainFormat();
-      samlServiceProvider
-          = new SamlServiceProvider(sessionManager, metadata, keyPair, dmfmt);
+      backChannelClient = new PooledHttpClient(
+          config.getSamlBackChannelMaxConnections(),
+          config.getSamlBackChannelTimeoutMillis());
+      samlServiceProvider = new SamlServiceProvider(sessionManager, metadata,
+          keyPair, backChannelClient, dmfmt);
       addFilters(scope.createContext("/samlassertionconsumer",
           samlServiceProvider.getAssertionConsumer()));
       if (adaptorContext.authzAuthority != null) {
@@ -306,6 +345,8 @@ public final class GsaCommunicationHandler {
         new ThreadFactoryBuilder().setDaemon(true).setNameFormat("schedule")
         .build());
     Watchdog watchdog = new Watchdog(scheduleExecutor);
+    sessionManager.startBackgroundCleanup(scheduleExecutor);
+    secureValueCodec.startBackgroundCleanup(scheduleExecutor);
 
     // The cachedThreadPool implementation created here is considerably better
     // than using ThreadPoolExecutor. ThreadPoolExecutor does not create threads
@@ -330,14 +371,26 @@ public final class GsaCommunicationHandler {
         config.getAdaptorDocContentTimeoutMillis(),
         config.getScoringType(),
         config.requireHttpBasicAuthn(),
-        new GsaVersion(config.getGsaVersion()));
+        new GsaVersion(config.getGsaVersion()),
+        config.isAdaptorToCoalesceDocRequests());
+    liveConfigListener = new LiveConfigListener(scope.getHttpServer(),
+        docHandler);
+    config.addConfigModificationListener(liveConfigListener);
+    long configPollMillis = config.getAdaptorConfigPollPeriodMillis();
+    if (configPollMillis > 0) {
+      scheduleExecutor.scheduleWithFixedDelay(
+          waiter.runnable(new BackgroundRunnable(new ConfigPollRunnable())),
+          configPollMillis, configPollMillis, TimeUnit.MILLISECONDS);
+    }
     String handlerPath = config.getServerBaseUri().getPath()
         + config.getServerDocIdPath();
     HttpContext docContext
         = addFilters(scope.createContext(handlerPath, docHandler));
     HeartbeatHandler heartbeatHandler = new HeartbeatHandler(heartbeatCodec,
         docIdCodec, docHandler, new Watchdog(scheduleExecutor),
-        config.getAdaptorHeartbeatTimeoutMillis());
+        config.getAdaptorHeartbeatTimeoutMillis(),
+        adaptorContext.heartbeatProbe,
+        config.getAdaptorHeartbeatProbeCacheMillis());
     String heartbeatPath = config.getServerBaseUri().getPath()
         + config.getServerHeartbeatPath();
     addFilters(scope.createContext(heartbeatPath, heartbeatHandler));
@@ -370,22 +423,36 @@ public final class GsaCommunicationHandler {
       docIdFullPusher = new OneAtATimeRunnable(
           new PushRunnable(adaptorContext.fullExceptionHandler),
           new AlreadyRunningRunnable());
+      Runnable fullPush = new BackgroundRunnable(docIdFullPusher);
+      long deferAboveGsaRequests
+          = config.getAdaptorFullListingDeferAboveGsaRequestsPerMin();
+      if (deferAboveGsaRequests > 0) {
+        fullPush = new LoadDeferringRunnable(waiter.runnable(fullPush),
+            journal, scheduleExecutor, deferAboveGsaRequests,
+            config.getAdaptorFullListingMaxDeferralMillis(),
+            new SystemTimeProvider());
+      }
       sendDocIdsFuture = scheduler.schedule(
           config.getAdaptorFullListingSchedule(),
-          waiter.runnable(new BackgroundRunnable(docIdFullPusher)));
+          config.getAdaptorFullListingJitterMillis(),
+          waiter.runnable(fullPush));
       if (config.isAdaptorPushDocIdsOnStartup()) {
         log.info("Pushing once at program start");
         checkAndScheduleImmediatePushOfDocIds();
       }
 
       if (adaptorContext.pollingIncrementalLister != null) {
+        AdaptivePollSchedule pollSchedule = new AdaptivePollSchedule(
+            config.getAdaptorIncrementalPollPeriodMillis(),
+            config.getAdaptorIncrementalPollMaxPeriodMillis());
         docIdIncrementalPusher = new OneAtATimeRunnable(
             new IncrementalPushRunnable(adaptorContext.pollingIncrementalLister,
-              adaptorContext.incrExceptionHandler),
+              adaptorContext.incrExceptionHandler, pollSchedule),
             new AlreadyRunningRunnable());
 
         scheduleExecutor.scheduleAtFixedRate(
-            waiter.runnable(new BackgroundRunnable(docIdIncrementalPusher)),
+            waiter.runnable(new PollWhenDueRunnable(pollSchedule,
+                new BackgroundRunnable(docIdIncrementalPusher))),
             (config.isAdaptorPushDocIdsOnStartup())
                 ? config.getAdaptorIncrementalPollPeriodMillis() : 0,
             config.getAdaptorIncrementalPollPeriodMillis(),
@@ -680,6 +747,10 @@ public final class GsaCommunicationHandler {
       scope = new HttpServerScope(
           scope.getHttpServer(), scope.getContextPrefix());
     }
+    if (liveConfigListener != null) {
+      config.removeConfigModificationListener(liveConfigListener);
+      liveConfigListener = null;
+    }
     if (scheduleExecutor != null) {
       // Post-Adaptor.init() resources need to be stopped.
       dashboardScope.close();
@@ -688,6 +759,8 @@ public final class GsaCommunicationHandler {
 
       scheduleExecutor.shutdownNow();
       scheduleExecutor = null;
+      // Expired values are no longer removed in the background.
+      secureValueCodec.forgetDecodedValues();
 
       if (backgroundExecutor != null) {
         backgroundExecutor.shutdownNow();
@@ -728,6 +801,7 @@ public final class GsaCommunicationHandler {
     dashboardScope = null;
     keyPair = null;
     aclTransform = null;
+    feedFileMaker = null;
     waiter = null;
 
     // Wait until after adaptor.destroy() to shutdown things accessible by
@@ -735,6 +809,16 @@ public final class GsaCommunicationHandler {
     // end.
     secureValueCodec = null;
     sessionManager = null;
+    backChannelClient = null;
+    if (segmentedArchiver != null) {
+      try {
+        segmentedArchiver.close();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      segmentedArchiver = null;
+    }
+    feedReplayer = null;
     docIdCodec = null;
     docIdSender = null;
     adaptorContext = null;
@@ -783,6 +867,51 @@ public final class GsaCommunicationHandler {
     return true;
   }
 
+  /**
+   * Send archived feeds to the GSA again, for instance after a GSA outage.
+   * Feeds already sent by an earlier replay are skipped, as are feeds
+   * archived after the replay starts.
+   *
+   * @param failedOnly whether to only send feeds that failed originally
+   * @param fromMillis earliest archive time of feeds to send
+   * @param toMillis latest archive time of feeds to send
+   * @return true if scheduled and false if already running
+   */
+  public synchronized boolean checkAndScheduleFeedReplay(
+      final boolean failedOnly, final long fromMillis, final long toMillis) {
+    if (feedReplayer == null) {
+      throw new IllegalStateException("Feeds are not archived");
+    }
+    if (feedReplayer.isRunning()) {
+      return false;
+    }
+    final FeedReplayer replayer = feedReplayer;
+    final SegmentedFeedArchiver archiver = segmentedArchiver;
+    // This permits a race between checking and starting the replay, in which
+    // case the later replay does nothing.
+    backgroundExecutor.execute(waiter.runnable(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (archiver != null) {
+            // Include the feeds still waiting to be archived.
+            archiver.flush();
+          }
+          // Feeds archived from now on are being sent already, so replaying
+          // them as well would only send them twice.
+          long flushedMillis = System.currentTimeMillis();
+          replayer.replay(failedOnly, fromMillis,
+              Math.min(toMillis, flushedMillis));
+        } catch (IOException ex) {
+          log.log(Level.WARNING, "Failed to replay feed archive", ex);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }));
+    return true;
+  }
+
   boolean isAdaptorIncremental() {
     if (adaptorContext == null || adaptorContext.mutable) {
       throw new IllegalStateException("Can only be used after init()");
@@ -806,6 +935,31 @@ public final class GsaCommunicationHandler {
     return adaptor;
   }
 
+  /** @return the SAML back-channel client, or {@code null} if not secure */
+  PooledHttpClient getBackChannelClient() {
+    return backChannelClient;
+  }
+
+  /** @return the background feed archiver, or {@code null} if not enabled */
+  SegmentedFeedArchiver getSegmentedArchiver() {
+    return segmentedArchiver;
+  }
+
+  /** @return the feed archive replayer, or {@code null} if not archiving */
+  FeedReplayer getFeedReplayer() {
+    return feedReplayer;
+  }
+
+  /** @return the sender of ids pushed with the AsyncDocIdPusher */
+  AsyncDocIdSender getAsyncDocIdSender() {
+    return asyncDocIdSender;
+  }
+
+  /** @return the maker of feed files */
+  GsaFeedFileMaker getFeedFileMaker() {
+    return feedFileMaker;
+  }
+
   HttpContext addFilters(HttpContext context) {
     context.getFilters().add(waiter.filter());
     context.getFilters().addAll(commonFilters);
@@ -863,18 +1017,26 @@ public final class GsaCommunicationHandler {
   private class IncrementalPushRunnable implements Runnable {
     private final ExceptionHandler handler;
     private final PollingIncrementalLister incrementalLister;
+    private final AdaptivePollSchedule pollSchedule;
 
     public IncrementalPushRunnable(PollingIncrementalLister incrementalLister,
-        ExceptionHandler handler) {
+        ExceptionHandler handler, AdaptivePollSchedule pollSchedule) {
       this.incrementalLister = incrementalLister;
       this.handler = handler;
+      this.pollSchedule = pollSchedule;
     }
 
     @Override
     public void run() {
       try {
+        long pushedBefore = journal.getTotalDocIdsPushed();
         docIdSender.pushIncrementalDocIdsFromAdaptor(
             incrementalLister, handler);
+        // Pushes by a concurrent full push are counted as well, which at worst
+        // keeps polling at its shortest period a little longer.
+        pollSchedule.recordPoll(journal.getTotalDocIdsPushed() > pushedBefore);
+        log.log(Level.FINE, "Next incremental poll in {0} ms",
+            pollSchedule.getPeriodMillis());
       } catch (InterruptedException ex) {
         Thread.currentThread().interrupt();
       } catch (Exception t) {
@@ -886,6 +1048,28 @@ public final class GsaCommunicationHandler {
     }
   }
 
+  /**
+   * Runnable that executes the delegate only on the ticks where {@link
+   * AdaptivePollSchedule} says an incremental poll is due.
+   */
+  private static class PollWhenDueRunnable implements Runnable {
+    private final AdaptivePollSchedule pollSchedule;
+    private final Runnable delegate;
+
+    public PollWhenDueRunnable(AdaptivePollSchedule pollSchedule,
+        Runnable delegate) {
+      this.pollSchedule = pollSchedule;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void run() {
+      if (pollSchedule.tick()) {
+        delegate.run();
+      }
+    }
+  }
+
   /**
    * Runnable that logs an error that {@link PushRunnable} is already executing.
    */
@@ -897,6 +1081,129 @@ public final class GsaCommunicationHandler {
     }
   }
 
+  /** Reloads the config file when it was modified. */
+  private class ConfigPollRunnable implements Runnable {
+    @Override
+    public synchronized void run() {
+      try {
+        config.ensureLatestConfigLoaded();
+      } catch (IOException ex) {
+        log.log(Level.WARNING, "Could not read modified configuration", ex);
+      } catch (InvalidConfigurationException ex) {
+        log.log(Level.WARNING, "Ignoring invalid modified configuration", ex);
+      }
+    }
+  }
+
+  /**
+   * Applies modified configuration that can take effect while running, and
+   * logs the modified keys that require a restart.
+   */
+  private class LiveConfigListener implements ConfigModificationListener {
+    private final HttpServer server;
+    private final DocumentHandler docHandler;
+    private final AsyncDocIdSender asyncSender = asyncDocIdSender;
+    private final GsaFeedFileMaker fileMaker = feedFileMaker;
+
+    public LiveConfigListener(HttpServer server, DocumentHandler docHandler) {
+      this.server = server;
+      this.docHandler = docHandler;
+    }
+
+    @Override
+    public void configModified(ConfigModificationEvent ev) {
+      Set<String> pending = new TreeSet<String>(ev.getModifiedKeys());
+      boolean executorModified = pending.remove("server.maxWorkerThreads");
+      executorModified |= pending.remove("server.queueCapacity");
+      if (executorModified) {
+        try {
+          resizeServerExecutor();
+        } catch (RuntimeException ex) {
+          log.log(Level.WARNING, "Could not resize request thread pool", ex);
+        }
+      }
+      if (pending.remove("feed.maxUrls")) {
+        try {
+          asyncSender.setMaxBatchSize(config.getFeedMaxUrls());
+        } catch (RuntimeException ex) {
+          log.log(Level.WARNING, "Could not apply feed.maxUrls", ex);
+        }
+      }
+      boolean timeoutsModified = pending.remove("adaptor.docHeaderTimeoutSecs");
+      timeoutsModified |= pending.remove("adaptor.docContentTimeoutSecs");
+      if (timeoutsModified) {
+        try {
+          docHandler.setTimeouts(config.getAdaptorDocHeaderTimeoutMillis(),
+              config.getAdaptorDocContentTimeoutMillis());
+        } catch (RuntimeException ex) {
+          log.log(Level.WARNING, "Could not apply document timeouts", ex);
+        }
+      }
+      if (removeTransformKeys(pending)) {
+        try {
+          AclTransform newAclTransform = createAclTransform();
+          docHandler.setTransforms(createMetadataTransformPipeline(),
+              newAclTransform, createContentTransformFactory());
+          fileMaker.setAclTransform(newAclTransform);
+          log.info("Transform pipelines reloaded");
+        } catch (RuntimeException ex) {
+          log.log(Level.WARNING, "Could not reload transforms; previous "
+              + "transforms remain in use", ex);
+        }
+      }
+      if (!pending.isEmpty()) {
+        log.log(Level.WARNING, "Restart the adaptor for these modified "
+            + "settings to take effect: {0}", pending);
+      }
+    }
+
+    private boolean removeTransformKeys(Set<String> keys) {
+      boolean removed = false;
+      for (Iterator<String> it = keys.iterator(); it.hasNext();) {
+        String key = it.next();
+        if (key.startsWith("metadata.transform.")
+            || key.startsWith("transform.pipeline")
+            || key.startsWith("content.transform.")
+            || key.startsWith("transform.acl.")) {
+          it.remove();
+          removed = true;
+        }
+      }
+      return removed;
+    }
+
+    private void resizeServerExecutor() {
+      Executor executor = server.getExecutor();
+      if (!(executor instanceof ThreadPoolExecutor)) {
+        log.warning("Request thread pool cannot be resized");
+        return;
+      }
+      ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+      int threads = config.getServerMaxWorkerThreads();
+      int queueCapacity = config.getServerQueueCapacity();
+      if (threads <= 0 || queueCapacity <= 0) {
+        throw new InvalidConfigurationException("server.maxWorkerThreads and "
+            + "server.queueCapacity must be positive");
+      }
+      // The maximum size may never be smaller than the core size.
+      if (threads >= pool.getMaximumPoolSize()) {
+        pool.setMaximumPoolSize(threads);
+        pool.setCorePoolSize(threads);
+      } else {
+        pool.setCorePoolSize(threads);
+        pool.setMaximumPoolSize(threads);
+      }
+      if (pool.getQueue() instanceof ResizableBlockingQueue) {
+        ((ResizableBlockingQueue<?>) pool.getQueue()).setCapacity(
+            queueCapacity);
+      } else {
+        log.warning("Request queue cannot be resized");
+      }
+      log.log(Level.INFO, "Request thread pool resized to {0} threads and a "
+          + "queue of {1}", new Object[] {threads, queueCapacity});
+    }
+  }
+
   /**
    * Runnable that when invoked executes the delegate with {@link
    * #backgroundExecutor} and then returns before completion. That implies that
@@ -936,6 +1243,7 @@ public final class GsaCommunicationHandler {
     private PollingIncrementalLister pollingIncrementalLister;
     private AuthnAuthority authnAuthority;
     private AuthzAuthority authzAuthority;
+    private HeartbeatProbe heartbeatProbe;
 
     private synchronized void freeze() {
       mutable = false;
@@ -1059,5 +1367,13 @@ public final class GsaCommunicationHandler {
       }
       this.authzAuthority = authzAuthority;
     }
+
+    @Override
+    public synchronized void setHeartbeatProbe(HeartbeatProbe heartbeatProbe) {
+      if (!mutable) {
+        throw new IllegalStateException("After init()");
+      }
+      this.heartbeatProbe = heartbeatProbe;
+    }
   }
 }
@@ -63,7 +63,7 @@ class GsaFeedFileMaker {
       };
 
   private final DocIdEncoder idEncoder;
-  private final AclTransform aclTransform;
+  private volatile AclTransform aclTransform;
   private final boolean separateClosingRecordTagWorkaround;
   private final boolean useAuthMethodWorkaround;
   private final boolean crawlImmediatelyIsOverriden;
@@ -111,6 +111,19 @@ class GsaFeedFileMaker {
     }
   }
 
+  /** Transform applied to ACLs and groups. */
+  AclTransform getAclTransform() {
+    return aclTransform;
+  }
+
+  /** Replaces the transform applied to ACLs and groups of later feeds. */
+  void setAclTransform(AclTransform aclTransform) {
+    if (aclTransform == null) {
+      throw new NullPointerException();
+    }
+    this.aclTransform = aclTransform;
+  }
+
   /** Adds header to document's root.
       @param srcName Used as datasource name. */
   private void constructMetadataAndUrlFeedFileHead(Document doc,
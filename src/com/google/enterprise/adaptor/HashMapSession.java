@@ -14,33 +14,39 @@
 
 package com.google.enterprise.adaptor;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Generic session-state container, but intended for authn bookkeeping.
  */
 class HashMapSession implements Session {
-  private final Map<String, Object> state = new HashMap<String, Object>();
+  private final ConcurrentMap<String, Object> state
+      = new ConcurrentHashMap<String, Object>(4);
 
   /**
-   * Set attribute value, replacing existing value if it already exists.
+   * Set attribute value, replacing existing value if it already exists. A
+   * {@code null} value removes the attribute.
    */
-  public synchronized void setAttribute(String key, Object value) {
-    state.put(key, value);
+  public void setAttribute(String key, Object value) {
+    if (value == null) {
+      state.remove(key);
+    } else {
+      state.put(key, value);
+    }
   }
 
   /**
    * Get attribute value.
    */
-  public synchronized Object getAttribute(String key) {
+  public Object getAttribute(String key) {
     return state.get(key);
   }
 
   /**
    * Remove attribute value.
    */
-  public synchronized Object removeAttribute(String key) {
+  public Object removeAttribute(String key) {
     return state.remove(key);
   }
 }
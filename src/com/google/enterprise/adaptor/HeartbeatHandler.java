@@ -15,6 +15,9 @@
 package com.google.enterprise.adaptor;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
@@ -30,6 +33,9 @@ import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,26 +49,43 @@ class HeartbeatHandler implements HttpHandler {
   private final DocumentHandler docHandler;
   private final Watchdog watchdog;
   private final long timeoutMillis;
+  private final HeartbeatProbe probe;
+  /**
+   * Recent answers of {@link #probe}. Loading through the cache also makes
+   * concurrent heartbeats of the same document share one call to the probe.
+   */
+  private final Cache<DocId, Boolean> probeAnswers;
   private HeadHttpExchange myHttpExchange;
 
   /**
    * An {@code HttpHandler} that converts GET requests for /heartbeat/docId into
    * HEAD requests for /doc/docId (which it then passes on to the
-   * {@code docHandler}.
+   * {@code docHandler}. If a {@code probe} is provided, trusted requests are
+   * instead answered by the probe, whose answers are reused for {@code
+   * probeCacheMillis}.
    */
   public HeartbeatHandler(DocIdDecoder heartbeatDecoder,
       DocIdEncoder docIdEncoder, DocumentHandler docHandler, Watchdog watchdog,
-      long timeoutMillis) {
+      long timeoutMillis, HeartbeatProbe probe, long probeCacheMillis) {
 
     if (heartbeatDecoder == null || docIdEncoder == null || docHandler == null
         || watchdog == null) {
       throw new NullPointerException();
     }
+    if (probeCacheMillis < 0) {
+      throw new IllegalArgumentException("probeCacheMillis must not be "
+          + "negative");
+    }
     this.heartbeatDecoder = heartbeatDecoder;
     this.docIdEncoder = docIdEncoder;
     this.docHandler = docHandler;
     this.watchdog = watchdog;
     this.timeoutMillis = timeoutMillis;
+    this.probe = probe;
+    this.probeAnswers = CacheBuilder.newBuilder()
+        .maximumSize(1000)
+        .expireAfterWrite(probeCacheMillis, TimeUnit.MILLISECONDS)
+        .build();
   }
 
   /**
@@ -79,6 +102,22 @@ class HeartbeatHandler implements HttpHandler {
       return;
     }
     DocId docId = heartbeatDecoder.decodeDocId(HttpExchanges.getRequestUri(ex));
+    if (probe != null && docHandler.isTrustedWithoutAuthz(ex)) {
+      boolean available;
+      watchdog.processingStarting(timeoutMillis);
+      try {
+        available = probe(docId);
+      } finally {
+        watchdog.processingCompleted();
+      }
+      if (available) {
+        HttpExchanges.respondToHead(ex, HttpURLConnection.HTTP_OK, null);
+      } else {
+        HttpExchanges.respondToHead(ex, HttpURLConnection.HTTP_NOT_FOUND,
+            "text/plain");
+      }
+      return;
+    }
     // Replace the HeartbeatHandler URI with the URI of the DocHandler.
     URI realDocUri = docIdEncoder.encodeDocId(docId);
     watchdog.processingStarting(timeoutMillis);
@@ -90,6 +129,32 @@ class HeartbeatHandler implements HttpHandler {
     }
   }
 
+  /**
+   * Returns the recent answer of the probe for {@code docId}, or calls the
+   * probe. Failures are not remembered.
+   */
+  private boolean probe(final DocId docId) throws IOException {
+    try {
+      return probeAnswers.get(docId, new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws IOException, InterruptedException {
+          return probe.isDocumentAvailable(docId);
+        }
+      });
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Heartbeat probe interrupted: " + docId,
+            cause);
+      }
+      throw new IOException("Exception in heartbeat probe: " + docId, cause);
+    } catch (UncheckedExecutionException e) {
+      throw new RuntimeException("Exception in heartbeat probe: " + docId,
+          e.getCause());
+    }
+  }
+
   /** Returns the HttpExchange used in the most-recent call to handle(). */
   @VisibleForTesting
   HttpExchange getHttpExchange() {
@@ -0,0 +1,52 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+
+/**
+ * Interface for adaptors that can cheaply check whether a document exists,
+ * without retrieving its content, metadata, or ACLs. The GSA periodically
+ * requests heartbeat URLs of documents to check the health of the adaptor;
+ * without a probe each heartbeat calls {@link Adaptor#getDocContent} and
+ * discards the result.
+ *
+ * <p>Answers are reused for heartbeats of the same document for a short time,
+ * configured by {@code adaptor.heartbeatProbeCacheSecs}, and concurrent
+ * heartbeats of the same document share a single call to the probe.
+ *
+ * <p>Instances of this interface are typically registered with {@link
+ * AdaptorContext#setHeartbeatProbe}.
+ */
+public interface HeartbeatProbe {
+  /**
+   * Determines whether the document exists and the repository holding it is
+   * reachable. This method should be much cheaper than {@link
+   * Adaptor#getDocContent}, for example only checking the existence of a file
+   * or a row. Returning {@code false} responds to the heartbeat with {@code
+   * 404 Not Found}, just as {@link Response#respondNotFound} would.
+   *
+   * <p>If you experience a fatal error, feel free to throw an {@link
+   * IOException} or {@link RuntimeException}. Failures are not reused for
+   * later heartbeats.
+   *
+   * @param id document to check
+   * @return {@code true} if the document exists
+   * @throws IOException on failure contacting the repository
+   * @throws InterruptedException may percolate from IO calls
+   */
+  public boolean isDocumentAvailable(DocId id)
+      throws IOException, InterruptedException;
+}
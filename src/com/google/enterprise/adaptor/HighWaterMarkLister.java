@@ -0,0 +1,373 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link PollingIncrementalLister} that remembers where the last poll of each
+ * source of changes ended, even across restarts. Each {@link ChangeSource}
+ * reports the changes after a high-water mark, which may be a timestamp, a
+ * sequence number or any other token the source understands, along with the
+ * new high-water mark. A source's mark is only advanced, and written to the
+ * state file, after the GSA accepted all of the changes up to it; otherwise the
+ * same changes are listed again by the next poll.
+ *
+ * <p>This class is also a {@link StatusSource} reporting the lag of the
+ * listing, which is the time since the oldest high-water mark among the
+ * sources. Register it with {@link AdaptorContext#addStatusSource} to show it
+ * on the dashboard.
+ *
+ * <p>Typical use, within {@link Adaptor#init}:
+ * <pre><code>
+ * HighWaterMarkLister lister = new HighWaterMarkLister(
+ *     new File("highwatermarks.properties"), Arrays.asList(changeSource));
+ * context.setPollingIncrementalLister(lister);
+ * context.addStatusSource(lister);</code></pre>
+ *
+ * <p>This class is thread-safe, although polls should not run concurrently.
+ */
+public class HighWaterMarkLister
+    implements PollingIncrementalLister, StatusSource {
+  private static final Logger log
+      = Logger.getLogger(HighWaterMarkLister.class.getName());
+  private static final String MARK_SUFFIX = ".mark";
+  private static final String TIME_SUFFIX = ".time";
+  private static final String TEMP_SUFFIX = ".tmp";
+  /** Default lag above which the status is a warning. */
+  private static final long DEFAULT_LAG_WARNING_MILLIS = 60 * 60 * 1000;
+
+  /**
+   * A repository, or part of one, that can list its changes after a
+   * high-water mark.
+   */
+  public interface ChangeSource {
+    /**
+     * Name identifying this source in the state file. It must be unique among
+     * the sources of a lister and stay the same across restarts.
+     */
+    public String getName();
+
+    /**
+     * Lists changes after {@code highWaterMark}. Sources with many changes
+     * should only return some of them and indicate that there are more, so
+     * that memory use stays bounded and progress is saved along the way.
+     *
+     * <p>Deleted documents should be returned as records with {@link
+     * DocIdPusher.Record.Builder#setDeleteFromIndex setDeleteFromIndex(true)}.
+     *
+     * @param highWaterMark mark of the last changes the GSA accepted, or
+     *     {@code null} if this source has never been polled
+     * @return the changes, never {@code null}
+     * @throws IOException on failure getting changes
+     * @throws InterruptedException may percolate from IO calls
+     */
+    public Changes getChangesSince(String highWaterMark)
+        throws IOException, InterruptedException;
+  }
+
+  /**
+   * Changes listed by a {@link ChangeSource}, with the high-water mark that
+   * follows them.
+   */
+  public static final class Changes {
+    private final List<DocIdPusher.Record> records;
+    private final String highWaterMark;
+    private final long highWaterMarkMillis;
+    private final boolean hasMore;
+
+    /**
+     * @param records changed documents, possibly empty
+     * @param highWaterMark mark to pass to the next call of {@link
+     *     ChangeSource#getChangesSince}
+     * @param highWaterMarkMillis time up to which all changes have been
+     *     listed, used to compute lag; for example the time of the latest
+     *     change or, when there are no newer changes, the time of the query
+     * @param hasMore whether more changes are available right away
+     */
+    public Changes(List<DocIdPusher.Record> records, String highWaterMark,
+        long highWaterMarkMillis, boolean hasMore) {
+      if (records == null || highWaterMark == null) {
+        throw new NullPointerException();
+      }
+      this.records = Collections.unmodifiableList(
+          new ArrayList<DocIdPusher.Record>(records));
+      this.highWaterMark = highWaterMark;
+      this.highWaterMarkMillis = highWaterMarkMillis;
+      this.hasMore = hasMore;
+    }
+
+    public List<DocIdPusher.Record> getRecords() {
+      return records;
+    }
+
+    public String getHighWaterMark() {
+      return highWaterMark;
+    }
+
+    public long getHighWaterMarkMillis() {
+      return highWaterMarkMillis;
+    }
+
+    public boolean hasMore() {
+      return hasMore;
+    }
+  }
+
+  /** A high-water mark and the time up to which it includes changes. */
+  private static class Mark {
+    final String token;
+    final long millis;
+
+    Mark(String token, long millis) {
+      this.token = token;
+      this.millis = millis;
+    }
+  }
+
+  private final File stateFile;
+  private final List<ChangeSource> sources;
+  private final long lagWarningMillis;
+  private final TimeProvider timeProvider;
+  /** Guarded by {@code this}. */
+  private final Map<String, Mark> marks = new HashMap<String, Mark>();
+
+  /**
+   * Same as {@code HighWaterMarkLister(stateFile, sources, 3600000)}.
+   */
+  public HighWaterMarkLister(File stateFile,
+      List<? extends ChangeSource> sources) throws IOException {
+    this(stateFile, sources, DEFAULT_LAG_WARNING_MILLIS);
+  }
+
+  /**
+   * @param stateFile file in which high-water marks are kept; it is read if
+   *     it exists and is replaced after each advance
+   * @param sources sources of changes, polled in order
+   * @param lagWarningMillis lag above which the status is a warning
+   * @throws IOException if {@code stateFile} exists but cannot be read
+   */
+  public HighWaterMarkLister(File stateFile,
+      List<? extends ChangeSource> sources, long lagWarningMillis)
+      throws IOException {
+    this(stateFile, sources, lagWarningMillis, new SystemTimeProvider());
+  }
+
+  HighWaterMarkLister(File stateFile, List<? extends ChangeSource> sources,
+      long lagWarningMillis, TimeProvider timeProvider) throws IOException {
+    if (stateFile == null || sources == null || timeProvider == null) {
+      throw new NullPointerException();
+    }
+    if (lagWarningMillis < 0) {
+      throw new IllegalArgumentException(
+          "lagWarningMillis must not be negative");
+    }
+    Set<String> names = new HashSet<String>();
+    for (ChangeSource source : sources) {
+      if (!names.add(source.getName())) {
+        throw new IllegalArgumentException(
+            "Duplicate source name: " + source.getName());
+      }
+    }
+    this.stateFile = stateFile;
+    this.sources = new ArrayList<ChangeSource>(sources);
+    this.lagWarningMillis = lagWarningMillis;
+    this.timeProvider = timeProvider;
+    load();
+  }
+
+  /**
+   * Pushes the changes of each source since its high-water mark, advancing
+   * the mark after the GSA accepts them.
+   *
+   * @throws IOException if a source fails, or if the GSA did not accept
+   *     changes; sources before it keep their advanced marks
+   */
+  @Override
+  public void getModifiedDocIds(DocIdPusher pusher)
+      throws IOException, InterruptedException {
+    for (ChangeSource source : sources) {
+      String name = source.getName();
+      Changes changes;
+      do {
+        Mark mark = getMark(name);
+        changes = source.getChangesSince(mark == null ? null : mark.token);
+        List<DocIdPusher.Record> records = changes.getRecords();
+        if (!records.isEmpty()) {
+          log.log(Level.FINE, "Pushing {0} changes from {1}",
+              new Object[] {records.size(), name});
+          DocIdPusher.Record failed = pusher.pushRecords(records);
+          if (failed != null) {
+            throw new IOException("Failed to push changes from " + name
+                + ", starting at " + failed.getDocId());
+          }
+        }
+        advance(name, new Mark(changes.getHighWaterMark(),
+            changes.getHighWaterMarkMillis()));
+      } while (changes.hasMore());
+    }
+  }
+
+  /**
+   * Returns the high-water mark of the named source, or {@code null} if it
+   * has never been advanced.
+   */
+  public synchronized String getHighWaterMark(String sourceName) {
+    Mark mark = marks.get(sourceName);
+    return mark == null ? null : mark.token;
+  }
+
+  /**
+   * Returns the time since the oldest high-water mark among the sources, or
+   * {@code -1} if a source has never been advanced.
+   */
+  public synchronized long getLagMillis() {
+    long oldest = Long.MAX_VALUE;
+    for (ChangeSource source : sources) {
+      Mark mark = marks.get(source.getName());
+      if (mark == null) {
+        return -1;
+      }
+      oldest = Math.min(oldest, mark.millis);
+    }
+    if (oldest == Long.MAX_VALUE) {
+      return -1;
+    }
+    return Math.max(0, timeProvider.currentTimeMillis() - oldest);
+  }
+
+  @Override
+  public Status retrieveStatus() {
+    long lag = getLagMillis();
+    if (lag < 0) {
+      return new TranslationStatus(Status.Code.UNAVAILABLE);
+    }
+    Status.Code code = lag > lagWarningMillis
+        ? Status.Code.WARNING : Status.Code.NORMAL;
+    return new TranslationStatus(code, Translation.STATUS_INCREMENTAL_LAG_SECS,
+        lag / 1000);
+  }
+
+  @Override
+  public String getName(Locale locale) {
+    return Translation.STATUS_INCREMENTAL_LAG.toString(locale);
+  }
+
+  private synchronized Mark getMark(String name) {
+    return marks.get(name);
+  }
+
+  private synchronized void advance(String name, Mark mark)
+      throws IOException {
+    Mark previous = marks.put(name, mark);
+    boolean saved = false;
+    try {
+      save();
+      saved = true;
+    } finally {
+      if (!saved) {
+        // Keep memory consistent with the file, so the changes are listed
+        // again.
+        if (previous == null) {
+          marks.remove(name);
+        } else {
+          marks.put(name, previous);
+        }
+      }
+    }
+  }
+
+  private synchronized void load() throws IOException {
+    Properties props = new Properties();
+    InputStream in;
+    try {
+      in = new BufferedInputStream(new FileInputStream(stateFile));
+    } catch (FileNotFoundException ex) {
+      // An interrupted save may have left only the backup.
+      try {
+        in = new BufferedInputStream(
+            new FileInputStream(IOHelper.backupFileFor(stateFile)));
+      } catch (FileNotFoundException ex2) {
+        log.log(Level.FINE, "No high-water marks yet: {0}", stateFile);
+        return;
+      }
+    }
+    try {
+      props.load(in);
+    } finally {
+      in.close();
+    }
+    for (ChangeSource source : sources) {
+      String name = source.getName();
+      String token = props.getProperty(name + MARK_SUFFIX);
+      String time = props.getProperty(name + TIME_SUFFIX);
+      if (token == null || time == null) {
+        continue;
+      }
+      try {
+        marks.put(name, new Mark(token, Long.parseLong(time)));
+      } catch (NumberFormatException ex) {
+        throw new IOException("Invalid time for " + name + " in " + stateFile);
+      }
+    }
+  }
+
+  /** Writes to a temporary file and then renames it over the state file. */
+  private synchronized void save() throws IOException {
+    Properties props = new Properties();
+    for (Map.Entry<String, Mark> me : marks.entrySet()) {
+      props.setProperty(me.getKey() + MARK_SUFFIX, me.getValue().token);
+      props.setProperty(me.getKey() + TIME_SUFFIX,
+          Long.toString(me.getValue().millis));
+    }
+    File dir = stateFile.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile("highwatermarks", TEMP_SUFFIX, dir);
+    boolean renamed = false;
+    try {
+      OutputStream out
+          = new BufferedOutputStream(new FileOutputStream(temp));
+      try {
+        props.store(out, "High-water marks of incremental listing");
+      } finally {
+        out.close();
+      }
+      IOHelper.renameOver(temp, stateFile);
+      renamed = true;
+    } finally {
+      if (!renamed) {
+        temp.delete();
+      }
+    }
+  }
+}
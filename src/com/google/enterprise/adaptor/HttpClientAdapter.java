@@ -39,7 +39,7 @@ class HttpClientAdapter implements HttpClientInterface {
   @Override
   public HttpExchange postExchange(URL url,
                                    ListMultimap<String, String> parameters) {
-    HttpExchange exchange = new ClientExchange(url, "POST");
+    HttpExchange exchange = createExchange(url, "POST");
     if (parameters != null) {
       exchange.setRequestHeader("Content-Type",
           "application/x-www-form-urlencoded; charset=" + POST_ENCODING);
@@ -52,7 +52,15 @@ class HttpClientAdapter implements HttpClientInterface {
     return exchange;
   }
 
-  private static class ClientExchange implements HttpExchange {
+  /** Creates the exchange returned by {@link #postExchange}. */
+  ClientExchange createExchange(URL url, String method) {
+    return new ClientExchange(url, method);
+  }
+
+  static class ClientExchange implements HttpExchange {
+    /** Most unread response bytes to read to keep the connection alive. */
+    static final int MAX_DRAIN_BYTES = 8 * 1024;
+
     private final URL url;
     private final String method;
     private final HttpURLConnection conn;
@@ -226,11 +234,47 @@ class HttpClientAdapter implements HttpClientInterface {
       }
     }
 
+    /**
+     * Reads and closes any unread response, so that {@link HttpURLConnection}
+     * can keep the connection alive and reuse it for a later request. If more
+     * than {@link #MAX_DRAIN_BYTES} remain unread, the connection is dropped
+     * instead of reading the rest of a large or endless response.
+     */
     @Override
     public void close() {
-      if (connected) {
+      if (!connected) {
+        return;
+      }
+      InputStream is;
+      try {
+        is = conn.getInputStream();
+      } catch (IOException ex) {
+        // Error responses are only available through the error stream.
+        is = conn.getErrorStream();
+      }
+      if (is == null) {
+        return;
+      }
+      boolean drained = false;
+      try {
+        byte[] buf = new byte[1024];
+        int remaining = MAX_DRAIN_BYTES;
+        int read;
+        while ((read = is.read(buf)) != -1) {
+          remaining -= read;
+          if (remaining < 0) {
+            break;
+          }
+        }
+        drained = read == -1;
+      } catch (IOException ex) {
+        // Ignore.
+      } finally {
+        if (!drained) {
+          conn.disconnect();
+        }
         try {
-          conn.getInputStream().close();
+          is.close();
         } catch (IOException ex) {
           // Ignore.
         }
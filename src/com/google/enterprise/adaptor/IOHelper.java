@@ -110,6 +110,45 @@ public class IOHelper {
     return IOHelper.writeToTempFile(new ByteArrayInputStream(bytes));
   }
 
+  /**
+   * Renames {@code temp} over {@code file}. Some platforms do not allow
+   * renaming over an existing file; there {@code file} is first renamed to
+   * {@link #backupFileFor its backup}, which is only deleted once {@code temp}
+   * is in place. A failure part way therefore leaves either {@code file} or
+   * its backup, and readers of {@code file} should fall back to the backup
+   * when {@code file} does not exist.
+   * @param temp the new contents of {@code file}
+   * @param file the file to replace
+   * @throws IOException if {@code temp} could not be renamed
+   */
+  public static void renameOver(File temp, File file) throws IOException {
+    if (temp.renameTo(file)) {
+      return;
+    }
+    File backup = backupFileFor(file);
+    if (file.exists()) {
+      backup.delete();
+      if (!file.renameTo(backup)) {
+        throw new IOException("Could not rename " + file + " to " + backup);
+      }
+    }
+    if (!temp.renameTo(file)) {
+      backup.renameTo(file);
+      throw new IOException("Could not rename " + temp + " to " + file);
+    }
+    backup.delete();
+  }
+
+  /**
+   * Returns the backup that {@link #renameOver} may leave behind in place of
+   * {@code file}.
+   * @param file the file being replaced
+   * @return the backup file, which usually does not exist
+   */
+  public static File backupFileFor(File file) {
+    return new File(file.getPath() + ".bak");
+  }
+
   /**
    * Reads a specified number of bytes from a stream.
    * Fewer bytes will only be returned if the end of stream has been reached.
@@ -34,6 +34,9 @@ class Journal {
   private Map<DocId, Integer> timesNonGsaRequested;
   private long totalNonGsaRequests;
 
+  /** Requests that shared another request's call to the adaptor. */
+  private long totalCoalescedRequests;
+
   private Map<GroupPrincipal, Integer> timesGroupPushed;
   private long totalGroupPushes; // Equal to sum of values in timesGroupPushed.
 
@@ -120,9 +123,9 @@ class Journal {
       timesGroupPushed = new NegSizeFakeMap<GroupPrincipal, Integer>();
       groupMembersPushed = new NegSizeFakeMap<GroupPrincipal, Integer>();
     } else {
-      timesPushed = new HashMap<DocId, Integer>();
-      timesGsaRequested = new HashMap<DocId, Integer>();
-      timesNonGsaRequested = new HashMap<DocId, Integer>();
+      timesPushed = new PrefixCompressedDocIdMap<Integer>();
+      timesGsaRequested = new PrefixCompressedDocIdMap<Integer>();
+      timesNonGsaRequested = new PrefixCompressedDocIdMap<Integer>();
       timesGroupPushed = new HashMap<GroupPrincipal, Integer>();
       groupMembersPushed = new HashMap<GroupPrincipal, Integer>();
     }
@@ -232,6 +235,7 @@ class Journal {
       for (Stats stats : timeStats) {
         Stat stat = stats.getCurrentStat(time);
         stat.gsaRetrievedDocument = true;
+        stat.gsaRequestsCount++;
       }
     }
   }
@@ -241,6 +245,14 @@ class Journal {
     totalNonGsaRequests++;
   }
 
+  /**
+   * Record that a document request was answered from a concurrent request's
+   * retrieval, instead of calling the adaptor itself.
+   */
+  synchronized void recordCoalescedRequest() {
+    totalCoalescedRequests++;
+  }
+
   /**
    * Record that the processing of a request has been started on this thread.
    * This relates to internal computation required to satisfy the request.
@@ -472,6 +484,30 @@ class Journal {
     return false;
   }
 
+  /**
+   * Number of document requests from the GSA during the last minute, which
+   * indicates how busy the GSA is crawling.
+   */
+  long getGsaRequestsInLastMinute() {
+    long currentTime = timeProvider.currentTimeMillis();
+    long count = 0;
+    synchronized (Journal.this) {
+      Stats stats = timeStats[0];
+      // Update bookkeeping.
+      stats.getCurrentStat(currentTime);
+
+      for (Stat stat : stats.stats) {
+        count += stat.gsaRequestsCount;
+      }
+    }
+    return count;
+  }
+
+  /** Total number of items pushed, including ACLs. */
+  synchronized long getTotalDocIdsPushed() {
+    return totalPushes;
+  }
+
   /**
    * Access to the timeStats for use in {@link DashboardHandler} only.
    */
@@ -497,6 +533,7 @@ class Journal {
     final long numTotalGsaRequests;
     final long numUniqueNonGsaRequests;
     final long numTotalNonGsaRequests;
+    final long numTotalCoalescedRequests;
     final long whenStarted;
     final long currentTime;
     final long timeResolution;
@@ -522,6 +559,7 @@ class Journal {
       this.numTotalGsaRequests = journal.totalGsaRequests;
       this.numUniqueNonGsaRequests = journal.timesNonGsaRequested.size();
       this.numTotalNonGsaRequests = journal.totalNonGsaRequests;
+      this.numTotalCoalescedRequests = journal.totalCoalescedRequests;
       this.timeResolution = journal.timeResolution;
       this.lastSuccessfulFullPushStart = journal.lastSuccessfulFullPushStart;
       this.lastSuccessfulFullPushEnd = journal.lastSuccessfulFullPushEnd;
@@ -653,6 +691,10 @@ class Journal {
      * True if the GSA requested a document.
      */
     boolean gsaRetrievedDocument;
+    /**
+     * The number of documents requested by the GSA.
+     */
+    long gsaRequestsCount;
     /**
      * Number of groups pushed by the adaptor.
      */
@@ -676,6 +718,7 @@ class Journal {
       requestProcessingsMaxDuration = 0;
       requestProcessingsThroughput = 0;
       gsaRetrievedDocument = false;
+      gsaRequestsCount = 0;
       groupsPushed = 0;
       membersPushed = 0;
     }
@@ -0,0 +1,96 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in milliseconds, using exponentially sized buckets.
+ * Percentiles are reported as the upper bound of the bucket they fall in, but
+ * never more than the largest latency recorded.
+ *
+ * <p>This class is thread-safe and does not lock.
+ */
+class LatencyHistogram {
+  /** Inclusive upper bounds of each bucket, except the last unbounded one. */
+  private static final long[] BUCKET_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200,
+      500, 1000, 2000, 5000, 10000, 20000, 50000};
+
+  private final AtomicLongArray counts
+      = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Records one latency. Negative latencies are treated as zero. */
+  public void record(long millis) {
+    if (millis < 0) {
+      millis = 0;
+    }
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[bucket]) {
+      bucket++;
+    }
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    long currentMax;
+    while ((currentMax = max.get()) < millis) {
+      if (max.compareAndSet(currentMax, millis)) {
+        break;
+      }
+    }
+  }
+
+  /** Number of latencies recorded. */
+  public long getCount() {
+    return count.get();
+  }
+
+  /** Largest latency recorded, or {@code 0} if there are none. */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns an upper bound of the latency below which {@code percentile}
+   * percent of the recorded latencies fall, or {@code 0} if there are none.
+   *
+   * @param percentile between 0 and 100
+   */
+  public long getPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be in [0, 100]");
+    }
+    long[] snapshot = new long[counts.length()];
+    long total = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long currentMax = max.get();
+    long seen = 0;
+    for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(BUCKET_BOUNDS[i], currentMax);
+      }
+    }
+    return currentMax;
+  }
+}
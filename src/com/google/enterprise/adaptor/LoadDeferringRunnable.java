@@ -0,0 +1,119 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the delegate once the GSA is no longer busy crawling, as measured by
+ * the number of its document requests in the last minute. While the GSA is
+ * busy, the check is repeated every minute, until the delegate has been
+ * deferred for the maximum amount of time and is run anyway. Invocations while
+ * a check is already pending are ignored, because that check will run the
+ * delegate. This is used to keep full pushes from adding to the GSA's backlog.
+ *
+ * <p>This class is thread-safe.
+ */
+class LoadDeferringRunnable implements Runnable {
+  private static final Logger log
+      = Logger.getLogger(LoadDeferringRunnable.class.getName());
+
+  static final long RECHECK_MILLIS = 60 * 1000;
+
+  private final Runnable delegate;
+  private final Journal journal;
+  private final ScheduledExecutorService executor;
+  private final long maxGsaRequestsPerMin;
+  private final long maxDeferralMillis;
+  private final TimeProvider timeProvider;
+  private final Runnable recheck = new Runnable() {
+    @Override
+    public void run() {
+      check(true);
+    }
+  };
+  /** Time deferring started, or {@code -1} if not deferring. */
+  private long deferringSince = -1;
+
+  /**
+   * @param executor executor used to repeat the check; the delegate is run on
+   *     the thread performing the check, so it should return quickly
+   * @param maxGsaRequestsPerMin number of GSA requests in the last minute
+   *     above which the GSA is considered busy
+   */
+  public LoadDeferringRunnable(Runnable delegate, Journal journal,
+      ScheduledExecutorService executor, long maxGsaRequestsPerMin,
+      long maxDeferralMillis, TimeProvider timeProvider) {
+    if (delegate == null || journal == null || executor == null
+        || timeProvider == null) {
+      throw new NullPointerException();
+    }
+    if (maxGsaRequestsPerMin <= 0) {
+      throw new IllegalArgumentException(
+          "maxGsaRequestsPerMin must be positive");
+    }
+    if (maxDeferralMillis < 0) {
+      throw new IllegalArgumentException(
+          "maxDeferralMillis must not be negative");
+    }
+    this.delegate = delegate;
+    this.journal = journal;
+    this.executor = executor;
+    this.maxGsaRequestsPerMin = maxGsaRequestsPerMin;
+    this.maxDeferralMillis = maxDeferralMillis;
+    this.timeProvider = timeProvider;
+  }
+
+  @Override
+  public void run() {
+    check(false);
+  }
+
+  private void check(boolean isRecheck) {
+    synchronized (this) {
+      boolean deferring = deferringSince >= 0;
+      if (deferring != isRecheck) {
+        // A check is already pending, or this recheck is no longer needed.
+        return;
+      }
+      long now = timeProvider.currentTimeMillis();
+      long gsaRequests = journal.getGsaRequestsInLastMinute();
+      if (gsaRequests > maxGsaRequestsPerMin) {
+        if (!deferring) {
+          deferringSince = now;
+        }
+        if (now - deferringSince < maxDeferralMillis) {
+          log.log(Level.INFO, "Deferring full push, because the GSA requested "
+              + "{0} documents in the last minute", gsaRequests);
+          try {
+            executor.schedule(recheck, RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+          } catch (RejectedExecutionException ex) {
+            // Shutting down.
+            deferringSince = -1;
+            return;
+          }
+        }
+        log.info("Starting full push, because it was deferred for too long");
+      }
+      deferringSince = -1;
+    }
+    delegate.run();
+  }
+}
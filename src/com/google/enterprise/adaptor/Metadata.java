@@ -17,13 +17,15 @@ package com.google.enterprise.adaptor;
 import static java.util.AbstractMap.SimpleImmutableEntry;
 import static java.util.Map.Entry;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 /**
  * Allows storing multiple metadata values to a single key.
@@ -34,26 +36,113 @@ import java.util.TreeSet;
  * This class is mutable and not thread-safe.
  */
 public class Metadata implements Iterable<Entry<String, String>> {
-  private Map<String, Set<String>> mappings 
-      = new TreeMap<String, Set<String>>();
+  /**
+   * Keys repeat across most documents of a repository, so share a single
+   * instance of each.
+   */
+  private static final Interner<String> keyInterner
+      = Interners.newWeakInterner();
+  private static final String[] EMPTY_KEYS = new String[0];
+  private static final Object[] EMPTY_VALUES = new Object[0];
+
+  /**
+   * Never replaced, since unmodifiable views share it; only its contents
+   * change.
+   */
+  private final Store store;
+  /**
+   * {@code true} when the arrays of {@link #store} may be shared with another
+   * instance and must be copied before being modified.
+   */
+  private boolean copyOnWrite;
+
+  /**
+   * Flat, sorted storage. Keys are kept sorted in {@code keys}, and the value
+   * at the same index of {@code values} is either a single {@code String} or,
+   * for keys with multiple values, a sorted {@code String[]} of at least two
+   * elements. Value arrays are never modified after being stored, so copies
+   * of a {@code Store} may share them.
+   */
+  private static final class Store {
+    String[] keys = EMPTY_KEYS;
+    Object[] values = EMPTY_VALUES;
+    int size;
+
+    Store copy() {
+      Store copy = new Store();
+      copy.keys = Arrays.copyOf(keys, size);
+      copy.values = Arrays.copyOf(values, size);
+      copy.size = size;
+      return copy;
+    }
+
+    int indexOf(Object key) {
+      if (!(key instanceof String)) {
+        return -1;
+      }
+      return Arrays.binarySearch(keys, 0, size, (String) key);
+    }
+
+    void insert(int index, String key, Object value) {
+      if (size == keys.length) {
+        int capacity = Math.max(4, size + (size >> 1) + 1);
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+      }
+      System.arraycopy(keys, index, keys, index + 1, size - index);
+      System.arraycopy(values, index, values, index + 1, size - index);
+      keys[index] = keyInterner.intern(key);
+      values[index] = value;
+      size++;
+    }
+
+    void remove(int index) {
+      int moved = size - index - 1;
+      System.arraycopy(keys, index + 1, keys, index, moved);
+      System.arraycopy(values, index + 1, values, index, moved);
+      size--;
+      keys[size] = null;
+      values[size] = null;
+    }
+
+    void put(String key, Object value) {
+      int index = indexOf(key);
+      if (index >= 0) {
+        values[index] = value;
+      } else {
+        insert(-index - 1, key, value);
+      }
+    }
+  }
 
   /** Create empty instance. */
   public Metadata() {
+    this.store = new Store();
+  }
+
+  /** Creates an instance backed by {@code store}, for views. */
+  private Metadata(Store store) {
+    this.store = store;
   }
 
   /**
-   * Duplicate. 
-   * @param m all key value pairs that this instance should represent 
+   * Duplicate.
+   * @param m all key value pairs that this instance should represent
    */
   public Metadata(Iterable<Entry<String, String>> m) {
+    this();
+    if (m instanceof Metadata) {
+      replaceStoreContents(((Metadata) m).store.copy());
+      return;
+    }
     for (Entry<String, String> e : m) {
       add(e.getKey(), e.getValue());
-    }    
+    }
   }
 
   /**
    * Make value be only value associated with key.
-   * @param k key 
+   * @param k key
    * @param v value
    */
   public void set(String k, String v) {
@@ -63,9 +152,8 @@ public class Metadata implements Iterable<Entry<String, String>> {
     if (null == v) {
       throw new NullPointerException();
     }
-    TreeSet<String> single = new TreeSet<String>();
-    single.add(v);
-    mappings.put(k, single);
+    prepareForWrite();
+    store.put(k, v);
   }
 
   /** Throws NullPointerException if a null is found. */
@@ -79,8 +167,8 @@ public class Metadata implements Iterable<Entry<String, String>> {
     }
   }
 
-  /** 
-   * Make copy of v be the values associated with key. 
+  /**
+   * Make copy of v be the values associated with key.
    * @param k key
    * @param v set of values of which none are null
    */
@@ -93,15 +181,27 @@ public class Metadata implements Iterable<Entry<String, String>> {
     }
     assureNoNulls(v);
     if (v.isEmpty()) {
-      mappings.remove(k);
+      int index = store.indexOf(k);
+      if (index >= 0) {
+        prepareForWrite();
+        store.remove(index);
+      }
+      return;
+    }
+    Object value;
+    if (v.size() == 1) {
+      value = v.iterator().next();
     } else {
-      v = new TreeSet<String>(v);
-      mappings.put(k, v);
+      String[] values = v.toArray(new String[v.size()]);
+      Arrays.sort(values);
+      value = values;
     }
+    prepareForWrite();
+    store.put(k, value);
   }
 
   /**
-   * Increases values mapped to k with v. 
+   * Increases values mapped to k with v.
    * @param k key
    * @param v value that is also to be mapped from k
    */
@@ -112,61 +212,248 @@ public class Metadata implements Iterable<Entry<String, String>> {
     if (null == v) {
       throw new NullPointerException();
     }
-    Set<String> found = mappings.get(k);
-    if (null == found) {
-      set(k, v);
+    int index = store.indexOf(k);
+    if (index < 0) {
+      prepareForWrite();
+      store.insert(-index - 1, k, v);
+      return;
+    }
+    Object found = store.values[index];
+    String[] values;
+    if (found instanceof String) {
+      int cmp = v.compareTo((String) found);
+      if (cmp == 0) {
+        return;
+      }
+      values = cmp < 0 ? new String[] {v, (String) found}
+          : new String[] {(String) found, v};
     } else {
-      found.add(v);
+      String[] existing = (String[]) found;
+      int pos = Arrays.binarySearch(existing, v);
+      if (pos >= 0) {
+        return;
+      }
+      pos = -pos - 1;
+      values = new String[existing.length + 1];
+      System.arraycopy(existing, 0, values, 0, pos);
+      values[pos] = v;
+      System.arraycopy(existing, pos, values, pos + 1, existing.length - pos);
     }
+    prepareForWrite();
+    store.values[index] = values;
   }
 
   /**
-   * Replaces entries inside of this metadata with provided ones. 
-   * @param it all key value pairs that this instance should represent 
+   * Replaces entries inside of this metadata with provided ones.
+   * @param it all key value pairs that this instance should represent
    */
   public void set(Iterable<Entry<String, String>> it) {
-    mappings.clear();
+    Store replacement = (it instanceof Metadata)
+        ? ((Metadata) it).store.copy() : new Store();
+    // The replacement is not shared, so there is nothing left to copy.
+    replaceStoreContents(replacement);
+    copyOnWrite = false;
+    if (it instanceof Metadata) {
+      return;
+    }
     for (Entry<String, String> e : it) {
       add(e.getKey(), e.getValue());
-    }    
+    }
   }
 
   /**
-   * Gives unmodifiable reference to inserted values for key, empty if none. 
+   * Gives an unmodifiable snapshot of the values for key, empty if none.
+   * Later changes to this instance are not reflected in the returned set.
    * @param key to be looked up
    * @return all values under provided key
    */
   public Set<String> getAllValues(String key) {
-    Set<String> found = mappings.get(key);
-    if (null == found) {
-      found = Collections.emptySet(); 
+    int index = store.indexOf(key);
+    if (index < 0) {
+      return Collections.emptySet();
+    }
+    Object found = store.values[index];
+    if (found instanceof String) {
+      return Collections.singleton((String) found);
     }
-    return Collections.unmodifiableSet(found);
+    return new ValueSet((String[]) found);
   }
 
-  /** 
-   * One of the inserted values, or null if none. 
+  /**
+   * One of the inserted values, or null if none.
    * @param key to be looked up
    * @return String one of the values under provided key
    */
   public String getOneValue(String key) {
-    Set<String> found = mappings.get(key);
-    String first = null;
-    if (null != found) {
-      if (found.isEmpty()) {
-        throw new AssertionError();
-      }
-      first = found.iterator().next(); 
+    int index = store.indexOf(key);
+    if (index < 0) {
+      return null;
     }
-    return first;
+    Object found = store.values[index];
+    if (found instanceof String) {
+      return (String) found;
+    }
+    return ((String[]) found)[0];
   }
 
   /**
-   * Get modifiable set of all keys with at least one value. 
+   * Get modifiable set of all keys with at least one value.
    * @return all keys in this instance
    */
   public Set<String> getKeys() {
-    return mappings.keySet();
+    return new KeysView();
+  }
+
+  /** Unmodifiable view of a sorted, never-modified array of values. */
+  private static class ValueSet extends AbstractSet<String> {
+    private final String[] values;
+
+    ValueSet(String[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return Collections.unmodifiableList(Arrays.asList(values)).iterator();
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof String && Arrays.binarySearch(values, o) >= 0;
+    }
+  }
+
+  /**
+   * Key set view that copies shared storage before any removal, so that
+   * read-only use of the keys never forces a copy.
+   */
+  private class KeysView extends AbstractSet<String> {
+    @Override
+    public Iterator<String> iterator() {
+      return new Iterator<String>() {
+        private int cursor;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+          return cursor < store.size;
+        }
+
+        @Override
+        public String next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          last = cursor++;
+          return store.keys[last];
+        }
+
+        @Override
+        public void remove() {
+          if (last < 0) {
+            throw new IllegalStateException();
+          }
+          prepareForWrite();
+          store.remove(last);
+          cursor = last;
+          last = -1;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return store.size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return store.indexOf(o) >= 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      int index = store.indexOf(o);
+      if (index < 0) {
+        return false;
+      }
+      prepareForWrite();
+      store.remove(index);
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      if (store.size == 0) {
+        return;
+      }
+      prepareForWrite();
+      replaceStoreContents(new Store());
+    }
+  }
+
+  /**
+   * Returns a copy of this instance that shares its storage with this instance
+   * until either one is modified. Cheaper than {@link #Metadata(Iterable)}
+   * when the copy is likely to remain unmodified.
+   */
+  Metadata copyOnWriteCopy() {
+    Metadata copy = new Metadata();
+    copy.replaceStoreContents(store);
+    copy.copyOnWrite = true;
+    copyOnWrite = true;
+    return copy;
+  }
+
+  /**
+   * Returns {@code true} if this instance and {@code other} still share
+   * storage, meaning neither has been modified since {@link
+   * #copyOnWriteCopy}.
+   */
+  boolean sharesStorageWith(Metadata other) {
+    return store.keys == other.store.keys
+        && store.values == other.store.values;
+  }
+
+  /**
+   * Replaces the contents of this instance with those of {@code other}, which
+   * must have been created by {@link #copyOnWriteCopy} of this instance.
+   * Entries are moved rather than copied, so {@code other} must not be used
+   * afterward.
+   */
+  void replaceWith(Metadata other) {
+    // Either other was not modified and this instance is now the only user of
+    // the shared storage, or other has storage of its own that is moved here.
+    replaceStoreContents(other.store);
+    copyOnWrite = false;
+  }
+
+  /**
+   * Modifies the current store in place, so unmodifiable views of this
+   * instance stay current.
+   */
+  private void replaceStoreContents(Store replacement) {
+    store.keys = replacement.keys;
+    store.values = replacement.values;
+    store.size = replacement.size;
+  }
+
+  /**
+   * Copies the contents of {@link #store} if they may be shared with others.
+   * The store itself is kept, so unmodifiable views of this instance stay
+   * current.
+   */
+  private void prepareForWrite() {
+    if (!copyOnWrite) {
+      return;
+    }
+    replaceStoreContents(store.copy());
+    copyOnWrite = false;
   }
 
   /**
@@ -184,24 +471,13 @@ public class Metadata implements Iterable<Entry<String, String>> {
 
   /** Loops through keys and for each key all values. */
   private class EntriesIterator implements Iterator<Entry<String, String>> {
-    private Iterator<Entry<String, Set<String>>> byKey
-        = mappings.entrySet().iterator();
-    private String currentKey;
-    private Iterator<String> currentValues
-        = Collections.<String>emptyList().iterator();
+    private final Store iterated = store;
+    private int keyIndex;
+    private int valueIndex;
 
     @Override
     public boolean hasNext() {
-      if (currentValues.hasNext()) {
-        return true;
-      }
-      if (!byKey.hasNext()) {
-        return false;
-      }
-      Entry<String, Set<String>> currentEntry = byKey.next();
-      currentKey = currentEntry.getKey();
-      currentValues = currentEntry.getValue().iterator();
-      return hasNext();
+      return keyIndex < iterated.size;
     }
 
     @Override
@@ -209,7 +485,20 @@ public class Metadata implements Iterable<Entry<String, String>> {
       if (!hasNext()) {
         throw new NoSuchElementException();
       }
-      String k = currentKey, v = currentValues.next();
+      String k = iterated.keys[keyIndex];
+      Object found = iterated.values[keyIndex];
+      String v;
+      if (found instanceof String) {
+        v = (String) found;
+        keyIndex++;
+      } else {
+        String[] values = (String[]) found;
+        v = values[valueIndex++];
+        if (valueIndex == values.length) {
+          valueIndex = 0;
+          keyIndex++;
+        }
+      }
       return new SimpleImmutableEntry<String, String>(k, v);
     }
 
@@ -229,20 +518,59 @@ public class Metadata implements Iterable<Entry<String, String>> {
     if (this == o) {
       return true;
     }
-    Metadata other = (Metadata) o;
-    return mappings.equals(other.mappings);
+    Store mine = store;
+    Store theirs = ((Metadata) o).store;
+    if (mine == theirs) {
+      return true;
+    }
+    if (mine.size != theirs.size) {
+      return false;
+    }
+    for (int i = 0; i < mine.size; i++) {
+      if (!mine.keys[i].equals(theirs.keys[i])) {
+        return false;
+      }
+      Object v1 = mine.values[i];
+      Object v2 = theirs.values[i];
+      if (v1 instanceof String) {
+        if (!v1.equals(v2)) {
+          return false;
+        }
+      } else if (!(v2 instanceof String[])
+          || !Arrays.equals((String[]) v1, (String[]) v2)) {
+        return false;
+      }
+    }
+    return true;
   }
 
+  /**
+   * Same as the hash code of a {@code Map<String, Set<String>>} holding the
+   * same key-values.
+   */
   @Override
   public int hashCode() {
-    return mappings.hashCode();
+    int hash = 0;
+    for (int i = 0; i < store.size; i++) {
+      Object found = store.values[i];
+      int valuesHash = 0;
+      if (found instanceof String) {
+        valuesHash = found.hashCode();
+      } else {
+        for (String v : (String[]) found) {
+          valuesHash += v.hashCode();
+        }
+      }
+      hash += store.keys[i].hashCode() ^ valuesHash;
+    }
+    return hash;
   }
 
   /**
    * @return boolean {@code true} when instance has 0 entries
    */
   public boolean isEmpty() {
-    return mappings.isEmpty();
+    return store.size == 0;
   }
 
   /** Contains every key and value pair; useful for debugging. */
@@ -262,6 +590,10 @@ public class Metadata implements Iterable<Entry<String, String>> {
 
   /** Does not allow any mutating operations. */
   private static class ReadableMetadata extends Metadata {
+    ReadableMetadata(Store store) {
+      super(store);
+    }
+
     @Override
     public void set(String k, String v) {
       throw new UnsupportedOperationException();
@@ -281,7 +613,7 @@ public class Metadata implements Iterable<Entry<String, String>> {
     public void set(Iterable<Entry<String, String>> it) {
       throw new UnsupportedOperationException();
     }
-    
+
     @Override
     public Set<String> getKeys() {
       return Collections.unmodifiableSet(super.getKeys());
@@ -289,14 +621,10 @@ public class Metadata implements Iterable<Entry<String, String>> {
   };
 
   /**
-   * Get a reference to an unmodifiable view of this object. 
+   * Get a reference to an unmodifiable view of this object.
    * @return Metadata copy that cannot be changed
    */
   public Metadata unmodifiableView() {
-    Metadata unmodifiable = new ReadableMetadata();
-    // Extra precaution against mappings use, but not against moding
-    // sets that are values inside it.
-    unmodifiable.mappings = Collections.unmodifiableMap(this.mappings); 
-    return unmodifiable;
+    return new ReadableMetadata(store);
   }
 }
@@ -60,7 +60,9 @@ class MetadataTransformPipeline {
       return;
     }
 
-    Metadata metadataInTransit = new Metadata(metadata);
+    // Transforms commonly only inspect metadata, so avoid copying it unless
+    // one of them makes a change.
+    Metadata metadataInTransit = metadata.copyOnWriteCopy();
     Map<String, String> paramsInTransit = Collections.checkedMap(
         new HashMap<String, String>(params), String.class, String.class);
 
@@ -74,7 +76,7 @@ class MetadataTransformPipeline {
       }
     }
 
-    metadata.set(metadataInTransit);
+    metadata.replaceWith(metadataInTransit);
     params.clear();
     params.putAll(paramsInTransit);
   }
@@ -0,0 +1,202 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.adaptor;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Writes the JSON form of an ACL used by the {@code X-Gsa-Doc-Controls}
+ * header directly into a {@link StringBuilder}, optionally percent-encoding it
+ * at the same time. No maps or intermediate strings are created per
+ * principal. Keys are written in sorted order and strings are escaped like
+ * json_simple does, so the output is identical to serializing the equivalent
+ * {@code TreeMap}s with {@code JSONObject.toJSONString}.
+ */
+final class NamespacedAclHeaderWriter {
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private final StringBuilder sb;
+  private final boolean percentEncode;
+  private final DocIdEncoder docIdEncoder;
+
+  /**
+   * @param sb destination of the header
+   * @param percentEncode whether to percent-encode everything written
+   * @param docIdEncoder used to form the URI of the parent of the ACL
+   */
+  public NamespacedAclHeaderWriter(StringBuilder sb, boolean percentEncode,
+      DocIdEncoder docIdEncoder) {
+    if (sb == null || docIdEncoder == null) {
+      throw new NullPointerException();
+    }
+    this.sb = sb;
+    this.percentEncode = percentEncode;
+    this.docIdEncoder = docIdEncoder;
+  }
+
+  /**
+   * Appends the JSON form of {@code acl}. {@link Acl#EMPTY} should already
+   * have been replaced by {@link Acl#FAKE_EMPTY} by the caller.
+   */
+  public void write(Acl acl) {
+    boolean first = true;
+    writeRaw("{");
+    if (!acl.getPermitGroups().isEmpty() || !acl.getDenyGroups().isEmpty()
+        || !acl.getPermitUsers().isEmpty() || !acl.getDenyUsers().isEmpty()) {
+      writeKey("entries", first);
+      first = false;
+      writeRaw("[");
+      boolean firstEntry = true;
+      for (Principal p : acl.getPermitGroups()) {
+        writeEntry("permit", acl, p, firstEntry);
+        firstEntry = false;
+      }
+      for (Principal p : acl.getDenyGroups()) {
+        writeEntry("deny", acl, p, firstEntry);
+        firstEntry = false;
+      }
+      for (Principal p : acl.getPermitUsers()) {
+        writeEntry("permit", acl, p, firstEntry);
+        firstEntry = false;
+      }
+      for (Principal p : acl.getDenyUsers()) {
+        writeEntry("deny", acl, p, firstEntry);
+        firstEntry = false;
+      }
+      writeRaw("]");
+    }
+    if (acl.getInheritFrom() != null) {
+      URI from = docIdEncoder.encodeDocId(acl.getInheritFrom());
+      try {
+        // Although it is named "fragment", we use a query parameter because the
+        // GSA "normalizes" away fragments.
+        from = new URI(from.getScheme(), from.getAuthority(), from.getPath(),
+            acl.getInheritFromFragment(), null);
+      } catch (URISyntaxException ex) {
+        throw new AssertionError(ex);
+      }
+      writeKey("inherit_from", first);
+      first = false;
+      writeString(from.toString());
+    }
+    if (acl.getInheritanceType() != Acl.InheritanceType.LEAF_NODE) {
+      writeKey("inheritance_type", first);
+      first = false;
+      writeString(acl.getInheritanceType().toString());
+    }
+    writeRaw("}");
+  }
+
+  private void writeEntry(String access, Acl acl, Principal p, boolean first) {
+    if (!first) {
+      writeRaw(",");
+    }
+    writeRaw("{");
+    writeKey("access", true);
+    writeString(access);
+    if (!acl.isEverythingCaseSensitive()) {
+      writeKey("case_sensitivity_type", false);
+      writeString("everything_case_insensitive");
+    }
+    writeKey("name", false);
+    writeString(p.getName());
+    if (!Principal.DEFAULT_NAMESPACE.equals(p.getNamespace())) {
+      writeKey("namespace", false);
+      writeString(p.getNamespace());
+    }
+    writeKey("scope", false);
+    writeString(p.isUser() ? "user" : "group");
+    writeRaw("}");
+  }
+
+  /** Writes {@code "key":}, preceded by a comma unless it is the first. */
+  private void writeKey(String key, boolean first) {
+    if (!first) {
+      writeRaw(",");
+    }
+    writeString(key);
+    writeRaw(":");
+  }
+
+  /** Writes a quoted, escaped JSON string. */
+  private void writeString(String value) {
+    writeRaw("\"");
+    int start = 0;
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      String escape = shortEscape(c);
+      if (escape == null && !needsUnicodeEscape(c)) {
+        continue;
+      }
+      writeUnescaped(value, start, i);
+      start = i + 1;
+      if (escape == null) {
+        writeUnicodeEscape(c);
+      } else {
+        writeRaw(escape);
+      }
+    }
+    writeUnescaped(value, start, length);
+    writeRaw("\"");
+  }
+
+  private static String shortEscape(char c) {
+    switch (c) {
+      case '"': return "\\\"";
+      case '\\': return "\\\\";
+      case '\b': return "\\b";
+      case '\f': return "\\f";
+      case '\n': return "\\n";
+      case '\r': return "\\r";
+      case '\t': return "\\t";
+      case '/': return "\\/";
+      default: return null;
+    }
+  }
+
+  /** Characters json_simple writes as Unicode escapes. */
+  private static boolean needsUnicodeEscape(char c) {
+    return c <= 0x1F || (c >= 0x7F && c <= 0x9F)
+        || (c >= 0x2000 && c <= 0x20FF);
+  }
+
+  private void writeUnicodeEscape(char c) {
+    // Only backslash needs escaping; 'u' and the hex digits are unreserved.
+    writeRaw("\\");
+    sb.append('u')
+        .append(HEX_DIGITS[(c >> 12) & 0xF])
+        .append(HEX_DIGITS[(c >> 8) & 0xF])
+        .append(HEX_DIGITS[(c >> 4) & 0xF])
+        .append(HEX_DIGITS[c & 0xF]);
+  }
+
+  private void writeUnescaped(String value, int start, int end) {
+    if (start == end) {
+      return;
+    }
+    if (percentEncode) {
+      DocumentHandler.percentEncode(sb, value, start, end);
+    } else {
+      sb.append(value, start, end);
+    }
+  }
+
+  private void writeRaw(String value) {
+    writeUnescaped(value, 0, value.length());
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP client for back-channel requests to the GSA, like SAML artifact
+ * resolution. Connections are kept alive and reused by {@link
+ * java.net.HttpURLConnection} once each exchange is closed, so a login storm
+ * does not open a new TLS connection per user. The number of concurrent
+ * exchanges is limited, each exchange has a default timeout, and the latency
+ * of each exchange is recorded.
+ *
+ * <p>The number of idle connections the JVM keeps per host is controlled by
+ * the {@code http.maxConnections} system property.
+ */
+class PooledHttpClient extends HttpClientAdapter {
+  private final int maxConnections;
+  private final int timeoutMillis;
+  private final Semaphore permits;
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * @param maxConnections maximum number of exchanges in progress at once
+   * @param timeoutMillis default connect and read timeout of each exchange,
+   *     which is also how long to wait for an exchange to finish when {@code
+   *     maxConnections} are already in progress
+   */
+  public PooledHttpClient(int maxConnections, int timeoutMillis) {
+    if (maxConnections <= 0) {
+      throw new IllegalArgumentException("maxConnections must be positive");
+    }
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("timeoutMillis must not be negative");
+    }
+    this.maxConnections = maxConnections;
+    this.timeoutMillis = timeoutMillis;
+    this.permits = new Semaphore(maxConnections, true);
+  }
+
+  @Override
+  ClientExchange createExchange(URL url, String method) {
+    ClientExchange exchange = new PooledExchange(url, method);
+    exchange.setTimeout(timeoutMillis);
+    return exchange;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /** Number of exchanges started but not yet closed. */
+  public int getActiveConnections() {
+    return maxConnections - permits.availablePermits();
+  }
+
+  /** Latencies of exchanges, from sending the request to the status line. */
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+
+  /** Number of exchanges that could not start or failed with an error. */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  private class PooledExchange extends ClientExchange {
+    private boolean holdsPermit;
+
+    public PooledExchange(URL url, String method) {
+      super(url, method);
+    }
+
+    @Override
+    public int exchange() throws IOException {
+      if (holdsPermit) {
+        throw new IllegalStateException("Exchange already performed");
+      }
+      try {
+        if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+          failures.incrementAndGet();
+          throw new IOException("Timed out waiting for one of "
+              + maxConnections + " back-channel connections to "
+              + getUrl().getHost());
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      holdsPermit = true;
+      long start = System.nanoTime();
+      boolean succeeded = false;
+      try {
+        int status = super.exchange();
+        succeeded = true;
+        return status;
+      } finally {
+        latency.record(
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (!succeeded) {
+          failures.incrementAndGet();
+          releasePermit();
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        super.close();
+      } finally {
+        releasePermit();
+      }
+    }
+
+    private void releasePermit() {
+      if (holdsPermit) {
+        holdsPermit = false;
+        permits.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Map keyed by {@link DocId} that stores each id split at its last {@code /},
+ * keeping a single copy of each prefix. Ids in large listings are commonly
+ * paths that share a small number of parent directories, so this retains far
+ * less memory than a {@code HashMap<DocId, V>} holding every id in full.
+ *
+ * <p>{@link #entrySet} creates a snapshot and is intended for debugging.
+ * This class is not thread-safe.
+ */
+class PrefixCompressedDocIdMap<V> extends AbstractMap<DocId, V> {
+  private final Map<String, Map<String, V>> byPrefix
+      = new HashMap<String, Map<String, V>>();
+  private int size;
+
+  private static int splitPoint(String id) {
+    return id.lastIndexOf('/') + 1;
+  }
+
+  private Map<String, V> suffixes(DocId docId) {
+    String id = docId.getUniqueId();
+    return byPrefix.get(id.substring(0, splitPoint(id)));
+  }
+
+  private static String suffix(DocId docId) {
+    String id = docId.getUniqueId();
+    return id.substring(splitPoint(id));
+  }
+
+  @Override
+  public V get(Object key) {
+    if (!(key instanceof DocId)) {
+      return null;
+    }
+    Map<String, V> suffixes = suffixes((DocId) key);
+    return suffixes == null ? null : suffixes.get(suffix((DocId) key));
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    if (!(key instanceof DocId)) {
+      return false;
+    }
+    Map<String, V> suffixes = suffixes((DocId) key);
+    return suffixes != null && suffixes.containsKey(suffix((DocId) key));
+  }
+
+  @Override
+  public V put(DocId key, V value) {
+    String id = key.getUniqueId();
+    int split = splitPoint(id);
+    String prefix = id.substring(0, split);
+    Map<String, V> suffixes = byPrefix.get(prefix);
+    if (suffixes == null) {
+      suffixes = new HashMap<String, V>();
+      // On Java 6, substring shares the char[] of the whole id, so the parts
+      // that are kept are copied.
+      byPrefix.put(new String(prefix), suffixes);
+    }
+    String suffix = id.substring(split);
+    boolean existed = suffixes.containsKey(suffix);
+    if (!existed) {
+      suffix = new String(suffix);
+    }
+    V old = suffixes.put(suffix, value);
+    if (!existed) {
+      size++;
+    }
+    return old;
+  }
+
+  @Override
+  public V remove(Object key) {
+    if (!containsKey(key)) {
+      return null;
+    }
+    DocId docId = (DocId) key;
+    String id = docId.getUniqueId();
+    String prefix = id.substring(0, splitPoint(id));
+    Map<String, V> suffixes = byPrefix.get(prefix);
+    V old = suffixes.remove(suffix(docId));
+    if (suffixes.isEmpty()) {
+      byPrefix.remove(prefix);
+    }
+    size--;
+    return old;
+  }
+
+  @Override
+  public void clear() {
+    byPrefix.clear();
+    size = 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Set<Map.Entry<DocId, V>> entrySet() {
+    Set<Map.Entry<DocId, V>> entries = new HashSet<Map.Entry<DocId, V>>();
+    for (Map.Entry<String, Map<String, V>> prefix : byPrefix.entrySet()) {
+      for (Map.Entry<String, V> suffix : prefix.getValue().entrySet()) {
+        entries.add(new SimpleImmutableEntry<DocId, V>(
+            new DocId(prefix.getKey() + suffix.getKey()), suffix.getValue()));
+      }
+    }
+    return entries;
+  }
+}
@@ -14,6 +14,9 @@
 
 package com.google.enterprise.adaptor;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 import java.util.Arrays;
 
 /**
@@ -22,6 +25,10 @@ import java.util.Arrays;
 public abstract class Principal implements Comparable<Principal> {
   public static final String DEFAULT_NAMESPACE = "Default";
 
+  /** Only a handful of namespaces exist, so share a single copy of each. */
+  private static final Interner<String> namespaceInterner
+      = Interners.newWeakInterner();
+
   private final String name;
   private final String namespace;
 
@@ -36,7 +43,7 @@ public abstract class Principal implements Comparable<Principal> {
       throw new IllegalArgumentException("name cannot be empty");
     }
     name = n;
-    namespace = ns;
+    namespace = namespaceInterner.intern(ns);
   }
 
   Principal(String n) {
@@ -60,6 +67,11 @@ public abstract class Principal implements Comparable<Principal> {
     boolean same = other instanceof Principal;
     if (same) {
       Principal p = (Principal) other;
+      if (p.isUser() == isUser() && p.name.equals(name)
+          && p.namespace.equals(namespace)) {
+        // Avoid parsing when the names are identical.
+        return true;
+      }
       same = p.isUser() == isUser()
           && p.parse().domain.equals(parse().domain)
           && p.parse().plainName.equals(parse().plainName)
@@ -0,0 +1,122 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded pool of {@link Principal}s that allows many ACLs or group
+ * definitions to share a single instance of each user and group. This is
+ * useful when the same principals appear in large numbers of {@link Acl}s or
+ * in large {@link DocIdPusher#pushGroupDefinitions group pushes}, where it
+ * reduces the amount of memory retained while the items are batched.
+ *
+ * <p>Principals are only considered the same when their type, name and
+ * namespace are identical; principals that are merely {@code equals()} because
+ * they use different domain formats are kept separately, so that interning
+ * never changes how a principal is sent to the GSA.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class PrincipalInterner {
+  private final ConcurrentMap<Key, Principal> pool;
+
+  /**
+   * Creates a pool that holds at most {@code maximumSize} principals. When the
+   * pool is full, the least recently used principals are dropped from it.
+   *
+   * @param maximumSize maximum number of principals kept in the pool
+   */
+  public PrincipalInterner(int maximumSize) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize must be positive");
+    }
+    Cache<Key, Principal> cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize).build();
+    pool = cache.asMap();
+  }
+
+  /**
+   * Returns a pooled principal with the same type, name and namespace as
+   * {@code principal}, adding {@code principal} to the pool if there is none.
+   *
+   * @param principal principal to intern
+   * @return shared instance identical to {@code principal}
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Principal> T intern(T principal) {
+    if (principal == null) {
+      throw new NullPointerException();
+    }
+    Principal existing = pool.putIfAbsent(new Key(principal), principal);
+    // The key includes the principal's type, so existing is of the same class.
+    return existing == null ? principal : (T) existing;
+  }
+
+  /**
+   * Interns each principal of {@code principals}.
+   *
+   * @param principals principals to intern
+   * @return list of shared instances, in the same order as {@code principals}
+   */
+  public <T extends Principal> List<T> internAll(
+      Collection<? extends T> principals) {
+    List<T> interned = new ArrayList<T>(principals.size());
+    for (T p : principals) {
+      interned.add(intern(p));
+    }
+    return interned;
+  }
+
+  /** Number of principals currently in the pool. */
+  public int size() {
+    return pool.size();
+  }
+
+  /** Exact identity of a principal, ignoring domain format equivalence. */
+  private static final class Key {
+    private final boolean isUser;
+    private final String name;
+    private final String namespace;
+
+    Key(Principal p) {
+      this.isUser = p.isUser();
+      this.name = p.getName();
+      this.namespace = p.getNamespace();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return isUser == k.isUser && name.equals(k.name)
+          && namespace.equals(k.namespace);
+    }
+
+    @Override
+    public int hashCode() {
+      return (name.hashCode() * 31 + namespace.hashCode()) * 2
+          + (isUser ? 1 : 0);
+    }
+  }
+}
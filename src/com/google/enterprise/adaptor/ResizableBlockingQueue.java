@@ -0,0 +1,59 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.adaptor;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Work queue for a {@link java.util.concurrent.ThreadPoolExecutor} whose
+ * capacity can be changed while it is in use. Only {@link #offer(Object)}, the
+ * method the executor uses to queue work, honors the capacity; shrinking the
+ * capacity does not drop elements already queued.
+ *
+ * @param <E> type of the elements
+ */
+class ResizableBlockingQueue<E> extends LinkedBlockingQueue<E> {
+  private volatile int capacity;
+
+  public ResizableBlockingQueue(int capacity) {
+    setCapacity(capacity);
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public void setCapacity(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.capacity = capacity;
+  }
+
+  @Override
+  public boolean offer(E e) {
+    // Racing offers may go slightly over capacity, which is harmless here.
+    if (size() >= capacity) {
+      return false;
+    }
+    return super.offer(e);
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return Math.max(0, capacity - size());
+  }
+}
@@ -23,6 +23,7 @@ import com.sun.net.httpserver.HttpHandler;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.Authenticator;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
@@ -32,6 +33,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +44,19 @@ import java.util.logging.Logger;
  * default {@link Authenticator} must be {@code null} for proper operation. The
  * implementation is known to drop the response body for 401 responses to POST
  * requests.
+ *
+ * <p>The number of requests proxied to the destination at once is limited;
+ * requests that can not get a connection in time are answered with {@code 503
+ * Service Unavailable}. Once a response has been copied, {@code
+ * HttpURLConnection} keeps its connection alive for reuse, up to the number of
+ * idle connections its {@code http.maxConnections} system property allows.
+ *
+ * <p>Bodies are streamed in both directions rather than buffered, so they may
+ * be larger than 2 GiB. The destination is read only as fast as the client
+ * reads, beyond what the socket buffers hold. That bounds memory, but does not
+ * protect the destination or other clients: a slow client holds one of the
+ * connections and a server thread until its response is done, and once all
+ * connections are held this way, other requests are rejected.
  */
 class ReverseProxyHandler implements HttpHandler {
   // The Hop-by-hop headers that are connection-local, as defined by RFC 2616
@@ -60,9 +77,30 @@ class ReverseProxyHandler implements HttpHandler {
   private static final Logger log
       = Logger.getLogger(HttpExchanges.class.getName());
 
+  static final int DEFAULT_MAX_CONNECTIONS = 64;
+  static final long DEFAULT_CONNECTION_WAIT_MILLIS = 30 * 1000;
+
   private final URI destinationBase;
+  private final int maxConnections;
+  private final long connectionWaitMillis;
+  private final Semaphore permits;
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
 
   public ReverseProxyHandler(URI destinationBase) {
+    this(destinationBase, DEFAULT_MAX_CONNECTIONS,
+        DEFAULT_CONNECTION_WAIT_MILLIS);
+  }
+
+  /**
+   * @param maxConnections maximum number of requests proxied to {@code
+   *     destinationBase} at once
+   * @param connectionWaitMillis how long a request waits for one of the
+   *     {@code maxConnections} before it is rejected
+   */
+  public ReverseProxyHandler(URI destinationBase, int maxConnections,
+      long connectionWaitMillis) {
     if (destinationBase == null) {
       throw new NullPointerException();
     }
@@ -72,10 +110,72 @@ class ReverseProxyHandler implements HttpHandler {
       throw new IllegalArgumentException(
           "destinationBase must contain a scheme, host, and path");
     }
+    if (maxConnections <= 0) {
+      throw new IllegalArgumentException("maxConnections must be positive");
+    }
+    if (connectionWaitMillis < 0) {
+      throw new IllegalArgumentException(
+          "connectionWaitMillis must not be negative");
+    }
+    this.maxConnections = maxConnections;
+    this.connectionWaitMillis = connectionWaitMillis;
+    this.permits = new Semaphore(maxConnections, true);
   }
 
   @Override
   public void handle(HttpExchange ex) throws IOException {
+    try {
+      if (!permits.tryAcquire(connectionWaitMillis, TimeUnit.MILLISECONDS)) {
+        rejections.incrementAndGet();
+        log.log(Level.WARNING, "All {0} connections to {1} are in use",
+            new Object[] {maxConnections, destinationBase});
+        HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_UNAVAILABLE,
+            Translation.HTTP_SERVICE_UNAVAILABLE);
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    long start = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      proxy(ex);
+      succeeded = true;
+    } finally {
+      latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      if (!succeeded) {
+        failures.incrementAndGet();
+      }
+      permits.release();
+    }
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /** Number of requests currently being proxied. */
+  public int getActiveConnections() {
+    return maxConnections - permits.availablePermits();
+  }
+
+  /** Time taken to proxy each request, including copying the response. */
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+
+  /** Number of requests that failed while being proxied. */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  /** Number of requests rejected because all connections were in use. */
+  public long getRejectionCount() {
+    return rejections.get();
+  }
+
+  private void proxy(HttpExchange ex) throws IOException {
     URI dest = computeProxyDestination(ex);
 
     // Set up request
@@ -117,10 +217,11 @@ class ReverseProxyHandler implements HttpHandler {
       // Enable streaming mode on the connection to prevent entire request body
       // from being buffered. Streaming mode also disables automatic
       // authentication.
-      if (contentLength < 0) {
+      if (contentLength < 0 || contentLength > Integer.MAX_VALUE) {
+        // The long variant of setFixedLengthStreamingMode requires Java 7, so
+        // larger bodies are sent chunked instead.
         conn.setChunkedStreamingMode(-1);
       } else {
-        // TODO(ejona): remove cast once we depend on Java 7.
         conn.setFixedLengthStreamingMode((int) contentLength);
       }
     } else {
@@ -166,13 +267,14 @@ class ReverseProxyHandler implements HttpHandler {
         || conn.getResponseCode() == 204 // No Content
         || conn.getResponseCode() == 304); // Not Modified
 
+    boolean copied = false;
     try {
       copyResponseHeaders(conn, ex);
 
       if (!hasResponseBody) {
         ex.sendResponseHeaders(conn.getResponseCode(), -1);
       } else {
-        int contentLength = conn.getContentLength();
+        long contentLength = getContentLength(conn);
         if (contentLength <= 0) {
           // If the content length was unknown (-1) or if it was zero, then we
           // are forced to use chunked transfer encoding.
@@ -185,8 +287,31 @@ class ReverseProxyHandler implements HttpHandler {
       // If there is an error we want the server to kill the connection, which
       // informs the client that something went wrong.
       ex.close();
+      copied = true;
     } finally {
+      // Closing a fully read stream returns the connection for reuse.
       inputStream.close();
+      if (!copied) {
+        // Don't reuse a connection whose response was only partly read.
+        conn.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Returns the Content-Length of the response, or {@code -1} if it is not
+   * known. Unlike {@link HttpURLConnection#getContentLength}, lengths over 2
+   * GiB are supported.
+   */
+  private static long getContentLength(HttpURLConnection conn) {
+    String value = conn.getHeaderField("Content-Length");
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
     }
   }
 
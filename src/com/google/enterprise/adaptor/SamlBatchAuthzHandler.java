@@ -37,15 +37,20 @@ import org.opensaml.saml2.core.StatusCode;
 import org.opensaml.saml2.core.Subject;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HTTPOutTransport;
+import org.opensaml.ws.transport.http.HTTPTransportUtils;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.security.SecurityException;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -56,6 +61,11 @@ import java.util.logging.Logger;
 /**
  * Handler for responding to late-binding, SAML batch authorization requests
  * from the GSA.
+ *
+ * <p>Requests in the form sent by the GSA are decoded, and their responses
+ * encoded, by {@link SamlBatchAuthzStreamCodec}, which avoids building DOM and
+ * OpenSAML object trees for each of the possibly hundreds of queries. Anything
+ * else is handled by OpenSAML.
  */
 class SamlBatchAuthzHandler implements HttpHandler {
   private static final Logger log
@@ -65,14 +75,26 @@ class SamlBatchAuthzHandler implements HttpHandler {
   private final SamlMetadata metadata;
   private DocIdDecoder docIdDecoder;
   private final Principal.DomainFormat domainFormat;
+  private final boolean streaming;
 
   public SamlBatchAuthzHandler(AuthzAuthority authzAuthority,
       DocIdDecoder docIdDecoder, SamlMetadata samlMetadata,
       Principal.DomainFormat dmfmt) {
+    this(authzAuthority, docIdDecoder, samlMetadata, dmfmt, true);
+  }
+
+  /**
+   * @param streaming whether to try {@link SamlBatchAuthzStreamCodec} before
+   *     OpenSAML for decoding and encoding
+   */
+  SamlBatchAuthzHandler(AuthzAuthority authzAuthority,
+      DocIdDecoder docIdDecoder, SamlMetadata samlMetadata,
+      Principal.DomainFormat dmfmt, boolean streaming) {
     this.authzAuthority = authzAuthority;
     this.docIdDecoder = docIdDecoder;
     this.metadata = samlMetadata;
     this.domainFormat = dmfmt;
+    this.streaming = streaming;
   }
 
   @Override
@@ -95,8 +117,66 @@ class SamlBatchAuthzHandler implements HttpHandler {
         new HttpExchangeOutTransportAdapter(ex));
 
     // Decode request.
-    HTTPSOAP11MultiContextDecoder decoder = new HTTPSOAP11MultiContextDecoder();
-    List<AuthzDecisionQuery> queries = new ArrayList<AuthzDecisionQuery>();
+    List<AuthzQuery> queries = null;
+    if (streaming) {
+      byte[] body = IOHelper.readInputStreamToByteArray(ex.getRequestBody());
+      queries = SamlBatchAuthzStreamCodec.decode(body);
+      if (queries == null) {
+        // Let OpenSAML handle, or reject, the request as it always has.
+        ex.setStreams(new ByteArrayInputStream(body), null);
+      }
+    }
+    if (queries == null) {
+      queries = decodeWithOpenSaml(ex, context);
+      if (queries == null) {
+        return;
+      }
+    }
+
+    // Figure out if the user is authorized.
+    List<AuthzStatus> statuses;
+    try {
+      statuses = processQueries(queries, HttpExchanges.getRequestUri(ex));
+    } catch (TranslationIllegalArgumentException e) {
+      log.log(Level.INFO, "Error processing queries", e);
+      HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_REQUEST,
+          e.getTranslation());
+      return;
+    }
+
+    // Encode response.
+    DateTime now = new DateTime();
+    String issuer = metadata.getLocalEntity().getEntityID();
+    if (streaming && SamlBatchAuthzStreamCodec.canEncode(issuer, queries)) {
+      List<String> decisions = new ArrayList<String>(statuses.size());
+      for (AuthzStatus status : statuses) {
+        decisions.add(authzStatusMap(status).toString());
+      }
+      HTTPOutTransport outTransport
+          = (HTTPOutTransport) context.getOutboundMessageTransport();
+      setResponseHeaders(outTransport);
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+          outTransport.getOutgoingStream(), "UTF-8"));
+      SamlBatchAuthzStreamCodec.encode(out, issuer, queries, decisions, now);
+      out.flush();
+    } else {
+      encodeWithOpenSaml(context, queries, statuses, issuer, now);
+    }
+    ex.getResponseBody().flush();
+    ex.getResponseBody().close();
+    ex.close();
+  }
+
+  /**
+   * Decodes the request with OpenSAML. If decoding fails, an error is sent to
+   * the client and {@code null} is returned.
+   */
+  private List<AuthzQuery> decodeWithOpenSaml(HttpExchange ex,
+      SAMLMessageContext<AuthzDecisionQuery, Response, NameID> context)
+      throws IOException {
+    HTTPSOAP11MultiContextDecoder decoder = new HTTPSOAP11MultiContextDecoder(
+        OpenSamlUtil.getParserPool());
+    List<AuthzQuery> queries = new ArrayList<AuthzQuery>();
     while (true) {
       try {
         decoder.decode(context);
@@ -104,34 +184,29 @@ class SamlBatchAuthzHandler implements HttpHandler {
         log.log(Level.INFO, "Error decoding message", e);
         HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_REQUEST,
             Translation.HTTP_BAD_REQUEST_ERROR_DECODING);
-        return;
+        return null;
       } catch (SecurityException e) {
         log.log(Level.WARNING, "Security error while decoding message", e);
         HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_REQUEST,
             Translation.HTTP_BAD_REQUEST_SECURITY_ERROR);
-        return;
+        return null;
       } catch (IndexOutOfBoundsException e) {
         // Normal indication that there are no more messages to decode.
         break;
       }
-      queries.add(context.getInboundSAMLMessage());
-    }
-
-    // Figure out if the user is authorized.
-    List<Response> responses;
-    try {
-      responses = processQueries(queries, HttpExchanges.getRequestUri(ex));
-    } catch (TranslationIllegalArgumentException e) {
-      log.log(Level.INFO, "Error processing queries", e);
-      HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_REQUEST,
-          e.getTranslation());
-      return;
+      queries.add(AuthzQuery.from(context.getInboundSAMLMessage()));
     }
+    return queries;
+  }
 
-    // Encode response.
+  private void encodeWithOpenSaml(
+      SAMLMessageContext<AuthzDecisionQuery, Response, NameID> context,
+      List<AuthzQuery> queries, List<AuthzStatus> statuses, String issuer,
+      DateTime now) throws IOException {
     HTTPSOAP11MultiContextEncoder encoder = new HTTPSOAP11MultiContextEncoder();
-    for (Response resp : responses) {
-      context.setOutboundSAMLMessage(resp);
+    for (int i = 0; i < queries.size(); i++) {
+      context.setOutboundSAMLMessage(
+          createResponse(queries.get(i), statuses.get(i), issuer, now));
       try {
         encoder.encode(context);
       } catch (MessageEncodingException e) {
@@ -143,32 +218,36 @@ class SamlBatchAuthzHandler implements HttpHandler {
     } catch (MessageEncodingException e) {
       throw new IOException(e);
     }
-    ex.getResponseBody().flush();
-    ex.getResponseBody().close();
-    ex.close();
   }
 
-  private List<Response> processQueries(List<AuthzDecisionQuery> queries,
-                                        URI requestUri) {
-    DateTime now = new DateTime();
-    // Convert URIs into DocIds, but maintain a mapping of the relationship to
-    // later determine the relationship of query to response.
-    Map<AuthzDecisionQuery, DocId> docIds
-        = new HashMap<AuthzDecisionQuery, DocId>(queries.size() * 2);
+  /** Sets the same headers as {@link HTTPSOAP11MultiContextEncoder}. */
+  private static void setResponseHeaders(HTTPOutTransport outTransport) {
+    HTTPTransportUtils.addNoCacheHeaders(outTransport);
+    HTTPTransportUtils.setUTF8Encoding(outTransport);
+    HTTPTransportUtils.setContentType(outTransport, "text/xml");
+    outTransport.setHeader("SOAPAction",
+        "http://www.oasis-open.org/committees/security");
+  }
+
+  /**
+   * Determines the decision for each query, in the same order as {@code
+   * queries}.
+   */
+  private List<AuthzStatus> processQueries(List<AuthzQuery> queries,
+                                           URI requestUri) {
+    // Convert URIs into DocIds, but maintain the relationship of query to
+    // DocId to later determine the relationship of query to response.
+    List<DocId> queryDocIds = new ArrayList<DocId>(queries.size());
+    List<DocId> docIds = new ArrayList<DocId>(queries.size());
     String userIdentifier = null;
     AuthnIdentity identityFromSecmgrCred = null; // First one found is captured
-    for (AuthzDecisionQuery query : queries) {
-      String resource = query.getResource();
+    for (AuthzQuery query : queries) {
+      String resource = query.resource;
       if (resource == null) {
         throw new TranslationIllegalArgumentException(
             Translation.AUTHZ_BAD_QUERY_NO_RESOURCE);
       }
-      if (query.getSubject() == null
-          || query.getSubject().getNameID() == null) {
-        throw new TranslationIllegalArgumentException(
-            Translation.AUTHZ_BAD_QUERY_NO_SUBJECT);
-      }
-      String subject = query.getSubject().getNameID().getValue();
+      String subject = query.subject;
       if (subject == null) {
         throw new TranslationIllegalArgumentException(
             Translation.AUTHZ_BAD_QUERY_NO_SUBJECT);
@@ -186,13 +265,15 @@ class SamlBatchAuthzHandler implements HttpHandler {
           || !requestUri.getHost().equals(uri.getHost())
           || requestUri.getPort() != uri.getPort()) {
         // This is some unknown URI that is unrelated to the adaptor. Don't add
-        // a DocId to the map. This will cause the later loop to use
-        // INDETERMINATE.
+        // a DocId. This will cause the later loop to use INDETERMINATE.
+        queryDocIds.add(null);
       } else {
-        docIds.put(query, docIdDecoder.decodeDocId(uri));
+        DocId docId = docIdDecoder.decodeDocId(uri);
+        queryDocIds.add(docId);
+        docIds.add(docId);
       }
-      if (identityFromSecmgrCred == null) {
-        identityFromSecmgrCred = extractCredInfo(query);
+      if (identityFromSecmgrCred == null && query.credential != null) {
+        identityFromSecmgrCred = extractCredInfo(query.credential);
       }
     }
 
@@ -211,10 +292,10 @@ class SamlBatchAuthzHandler implements HttpHandler {
       identity = identityFromSecmgrCred;
     }
     log.info(identity.toString());
-    docIds = Collections.unmodifiableMap(docIds);
     Map<DocId, AuthzStatus> statuses;
     try {
-      statuses = authzAuthority.isUserAuthorized(identity, docIds.values());
+      statuses = authzAuthority.isUserAuthorized(identity,
+          Collections.unmodifiableList(docIds));
     } catch (Exception e) {
       log.log(Level.WARNING, "Exception while satisfying Authn query", e);
       statuses = null;
@@ -223,11 +304,10 @@ class SamlBatchAuthzHandler implements HttpHandler {
       statuses = Collections.emptyMap();
     }
 
-    // For each query, build a SAML response based on Adaptor's response.
-    List<Response> result = new ArrayList<Response>(queries.size());
-    for (AuthzDecisionQuery query : queries) {
+    // For each query, determine the response based on Adaptor's response.
+    List<AuthzStatus> result = new ArrayList<AuthzStatus>(queries.size());
+    for (DocId docId : queryDocIds) {
       AuthzStatus status;
-      DocId docId = docIds.get(query);
       if (docId == null) {
         // URL doesn't belong to adaptor
         status = AuthzStatus.INDETERMINATE;
@@ -242,58 +322,44 @@ class SamlBatchAuthzHandler implements HttpHandler {
           status = AuthzStatus.DENY;
         }
       }
-      result.add(createResponse(query, status, now));
+      result.add(status);
     }
     return result;
   }
   
-  private AuthnIdentity extractCredInfo(AuthzDecisionQuery query) {
-    AuthnIdentity identity = null;
-    Extensions extensions = query.getExtensions();
-    if (extensions != null) {
-      List<XMLObject> objs = extensions.getOrderedChildren();
-      for (XMLObject obj : objs) {
-        if (obj instanceof SecmgrCredential) {
-          SecmgrCredential cred = (SecmgrCredential) obj;
-          String name = cred.getName();
-          String domain = cred.getDomain();
-          String userIdentity = name;
-          if (domain != null && !"".equals(domain.trim())) {
-            userIdentity = domainFormat.format(name, domain);
-          }
-          Set<GroupPrincipal> groups = new TreeSet<GroupPrincipal>();
-          for (Group g : cred.getGroups()) {
-            String groupIdentity = g.getName();
-            if (g.getDomain() != null && !"".equals(g.getDomain().trim())) {
-              groupIdentity = domainFormat.format(g.getName(), g.getDomain());
-            }
-            groups.add(new GroupPrincipal(groupIdentity, g.getNamespace()));
-          }
-          identity =
-              new AuthnIdentityImpl.Builder(new UserPrincipal(userIdentity,
-                  cred.getNamespace())).setPassword(cred.getPassword())
-                  .setGroups(groups).build();
-          break; // use the first SecmgrCredential
-        }
+  private AuthnIdentity extractCredInfo(SecmgrCredential cred) {
+    String name = cred.getName();
+    String domain = cred.getDomain();
+    String userIdentity = name;
+    if (domain != null && !"".equals(domain.trim())) {
+      userIdentity = domainFormat.format(name, domain);
+    }
+    Set<GroupPrincipal> groups = new TreeSet<GroupPrincipal>();
+    for (Group g : cred.getGroups()) {
+      String groupIdentity = g.getName();
+      if (g.getDomain() != null && !"".equals(g.getDomain().trim())) {
+        groupIdentity = domainFormat.format(g.getName(), g.getDomain());
       }
+      groups.add(new GroupPrincipal(groupIdentity, g.getNamespace()));
     }
-    return identity;
+    return new AuthnIdentityImpl.Builder(new UserPrincipal(userIdentity,
+        cred.getNamespace())).setPassword(cred.getPassword())
+        .setGroups(groups).build();
   }
 
-  private Response createResponse(AuthzDecisionQuery query,
-                                  AuthzStatus authzStatus, DateTime time) {
-    String issuer = metadata.getLocalEntity().getEntityID();
+  private Response createResponse(AuthzQuery query, AuthzStatus authzStatus,
+                                  String issuer, DateTime time) {
     // Assume the query was for GET.
     Action action
         = OpenSamlUtil.makeAction(Action.HTTP_GET_ACTION, Action.GHPP_NS_URI);
     AuthzDecisionStatement statement = OpenSamlUtil.makeAuthzDecisionStatement(
-        query.getResource(), authzStatusMap(authzStatus), action);
-    Subject subject = OpenSamlUtil.makeSubject(
-        query.getSubject().getNameID().getValue());
+        query.resource, authzStatusMap(authzStatus), action);
+    Subject subject = OpenSamlUtil.makeSubject(query.subject);
     Assertion assertion = OpenSamlUtil.makeAssertion(
         issuer, time, subject, null, statement);
     Status status = OpenSamlUtil.makeStatus(StatusCode.SUCCESS_URI);
-    return OpenSamlUtil.makeResponse(issuer, time, status, query, assertion);
+    return OpenSamlUtil.makeResponse(issuer, time, status, query.id,
+        assertion);
   }
 
   private static DecisionTypeEnumeration authzStatusMap(AuthzStatus status) {
@@ -308,6 +374,48 @@ class SamlBatchAuthzHandler implements HttpHandler {
     }
   }
 
+  /**
+   * The parts of an {@code AuthzDecisionQuery} used by this handler, whether
+   * it was decoded by OpenSAML or by {@link SamlBatchAuthzStreamCodec}.
+   */
+  static class AuthzQuery {
+    final String id;
+    /** {@code null} if missing. */
+    final String resource;
+    /** The subject's NameID, or {@code null} if missing. */
+    final String subject;
+    /** First credential in the query's extensions, or {@code null}. */
+    final SecmgrCredential credential;
+
+    AuthzQuery(String id, String resource, String subject,
+        SecmgrCredential credential) {
+      this.id = id;
+      this.resource = resource;
+      this.subject = subject;
+      this.credential = credential;
+    }
+
+    static AuthzQuery from(AuthzDecisionQuery query) {
+      String subject = null;
+      if (query.getSubject() != null
+          && query.getSubject().getNameID() != null) {
+        subject = query.getSubject().getNameID().getValue();
+      }
+      SecmgrCredential credential = null;
+      Extensions extensions = query.getExtensions();
+      if (extensions != null) {
+        for (XMLObject obj : extensions.getOrderedChildren()) {
+          if (obj instanceof SecmgrCredential) {
+            credential = (SecmgrCredential) obj;
+            break; // use the first SecmgrCredential
+          }
+        }
+      }
+      return new AuthzQuery(query.getID(), query.getResource(), subject,
+          credential);
+    }
+  }
+
   private static class TranslationIllegalArgumentException
       extends IllegalArgumentException {
     private final Translation translation;
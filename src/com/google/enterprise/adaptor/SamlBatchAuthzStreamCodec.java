@@ -0,0 +1,494 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.enterprise.adaptor.secmgr.saml.Group;
+import com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil;
+import com.google.enterprise.adaptor.secmgr.saml.SecmgrCredential;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Action;
+import org.opensaml.saml2.core.StatusCode;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming decoder and encoder for the SOAP messages of late-binding batch
+ * authorization. It only understands the plain {@code AuthzDecisionQuery}
+ * messages sent by the GSA, and produces the same bytes as the OpenSAML
+ * encoder for the responses.
+ *
+ * <p>Decoding returns {@code null} for anything it does not fully understand,
+ * including malformed XML, so that the caller can fall back to the OpenSAML
+ * decoder, which then produces the same result, or error, as it always has.
+ * Similarly, {@link #canEncode} rejects values that the OpenSAML encoder would
+ * escape in ways not replicated here.
+ *
+ * <p>This class is thread-safe.
+ */
+class SamlBatchAuthzStreamCodec {
+  private static final Logger log
+      = Logger.getLogger(SamlBatchAuthzStreamCodec.class.getName());
+
+  private static final String SOAP_NS = SAMLConstants.SOAP11ENV_NS;
+  private static final String SAMLP_NS = SAMLConstants.SAML20P_NS;
+  private static final String SAML_NS = SAMLConstants.SAML20_NS;
+  private static final String GOOGLE_NS = OpenSamlUtil.GOOGLE_NS_URI;
+
+  /** Configured once, and afterwards only used to create readers. */
+  private static final XMLInputFactory inputFactory;
+
+  static {
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  private SamlBatchAuthzStreamCodec() {}
+
+  /**
+   * Decodes the queries of a SOAP request, or returns {@code null} if the
+   * request is not in the simple form this decoder supports.
+   */
+  public static List<SamlBatchAuthzHandler.AuthzQuery> decode(byte[] body) {
+    try {
+      XMLStreamReader reader
+          = inputFactory.createXMLStreamReader(new ByteArrayInputStream(body));
+      try {
+        return decode(reader);
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException ex) {
+      log.log(Level.FINE, "Streaming decode failed", ex);
+      return null;
+    } catch (Unsupported ex) {
+      log.log(Level.FINE, "Streaming decode not supported: {0}",
+          ex.getMessage());
+      return null;
+    }
+  }
+
+  private static List<SamlBatchAuthzHandler.AuthzQuery> decode(
+      XMLStreamReader reader) throws XMLStreamException {
+    nextElement(reader);
+    expectElement(reader, SOAP_NS, "Envelope");
+    expectNoAttributes(reader);
+    nextElement(reader);
+    expectElement(reader, SOAP_NS, "Body");
+    expectNoAttributes(reader);
+    List<SamlBatchAuthzHandler.AuthzQuery> queries
+        = new ArrayList<SamlBatchAuthzHandler.AuthzQuery>();
+    while (nextElement(reader)) {
+      expectElement(reader, SAMLP_NS, "AuthzDecisionQuery");
+      queries.add(decodeQuery(reader));
+    }
+    // The end of Body has been read; only the end of Envelope may follow.
+    if (nextElement(reader)) {
+      throw new Unsupported("content after Body");
+    }
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event != XMLStreamConstants.END_DOCUMENT
+          && event != XMLStreamConstants.SPACE
+          && !isWhitespace(reader, event)) {
+        throw new Unsupported("content after Envelope");
+      }
+    }
+    if (queries.isEmpty()) {
+      throw new Unsupported("no queries");
+    }
+    return queries;
+  }
+
+  private static SamlBatchAuthzHandler.AuthzQuery decodeQuery(
+      XMLStreamReader reader) throws XMLStreamException {
+    String id = null;
+    String resource = null;
+    boolean hasIssueInstant = false;
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      if (!isEmpty(reader.getAttributeNamespace(i))) {
+        throw new Unsupported("namespaced attribute");
+      }
+      String name = reader.getAttributeLocalName(i);
+      String value = reader.getAttributeValue(i);
+      if ("ID".equals(name)) {
+        id = value;
+      } else if ("Resource".equals(name)) {
+        resource = value;
+      } else if ("Version".equals(name)) {
+        if (!"2.0".equals(value)) {
+          throw new Unsupported("version");
+        }
+      } else if ("IssueInstant".equals(name)) {
+        try {
+          new DateTime(value, ISOChronology.getInstanceUTC());
+        } catch (IllegalArgumentException ex) {
+          throw new Unsupported("issue instant");
+        }
+        hasIssueInstant = true;
+      } else {
+        throw new Unsupported("attribute " + name);
+      }
+    }
+    if (id == null || !hasIssueInstant) {
+      throw new Unsupported("missing attribute");
+    }
+
+    String subject = null;
+    boolean hasIssuer = false;
+    boolean hasSubject = false;
+    boolean hasExtensions = false;
+    SecmgrCredential credential = null;
+    while (nextElement(reader)) {
+      String ns = reader.getNamespaceURI();
+      String name = reader.getLocalName();
+      if (SAML_NS.equals(ns) && "Issuer".equals(name) && !hasIssuer) {
+        expectNoAttributes(reader);
+        readText(reader);
+        hasIssuer = true;
+      } else if (SAML_NS.equals(ns) && "Subject".equals(name) && !hasSubject) {
+        expectNoAttributes(reader);
+        subject = decodeSubject(reader);
+        hasSubject = true;
+      } else if (SAML_NS.equals(ns) && "Action".equals(name)) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+          if (!isEmpty(reader.getAttributeNamespace(i))
+              || !"Namespace".equals(reader.getAttributeLocalName(i))) {
+            throw new Unsupported("Action attribute");
+          }
+        }
+        readText(reader);
+      } else if (SAMLP_NS.equals(ns) && "Extensions".equals(name)
+          && !hasExtensions) {
+        expectNoAttributes(reader);
+        credential = decodeExtensions(reader);
+        hasExtensions = true;
+      } else {
+        throw new Unsupported("element " + name);
+      }
+    }
+    return new SamlBatchAuthzHandler.AuthzQuery(id, resource, subject,
+        credential);
+  }
+
+  /** Returns the trimmed NameID, or {@code null} if there is none. */
+  private static String decodeSubject(XMLStreamReader reader)
+      throws XMLStreamException {
+    String nameId = null;
+    boolean hasNameId = false;
+    while (nextElement(reader)) {
+      expectElement(reader, SAML_NS, "NameID");
+      if (hasNameId) {
+        throw new Unsupported("multiple NameIDs");
+      }
+      for (int i = 0; i < reader.getAttributeCount(); i++) {
+        String name = reader.getAttributeLocalName(i);
+        if (!isEmpty(reader.getAttributeNamespace(i))
+            || !("Format".equals(name) || "NameQualifier".equals(name)
+              || "SPNameQualifier".equals(name)
+              || "SPProvidedID".equals(name))) {
+          throw new Unsupported("NameID attribute");
+        }
+      }
+      // OpenSAML trims element content and treats empty content as absent.
+      nameId = readText(reader).trim();
+      if (nameId.isEmpty()) {
+        nameId = null;
+      }
+      hasNameId = true;
+    }
+    return nameId;
+  }
+
+  /** Returns the first credential, or {@code null} if there is none. */
+  private static SecmgrCredential decodeExtensions(XMLStreamReader reader)
+      throws XMLStreamException {
+    SecmgrCredential first = null;
+    while (nextElement(reader)) {
+      expectElement(reader, GOOGLE_NS, "SecmgrCredential");
+      String[] attrs = readAttributes(reader, "name", "namespace", "domain",
+          "password");
+      if (attrs[0] == null || attrs[1] == null) {
+        throw new Unsupported("incomplete credential");
+      }
+      SecmgrCredential credential = OpenSamlUtil.makeSecmgrCredential(
+          attrs[0], attrs[1], attrs[2], attrs[3]);
+      while (nextElement(reader)) {
+        expectElement(reader, GOOGLE_NS, "Group");
+        String[] groupAttrs = readAttributes(reader, "name", "namespace",
+            "domain");
+        if (groupAttrs[0] == null || groupAttrs[1] == null) {
+          throw new Unsupported("incomplete group");
+        }
+        Group group = OpenSamlUtil.makeGroup(groupAttrs[0], groupAttrs[1],
+            groupAttrs[2]);
+        credential.getGroups().add(group);
+        if (nextElement(reader)) {
+          throw new Unsupported("Group content");
+        }
+      }
+      if (first == null) {
+        first = credential;
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Returns the values of the attributes with the provided names, in the same
+   * order, with {@code null} for missing attributes. Other attributes are
+   * ignored, as they are by the OpenSAML unmarshallers.
+   */
+  private static String[] readAttributes(XMLStreamReader reader,
+      String... names) {
+    String[] values = new String[names.length];
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      if (!isEmpty(reader.getAttributeNamespace(i))) {
+        throw new Unsupported("namespaced attribute");
+      }
+      String name = reader.getAttributeLocalName(i);
+      for (int j = 0; j < names.length; j++) {
+        if (names[j].equals(name)) {
+          values[j] = reader.getAttributeValue(i);
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Advances to the next start element and returns {@code true}, or to the
+   * next end element and returns {@code false}. Only whitespace may be skipped.
+   */
+  private static boolean nextElement(XMLStreamReader reader)
+      throws XMLStreamException {
+    while (reader.hasNext()) {
+      int event = reader.next();
+      switch (event) {
+        case XMLStreamConstants.START_ELEMENT:
+          return true;
+        case XMLStreamConstants.END_ELEMENT:
+          return false;
+        case XMLStreamConstants.SPACE:
+          break;
+        default:
+          if (!isWhitespace(reader, event)) {
+            throw new Unsupported("unexpected event " + event);
+          }
+      }
+    }
+    throw new Unsupported("unexpected end of document");
+  }
+
+  /** Reads the text content of an element that contains only text. */
+  private static String readText(XMLStreamReader reader)
+      throws XMLStreamException {
+    StringBuilder sb = new StringBuilder();
+    while (true) {
+      int event = reader.next();
+      switch (event) {
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          sb.append(reader.getTextCharacters(), reader.getTextStart(),
+              reader.getTextLength());
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          return sb.toString();
+        default:
+          throw new Unsupported("unexpected event in text " + event);
+      }
+    }
+  }
+
+  private static boolean isWhitespace(XMLStreamReader reader, int event) {
+    return event == XMLStreamConstants.CHARACTERS && reader.isWhiteSpace();
+  }
+
+  private static void expectElement(XMLStreamReader reader, String ns,
+      String localName) {
+    if (!localName.equals(reader.getLocalName())
+        || !ns.equals(reader.getNamespaceURI())) {
+      throw new Unsupported("element " + reader.getLocalName());
+    }
+  }
+
+  private static void expectNoAttributes(XMLStreamReader reader) {
+    if (reader.getAttributeCount() != 0) {
+      throw new Unsupported("attributes on " + reader.getLocalName());
+    }
+  }
+
+  private static boolean isEmpty(String s) {
+    return s == null || s.isEmpty();
+  }
+
+  /**
+   * Returns whether {@link #encode} produces the same output as OpenSAML for
+   * these values. Missing values, control and non-BMP characters are left to
+   * OpenSAML.
+   */
+  public static boolean canEncode(String issuer,
+      List<SamlBatchAuthzHandler.AuthzQuery> queries) {
+    if (!isPlain(issuer)) {
+      return false;
+    }
+    for (SamlBatchAuthzHandler.AuthzQuery query : queries) {
+      if (!isPlain(query.id) || !isPlain(query.resource)
+          || !isPlain(query.subject)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isPlain(String s) {
+    if (s == null) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (!((c >= 0x20 && c < 0x7f) || (c >= 0xa0 && c < 0xd800)
+          || (c >= 0xe000 && c < 0xfffe))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the SOAP response for {@code queries}, with one {@code Response}
+   * for each query containing the corresponding decision. The output is
+   * identical to that of the OpenSAML encoder, other than generated IDs.
+   */
+  public static void encode(Writer out, String issuer,
+      List<SamlBatchAuthzHandler.AuthzQuery> queries,
+      List<String> decisions, DateTime now) throws IOException {
+    String instant = OpenSamlUtil.samlDateString(now);
+    out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<soap11:Envelope xmlns:soap11=\"" + SOAP_NS + "\">"
+        + "<soap11:Body>");
+    for (int i = 0; i < queries.size(); i++) {
+      SamlBatchAuthzHandler.AuthzQuery query = queries.get(i);
+      out.write("<saml2p:Response ID=\"");
+      out.write(OpenSamlUtil.generateIdentifier());
+      out.write("\" InResponseTo=\"");
+      writeAttributeValue(out, query.id);
+      out.write("\" IssueInstant=\"");
+      out.write(instant);
+      out.write("\" Version=\"2.0\" xmlns:saml2p=\"" + SAMLP_NS + "\">"
+          + "<saml2:Issuer xmlns:saml2=\"" + SAML_NS + "\">");
+      writeText(out, issuer);
+      out.write("</saml2:Issuer>"
+          + "<saml2p:Status><saml2p:StatusCode Value=\""
+          + StatusCode.SUCCESS_URI + "\"/>"
+          + "</saml2p:Status>"
+          + "<saml2:Assertion ID=\"");
+      out.write(OpenSamlUtil.generateIdentifier());
+      out.write("\" IssueInstant=\"");
+      out.write(instant);
+      out.write("\" Version=\"2.0\" xmlns:saml2=\"" + SAML_NS + "\">"
+          + "<saml2:Issuer>");
+      writeText(out, issuer);
+      out.write("</saml2:Issuer><saml2:Subject><saml2:NameID>");
+      writeText(out, query.subject);
+      out.write("</saml2:NameID></saml2:Subject>"
+          + "<saml2:AuthzDecisionStatement Decision=\"");
+      out.write(decisions.get(i));
+      out.write("\" Resource=\"");
+      writeAttributeValue(out, query.resource);
+      out.write("\"><saml2:Action Namespace=\""
+          + Action.GHPP_NS_URI + "\">"
+          + Action.HTTP_GET_ACTION
+          + "</saml2:Action></saml2:AuthzDecisionStatement>"
+          + "</saml2:Assertion></saml2p:Response>");
+    }
+    out.write("</soap11:Body></soap11:Envelope>");
+  }
+
+  /** Escapes like the DOM serializer used by OpenSAML. */
+  private static void writeText(Writer out, String s) throws IOException {
+    int start = 0;
+    for (int i = 0; i < s.length(); i++) {
+      String replacement;
+      switch (s.charAt(i)) {
+        case '<':
+          replacement = "&lt;";
+          break;
+        case '>':
+          replacement = "&gt;";
+          break;
+        case '&':
+          replacement = "&amp;";
+          break;
+        default:
+          continue;
+      }
+      out.write(s, start, i - start);
+      out.write(replacement);
+      start = i + 1;
+    }
+    out.write(s, start, s.length() - start);
+  }
+
+  /** Escapes like the DOM serializer used by OpenSAML. */
+  private static void writeAttributeValue(Writer out, String s)
+      throws IOException {
+    int start = 0;
+    for (int i = 0; i < s.length(); i++) {
+      String replacement;
+      switch (s.charAt(i)) {
+        case '<':
+          replacement = "&lt;";
+          break;
+        case '&':
+          replacement = "&amp;";
+          break;
+        case '"':
+          replacement = "&quot;";
+          break;
+        default:
+          continue;
+      }
+      out.write(s, start, i - start);
+      out.write(replacement);
+      start = i + 1;
+    }
+    out.write(s, start, s.length() - start);
+  }
+
+  /** Thrown when the request uses a form not supported by this decoder. */
+  private static class Unsupported extends RuntimeException {
+    Unsupported(String message) {
+      super(message);
+    }
+  }
+}
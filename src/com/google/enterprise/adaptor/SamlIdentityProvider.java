@@ -303,6 +303,7 @@ class SamlIdentityProvider {
      * @param requestUri the URI the client used to make the request
      */
     public RequestUriRedirectDeflateDecoder(URI requestUri) {
+      super(OpenSamlUtil.getParserPool());
       try {
         // Remove query parameters from URI.
         requestUri = new URI(requestUri.getScheme(), requestUri.getAuthority(),
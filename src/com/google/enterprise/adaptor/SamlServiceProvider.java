@@ -83,7 +83,6 @@ class SamlServiceProvider {
     this(sessionManager, metadata, key, new HttpClientAdapter(), dmfmt);
   }
 
-  @VisibleForTesting
   SamlServiceProvider(SessionManager<HttpExchange> sessionManager,
       SamlMetadata metadata, KeyPair key, HttpClientInterface httpClient
       , Principal.DomainFormat dmfmt) {
@@ -125,7 +124,21 @@ class SamlServiceProvider {
     if (authnState != null && authnState.isAuthenticated()) {
       return authnState.getIdentity();
     }
-    return null;
+    // The user may have authenticated with another adaptor instance.
+    SharedSessionStore.Entry shared = sessionManager.getSharedIdentity(ex);
+    if (shared == null) {
+      return null;
+    }
+    synchronized (session) {
+      authnState = (AuthnState) session.getAttribute(SESSION_STATE_ATTR_NAME);
+      if (authnState == null) {
+        authnState = new AuthnState();
+        session.setAttribute(SESSION_STATE_ATTR_NAME, authnState);
+      }
+    }
+    authnState.authenticated(shared.getIdentity(),
+        shared.getExpirationTimeMillis());
+    return shared.getIdentity();
   }
 
   /**
@@ -211,7 +224,7 @@ class SamlServiceProvider {
       Response samlResponse = client.decodeArtifactResponse(
           HttpExchanges.getRequestUri(ex),
           new HttpExchangeInTransportAdapter(ex));
-      authnSuccess = consumeAssertion(client, samlResponse,
+      authnSuccess = consumeAssertion(ex, client, samlResponse,
           client.getArtifactAssertionConsumerService().getLocation(),
           authnState);
 
@@ -223,8 +236,8 @@ class SamlServiceProvider {
       }
     }
 
-    private boolean consumeAssertion(SamlClient client, Response samlResponse,
-                                     String recipient, AuthnState authnState) {
+    private boolean consumeAssertion(HttpExchange ex, SamlClient client,
+        Response samlResponse, String recipient, AuthnState authnState) {
       if (samlResponse == null) {
         log.warning("SAML response is missing");
         authnState.failAttempt();
@@ -304,6 +317,7 @@ class SamlServiceProvider {
           .setGroups(groups)
           .setPassword(password).build();
       authnState.authenticated(identity, expirationTime);
+      sessionManager.shareIdentity(ex, identity, expirationTime);
       return true;
     }
   }
@@ -0,0 +1,511 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@link FeedArchiver} that appends feeds to gzip-compressed segment files on
+ * a background thread, so that archiving does not slow down pushing. A new
+ * segment is started when the current one reaches a size or an age, and the
+ * oldest segments are deleted when all of them together exceed a size, except
+ * for the newest.
+ *
+ * <p>Each feed is compressed as a gzip member of its own, and is synced to
+ * disk before it is added to the index {@code feeds-<time>.idx} next to its
+ * segment {@code feeds-<time>.xml.gz}. So every feed in an index can be read,
+ * even from a segment that is still being written or was never completed. The
+ * index has one line per feed: the offset of its gzip member within the
+ * segment, its uncompressed length, the time it was archived, whether it
+ * failed to be sent, and the feed name, separated by tabs.
+ *
+ * <p>Feeds wait in a bounded queue to be written. When the queue is full,
+ * pushing waits for space; how often and how long is reported as
+ * back-pressure.
+ */
+class SegmentedFeedArchiver implements FeedArchiver {
+  private static final Logger log
+      = Logger.getLogger(SegmentedFeedArchiver.class.getName());
+  private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+  static final String SEGMENT_PREFIX = "feeds-";
+  static final String SEGMENT_SUFFIX = ".xml.gz";
+  static final String INDEX_SUFFIX = ".idx";
+  private static final String FAILED = "FAILED";
+  private static final String SENT = "SENT";
+  /**
+   * How often an idle archiver checks whether its segment is too old, and
+   * waits for the queue check whether the archiver has closed.
+   */
+  private static final long IDLE_CHECK_MILLIS = 1000;
+
+  private final File archiveDir;
+  private final long maxSegmentBytes;
+  private final long maxSegmentMillis;
+  private final long maxTotalBytes;
+  private final BlockingQueue<Entry> queue;
+  private final Thread writer;
+  private volatile boolean closed;
+
+  private final AtomicLong archived = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong blockedCount = new AtomicLong();
+  private final AtomicLong blockedNanos = new AtomicLong();
+
+  /** Only accessed by {@link #writer}. */
+  private Segment segment;
+  /** Only accessed by {@link #writer}. */
+  private int segmentSequence;
+
+  /**
+   * @param archiveDir directory for segments, created if it does not exist
+   * @param maxSegmentBytes uncompressed size at which a segment is rotated
+   * @param maxSegmentMillis age at which a segment is rotated
+   * @param maxTotalBytes compressed size of all segments above which the
+   *     oldest are deleted, or {@code 0} to keep all of them
+   * @param queueSize number of feeds that may wait to be written
+   */
+  public SegmentedFeedArchiver(File archiveDir, long maxSegmentBytes,
+      long maxSegmentMillis, long maxTotalBytes, int queueSize)
+      throws IOException {
+    if (maxSegmentBytes <= 0 || maxSegmentMillis <= 0 || maxTotalBytes < 0
+        || queueSize <= 0) {
+      throw new IllegalArgumentException("Invalid archive limits");
+    }
+    archiveDir.mkdirs();
+    if (!archiveDir.isDirectory()) {
+      throw new IOException("Could not create directory: " + archiveDir);
+    }
+    this.archiveDir = archiveDir;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.maxSegmentMillis = maxSegmentMillis;
+    this.maxTotalBytes = maxTotalBytes;
+    this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+    this.writer = new Thread(new WriterRunnable(), "feedArchiver");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  @Override
+  public void saveFeed(String feedName, String feedXml) {
+    enqueue(new Entry(feedName, feedXml, false));
+  }
+
+  @Override
+  public void saveFailedFeed(String feedName, String feedXml) {
+    enqueue(new Entry(feedName, feedXml, true));
+  }
+
+  private void enqueue(Entry entry) {
+    if (closed) {
+      log.log(Level.WARNING, "Archiver closed. Not archiving feed {0}",
+          entry.feedName);
+      return;
+    }
+    if (queue.offer(entry)) {
+      return;
+    }
+    blockedCount.incrementAndGet();
+    long start = System.nanoTime();
+    try {
+      // Waits in steps, since the writer stops taking feeds once closed.
+      while (!queue.offer(entry, IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (closed) {
+          failures.incrementAndGet();
+          log.log(Level.WARNING, "Archiver closed. Not archiving feed {0}",
+              entry.feedName);
+          return;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      failures.incrementAndGet();
+      log.log(Level.WARNING, "Interrupted. Not archiving feed {0}",
+          entry.feedName);
+    } finally {
+      blockedNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Waits until all feeds queued so far are written and completes the current
+   * segment, so that it can be read.
+   */
+  public void flush() throws InterruptedException {
+    Entry marker = new Entry(null, null, false);
+    // The writer may stop before taking the marker if the archiver is closed.
+    while (!queue.offer(marker, IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+      if (!writer.isAlive()) {
+        return;
+      }
+    }
+    while (!marker.flushed.await(IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+      if (!writer.isAlive()) {
+        return;
+      }
+    }
+  }
+
+  /** Writes all queued feeds, completes the current segment and stops. */
+  public void close() throws InterruptedException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    flush();
+    writer.interrupt();
+    writer.join();
+    // Feeds that were being queued while closing are not written.
+    Entry entry;
+    while ((entry = queue.poll()) != null) {
+      if (entry.feedXml == null) {
+        entry.flushed.countDown();
+      } else {
+        failures.incrementAndGet();
+        log.log(Level.WARNING, "Archiver closed. Not archiving feed {0}",
+            entry.feedName);
+      }
+    }
+  }
+
+  /** Number of feeds written to a segment. */
+  public long getArchivedCount() {
+    return archived.get();
+  }
+
+  /** Number of feeds that could not be archived. */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  /** Number of feeds waiting to be written. */
+  public int getQueueLength() {
+    return queue.size();
+  }
+
+  /** Number of times pushing waited because the queue was full. */
+  public long getBlockedCount() {
+    return blockedCount.get();
+  }
+
+  /** Total time pushing waited because the queue was full. */
+  public long getBlockedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+  }
+
+  /**
+   * Reads the index of every segment in {@code archiveDir}, oldest first,
+   * including the segment being written to. Only feeds that can be read are
+   * listed; a feed whose index line is not yet complete is left out.
+   */
+  public static List<IndexEntry> readIndex(File archiveDir)
+      throws IOException {
+    File[] indexes = archiveDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(INDEX_SUFFIX);
+      }
+    });
+    if (indexes == null) {
+      throw new IOException("Could not list " + archiveDir);
+    }
+    Arrays.sort(indexes);
+    List<IndexEntry> entries = new ArrayList<IndexEntry>();
+    for (File index : indexes) {
+      String name = index.getName();
+      File segmentFile = new File(archiveDir, name.substring(0,
+          name.length() - INDEX_SUFFIX.length()) + SEGMENT_SUFFIX);
+      String text = Files.toString(index, CHARSET_UTF8);
+      // A last line without a newline is still being written.
+      text = text.substring(0, text.lastIndexOf('\n') + 1);
+      for (String line : text.split("\n")) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] parts = line.split("\t", 5);
+        if (parts.length != 5) {
+          log.log(Level.WARNING, "Ignoring invalid line in {0}", index);
+          continue;
+        }
+        try {
+          entries.add(new IndexEntry(segmentFile, Long.parseLong(parts[0]),
+              Integer.parseInt(parts[1]), Long.parseLong(parts[2]),
+              FAILED.equals(parts[3]), parts[4]));
+        } catch (NumberFormatException ex) {
+          log.log(Level.WARNING, "Ignoring invalid line in {0}", index);
+        }
+      }
+    }
+    return entries;
+  }
+
+  /** Reads the feed described by {@code entry} from its segment. */
+  public static String readFeed(IndexEntry entry) throws IOException {
+    InputStream in = new FileInputStream(entry.segment);
+    try {
+      ByteStreams.skipFully(in, entry.offset);
+      in = new GZIPInputStream(in);
+      byte[] bytes = new byte[entry.length];
+      ByteStreams.readFully(in, bytes);
+      return new String(bytes, CHARSET_UTF8);
+    } catch (EOFException ex) {
+      throw new IOException("Segment too short: " + entry.segment, ex);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Location and description of one archived feed. */
+  static class IndexEntry {
+    final File segment;
+    final long offset;
+    final int length;
+    final long timeMillis;
+    final boolean failed;
+    final String feedName;
+
+    IndexEntry(File segment, long offset, int length, long timeMillis,
+        boolean failed, String feedName) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.timeMillis = timeMillis;
+      this.failed = failed;
+      this.feedName = feedName;
+    }
+
+    @Override
+    public String toString() {
+      return "IndexEntry(" + segment.getName() + "," + offset + ","
+          + feedName + (failed ? ",failed)" : ")");
+    }
+  }
+
+  private static class Entry {
+    final String feedName;
+    final String feedXml;
+    final boolean failed;
+    final long timeMillis = System.currentTimeMillis();
+    /** Only used by markers queued by {@link #flush}. */
+    final CountDownLatch flushed = new CountDownLatch(1);
+
+    Entry(String feedName, String feedXml, boolean failed) {
+      this.feedName = feedName;
+      this.feedXml = feedXml;
+      this.failed = failed;
+    }
+  }
+
+  private static class Segment {
+    final File file;
+    final FileOutputStream fileOut;
+    /** Counts the compressed bytes, which are the offsets of gzip members. */
+    final CountingOutputStream out;
+    final Writer index;
+    final long startMillis = System.currentTimeMillis();
+    /** Uncompressed size of the feeds in this segment. */
+    long bytes;
+
+    Segment(File file, FileOutputStream fileOut, Writer index) {
+      this.file = file;
+      this.fileOut = fileOut;
+      this.out = new CountingOutputStream(new BufferedOutputStream(fileOut));
+      this.index = index;
+    }
+  }
+
+  private class WriterRunnable implements Runnable {
+    @Override
+    public void run() {
+      // Checked on every pass rather than relying on close()'s interrupt,
+      // which a write may have consumed.
+      while (!closed || !queue.isEmpty()) {
+        Entry entry;
+        try {
+          entry = queue.poll(IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+          continue;
+        }
+        if (entry == null) {
+          if (segment != null && isTooOld(segment)) {
+            finishSegment();
+          }
+        } else if (entry.feedXml == null) {
+          finishSegment();
+          entry.flushed.countDown();
+        } else {
+          write(entry);
+        }
+      }
+      finishSegment();
+    }
+
+    private boolean isTooOld(Segment segment) {
+      return System.currentTimeMillis() - segment.startMillis
+          >= maxSegmentMillis;
+    }
+
+    private void write(Entry entry) {
+      byte[] bytes = entry.feedXml.getBytes(CHARSET_UTF8);
+      try {
+        if (segment != null && segment.bytes > 0
+            && (segment.bytes + bytes.length > maxSegmentBytes
+                || isTooOld(segment))) {
+          finishSegment();
+        }
+        if (segment == null) {
+          segment = openSegment();
+        }
+        long offset = segment.out.getCount();
+        OutputStream member = new GZIPOutputStream(
+            new FastFilterOutputStream(segment.out) {
+              @Override
+              public void close() throws IOException {
+                // Leaves the segment open for the next member.
+                flush();
+              }
+            });
+        member.write(bytes);
+        member.close();
+        segment.fileOut.getFD().sync();
+        segment.index.write(offset + "\t" + bytes.length + "\t"
+            + entry.timeMillis + "\t" + (entry.failed ? FAILED : SENT) + "\t"
+            + entry.feedName + "\n");
+        segment.index.flush();
+        segment.bytes += bytes.length;
+        archived.incrementAndGet();
+      } catch (IOException ex) {
+        failures.incrementAndGet();
+        log.log(Level.WARNING, "Failed to archive feed file", ex);
+        abandonSegment();
+      }
+    }
+
+    private Segment openSegment() throws IOException {
+      SimpleDateFormat format
+          = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ENGLISH);
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      String base = SEGMENT_PREFIX + format.format(new Date()) + "-"
+          + String.format("%04d", segmentSequence++ % 10000);
+      File file = new File(archiveDir, base + SEGMENT_SUFFIX);
+      FileOutputStream out = new FileOutputStream(file);
+      Writer index;
+      try {
+        index = new OutputStreamWriter(new FileOutputStream(
+            new File(archiveDir, base + INDEX_SUFFIX)), CHARSET_UTF8);
+      } catch (IOException ex) {
+        out.close();
+        throw ex;
+      }
+      log.log(Level.FINE, "Started feed archive segment {0}", file);
+      return new Segment(file, out, index);
+    }
+
+    private void finishSegment() {
+      if (segment == null) {
+        return;
+      }
+      try {
+        segment.out.close();
+        segment.index.close();
+      } catch (IOException ex) {
+        failures.incrementAndGet();
+        log.log(Level.WARNING, "Failed to complete feed archive segment", ex);
+      }
+      segment = null;
+      deleteOldSegments();
+    }
+
+    private void abandonSegment() {
+      if (segment == null) {
+        return;
+      }
+      try {
+        segment.out.close();
+      } catch (IOException ex) {
+        // Already failed.
+      }
+      try {
+        segment.index.close();
+      } catch (IOException ex) {
+        // Already failed.
+      }
+      segment = null;
+    }
+
+    private void deleteOldSegments() {
+      if (maxTotalBytes == 0) {
+        return;
+      }
+      File[] segments = archiveDir.listFiles(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.startsWith(SEGMENT_PREFIX)
+              && name.endsWith(SEGMENT_SUFFIX);
+        }
+      });
+      if (segments == null) {
+        return;
+      }
+      Arrays.sort(segments);
+      long total = 0;
+      for (File file : segments) {
+        total += file.length();
+      }
+      // The newest segment is always kept, even if it alone is too large.
+      for (int i = 0; i < segments.length - 1 && total > maxTotalBytes; i++) {
+        File file = segments[i];
+        total -= file.length();
+        String name = file.getName();
+        File index = new File(archiveDir, name.substring(0,
+            name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+        log.log(Level.FINE, "Deleting old feed archive segment {0}", file);
+        if (!file.delete() || !index.delete()) {
+          log.log(Level.WARNING, "Could not delete {0}", file);
+        }
+      }
+    }
+  }
+}
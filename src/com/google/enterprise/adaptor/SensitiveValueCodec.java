@@ -14,6 +14,11 @@
 
 package com.google.enterprise.adaptor;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import java.io.BufferedReader;
 import java.io.Console;
 import java.io.IOException;
@@ -23,7 +28,9 @@ import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
-import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.crypto.BadPaddingException;
@@ -53,8 +60,34 @@ class SensitiveValueCodec implements SensitiveValueDecoder {
       }, "AES");
   private static final Charset CHARSET = Charset.forName("UTF-8");
 
+  /** Default time decoded values are remembered, in milliseconds. */
+  static final long DEFAULT_DECODED_TTL_MILLIS = 60 * 1000;
+  private static final int DECODED_CACHE_SIZE = 100;
+  /**
+   * Number of times expired decoded values are removed per lifetime, which
+   * bounds how long past its lifetime a value is kept.
+   */
+  private static final int CLEANUPS_PER_TTL = 4;
+
   private final KeyPair encryptingKey;
-  private final Random random = new Random();
+  /**
+   * Ciphers are expensive to look up and initialize, but not thread-safe, so
+   * each thread keeps its own, already initialized for one mode and key.
+   */
+  private final ThreadLocal<Cipher> obfuscatingCipher
+      = new CipherThreadLocal(Cipher.ENCRYPT_MODE, OBFUSCATING_KEY);
+  private final ThreadLocal<Cipher> deobfuscatingCipher
+      = new CipherThreadLocal(Cipher.DECRYPT_MODE, OBFUSCATING_KEY);
+  private final ThreadLocal<Cipher> encryptingCipher;
+  private final ThreadLocal<Cipher> decryptingCipher;
+  /**
+   * Recently decoded values, keyed by their encoded form, or {@code null} if
+   * values are not remembered. Entries expire so that plain text is not
+   * kept indefinitely, but the cache only removes them as it is used; {@link
+   * #startBackgroundCleanup} removes them when the codec is idle.
+   */
+  private final Cache<String, String> decoded;
+  private final long decodedTtlMillis;
 
   /**
    * Construct a codec capable of encoding and decoding secrets. The provided
@@ -65,29 +98,84 @@ class SensitiveValueCodec implements SensitiveValueDecoder {
    * @param encryptingKey key used when encryption is requested, or {@code null}
    */
   public SensitiveValueCodec(KeyPair encryptingKey) {
+    this(encryptingKey, DEFAULT_DECODED_TTL_MILLIS);
+  }
+
+  /**
+   * Construct a codec that remembers decoded values for at most {@code
+   * decodedTtlMillis}.
+   *
+   * @param encryptingKey key used when encryption is requested, or {@code null}
+   * @param decodedTtlMillis how long decoded values may be reused, or {@code 0}
+   *     to decode every value each time
+   */
+  public SensitiveValueCodec(KeyPair encryptingKey, long decodedTtlMillis) {
+    this(encryptingKey, decodedTtlMillis, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  SensitiveValueCodec(KeyPair encryptingKey, long decodedTtlMillis,
+      Ticker ticker) {
+    if (decodedTtlMillis < 0) {
+      throw new IllegalArgumentException(
+          "decodedTtlMillis must not be negative");
+    }
     this.encryptingKey = encryptingKey;
+    this.decodedTtlMillis = decodedTtlMillis;
+    if (encryptingKey == null) {
+      encryptingCipher = null;
+      decryptingCipher = null;
+    } else {
+      encryptingCipher = new CipherThreadLocal(Cipher.ENCRYPT_MODE,
+          encryptingKey.getPublic());
+      decryptingCipher = new CipherThreadLocal(Cipher.DECRYPT_MODE,
+          encryptingKey.getPrivate());
+    }
+    if (decodedTtlMillis == 0) {
+      decoded = null;
+    } else {
+      decoded = CacheBuilder.newBuilder()
+          .maximumSize(DECODED_CACHE_SIZE)
+          .expireAfterWrite(decodedTtlMillis, TimeUnit.MILLISECONDS)
+          .ticker(ticker)
+          .build();
+    }
   }
 
-  private Cipher createObfuscatingCipher() {
-    try {
-      return Cipher.getInstance(OBFUSCATING_KEY.getAlgorithm());
-    } catch (NoSuchAlgorithmException ex) {
-      throw new AssertionError();
-    } catch (NoSuchPaddingException ex) {
-      throw new AssertionError();
+  /**
+   * Removes expired decoded values from {@code executor} several times per
+   * lifetime of a decoded value, so that plain text is not kept much longer
+   * than its lifetime while the codec is not being used. The task is short,
+   * so it is suitable for a single-threaded scheduling executor.
+   *
+   * @return future for cancelling the periodic cleanup, or {@code null} if
+   *     decoded values are not remembered
+   */
+  Future<?> startBackgroundCleanup(ScheduledExecutorService executor) {
+    if (decoded == null) {
+      return null;
     }
+    long period = Math.max(1, decodedTtlMillis / CLEANUPS_PER_TTL);
+    return executor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        decoded.cleanUp();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
   }
 
-  private Cipher createEncryptingCipher() {
-    try {
-      return Cipher.getInstance(encryptingKey.getPrivate().getAlgorithm());
-    } catch (NoSuchAlgorithmException ex) {
-      throw new IllegalStateException(ex);
-    } catch (NoSuchPaddingException ex) {
-      throw new IllegalStateException(ex);
+  /** Forgets all decoded values, such as when the codec is no longer used. */
+  void forgetDecodedValues() {
+    if (decoded != null) {
+      decoded.invalidateAll();
     }
   }
 
+  @VisibleForTesting
+  long getDecodedCount() {
+    return decoded == null ? 0 : decoded.size();
+  }
+
   /**
    * Encode {@code readable} using requested {@code security}.
    *
@@ -107,8 +195,7 @@ class SensitiveValueCodec implements SensitiveValueDecoder {
         break;
 
       case OBFUSCATED:
-        encoded = encryptAndBase64(readable, createObfuscatingCipher(),
-            OBFUSCATING_KEY);
+        encoded = encryptAndBase64(readable, obfuscatingCipher);
         break;
 
       case ENCRYPTED:
@@ -116,8 +203,7 @@ class SensitiveValueCodec implements SensitiveValueDecoder {
           throw new IllegalStateException(
               "No key provided to encrypt value");
         }
-        encoded = encryptAndBase64(readable, createEncryptingCipher(),
-            encryptingKey.getPublic());
+        encoded = encryptAndBase64(readable, encryptingCipher);
         break;
 
       default:
@@ -126,20 +212,15 @@ class SensitiveValueCodec implements SensitiveValueDecoder {
     return security.getPrefix() + encoded;
   }
 
-  /**
-   * Beware that the provided Cipher will be modified as part of encryption.
-   */
-  private String encryptAndBase64(String readable, Cipher cipher, Key key) {
+  private String encryptAndBase64(String readable,
+      ThreadLocal<Cipher> cipherHolder) {
     byte[] bytes = readable.getBytes(CHARSET);
 
-    try {
-      cipher.init(Cipher.ENCRYPT_MODE, key);
-    } catch (InvalidKeyException ex) {
-      throw new AssertionError();
-    }
+    Cipher cipher = cipherHolder.get();
     try {
       bytes = cipher.doFinal(bytes);
     } catch (IllegalBlockSizeException ex) {
+      cipherHolder.remove();
       // The algorithm does not seem suited for our use.
       throw new IllegalStateException(ex);
     } catch (BadPaddingException ex) {
@@ -177,6 +258,18 @@ class SensitiveValueCodec implements SensitiveValueDecoder {
   @Override
   public String decodeValue(String nonReadable) {
     SecurityLevel security = determineSecurityLevelUsed(nonReadable);
+    if (security == SecurityLevel.PLAIN_TEXT || decoded == null) {
+      return decodeValue(nonReadable, security);
+    }
+    String readable = decoded.getIfPresent(nonReadable);
+    if (readable == null) {
+      readable = decodeValue(nonReadable, security);
+      decoded.put(nonReadable, readable);
+    }
+    return readable;
+  }
+
+  private String decodeValue(String nonReadable, SecurityLevel security) {
     if (nonReadable.startsWith(security.getPrefix())) {
       nonReadable = nonReadable.substring(security.getPrefix().length());
     }
@@ -185,44 +278,68 @@ class SensitiveValueCodec implements SensitiveValueDecoder {
         return nonReadable;
 
       case OBFUSCATED:
-        return base64AndDecrypt(nonReadable, createObfuscatingCipher(),
-            OBFUSCATING_KEY);
+        return base64AndDecrypt(nonReadable, deobfuscatingCipher);
 
       case ENCRYPTED:
         if (encryptingKey == null) {
           throw new IllegalArgumentException(
               "No key provided to decrypt value");
         }
-        return base64AndDecrypt(nonReadable, createEncryptingCipher(),
-            encryptingKey.getPrivate());
+        return base64AndDecrypt(nonReadable, decryptingCipher);
 
       default:
         throw new AssertionError();
     }
   }
 
-  /**
-   * Beware that the provided Cipher will be modified as part of decryption.
-   */
-  private String base64AndDecrypt(String nonReadable, Cipher cipher, Key key) {
+  private String base64AndDecrypt(String nonReadable,
+      ThreadLocal<Cipher> cipherHolder) {
     byte[] bytes = DatatypeConverter.parseBase64Binary(nonReadable);
 
-    try {
-      cipher.init(Cipher.DECRYPT_MODE, key);
-    } catch (InvalidKeyException ex) {
-      throw new AssertionError();
-    }
+    Cipher cipher = cipherHolder.get();
     try {
       bytes = cipher.doFinal(bytes);
     } catch (IllegalBlockSizeException ex) {
+      cipherHolder.remove();
       throw new AssertionError();
     } catch (BadPaddingException ex) {
+      // The cipher's state is unspecified after a failure, so start afresh.
+      cipherHolder.remove();
       throw new IllegalArgumentException(ex);
     }
 
     return new String(bytes, CHARSET);
   }
 
+  /** Per-thread cipher, initialized once for {@code mode} and {@code key}. */
+  private static class CipherThreadLocal extends ThreadLocal<Cipher> {
+    private final int mode;
+    private final Key key;
+
+    public CipherThreadLocal(int mode, Key key) {
+      this.mode = mode;
+      this.key = key;
+    }
+
+    @Override
+    protected Cipher initialValue() {
+      Cipher cipher;
+      try {
+        cipher = Cipher.getInstance(key.getAlgorithm());
+      } catch (NoSuchAlgorithmException ex) {
+        throw new IllegalStateException(ex);
+      } catch (NoSuchPaddingException ex) {
+        throw new IllegalStateException(ex);
+      }
+      try {
+        cipher.init(mode, key);
+      } catch (InvalidKeyException ex) {
+        throw new AssertionError();
+      }
+      return cipher;
+    }
+  }
+
   /**
    * Possible levels of security for storing value.
    */
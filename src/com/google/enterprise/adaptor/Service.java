@@ -14,6 +14,8 @@
 
 package com.google.enterprise.adaptor;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 
@@ -21,8 +23,11 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Arrays;
+import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -37,6 +42,8 @@ import java.util.logging.Logger;
 // TODO(ejona): improve state pre-condition checking
 public final class Service {
   private static final Logger log = Logger.getLogger(Service.class.getName());
+  /** How often the status of the proxied requests is logged. */
+  private static final long STATUS_LOG_PERIOD_MINUTES = 15;
 
   private final Config config;
   private final HttpServer server;
@@ -46,6 +53,7 @@ public final class Service {
   private final Thread shutdownHook
       = new Thread(new ShutdownHook(), "service-shutdown");
   private int index;
+  private ScheduledExecutorService statusLogExecutor;
 
   private Service(Config config) throws IOException {
     this.config = config;
@@ -64,6 +72,17 @@ public final class Service {
     return instance;
   }
 
+  /**
+   * Logs the status of the requests proxied to each instance. The Service has
+   * no dashboard of its own, so this is where the proxy connections are
+   * reported.
+   */
+  synchronized void logStatuses() {
+    for (Instance instance : instances.values()) {
+      instance.logStatus();
+    }
+  }
+
   public synchronized void deleteInstance(String name, long time,
       TimeUnit unit) {
     Instance instance = instances.get(name);
@@ -86,6 +105,15 @@ public final class Service {
   synchronized void daemonInit() {
     server.start();
     dashboardServer.start();
+    statusLogExecutor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("service-status").build());
+    statusLogExecutor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        logStatuses();
+      }
+    }, STATUS_LOG_PERIOD_MINUTES, STATUS_LOG_PERIOD_MINUTES, TimeUnit.MINUTES);
   }
 
   synchronized void daemonStart() {
@@ -111,6 +139,10 @@ public final class Service {
   }
 
   synchronized void daemonDestroy(long time, TimeUnit unit) {
+    if (statusLogExecutor != null) {
+      statusLogExecutor.shutdownNow();
+      statusLogExecutor = null;
+    }
     Application.httpServerShutdown(server, time, unit);
     Application.httpServerShutdown(dashboardServer, time, unit);
   }
@@ -142,6 +174,11 @@ public final class Service {
     private final File jar;
     private final File workingDir;
     private final int index;
+    private final int port;
+    private final int dashboardPort;
+    private final ReverseProxyHandler proxyHandler;
+    private final ReverseProxyHandler dashboardProxyHandler;
+    private final StatusSource statusSource;
     private Thread running;
     private ShutdownWaiter waiter;
 
@@ -165,6 +202,17 @@ public final class Service {
       this.jar = jar;
       this.workingDir = workingDir;
       this.index = index;
+      this.port = config.getServerPort() + 2 * (index + 1);
+      this.dashboardPort = config.getServerDashboardPort() + 2 * (index + 1);
+      int maxConnections = config.getServerProxyMaxConnections();
+      this.proxyHandler = new ReverseProxyHandler(
+          URI.create("http://127.0.0.1:" + port + "/"), maxConnections,
+          ReverseProxyHandler.DEFAULT_CONNECTION_WAIT_MILLIS);
+      this.dashboardProxyHandler = new ReverseProxyHandler(
+          URI.create("http://127.0.0.1:" + dashboardPort + "/"),
+          maxConnections, ReverseProxyHandler.DEFAULT_CONNECTION_WAIT_MILLIS);
+      this.statusSource
+          = new Dashboard.ReverseProxyStatusSource(name, proxyHandler);
     }
 
     private void install() {
@@ -176,9 +224,6 @@ public final class Service {
       if (running != null) {
         throw new IllegalStateException();
       }
-      final int port = config.getServerPort() + 2 * (index + 1);
-      final int dashboardPort = config.getServerDashboardPort()
-          + 2 * (index + 1);
       final String scheme = config.isServerSecure() ? "https" : "http";
       waiter = new ShutdownWaiter();
       running = new Thread(new Runnable() {
@@ -215,23 +260,30 @@ public final class Service {
       running.start();
 
       HttpContext context = server.createContext(
-          "/" + name + "/", new ReverseProxyHandler(
-              URI.create("http://127.0.0.1:" + port + "/")));
+          "/" + name + "/", proxyHandler);
       context.getFilters().add(waiter.filter());
 
       // TODO(ejona): When you end up visiting the dashboard, it redirects you
       // to its port. It would be nice to fix RedirectHandler to deal with that,
       // although it will require additional config parameters.
       HttpContext dashboardContext = dashboardServer.createContext(
-          "/" + name + "/", new ReverseProxyHandler(
-              URI.create("http://127.0.0.1:" + dashboardPort + "/")));
+          "/" + name + "/", dashboardProxyHandler);
       dashboardContext.getFilters().add(waiter.filter());
     }
 
+    private void logStatus() {
+      Status status = statusSource.retrieveStatus();
+      log.log(status.getCode() == Status.Code.NORMAL ? Level.INFO
+          : Level.WARNING, "{0}: {1}", new Object[] {
+          statusSource.getName(Locale.ENGLISH),
+          status.getMessage(Locale.ENGLISH)});
+    }
+
     private void stop(long time, TimeUnit unit) {
       if (running == null) {
         throw new IllegalStateException();
       }
+      logStatus();
       server.removeContext("/" + name);
       dashboardServer.removeContext("/" + name);
       try {
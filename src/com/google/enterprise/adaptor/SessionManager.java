@@ -16,35 +16,67 @@ package com.google.enterprise.adaptor;
 
 import com.sun.net.httpserver.HttpExchange;
 
+import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.xml.bind.DatatypeConverter;
 
 /**
- * Generic session management, but intended for authn bookkeeping. It implements
- * very lazy session cleanup and does not use any other threads. It cleans up
- * old sessions as it creates a new session, so it is fine with keeping a
- * session around for days past its expiration time if no new sessions are being
- * created.
+ * Generic session management, but intended for authn bookkeeping.
+ *
+ * <p>Sessions are spread over several independently-locked segments, so
+ * concurrent requests for different sessions rarely contend. Each segment
+ * keeps its sessions in access order, which allows expired sessions to be
+ * removed without looking at the sessions that are still live.
+ *
+ * <p>Once {@link #startBackgroundCleanup} has been called, expired sessions are
+ * removed periodically by the provided executor. Until then, cleanup is very
+ * lazy and happens as new sessions are created, so it is fine with keeping a
+ * session around for days past its expiration time if no new sessions are
+ * being created.
+ *
+ * <p>When a {@link SharedSessionStore} is set, authenticated identities can be
+ * shared with other adaptor instances. A session id that is unknown locally
+ * but has an identity in the shared store is adopted, instead of being
+ * replaced by a new session. The identity is read from the shared store once,
+ * when the session is adopted. When a session whose identity this instance
+ * shared expires, the identity is removed from the shared store.
  */
 class SessionManager<E> {
+  private static final Logger log
+      = Logger.getLogger(SessionManager.class.getName());
+  /** Number of segments; must be a power of two. */
+  private static final int SEGMENT_COUNT = 16;
+
   private final TimeProvider timeProvider;
   private final ClientStore<E> clientStore;
-  private final Map<String, Session> sessions = new HashMap<String, Session>();
-  private final Map<String, Long> lastAccess = new HashMap<String, Long>();
+  private final Segment[] segments = new Segment[SEGMENT_COUNT];
   /** Lifetime of sessions, in milliseconds. */
   private final long sessionLifetime;
   /** Maximum frequency to check for expired sessions, in milliseconds. */
   private final long cleanupFrequency;
-  private long nextCleanup;
+  private final AtomicLong nextCleanup = new AtomicLong();
+  private volatile boolean backgroundCleanup;
+  private volatile SharedSessionStore sharedStore;
   private final Random random = new SecureRandom();
 
+  private final AtomicLong totalExpiredSessions = new AtomicLong();
+  private volatile long lastCleanupExpiredSessions;
+  private volatile long lastCleanupDurationNanos;
+
   /**
    * @param clientStore storage for communicating session id with client
    * @param sessionLifetime lifetime of sessions, in milliseconds
@@ -64,6 +96,9 @@ class SessionManager<E> {
     this.clientStore = clientStore;
     this.sessionLifetime = sessionLifetime;
     this.cleanupFrequency = cleanupFrequency;
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment();
+    }
   }
 
   public Session getSession(E clientState) {
@@ -77,81 +112,304 @@ class SessionManager<E> {
       return create ? createSession(clientState) : null;
     }
 
-    synchronized (this) {
-      // Check for expiration now.
-      cleanupIfExpiredSession(value);
-      Session session = sessions.get(value);
-      if (session != null) {
-        updateLastAccess(value);
-        return session;
+    Segment segment = segmentFor(value);
+    long currentTime = timeProvider.currentTimeMillis();
+    boolean removeShared = false;
+    synchronized (segment) {
+      // Moves the session to the end of the segment's access order.
+      SessionEntry entry = segment.sessions.get(value);
+      if (entry != null) {
+        // Check for expiration now.
+        if (isExpired(entry, currentTime)) {
+          segment.sessions.remove(value);
+          totalExpiredSessions.incrementAndGet();
+          removeShared = entry.shared;
+        } else {
+          entry.lastAccess = currentTime;
+          return entry.session;
+        }
       }
+    }
 
-      // Could not find session specified. Assume it expired.
-      return create ? createSession(clientState) : null;
+    if (removeShared) {
+      removeSharedIdentity(value);
+    } else if (sharedStore != null) {
+      SharedSessionStore.Entry shared = loadSharedIdentity(value);
+      if (shared != null) {
+        // Authenticated by another instance.
+        return adoptSession(value, shared);
+      }
     }
+
+    // Could not find session specified. Assume it expired.
+    return create ? createSession(clientState) : null;
   }
 
-  protected synchronized Session createSession(E clientState) {
-    cleanupExpiredSessions();
-    Session session = new HashMapSession();
-    String id = generateRandomIdentifier();
-    sessions.put(id, session);
-    clientStore.store(clientState, id);
-    updateLastAccess(id);
-    return session;
+  /** Creates a local session for an id that is present in the shared store. */
+  private Session adoptSession(String id, SharedSessionStore.Entry shared) {
+    Segment segment = segmentFor(id);
+    synchronized (segment) {
+      SessionEntry entry = segment.sessions.get(id);
+      if (entry == null) {
+        entry = new SessionEntry(new HashMapSession(),
+            timeProvider.currentTimeMillis());
+        entry.sharedIdentity = shared;
+        segment.sessions.put(id, entry);
+      }
+      return entry.session;
+    }
   }
 
-  protected synchronized void updateLastAccess(String id) {
-    lastAccess.put(id, timeProvider.currentTimeMillis());
+  /**
+   * Sets the store used to share authenticated identities with other adaptor
+   * instances, or {@code null} to not share identities.
+   */
+  void setSharedStore(SharedSessionStore sharedStore) {
+    this.sharedStore = sharedStore;
   }
 
-  protected synchronized void cleanupExpiredSessions() {
-    long currentTime = timeProvider.currentTimeMillis();
-    if (nextCleanup > currentTime) {
+  /**
+   * Makes {@code identity} available to other adaptor instances for the
+   * session of {@code clientState}. Identities that include a password are not
+   * shared, so that passwords are never written to the shared store.
+   */
+  void shareIdentity(E clientState, AuthnIdentity identity,
+      long expirationTimeMillis) {
+    SharedSessionStore store = sharedStore;
+    if (store == null) {
       return;
     }
-
-    List<String> toRemove = new LinkedList<String>();
-    long lastAccessLimit = currentTime - sessionLifetime;
-    for (Map.Entry<String, Long> me : lastAccess.entrySet()) {
-      if (lastAccessLimit > me.getValue()) {
-        toRemove.add(me.getKey());
+    if (identity.getPassword() != null) {
+      log.fine("Not sharing identity because it contains a password");
+      return;
+    }
+    String id = clientStore.retrieve(clientState);
+    if (id == null) {
+      return;
+    }
+    Segment segment = segmentFor(id);
+    synchronized (segment) {
+      SessionEntry entry = segment.sessions.get(id);
+      if (entry == null) {
+        // Expired concurrently.
+        return;
       }
+      entry.shared = true;
+    }
+    try {
+      store.store(id, identity, expirationTimeMillis);
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Could not share session identity", ex);
     }
+  }
 
-    for (String id : toRemove) {
-      sessions.remove(id);
-      lastAccess.remove(id);
+  /**
+   * Returns the identity that another adaptor instance shared for the session
+   * of {@code clientState}, as loaded when the session was adopted, or {@code
+   * null} if the session was not adopted. This does not access the shared
+   * store.
+   */
+  SharedSessionStore.Entry getSharedIdentity(E clientState) {
+    String id = clientStore.retrieve(clientState);
+    if (id == null) {
+      return null;
+    }
+    Segment segment = segmentFor(id);
+    synchronized (segment) {
+      SessionEntry entry = segment.sessions.get(id);
+      return entry == null ? null : entry.sharedIdentity;
     }
+  }
 
-    nextCleanup = currentTime + cleanupFrequency;
+  private SharedSessionStore.Entry loadSharedIdentity(String id) {
+    SharedSessionStore store = sharedStore;
+    if (store == null) {
+      return null;
+    }
+    try {
+      return store.load(id, timeProvider.currentTimeMillis());
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Could not load shared session identity", ex);
+      return null;
+    }
   }
 
-  protected synchronized void cleanupIfExpiredSession(String id) {
-    Long lastAccessForId = lastAccess.get(id);
-    if (lastAccessForId == null) {
+  private void removeSharedIdentity(String id) {
+    SharedSessionStore store = sharedStore;
+    if (store == null) {
       return;
     }
+    try {
+      store.remove(id);
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Could not remove shared session identity", ex);
+    }
+  }
+
+  protected Session createSession(E clientState) {
+    if (!backgroundCleanup) {
+      cleanupExpiredSessions();
+    }
+    Session session = new HashMapSession();
+    String id = generateRandomIdentifier();
+    Segment segment = segmentFor(id);
+    synchronized (segment) {
+      segment.sessions.put(id,
+          new SessionEntry(session, timeProvider.currentTimeMillis()));
+    }
+    clientStore.store(clientState, id);
+    return session;
+  }
 
+  /**
+   * Removes expired sessions, unless it has been less than the cleanup
+   * frequency since the last time expired sessions were removed.
+   */
+  protected void cleanupExpiredSessions() {
     long currentTime = timeProvider.currentTimeMillis();
-    long lastAccessLimit = currentTime - sessionLifetime;
-    if (lastAccessLimit > lastAccessForId) {
-      sessions.remove(id);
-      lastAccess.remove(id);
+    long next = nextCleanup.get();
+    if (next > currentTime) {
+      return;
     }
+    if (!nextCleanup.compareAndSet(next, currentTime + cleanupFrequency)) {
+      // Another thread is performing the cleanup.
+      return;
+    }
+    removeExpiredSessions(currentTime);
+  }
+
+  /**
+   * Removes all expired sessions. Since each segment is in access order, this
+   * only needs to look at the expired sessions and the oldest live session in
+   * each segment.
+   */
+  private void removeExpiredSessions(long currentTime) {
+    long startNanos = System.nanoTime();
+    long expired = 0;
+    List<String> sharedIds = new ArrayList<String>();
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        Iterator<Map.Entry<String, SessionEntry>> it
+            = segment.sessions.entrySet().iterator();
+        while (it.hasNext()) {
+          Map.Entry<String, SessionEntry> mapEntry = it.next();
+          if (!isExpired(mapEntry.getValue(), currentTime)) {
+            break;
+          }
+          if (mapEntry.getValue().shared) {
+            sharedIds.add(mapEntry.getKey());
+          }
+          it.remove();
+          expired++;
+        }
+      }
+    }
+    // Files may be involved, so this is done without holding any lock.
+    for (String id : sharedIds) {
+      removeSharedIdentity(id);
+    }
+    totalExpiredSessions.addAndGet(expired);
+    lastCleanupExpiredSessions = expired;
+    lastCleanupDurationNanos = System.nanoTime() - startNanos;
+    log.log(Level.FINE, "Removed {0} expired sessions in {1} ns",
+        new Object[] {expired, lastCleanupDurationNanos});
+  }
+
+  private boolean isExpired(SessionEntry entry, long currentTime) {
+    return currentTime - sessionLifetime > entry.lastAccess;
+  }
+
+  /**
+   * Removes expired sessions from {@code executor} every cleanup frequency
+   * milliseconds, instead of while creating sessions. The task is short, so
+   * it is suitable for a single-threaded scheduling executor. Expired
+   * identities are also removed from the shared store, if any.
+   *
+   * @return future for cancelling the periodic cleanup
+   */
+  Future<?> startBackgroundCleanup(ScheduledExecutorService executor) {
+    Future<?> future = executor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        long currentTime = timeProvider.currentTimeMillis();
+        removeExpiredSessions(currentTime);
+        SharedSessionStore store = sharedStore;
+        if (store != null) {
+          try {
+            store.removeExpired(currentTime);
+          } catch (IOException ex) {
+            log.log(Level.WARNING, "Could not remove expired shared sessions",
+                ex);
+          }
+        }
+      }
+    }, cleanupFrequency, cleanupFrequency, TimeUnit.MILLISECONDS);
+    backgroundCleanup = true;
+    return future;
+  }
+
+  private Segment segmentFor(String id) {
+    int h = id.hashCode();
+    // Spread the bits, since the low bits of String hashes are weak.
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & (SEGMENT_COUNT - 1)];
   }
 
   /**
    * Generate a secure, random, 128-bit, base64-encoded identifier.
    */
-  synchronized String generateRandomIdentifier() {
+  String generateRandomIdentifier() {
     byte[] rawId = new byte[16];
     random.nextBytes(rawId);
     return DatatypeConverter.printBase64Binary(rawId);
   }
 
   int getSessionCount() {
-    return sessions.size();
+    int count = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        count += segment.sessions.size();
+      }
+    }
+    return count;
+  }
+
+  /** Number of sessions removed due to expiration since creation. */
+  long getTotalExpiredSessions() {
+    return totalExpiredSessions.get();
+  }
+
+  /** Number of sessions removed by the most recent cleanup. */
+  long getLastCleanupExpiredSessions() {
+    return lastCleanupExpiredSessions;
+  }
+
+  /** Duration of the most recent cleanup, in nanoseconds. */
+  long getLastCleanupDurationNanos() {
+    return lastCleanupDurationNanos;
+  }
+
+  /** Sessions whose ids hash to the same segment. */
+  private static class Segment {
+    /** In access order; the first entry is the least recently used. */
+    final Map<String, SessionEntry> sessions
+        = new LinkedHashMap<String, SessionEntry>(16, 0.75f, true);
+  }
+
+  private static class SessionEntry {
+    final Session session;
+    /** Guarded by the owning segment. */
+    long lastAccess;
+    /** Whether this instance shared the identity; guarded by the segment. */
+    boolean shared;
+    /** Identity loaded from the shared store when the session was adopted. */
+    SharedSessionStore.Entry sharedIdentity;
+
+    SessionEntry(Session session, long lastAccess) {
+      this.session = session;
+      this.lastAccess = lastAccess;
+    }
   }
 
   /** A single-value storage per client. */
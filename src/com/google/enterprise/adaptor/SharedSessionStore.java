@@ -0,0 +1,72 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+
+/**
+ * Storage of authenticated identities that is shared by several adaptor
+ * instances, keyed by session id. It allows a user authenticated by one
+ * instance to be recognized by the other instances without repeating the
+ * authentication.
+ *
+ * <p>Implementations must be thread-safe.
+ */
+interface SharedSessionStore {
+  /**
+   * Stores {@code identity} for the session {@code sessionId}, replacing any
+   * identity previously stored for it.
+   *
+   * @param expirationTimeMillis time after which the identity is no longer
+   *     valid, in milliseconds since the epoch
+   */
+  public void store(String sessionId, AuthnIdentity identity,
+      long expirationTimeMillis) throws IOException;
+
+  /**
+   * Returns the identity stored for {@code sessionId}, or {@code null} if there
+   * is none or it expired before {@code currentTimeMillis}.
+   */
+  public Entry load(String sessionId, long currentTimeMillis)
+      throws IOException;
+
+  /** Removes the identity stored for {@code sessionId}, if any. */
+  public void remove(String sessionId) throws IOException;
+
+  /** Removes all identities that expired before {@code currentTimeMillis}. */
+  public void removeExpired(long currentTimeMillis) throws IOException;
+
+  /** An identity along with its expiration time. */
+  public static final class Entry {
+    private final AuthnIdentity identity;
+    private final long expirationTimeMillis;
+
+    public Entry(AuthnIdentity identity, long expirationTimeMillis) {
+      if (identity == null) {
+        throw new NullPointerException();
+      }
+      this.identity = identity;
+      this.expirationTimeMillis = expirationTimeMillis;
+    }
+
+    public AuthnIdentity getIdentity() {
+      return identity;
+    }
+
+    public long getExpirationTimeMillis() {
+      return expirationTimeMillis;
+    }
+  }
+}
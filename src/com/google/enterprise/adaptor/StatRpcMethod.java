@@ -80,6 +80,8 @@ class StatRpcMethod implements RpcHandler.RpcMethod {
       simple.put("numTotalNonGsaRequests", journalSnap.numTotalNonGsaRequests);
       simple.put("numUniqueNonGsaRequests",
                  journalSnap.numUniqueNonGsaRequests);
+      simple.put("numTotalCoalescedRequests",
+                 journalSnap.numTotalCoalescedRequests);
       simple.put("timeResolution", journalSnap.timeResolution);
       simple.put("lastSuccessfulFullPushStart",
                  journalSnap.lastSuccessfulFullPushStart);
@@ -39,18 +39,34 @@ enum Translation {
   HTTP_BAD_METHOD,
   HTTP_CONFLICT_INVALID_HEADER,
   HTTP_INTERNAL_ERROR,
+  HTTP_SERVICE_UNAVAILABLE,
   STATS_CONFIG_NONE,
   STATS_VERSION_UNKNOWN,
+  STATUS_BACK_CHANNEL,
+  STATUS_BACK_CHANNEL_REQUESTS,
   STATUS_CRAWLING,
   STATUS_CRAWLING_NO_ACCESSES_IN_PAST_DAY,
   STATUS_ERROR_RATE,
   STATUS_ERROR_RATE_RATE,
   STATUS_FEED,
+  STATUS_FEED_ARCHIVE,
+  STATUS_FEED_ARCHIVE_PROGRESS,
   STATUS_FEED_INTERRUPTED,
+  STATUS_FEED_REPLAY,
+  STATUS_FEED_REPLAY_DONE,
+  STATUS_FEED_REPLAY_RUNNING,
+  STATUS_INCREMENTAL_LAG,
+  STATUS_INCREMENTAL_LAG_SECS,
   STATUS_JAVA_VERSION,
   STATUS_JAVA_VERSION_SUPPORTED,
   STATUS_JAVA_VERSION_UNKNOWN,
   STATUS_JAVA_VERSION_UNSUPPORTED,
+  STATUS_REVERSE_PROXY,
+  STATUS_REVERSE_PROXY_REQUESTS,
+  STATUS_SAML_PARSER_POOL,
+  STATUS_SAML_PARSER_POOL_USAGE,
+  STATUS_SESSIONS,
+  STATUS_SESSIONS_ACTIVE,
   ;
 
   /**
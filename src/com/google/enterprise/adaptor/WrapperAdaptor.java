@@ -105,5 +105,10 @@ class WrapperAdaptor {
     public void setAuthzAuthority(AuthzAuthority authzAuthority) {
       context.setAuthzAuthority(authzAuthority);
     }
+
+    @Override
+    public void setHeartbeatProbe(HeartbeatProbe heartbeatProbe) {
+      context.setHeartbeatProbe(heartbeatProbe);
+    }
   }
 }
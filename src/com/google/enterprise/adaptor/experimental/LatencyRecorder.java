@@ -0,0 +1,124 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.experimental;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records request latencies in log-linear buckets, which bound the error of
+ * any percentile to about 3% while using constant memory, however long a
+ * benchmark runs. Thread-safe without locking.
+ */
+class LatencyRecorder {
+  /** Number of buckets each power of two is divided into. */
+  private static final int SUB_BUCKETS = 32;
+  private static final int SUB_BUCKET_BITS = 5;
+  /** Enough buckets for any latency that fits in a long of microseconds. */
+  private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1);
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /** Records the latency of a completed request. */
+  public void record(long nanos) {
+    long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    counts.incrementAndGet(bucketOf(micros));
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    long currentMax;
+    while ((currentMax = maxMicros.get()) < micros) {
+      if (maxMicros.compareAndSet(currentMax, micros)) {
+        break;
+      }
+    }
+  }
+
+  /** Records a request that failed or received an error status. */
+  public void recordError() {
+    errors.incrementAndGet();
+  }
+
+  /** Number of latencies recorded. */
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getErrorCount() {
+    return errors.get();
+  }
+
+  public double getMeanMillis() {
+    long n = count.get();
+    return n == 0 ? 0 : totalMicros.get() / 1000.0 / n;
+  }
+
+  public double getMaxMillis() {
+    return maxMicros.get() / 1000.0;
+  }
+
+  /**
+   * Returns the latency below which {@code percentile} percent of the recorded
+   * latencies fall, or {@code 0} if there are none.
+   *
+   * @param percentile between 0 and 100
+   */
+  public double getPercentileMillis(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be in [0, 100]");
+    }
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), maxMicros.get()) / 1000.0;
+      }
+    }
+    return getMaxMillis();
+  }
+
+  static int bucketOf(long micros) {
+    if (micros < 2 * SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+    int sub = (int) (micros >>> shift) - SUB_BUCKETS;
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  /** Largest number of microseconds that falls in {@code bucket}. */
+  static long upperBoundOf(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    int sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((long) (sub + 1) << shift) - 1;
+  }
+}
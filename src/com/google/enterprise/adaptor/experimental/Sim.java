@@ -25,6 +25,7 @@ import org.apache.commons.fileupload.FileUpload;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.RequestContext;
 import org.apache.commons.fileupload.UploadContext;
+import org.json.simple.JSONValue;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -32,22 +33,35 @@ import org.xml.sax.SAXException;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
@@ -55,36 +69,192 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
-/** Accepts adaptor feeds and issues requests for documents. */
+/**
+ * Accepts adaptor feeds and issues requests for documents, like a GSA would.
+ *
+ * <p>With options it doubles as a load generator and benchmark: several
+ * crawler threads request the fed URLs, mixing GET, HEAD and If-Modified-Since
+ * requests and optionally SAML batch authz requests, chosen with a seeded
+ * random generator so that runs can be repeated. Throughput and latency
+ * percentiles of each kind of request are written as a JSON report when the
+ * run ends. For example:
+ *
+ * <pre>ant sim -Dsim.args="--threads=16 --passPauseMillis=0 --headPercent=20
+ *     --ifModifiedSincePercent=30 --durationSecs=300 --report=sim.json"</pre>
+ *
+ * See {@link Options} for all options.
+ */
 public class Sim implements Runnable {
   private static Logger log
       = Logger.getLogger(Sim.class.getName());
   static final Charset UTF8 = Charset.forName("UTF-8");
+  /** Sent as If-Modified-Since before a document's Last-Modified is known. */
+  private static final String EPOCH = "Thu, 01 Jan 1970 00:00:00 GMT";
+
+  /** Kinds of requests, each reported separately. */
+  enum Endpoint {
+    GET, HEAD, IF_MODIFIED_SINCE, AUTHZ
+  }
+
+  /**
+   * Settings of a run, each given on the command line as {@code
+   * --name=value}.
+   */
+  static class Options {
+    /** Port the feed acceptor listens on; {@code 0} picks a free port. */
+    int feedPort = 19900;
+    /** Number of crawler threads. */
+    int threads = 1;
+    /** Pause of each crawler after requesting every URL once. */
+    long passPauseMillis = 20 * 1000;
+    /** Percentage of requests that are HEAD requests. */
+    int headPercent;
+    /** Percentage of requests that are conditional GET requests. */
+    int ifModifiedSincePercent;
+    /** Percentage of requests that are SAML batch authz requests. */
+    int authzPercent;
+    /** Adaptor's SAML authz URL, like https://host:5678/saml-authz. */
+    String authzUrl;
+    /** User whose access is checked by authz requests. */
+    String authzSubject = "user";
+    /** Number of URLs checked by each authz request. */
+    int authzBatchSize = 1;
+    /** Length of the run; {@code 0} runs until stopped. */
+    long durationSecs;
+    /** Number of requests after which the run ends; {@code 0} for no limit. */
+    long maxRequests;
+    /** File the JSON report is written to, instead of standard output. */
+    String report;
+    /** Seed for choosing URLs and kinds of requests. */
+    long seed;
+
+    static Options parse(String[] args) {
+      Options options = new Options();
+      for (String arg : args) {
+        int equals = arg.indexOf('=');
+        if (!arg.startsWith("--") || equals < 0) {
+          throw new IllegalArgumentException("Expected --name=value: " + arg);
+        }
+        String name = arg.substring(2, equals);
+        String value = arg.substring(equals + 1);
+        if ("feedPort".equals(name)) {
+          options.feedPort = Integer.parseInt(value);
+        } else if ("threads".equals(name)) {
+          options.threads = Integer.parseInt(value);
+        } else if ("passPauseMillis".equals(name)) {
+          options.passPauseMillis = Long.parseLong(value);
+        } else if ("headPercent".equals(name)) {
+          options.headPercent = Integer.parseInt(value);
+        } else if ("ifModifiedSincePercent".equals(name)) {
+          options.ifModifiedSincePercent = Integer.parseInt(value);
+        } else if ("authzPercent".equals(name)) {
+          options.authzPercent = Integer.parseInt(value);
+        } else if ("authzUrl".equals(name)) {
+          options.authzUrl = value;
+        } else if ("authzSubject".equals(name)) {
+          options.authzSubject = value;
+        } else if ("authzBatchSize".equals(name)) {
+          options.authzBatchSize = Integer.parseInt(value);
+        } else if ("durationSecs".equals(name)) {
+          options.durationSecs = Long.parseLong(value);
+        } else if ("maxRequests".equals(name)) {
+          options.maxRequests = Long.parseLong(value);
+        } else if ("report".equals(name)) {
+          options.report = value;
+        } else if ("seed".equals(name)) {
+          options.seed = Long.parseLong(value);
+        } else {
+          throw new IllegalArgumentException("Unknown option: " + name);
+        }
+      }
+      options.validate();
+      return options;
+    }
+
+    void validate() {
+      if (threads <= 0 || passPauseMillis < 0 || durationSecs < 0
+          || maxRequests < 0 || authzBatchSize <= 0) {
+        throw new IllegalArgumentException("Invalid limits");
+      }
+      if (headPercent < 0 || ifModifiedSincePercent < 0 || authzPercent < 0
+          || headPercent + ifModifiedSincePercent + authzPercent > 100) {
+        throw new IllegalArgumentException(
+            "Percentages must not be negative or add up to more than 100");
+      }
+      if (authzPercent > 0 && authzUrl == null) {
+        throw new IllegalArgumentException("authzPercent requires authzUrl");
+      }
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      map.put("threads", threads);
+      map.put("passPauseMillis", passPauseMillis);
+      map.put("headPercent", headPercent);
+      map.put("ifModifiedSincePercent", ifModifiedSincePercent);
+      map.put("authzPercent", authzPercent);
+      map.put("authzBatchSize", authzBatchSize);
+      map.put("durationSecs", durationSecs);
+      map.put("maxRequests", maxRequests);
+      map.put("seed", seed);
+      return map;
+    }
+  }
 
   private static class Index {
     Set<URL> urls = new HashSet<URL>();
-    Map<URL, byte[]> content = new HashMap<URL, byte[]>();
-    Map<URL, String> type = new HashMap<URL, String>(); // could be null
+    Map<URL, byte[]> content
+        = Collections.synchronizedMap(new HashMap<URL, byte[]>());
+    // could be null
+    Map<URL, String> type
+        = Collections.synchronizedMap(new HashMap<URL, String>());
     Map<URL, Map<String, String>> meta
-        = new HashMap<URL, Map<String, String>>();
+        = Collections.synchronizedMap(new HashMap<URL, Map<String, String>>());
+    Map<URL, String> lastModified = new ConcurrentHashMap<URL, String>();
   }
 
+  private final Options options;
   private Index index = new Index(); // contains contents and metadata
+  private final Map<Endpoint, LatencyRecorder> stats
+      = new LinkedHashMap<Endpoint, LatencyRecorder>();
+  private final AtomicLong requestsLeft = new AtomicLong();
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile boolean stopped;
+  private HttpServer server;
+  private final List<Thread> crawlers = new ArrayList<Thread>();
+
+  public Sim() {
+    this(new Options());
+  }
+
+  Sim(Options options) {
+    options.validate();
+    this.options = options;
+    for (Endpoint endpoint : Endpoint.values()) {
+      stats.put(endpoint, new LatencyRecorder());
+    }
+    requestsLeft.set(options.maxRequests);
+  }
 
   private void startFeedAcceptor() throws IOException {
     log.info("starting feed acceptor");
-    HttpServer server = HttpServer.create();
+    server = HttpServer.create();
     int useDefaultBacklog = -1;
-    server.bind(new InetSocketAddress(19900), useDefaultBacklog);
+    server.bind(new InetSocketAddress(options.feedPort), useDefaultBacklog);
     server.createContext("/xmlfeed", new FeedAcceptor());
     server.start();
     log.info("started feed acceptor");
   }
 
-  private void startCrawler() {
-    log.info("starting crawler");
-    new Thread(new Crawler()).start();
-    log.info("started crawler");
+  private void startCrawlers() {
+    log.info("starting " + options.threads + " crawlers");
+    for (int i = 0; i < options.threads; i++) {
+      Thread thread = new Thread(new Crawler(new Random(options.seed + i)),
+          "crawler-" + i);
+      crawlers.add(thread);
+      thread.start();
+    }
+    log.info("started crawlers");
   }
 
   public void run() {
@@ -93,13 +263,102 @@ public class Sim implements Runnable {
     } catch (IOException ie) {
       throw new RuntimeException("failed to start feed acceptor", ie);
     }
-    startCrawler();
-    // TODO: add serving
-    // TODO: add stops to exit
+    startCrawlers();
+    if (options.durationSecs == 0 && options.maxRequests == 0) {
+      // Runs until the process is stopped.
+      return;
+    }
+    try {
+      writeReport(runToEnd());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (IOException ex) {
+      throw new RuntimeException("failed to write report", ex);
+    }
+  }
+
+  /**
+   * Waits until the duration or number of requests of the run is reached,
+   * stops the crawlers and feed acceptor, and returns the report.
+   */
+  Map<String, Object> runToEnd() throws InterruptedException {
+    long startNanos = System.nanoTime();
+    if (options.durationSecs > 0) {
+      done.await(options.durationSecs, TimeUnit.SECONDS);
+    } else {
+      done.await();
+    }
+    stop();
+    return createReport(System.nanoTime() - startNanos);
+  }
+
+  /** Stops crawling and accepting feeds. */
+  void stop() throws InterruptedException {
+    stopped = true;
+    for (Thread crawler : crawlers) {
+      crawler.interrupt();
+    }
+    for (Thread crawler : crawlers) {
+      crawler.join();
+    }
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  /** Adds URLs to crawl, as if they had been fed. */
+  void addUrls(Set<URL> urls) {
+    synchronized (index.urls) {
+      index.urls.addAll(urls);
+    }
+  }
+
+  Map<String, Object> createReport(long elapsedNanos) {
+    double elapsedSecs = elapsedNanos / 1e9;
+    Map<String, Object> endpoints = new LinkedHashMap<String, Object>();
+    long total = 0;
+    for (Map.Entry<Endpoint, LatencyRecorder> entry : stats.entrySet()) {
+      LatencyRecorder recorder = entry.getValue();
+      total += recorder.getCount();
+      Map<String, Object> endpoint = new LinkedHashMap<String, Object>();
+      endpoint.put("requests", recorder.getCount());
+      endpoint.put("errors", recorder.getErrorCount());
+      endpoint.put("throughputPerSec", recorder.getCount() / elapsedSecs);
+      endpoint.put("meanMillis", recorder.getMeanMillis());
+      endpoint.put("p50Millis", recorder.getPercentileMillis(50));
+      endpoint.put("p99Millis", recorder.getPercentileMillis(99));
+      endpoint.put("p999Millis", recorder.getPercentileMillis(99.9));
+      endpoint.put("maxMillis", recorder.getMaxMillis());
+      endpoints.put(entry.getKey().name(), endpoint);
+    }
+    Map<String, Object> report = new LinkedHashMap<String, Object>();
+    report.put("options", options.toMap());
+    report.put("elapsedSecs", elapsedSecs);
+    report.put("requests", total);
+    report.put("throughputPerSec", total / elapsedSecs);
+    report.put("endpoints", endpoints);
+    return report;
+  }
+
+  private void writeReport(Map<String, Object> report) throws IOException {
+    String json = JSONValue.toJSONString(report);
+    if (options.report == null) {
+      System.out.println(json);
+      return;
+    }
+    Writer writer = new OutputStreamWriter(
+        new FileOutputStream(new File(options.report)), UTF8);
+    try {
+      writer.write(json);
+      writer.write("\n");
+    } finally {
+      writer.close();
+    }
+    log.info("wrote report to " + options.report);
   }
 
   public static void main(String args[]) {
-    new Sim().run(); 
+    new Sim(Options.parse(args)).run();
   }
 
 
@@ -129,46 +388,183 @@ public class Sim implements Runnable {
     }
   }
 
-  /** Periodically acquires new content and metadata for each URL. */
+  /**
+   * Repeatedly requests every URL, in an order and with kinds of requests
+   * chosen by its own random generator.
+   */
   private class Crawler implements Runnable {
-    private Set<URL> dupIndexUrls() {
+    private final Random random;
+
+    Crawler(Random random) {
+      this.random = random;
+    }
+
+    /** Returns the URLs in a stable order, so runs can be repeated. */
+    private List<URL> dupIndexUrls() {
+      List<URL> urls;
       synchronized (index.urls) {
-        return new HashSet<URL>(index.urls);  
+        urls = new ArrayList<URL>(index.urls);
       }
+      Collections.sort(urls, new Comparator<URL>() {
+        @Override
+        public int compare(URL a, URL b) {
+          return a.toString().compareTo(b.toString());
+        }
+      });
+      return urls;
     }
 
     public void run() {
-      for (;;) {
-        log.info("crawler about to hibernate");
-        try {
-          Thread.sleep(1000 * 20);
-        } catch (InterruptedException terup) {
-          log.info("crawler awoken early");
+      while (!stopped) {
+        List<URL> urls = dupIndexUrls();
+        Collections.shuffle(urls, random);
+        for (URL doc : urls) {
+          if (stopped) {
+            return;
+          }
+          if (options.maxRequests > 0
+              && requestsLeft.getAndDecrement() <= 0) {
+            done.countDown();
+            return;
+          }
+          request(doc, urls);
         }
-        log.info("crawler is awake");
-        for (URL doc : dupIndexUrls()) {
-          crawl(doc);
+        if (urls.isEmpty() || options.passPauseMillis > 0) {
+          log.fine("crawler about to hibernate");
+          try {
+            Thread.sleep(urls.isEmpty()
+                ? Math.max(100, options.passPauseMillis)
+                : options.passPauseMillis);
+          } catch (InterruptedException terup) {
+            log.fine("crawler awoken early");
+          }
         }
       }
     }
 
-    private void crawl(URL doc) {
-      log.info("about to crawl: " + doc);
+    private void request(URL doc, List<URL> urls) {
+      int roll = random.nextInt(100);
+      Endpoint endpoint;
+      int head = options.authzPercent + options.headPercent;
+      if (roll < options.authzPercent) {
+        endpoint = Endpoint.AUTHZ;
+      } else if (roll < head) {
+        endpoint = Endpoint.HEAD;
+      } else if (roll < head + options.ifModifiedSincePercent) {
+        endpoint = Endpoint.IF_MODIFIED_SINCE;
+      } else {
+        endpoint = Endpoint.GET;
+      }
+      // Chosen now, so the sequence of random numbers does not depend on how
+      // requests turn out.
+      List<URL> batch = new ArrayList<URL>();
+      if (endpoint == Endpoint.AUTHZ) {
+        for (int i = 0; i < options.authzBatchSize; i++) {
+          batch.add(urls.get(random.nextInt(urls.size())));
+        }
+      }
+      LatencyRecorder recorder = stats.get(endpoint);
+      long start = System.nanoTime();
       try {
-        URLConnection con = doc.openConnection();
-        byte content[]
-            = IOHelper.readInputStreamToByteArray(con.getInputStream());
-        index.content.put(doc, content);
-        Map<String, List<String>> headers = con.getHeaderFields();
-        List<String> ct = headers.get("Content-type");
-        index.type.put(doc, (null != ct && ct.size() > 0) ? ct.get(0) : null);
-        index.meta.put(doc, parseMeta(headers.get("X-gsa-external-metadata")));
-        for (String k : headers.keySet()) {
-          log.info("header: " + k + ":" + headers.get(k));
+        boolean ok;
+        if (endpoint == Endpoint.AUTHZ) {
+          ok = authorize(batch);
+        } else {
+          ok = crawl(doc, endpoint);
+        }
+        recorder.record(System.nanoTime() - start);
+        if (!ok) {
+          recorder.recordError();
         }
-        log.info("crawled: " + doc);
       } catch (IOException ie) {
-        log.info("failed getting: " + doc);
+        recorder.recordError();
+        log.log(Level.FINE, "failed getting: " + doc, ie);
+      }
+    }
+
+    /** Returns whether the request succeeded. */
+    private boolean crawl(URL doc, Endpoint endpoint) throws IOException {
+      log.fine("about to crawl: " + doc);
+      HttpURLConnection con = (HttpURLConnection) doc.openConnection();
+      if (endpoint == Endpoint.HEAD) {
+        con.setRequestMethod("HEAD");
+      } else if (endpoint == Endpoint.IF_MODIFIED_SINCE) {
+        String since = index.lastModified.get(doc);
+        con.setRequestProperty("If-Modified-Since",
+            since == null ? EPOCH : since);
+      }
+      int status = con.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK
+          || endpoint == Endpoint.HEAD) {
+        drain(con);
+        return status < 400;
+      }
+      byte content[]
+          = IOHelper.readInputStreamToByteArray(con.getInputStream());
+      index.content.put(doc, content);
+      Map<String, List<String>> headers = con.getHeaderFields();
+      List<String> ct = headers.get("Content-type");
+      index.type.put(doc, (null != ct && ct.size() > 0) ? ct.get(0) : null);
+      index.meta.put(doc, parseMeta(headers.get("X-gsa-external-metadata")));
+      String lastModified = con.getHeaderField("Last-Modified");
+      if (lastModified != null) {
+        index.lastModified.put(doc, lastModified);
+      }
+      if (log.isLoggable(Level.FINEST)) {
+        for (String k : headers.keySet()) {
+          log.finest("header: " + k + ":" + headers.get(k));
+        }
+      }
+      log.fine("crawled: " + doc);
+      return true;
+    }
+
+    /** Sends one SAML batch authz request; returns whether it succeeded. */
+    private boolean authorize(List<URL> batch) throws IOException {
+      StringBuilder soap = new StringBuilder()
+          .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+          .append("<soap11:Envelope xmlns:soap11=")
+          .append("\"http://schemas.xmlsoap.org/soap/envelope/\">")
+          .append("<soap11:Body>");
+      for (int i = 0; i < batch.size(); i++) {
+        soap.append("<samlp:AuthzDecisionQuery ID=\"q").append(i)
+            .append("\" IssueInstant=\"2013-01-01T00:00:00Z\" ")
+            .append("Version=\"2.0\" Resource=\"")
+            .append(escapeXml(batch.get(i).toString())).append("\" ")
+            .append("xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ")
+            .append("xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\">")
+            .append("<saml:Subject><saml:NameID>")
+            .append(escapeXml(options.authzSubject))
+            .append("</saml:NameID></saml:Subject>")
+            .append("<saml:Action ")
+            .append("Namespace=\"urn:oasis:names:tc:SAML:1.0:action:ghpp\">")
+            .append("GET</saml:Action></samlp:AuthzDecisionQuery>");
+      }
+      soap.append("</soap11:Body></soap11:Envelope>");
+      byte[] body = soap.toString().getBytes(UTF8);
+      HttpURLConnection con
+          = (HttpURLConnection) new URL(options.authzUrl).openConnection();
+      con.setRequestMethod("POST");
+      con.setDoOutput(true);
+      con.setFixedLengthStreamingMode(body.length);
+      con.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
+      OutputStream out = con.getOutputStream();
+      try {
+        out.write(body);
+      } finally {
+        out.close();
+      }
+      int status = con.getResponseCode();
+      drain(con);
+      return status == HttpURLConnection.HTTP_OK;
+    }
+
+    /** Reads the rest of the response, so the connection can be reused. */
+    private void drain(HttpURLConnection con) throws IOException {
+      InputStream in = con.getResponseCode() >= 400
+          ? con.getErrorStream() : con.getInputStream();
+      if (in != null) {
+        IOHelper.readInputStreamToByteArray(in);
       }
     }
 
@@ -200,8 +596,8 @@ public class Sim implements Runnable {
           String value = m.substring(splitPoint + 1);
           key = percentDecode(key);
           value = percentDecode(value);
-          log.info("key: " + key);
-          log.info("value: " + value);
+          log.fine("key: " + key);
+          log.fine("value: " + value);
           map.put(key, value);
           break;
         default: // have multiple pieces split by comma
@@ -212,6 +608,11 @@ public class Sim implements Runnable {
     }
   }
 
+  private static String escapeXml(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;")
+        .replace(">", "&gt;").replace("\"", "&quot;");
+  }
+
   private void processMultipartPost(HttpExchange ex) throws IOException {
     InputStream inStream = ex.getRequestBody();
     String encoding = ex.getRequestHeaders().getFirst("Content-encoding");
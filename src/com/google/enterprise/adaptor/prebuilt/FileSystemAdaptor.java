@@ -20,26 +20,40 @@ import com.google.enterprise.adaptor.Config;
 import com.google.enterprise.adaptor.DocId;
 import com.google.enterprise.adaptor.DocIdPusher;
 import com.google.enterprise.adaptor.IOHelper;
+import com.google.enterprise.adaptor.PollingIncrementalLister;
 import com.google.enterprise.adaptor.Request;
 import com.google.enterprise.adaptor.Response;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 /**
- * Adaptor serving files from current directory
+ * Adaptor serving files from current directory. When incremental polling is
+ * enabled, added, modified and deleted files are noticed between full
+ * listings by comparing the size and modification time of each file with
+ * those of the previous poll.
  */
-public class FileSystemAdaptor extends AbstractAdaptor {
+public class FileSystemAdaptor extends AbstractAdaptor
+    implements PollingIncrementalLister {
   private static final String CONFIG_SRC = "filesystemadaptor.src";
   private static final String CONFIG_INCLUDE = "filesystemadaptor.include";
   private static final String CONFIG_EXCLUDE = "filesystemadaptor.exclude";
+  private static final String CONFIG_WALKER_THREADS
+      = "filesystemadaptor.walkerThreads";
+  private static final String CONFIG_INCREMENTAL_POLLING
+      = "filesystemadaptor.incrementalPolling";
+  private static final String CONFIG_SNAPSHOT_FILE
+      = "filesystemadaptor.snapshotFile";
 
   private static Logger log
       = Logger.getLogger(FileSystemAdaptor.class.getName());
@@ -47,6 +61,17 @@ public class FileSystemAdaptor extends AbstractAdaptor {
   private File serveDir;
   private Pattern include;
   private Pattern exclude;
+  private ParallelFileWalker walker;
+  private final FileFilter allowedFiles = new FileFilter() {
+    @Override
+    public boolean accept(File file) {
+      return isFileAllowed(file);
+    }
+  };
+  /** File the snapshot is kept in, or {@code null} to keep it in memory. */
+  private File snapshotFile;
+  /** Files as of the last incremental poll. */
+  private FileTreeSnapshot snapshot;
 
   @Override
   public void initConfig(Config config) {
@@ -63,6 +88,24 @@ public class FileSystemAdaptor extends AbstractAdaptor {
     // Black list (overrides white list) of files to not serve. See include.
     // This default matches nothing (meaning nothing is excluded).
     config.addKey(CONFIG_EXCLUDE, "$^");
+    // Number of directories listed concurrently during a full listing.
+    config.addKey(CONFIG_WALKER_THREADS, "4");
+    // Whether to poll for changes between full listings. Off by default,
+    // since each poll walks the whole tree and holds a snapshot of it; see
+    // snapshotFile for the cost.
+    config.addKey(CONFIG_INCREMENTAL_POLLING, "false");
+    // File in which the size and modification time of each file are kept
+    // between incremental polls, so that changes made while the adaptor was
+    // not running are noticed. When empty, the first poll after a start only
+    // records the files.
+    // Either way, every poll walks the whole tree and checks each file, no
+    // matter how few changed, so adaptor.incrementalPollPeriodSecs should
+    // leave time for a full walk. The snapshot is also held in memory, at
+    // roughly 150 bytes plus two bytes per character of the path for each
+    // file, and twice that during a poll, when the previous and the new
+    // snapshot are compared: about 50 MB for 100,000 files with paths of 60
+    // characters.
+    config.addKey(CONFIG_SNAPSHOT_FILE, "");
   }
 
   @Override
@@ -78,31 +121,96 @@ public class FileSystemAdaptor extends AbstractAdaptor {
 
     String strExclude = config.getValue(CONFIG_EXCLUDE);
     exclude = Pattern.compile(strExclude, Pattern.DOTALL);
+
+    int threads = Integer.parseInt(config.getValue(CONFIG_WALKER_THREADS));
+    // Each batch becomes one feed.
+    int batchSize = Integer.parseInt(config.getValue("feed.maxUrls"));
+    walker = new ParallelFileWalker(threads, batchSize, 2 * batchSize);
+
+    if (!Boolean.parseBoolean(config.getValue(CONFIG_INCREMENTAL_POLLING))) {
+      return;
+    }
+    String strSnapshotFile = config.getValue(CONFIG_SNAPSHOT_FILE).trim();
+    if (!strSnapshotFile.isEmpty()) {
+      snapshotFile = new File(strSnapshotFile);
+      snapshot = FileTreeSnapshot.readFrom(snapshotFile);
+    }
+    context.setPollingIncrementalLister(this);
   }
 
   @Override
-  public void getDocIds(DocIdPusher pusher) throws IOException,
+  public void getDocIds(final DocIdPusher pusher) throws IOException,
          InterruptedException {
-    ArrayList<DocId> mockDocIds = new ArrayList<DocId>();
-    String parent = serveDir.toString();
-    try {
-      for (File file : new RecursiveFileIterator(serveDir)) {
-        String name = file.toString();
-        if (!name.startsWith(parent)) {
-          throw new IllegalStateException(
-              "Internal problem: the file's path does not begin with parent.");
+    walker.walk(serveDir, allowedFiles, new ParallelFileWalker.BatchHandler() {
+      @Override
+      public void handle(List<File> batch) throws InterruptedException {
+        List<DocId> docIds = new ArrayList<DocId>(batch.size());
+        for (File file : batch) {
+          docIds.add(new DocId(getDocIdName(file)));
         }
-        if (!isFileAllowed(file)) {
-          continue;
+        pusher.pushDocIds(docIds);
+      }
+    });
+  }
+
+  /**
+   * Pushes files that were added, modified or deleted since the previous
+   * poll. Changes are only considered sent once the GSA accepted them.
+   */
+  @Override
+  public void getModifiedDocIds(DocIdPusher pusher) throws IOException,
+         InterruptedException {
+    final FileTreeSnapshot current = new FileTreeSnapshot();
+    walker.walk(serveDir, allowedFiles, new ParallelFileWalker.BatchHandler() {
+      @Override
+      public void handle(List<File> batch) {
+        for (File file : batch) {
+          current.put(getDocIdName(file), file.length(), file.lastModified());
         }
-        // +1 for slash
-        name = name.substring(parent.length() + 1);
-        mockDocIds.add(new DocId(name));
       }
-    } catch (RecursiveFileIterator.WrappedIOException ex) {
-      throw ex.getCause();
+    });
+    if (snapshot == null) {
+      log.log(Level.INFO, "Recorded {0} files for incremental polling",
+          current.size());
+      saveSnapshot(current);
+      return;
+    }
+    List<DocIdPusher.Record> records = new ArrayList<DocIdPusher.Record>();
+    for (String name : current.getAddedOrModified(snapshot)) {
+      records.add(new DocIdPusher.Record.Builder(new DocId(name))
+          .setCrawlImmediately(true).build());
+    }
+    for (String name : current.getDeleted(snapshot)) {
+      records.add(new DocIdPusher.Record.Builder(new DocId(name))
+          .setDeleteFromIndex(true).build());
+    }
+    log.log(Level.FINE, "Found {0} changed files", records.size());
+    if (!records.isEmpty()) {
+      DocIdPusher.Record failed = pusher.pushRecords(records);
+      if (failed != null) {
+        throw new IOException("Failed to push changed files, starting at "
+            + failed.getDocId());
+      }
+    }
+    saveSnapshot(current);
+  }
+
+  private void saveSnapshot(FileTreeSnapshot current) throws IOException {
+    if (snapshotFile != null) {
+      current.writeTo(snapshotFile);
+    }
+    snapshot = current;
+  }
+
+  private String getDocIdName(File file) {
+    String parent = serveDir.toString();
+    String name = file.toString();
+    if (!name.startsWith(parent)) {
+      throw new IllegalStateException(
+          "Internal problem: the file's path does not begin with parent.");
     }
-    pusher.pushDocIds(mockDocIds);
+    // +1 for slash
+    return name.substring(parent.length() + 1);
   }
 
   @Override
@@ -0,0 +1,161 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import com.google.enterprise.adaptor.IOHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size and modification time of each file in a tree, by path, for noticing
+ * which files were added, modified or deleted between two walks. Snapshots can
+ * be written to a file, so that changes made while the adaptor was stopped
+ * are noticed as well.
+ *
+ * <p>This class is not thread-safe.
+ */
+class FileTreeSnapshot {
+  private static final int VERSION = 1;
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final Map<String, FileState> files
+      = new HashMap<String, FileState>();
+
+  private static class FileState {
+    final long size;
+    final long lastModified;
+
+    FileState(long size, long lastModified) {
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    boolean sameAs(FileState other) {
+      return size == other.size && lastModified == other.lastModified;
+    }
+  }
+
+  public void put(String path, long size, long lastModified) {
+    files.put(path, new FileState(size, lastModified));
+  }
+
+  public int size() {
+    return files.size();
+  }
+
+  /**
+   * Paths that are in this snapshot but either are not in {@code previous} or
+   * have a different size or modification time there.
+   */
+  public List<String> getAddedOrModified(FileTreeSnapshot previous) {
+    List<String> paths = new ArrayList<String>();
+    for (Map.Entry<String, FileState> me : files.entrySet()) {
+      FileState old = previous.files.get(me.getKey());
+      if (old == null || !old.sameAs(me.getValue())) {
+        paths.add(me.getKey());
+      }
+    }
+    return paths;
+  }
+
+  /** Paths that are in {@code previous} but not in this snapshot. */
+  public List<String> getDeleted(FileTreeSnapshot previous) {
+    List<String> paths = new ArrayList<String>();
+    for (String path : previous.files.keySet()) {
+      if (!files.containsKey(path)) {
+        paths.add(path);
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * Reads a snapshot written by {@link #writeTo}, or returns {@code null} if
+   * neither {@code file} nor its backup exists.
+   */
+  public static FileTreeSnapshot readFrom(File file) throws IOException {
+    DataInputStream in;
+    try {
+      in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+    } catch (FileNotFoundException ex) {
+      // An interrupted write may have left only the backup.
+      try {
+        in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(IOHelper.backupFileFor(file))));
+      } catch (FileNotFoundException ex2) {
+        return null;
+      }
+    }
+    try {
+      if (in.readInt() != VERSION) {
+        throw new IOException("Unknown snapshot version in " + file);
+      }
+      FileTreeSnapshot snapshot = new FileTreeSnapshot();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        long size = in.readLong();
+        snapshot.put(path, size, in.readLong());
+      }
+      return snapshot;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes to a temporary file and then renames it over {@code file}, so
+   * that an interrupted write leaves the previous snapshot intact.
+   */
+  public void writeTo(File file) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile("snapshot", TEMP_SUFFIX, dir);
+    boolean renamed = false;
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        out.writeInt(VERSION);
+        out.writeInt(files.size());
+        for (Map.Entry<String, FileState> me : files.entrySet()) {
+          out.writeUTF(me.getKey());
+          out.writeLong(me.getValue().size);
+          out.writeLong(me.getValue().lastModified);
+        }
+      } finally {
+        out.close();
+      }
+      IOHelper.renameOver(temp, file);
+      renamed = true;
+    } finally {
+      if (!renamed) {
+        temp.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Walks a directory tree with several threads, handing the files found to the
+ * caller in batches while the walk is still in progress. Each directory is
+ * listed by a single task and each entry is checked once for being a
+ * directory. Files wait in a bounded queue until the caller handles them, so
+ * memory use does not grow with the size of the tree when the caller is
+ * slower than the walk.
+ *
+ * <p>A directory that cannot be listed does not stop the walk; the first such
+ * failure is thrown once all other files have been handled.
+ */
+class ParallelFileWalker {
+  private static final Logger log
+      = Logger.getLogger(ParallelFileWalker.class.getName());
+  /** Marks the end of the walk in the queue of files. */
+  private static final File END = new File("");
+
+  private final int threads;
+  private final int batchSize;
+  private final int maxQueuedFiles;
+
+  /**
+   * @param threads number of directories listed concurrently
+   * @param batchSize maximum number of files per batch
+   * @param maxQueuedFiles number of files found but not yet handled at which
+   *     the walk pauses
+   */
+  public ParallelFileWalker(int threads, int batchSize, int maxQueuedFiles) {
+    if (threads <= 0 || batchSize <= 0 || maxQueuedFiles <= 0) {
+      throw new IllegalArgumentException(
+          "threads, batchSize and maxQueuedFiles must be positive");
+    }
+    this.threads = threads;
+    this.batchSize = batchSize;
+    this.maxQueuedFiles = maxQueuedFiles;
+  }
+
+  /** Receives batches of files in the thread that called {@link #walk}. */
+  public interface BatchHandler {
+    public void handle(List<File> batch)
+        throws IOException, InterruptedException;
+  }
+
+  /**
+   * Finds all files within {@code root}, including files in subdirectories,
+   * that are accepted by {@code filter}, and passes them to {@code handler}.
+   * The order of files is unspecified. Returns once all files were handled.
+   *
+   * @param filter decides which files, but not directories, are handled
+   * @throws IOException if a directory could not be listed, or if thrown by
+   *     {@code handler}
+   */
+  public void walk(File root, FileFilter filter, BatchHandler handler)
+      throws IOException, InterruptedException {
+    Walk walk = new Walk(filter);
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new WalkerThreadFactory());
+    walk.executor = executor;
+    try {
+      walk.submit(root);
+      List<File> batch = new ArrayList<File>(batchSize);
+      boolean done = false;
+      while (!done) {
+        batch.add(walk.files.take());
+        walk.files.drainTo(batch, batchSize - batch.size());
+        if (batch.get(batch.size() - 1) == END) {
+          batch.remove(batch.size() - 1);
+          done = true;
+        }
+        if (!batch.isEmpty() && (done || batch.size() >= batchSize)) {
+          handler.handle(batch);
+          batch = new ArrayList<File>(batchSize);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Throwable failure = walk.failure.get();
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+  }
+
+  /** State of one call to {@link #walk}. */
+  private class Walk {
+    private final FileFilter filter;
+    private final BlockingQueue<File> files
+        = new ArrayBlockingQueue<File>(maxQueuedFiles);
+    /** Directories submitted but not completely listed. */
+    private final AtomicInteger pendingDirs = new AtomicInteger();
+    private final AtomicReference<Throwable> failure
+        = new AtomicReference<Throwable>();
+    private ExecutorService executor;
+
+    Walk(FileFilter filter) {
+      this.filter = filter;
+    }
+
+    void submit(final File dir) {
+      pendingDirs.incrementAndGet();
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            list(dir);
+          } catch (InterruptedException ex) {
+            // The walk was abandoned.
+            Thread.currentThread().interrupt();
+            return;
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+          if (pendingDirs.decrementAndGet() == 0) {
+            try {
+              files.put(END);
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        }
+      });
+    }
+
+    private void list(File dir) throws IOException, InterruptedException {
+      File[] children = dir.listFiles();
+      if (children == null) {
+        log.log(Level.WARNING, "Could not list directory: {0}", dir);
+        throw new IOException("Exception while getting directory listing for: "
+            + dir);
+      }
+      for (File child : children) {
+        if (child.isDirectory()) {
+          submit(child);
+        } else if (filter.accept(child)) {
+          files.put(child);
+        }
+      }
+    }
+  }
+
+  private static class WalkerThreadFactory implements ThreadFactory {
+    private final ThreadFactory delegate = Executors.defaultThreadFactory();
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = delegate.newThread(r);
+      thread.setName("fileWalker-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -63,7 +63,7 @@ public class XmlUtil {
 
   private static final XmlUtil INSTANCE = make();
 
-  public static synchronized XmlUtil getInstance() {
+  public static XmlUtil getInstance() {
     return INSTANCE;
   }
 
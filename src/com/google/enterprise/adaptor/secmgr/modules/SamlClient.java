@@ -14,6 +14,7 @@
 
 package com.google.enterprise.adaptor.secmgr.modules;
 
+import static com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil.getParserPool;
 import static com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil.initializeLocalEntity;
 import static com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil.initializePeerEntity;
 import static com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil.makeAction;
@@ -323,6 +324,8 @@ public class SamlClient {
     // Encode the request.
     HttpExchange exchange =
         httpClient.postExchange(new URL(context.getPeerEntityEndpoint().getLocation()), null);
+    // Closing the exchange once the response is read lets the connection be
+    // reused.
     try {
       HttpExchangeToOutTransport out = new HttpExchangeToOutTransport(exchange);
       try {
@@ -332,28 +335,29 @@ public class SamlClient {
       } finally {
         out.finish();
       }
-    } finally {
-      exchange.close();
-    }
 
-    if (timeout != -1) {
-       exchange.setTimeout(timeout);
-    }
+      if (timeout != -1) {
+         exchange.setTimeout(timeout);
+      }
 
-    // Do HTTP exchange.
-    int status = exchange.exchange();
-    if (status != HttpURLConnection.HTTP_OK) {
-      LOGGER.warning("Incorrect HTTP status: " + status);
-      return null;
-    }
+      // Do HTTP exchange.
+      int status = exchange.exchange();
+      if (status != HttpURLConnection.HTTP_OK) {
+        LOGGER.warning("Incorrect HTTP status: " + status);
+        return null;
+      }
 
-    // Decode the response.
-    context.setInboundMessageTransport(new HttpExchangeToInTransport(exchange));
-    try {
-      runDecoder(new HTTPSOAP11Decoder(), context);
-    } catch (IOException e) {
-      LOGGER.warning("IOException: " + e.getMessage());
-      return null;
+      // Decode the response.
+      context.setInboundMessageTransport(
+          new HttpExchangeToInTransport(exchange));
+      try {
+        runDecoder(new HTTPSOAP11Decoder(getParserPool()), context);
+      } catch (IOException e) {
+        LOGGER.warning("IOException: " + e.getMessage());
+        return null;
+      }
+    } finally {
+      exchange.close();
     }
 
     // Return the decoded response.
@@ -392,7 +396,7 @@ public class SamlClient {
       // Decode the response
       HttpExchangeToInTransport in = new HttpExchangeToInTransport(exchange);
       context.setInboundMessageTransport(in);
-      runDecoder(new HTTPSOAP11Decoder(), context);
+      runDecoder(new HTTPSOAP11Decoder(getParserPool()), context);
 
     } finally {
       exchange.close();
@@ -455,7 +459,8 @@ public class SamlClient {
       // Decode the responses
       HttpExchangeToInTransport in = new HttpExchangeToInTransport(exchange);
       context.setInboundMessageTransport(in);
-      HTTPSOAP11MultiContextDecoder decoder = new HTTPSOAP11MultiContextDecoder();
+      HTTPSOAP11MultiContextDecoder decoder =
+          new HTTPSOAP11MultiContextDecoder(getParserPool());
 
       AuthzResult.Builder builder = AuthzResult.builder(urlStrings);
       while (true) {
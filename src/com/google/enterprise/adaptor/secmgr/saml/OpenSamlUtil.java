@@ -19,9 +19,9 @@ import static org.opensaml.common.xml.SAMLConstants.SAML20P_NS;
 import com.google.common.collect.Lists;
 
 import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
 import org.opensaml.Configuration;
 import org.opensaml.DefaultBootstrap;
-import org.opensaml.common.IdentifierGenerator;
 import org.opensaml.common.SAMLObject;
 import org.opensaml.common.SAMLObjectBuilder;
 import org.opensaml.common.SAMLVersion;
@@ -31,7 +31,6 @@ import org.opensaml.common.binding.SAMLMessageContext;
 import org.opensaml.common.binding.artifact.BasicSAMLArtifactMap;
 import org.opensaml.common.binding.artifact.SAMLArtifactMap;
 import org.opensaml.common.binding.artifact.SAMLArtifactMap.SAMLArtifactMapEntry;
-import org.opensaml.common.impl.SecureRandomIdentifierGenerator;
 import org.opensaml.saml2.core.Action;
 import org.opensaml.saml2.core.Artifact;
 import org.opensaml.saml2.core.ArtifactResolve;
@@ -86,7 +85,6 @@ import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.XMLObjectBuilderFactory;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.io.UnmarshallingException;
-import org.opensaml.xml.parse.BasicParserPool;
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.SecurityHelper;
@@ -109,6 +107,7 @@ import java.io.IOException;
 import java.security.KeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
@@ -263,12 +262,17 @@ public final class OpenSamlUtil {
       makeSamlObjectBuilder(AuthzDecisionStatement.DEFAULT_ELEMENT_NAME);
   private static final SAMLObjectBuilder<Conditions> conditionsBuilder =
       makeSamlObjectBuilder(Conditions.DEFAULT_ELEMENT_NAME);
+  private static final SAMLObjectBuilder<Group> groupBuilder =
+      makeSamlObjectBuilder(Group.DEFAULT_ELEMENT_NAME);
   private static final SAMLObjectBuilder<Issuer> issuerBuilder =
       makeSamlObjectBuilder(Issuer.DEFAULT_ELEMENT_NAME);
   private static final SAMLObjectBuilder<NameID> nameIDBuilder =
       makeSamlObjectBuilder(NameID.DEFAULT_ELEMENT_NAME);
   private static final SAMLObjectBuilder<Response> responseBuilder =
       makeSamlObjectBuilder(Response.DEFAULT_ELEMENT_NAME);
+  private static final SAMLObjectBuilder<SecmgrCredential>
+      secmgrCredentialBuilder =
+      makeSamlObjectBuilder(SecmgrCredential.DEFAULT_ELEMENT_NAME);
   private static final SAMLObjectBuilder<Status> statusBuilder =
       makeSamlObjectBuilder(Status.DEFAULT_ELEMENT_NAME);
   private static final SAMLObjectBuilder<StatusCode> statusCodeBuilder =
@@ -289,10 +293,29 @@ public final class OpenSamlUtil {
 
   // Identifier generator
 
-  private static final IdentifierGenerator idGenerator;
+  // OpenSAML's SecureRandomIdentifierGenerator shares one SecureRandom, whose
+  // nextBytes() is synchronized, between all instances.  Giving each thread its
+  // own generator avoids contention when many responses are built at once.
+  private static final String ID_RANDOM_ALGORITHM = "SHA1PRNG";
+  private static final int ID_RANDOM_BYTES = 16;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static final ThreadLocal<SecureRandom> idRandom =
+      new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+          return makeIdRandom();
+        }
+      };
+
   static {
+    // Fail early if the algorithm is unavailable, rather than on first use.
+    makeIdRandom();
+  }
+
+  private static SecureRandom makeIdRandom() {
     try {
-      idGenerator = new SecureRandomIdentifierGenerator();
+      return SecureRandom.getInstance(ID_RANDOM_ALGORITHM);
     } catch (NoSuchAlgorithmException e) {
       throw new IllegalStateException(e);
     }
@@ -617,6 +640,22 @@ public final class OpenSamlUtil {
     return conditions;
   }
 
+  /**
+   * Static factory for {@link Group} objects.
+   *
+   * @param name The name of the group.
+   * @param namespace The namespace of the group.
+   * @param domain The domain of the group, or {@code null}.
+   * @return A new <code>Group</code> object.
+   */
+  public static Group makeGroup(String name, String namespace, String domain) {
+    Group group = groupBuilder.buildObject();
+    group.setName(name);
+    group.setNamespace(namespace);
+    group.setDomain(domain);
+    return group;
+  }
+
   /**
    * Static factory for SAML {@link Issuer} objects.
    *
@@ -675,6 +714,25 @@ public final class OpenSamlUtil {
     return response;
   }
 
+  /**
+   * Static factory for {@link SecmgrCredential} objects.
+   *
+   * @param name The name of the user.
+   * @param namespace The namespace of the user.
+   * @param domain The domain of the user, or {@code null}.
+   * @param password The password of the user, or {@code null}.
+   * @return A new <code>SecmgrCredential</code> object, without groups.
+   */
+  public static SecmgrCredential makeSecmgrCredential(String name,
+      String namespace, String domain, String password) {
+    SecmgrCredential credential = secmgrCredentialBuilder.buildObject();
+    credential.setName(name);
+    credential.setNamespace(namespace);
+    credential.setDomain(domain);
+    credential.setPassword(password);
+    return credential;
+  }
+
   /**
    * Static factory for SAML {@link Status} objects.
    *
@@ -864,7 +922,16 @@ public final class OpenSamlUtil {
    * @return A new identifier string.
    */
   public static String generateIdentifier() {
-    return idGenerator.generateIdentifier();
+    // Same format as SecureRandomIdentifierGenerator: "_" and 32 hex digits.
+    byte[] bytes = new byte[ID_RANDOM_BYTES];
+    idRandom.get().nextBytes(bytes);
+    char[] id = new char[1 + 2 * bytes.length];
+    id[0] = '_';
+    for (int i = 0; i < bytes.length; i++) {
+      id[1 + 2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      id[2 + 2 * i] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(id);
   }
 
   /*
@@ -937,12 +1004,25 @@ public final class OpenSamlUtil {
    * @return The corresponding string.
    */
   public static String samlDateString(DateTime date) {
-    synchronized (samlDateStringLock) {
-      return Configuration.getSAMLDateFormatter().print(date);
-    }
+    return samlDateFormatter.print(date);
   }
 
-  private static final Object samlDateStringLock = new Object();
+  // Joda formatters are immutable and thread-safe, so no locking is needed.
+  private static final DateTimeFormatter samlDateFormatter =
+      Configuration.getSAMLDateFormatter();
+
+  private static final SamlParserPool parserPool = new SamlParserPool();
+
+  /**
+   * Get the parser pool shared by all SAML decoding.  Decoders should be given
+   * this pool instead of creating their own, so that parsers are reused
+   * between requests.
+   *
+   * @return The shared parser pool.
+   */
+  public static SamlParserPool getParserPool() {
+    return parserPool;
+  }
 
   /**
    * Get a SAML metadata provider that reads from a specified file.  The provider adjusts
@@ -955,7 +1035,7 @@ public final class OpenSamlUtil {
   public static ObservableMetadataProvider getMetadataFromFile(File file)
       throws MetadataProviderException {
     FilesystemMetadataProvider provider = new FilesystemMetadataProvider(file);
-    provider.setParserPool(new BasicParserPool());
+    provider.setParserPool(parserPool);
     // Causes null-pointer errors in OpenSAML code:
     //provider.setRequireValidMetadata(true);
     return provider;
@@ -1094,7 +1174,7 @@ public final class OpenSamlUtil {
    */
   public static SAMLArtifactMap makeArtifactMap(int artifactLifetime) {
     return new BasicSAMLArtifactMap(
-        new BasicParserPool(),
+        parserPool,
         new MapBasedStorageService<String, SAMLArtifactMapEntry>(),
         artifactLifetime);
   }
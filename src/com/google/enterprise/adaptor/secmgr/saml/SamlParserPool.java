@@ -0,0 +1,91 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.secmgr.saml;
+
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+
+/**
+ * Parser pool shared by all SAML message and metadata decoding. Parsers
+ * refuse DTDs and external entities, and the pool counts how often a parser
+ * could be reused and how long creating new ones took.
+ *
+ * <p>This class is thread-safe.
+ */
+public class SamlParserPool extends BasicParserPool {
+  /** Default number of idle parsers kept for reuse. */
+  public static final int DEFAULT_MAX_POOL_SIZE = 16;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong createNanos = new AtomicLong();
+
+  public SamlParserPool() {
+    setMaxPoolSize(DEFAULT_MAX_POOL_SIZE);
+    setNamespaceAware(true);
+    setIgnoreComments(true);
+    setExpandEntityReferences(false);
+    Map<String, Boolean> features = new HashMap<String, Boolean>();
+    features.put(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    features.put("http://apache.org/xml/features/disallow-doctype-decl", true);
+    features.put("http://xml.org/sax/features/external-general-entities",
+        false);
+    features.put("http://xml.org/sax/features/external-parameter-entities",
+        false);
+    setBuilderFeatures(features);
+  }
+
+  @Override
+  public DocumentBuilder getBuilder() throws XMLParserException {
+    requests.incrementAndGet();
+    return super.getBuilder();
+  }
+
+  @Override
+  protected DocumentBuilder createBuilder() throws XMLParserException {
+    misses.incrementAndGet();
+    long start = System.nanoTime();
+    try {
+      return super.createBuilder();
+    } finally {
+      createNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /** Number of requests for a parser that were served by a pooled parser. */
+  public long getHits() {
+    // Each miss is counted after its request, so reading misses first keeps
+    // this from going negative while requests are in flight.
+    long missCount = misses.get();
+    return requests.get() - missCount;
+  }
+
+  /** Number of requests for a parser that required creating a new one. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** Total time spent creating parsers, in nanoseconds. */
+  public long getCreateNanos() {
+    return createNanos.get();
+  }
+}
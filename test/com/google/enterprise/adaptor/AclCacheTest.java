@@ -0,0 +1,116 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/** Unit tests for {@link AclCache}. */
+public class AclCacheTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final CountingCache cache = new CountingCache(10);
+
+  @Test
+  public void testSameInstance() {
+    Acl acl = acl(new UserPrincipal("user"));
+    String value = cache.get(acl);
+    assertSame(value, cache.get(acl));
+    assertEquals(1, cache.computed);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void testIdenticalAcl() {
+    String value = cache.get(acl(new UserPrincipal("user"),
+        new GroupPrincipal("group", "ns")));
+    assertSame(value, cache.get(acl(new GroupPrincipal("group", "ns"),
+        new UserPrincipal("user"))));
+    assertEquals(1, cache.computed);
+  }
+
+  @Test
+  public void testEqualAclWithOtherDomainFormat() {
+    Acl slash = acl(new UserPrincipal("DOMAIN\\user"));
+    Acl at = acl(new UserPrincipal("user@DOMAIN"));
+    assertEquals(slash, at);
+    assertNotSame(cache.get(slash), cache.get(at));
+    assertEquals(2, cache.computed);
+  }
+
+  @Test
+  public void testDifferentInheritance() {
+    Acl acl = acl(new UserPrincipal("user"));
+    cache.get(acl);
+    cache.get(new Acl.Builder(acl).setInheritFrom(new DocId("parent")).build());
+    cache.get(new Acl.Builder(acl)
+        .setInheritanceType(Acl.InheritanceType.AND_BOTH_PERMIT).build());
+    cache.get(new Acl.Builder(acl).setEverythingCaseInsensitive().build());
+    assertEquals(4, cache.computed);
+  }
+
+  @Test
+  public void testBounded() {
+    CountingCache small = new CountingCache(1);
+    Acl first = acl(new UserPrincipal("first"));
+    small.get(first);
+    small.get(acl(new UserPrincipal("second")));
+    small.get(acl(new UserPrincipal("first")));
+    assertEquals(3, small.computed);
+  }
+
+  @Test
+  public void testNullAcl() {
+    thrown.expect(NullPointerException.class);
+    cache.get(null);
+  }
+
+  @Test
+  public void testInvalidSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new CountingCache(0);
+  }
+
+  private static Acl acl(Principal... principals) {
+    return new Acl.Builder().setPermits(Arrays.asList(principals))
+        .setDenyUsers(Collections.singleton(new UserPrincipal("denied")))
+        .build();
+  }
+
+  private static class CountingCache extends AclCache<String> {
+    private int computed;
+
+    public CountingCache(int maximumSize) {
+      super(maximumSize);
+    }
+
+    @Override
+    protected String compute(Acl acl) {
+      computed++;
+      return new String("value" + computed);
+    }
+  }
+}
@@ -84,6 +84,18 @@ public class AclTransformTest {
         transform.transform(baseAcl));
   }
 
+  @Test
+  public void testRepeatedAclTransformedOnce() {
+    List<Rule> rules = Arrays.asList(
+        new Rule(new MatchData(null, null, null, null),
+          new MatchData(null, "anyprincipal", null, null)));
+    AclTransform transform = new AclTransform(rules);
+    Acl transformed = transform.transform(baseAcl);
+    assertSame(transformed, transform.transform(baseAcl));
+    assertSame(transformed,
+        transform.transform(new Acl.Builder(baseAcl).build()));
+  }
+
   @Test
   public void testAllMatchingTransformNoop() {
     List<Rule> rules = Arrays.asList(
@@ -0,0 +1,69 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link AdaptivePollSchedule}. */
+public class AdaptivePollScheduleTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testFixedRate() {
+    AdaptivePollSchedule schedule = new AdaptivePollSchedule(1000, 1000);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(schedule.tick());
+      schedule.recordPoll(false);
+    }
+    assertEquals(1000, schedule.getPeriodMillis());
+  }
+
+  @Test
+  public void testBackOffAndTighten() {
+    AdaptivePollSchedule schedule = new AdaptivePollSchedule(1000, 5000);
+    assertTrue(schedule.tick());
+    schedule.recordPoll(false);
+    assertEquals(2000, schedule.getPeriodMillis());
+    assertFalse(schedule.tick());
+    assertTrue(schedule.tick());
+    schedule.recordPoll(false);
+    assertEquals(4000, schedule.getPeriodMillis());
+    schedule.recordPoll(false);
+    // Limited to whole ticks within the maximum period.
+    assertEquals(5000, schedule.getPeriodMillis());
+    schedule.recordPoll(false);
+    assertEquals(5000, schedule.getPeriodMillis());
+    for (int i = 0; i < 4; i++) {
+      assertFalse(schedule.tick());
+    }
+    assertTrue(schedule.tick());
+    schedule.recordPoll(true);
+    assertEquals(1000, schedule.getPeriodMillis());
+    assertTrue(schedule.tick());
+  }
+
+  @Test
+  public void testInvalidMaxPeriod() {
+    thrown.expect(IllegalArgumentException.class);
+    new AdaptivePollSchedule(1000, 999);
+  }
+}
@@ -21,7 +21,13 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -75,4 +81,40 @@ public class AuthnIdentityImplTest {
     groups.add(new GroupPrincipal("anotherGroup"));
     assertEquals(groups2, identity.getGroups());
   }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    AuthnIdentity identity = new AuthnIdentityImpl
+        .Builder(new UserPrincipal("user", "ns1"))
+        .setPassword("pass")
+        .setGroups(new HashSet<GroupPrincipal>(Arrays.asList(
+            new GroupPrincipal("g1", "ns1"), new GroupPrincipal("g2", "ns2"),
+            new GroupPrincipal("g3", "ns2"))))
+        .build();
+    AuthnIdentity read = writeAndRead(identity);
+    assertEquals(identity.getUser(), read.getUser());
+    assertEquals("ns1", read.getUser().getNamespace());
+    assertEquals(identity.getGroups(), read.getGroups());
+    // The password is never written.
+    assertNull(read.getPassword());
+  }
+
+  @Test
+  public void testWriteAndReadNoGroups() throws Exception {
+    AuthnIdentity identity = new AuthnIdentityImpl
+        .Builder(new UserPrincipal("user")).build();
+    AuthnIdentity read = writeAndRead(identity);
+    assertEquals(identity.getUser(), read.getUser());
+    assertNull(read.getGroups());
+  }
+
+  private static AuthnIdentity writeAndRead(AuthnIdentity identity)
+      throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    AuthnIdentityImpl.writeTo(identity, out);
+    out.close();
+    return AuthnIdentityImpl.readFrom(new DataInputStream(
+        new ByteArrayInputStream(baos.toByteArray())));
+  }
 }
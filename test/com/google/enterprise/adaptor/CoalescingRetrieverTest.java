@@ -0,0 +1,523 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.adaptor.testing.RecordingResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link CoalescingRetriever}. */
+public class CoalescingRetrieverTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final Journal journal = new Journal(new MockTimeProvider());
+  private final BlockingAdaptor adaptor = new BlockingAdaptor();
+  private final DocId docId = new DocId("doc");
+
+  @Test
+  public void testReplaysEverything() throws Exception {
+    final Acl acl = new Acl.Builder()
+        .setPermitUsers(Collections.singleton(new UserPrincipal("user")))
+        .build();
+    final URI displayUrl = new URI("http://example.com/doc");
+    final Date lastModified = new Date(1000);
+    Adaptor adaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException {
+        response.setContentType("text/plain");
+        response.setLastModified(lastModified);
+        response.addMetadata("key", "value");
+        response.setAcl(acl);
+        response.putNamedResource("fragment", acl);
+        response.setSecure(true);
+        response.addAnchor(displayUrl, "anchor");
+        response.setNoIndex(true);
+        response.setNoFollow(true);
+        response.setNoArchive(true);
+        response.setDisplayUrl(displayUrl);
+        response.setCrawlOnce(true);
+        response.setLock(true);
+        response.setParam("X-param", "param value");
+        response.getOutputStream().write("content".getBytes(UTF_8));
+      }
+    };
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    RecordingResponse response = new RecordingResponse();
+    retriever.getDocContent(new SimpleRequest(docId), response, true);
+    assertEquals(RecordingResponse.State.SEND_BODY, response.getState());
+    assertEquals("text/plain", response.getContentType());
+    assertEquals(lastModified, response.getLastModified());
+    assertEquals("value", response.getMetadata().getOneValue("key"));
+    assertEquals(acl, response.getAcl());
+    assertEquals(Collections.singletonMap("fragment", acl),
+        response.getNamedResources());
+    assertTrue(response.isSecure());
+    assertEquals(1, response.getAnchors().size());
+    assertTrue(response.isNoIndex());
+    assertTrue(response.isNoFollow());
+    assertTrue(response.isNoArchive());
+    assertEquals(displayUrl, response.getDisplayUrl());
+    assertTrue(response.isCrawlOnce());
+    assertTrue(response.isLock());
+    assertEquals("param value", response.getParams().get("X-param"));
+    assertArrayEquals("content".getBytes(UTF_8), getContent(response));
+    assertEquals(0, journal.getSnapshot().numTotalCoalescedRequests);
+    assertEquals(0, retriever.getInFlightCount());
+  }
+
+  @Test
+  public void testReplaysNotFound() throws Exception {
+    Adaptor adaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException {
+        response.respondNotFound();
+      }
+    };
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    RecordingResponse response = new RecordingResponse();
+    retriever.getDocContent(new SimpleRequest(docId), response, true);
+    assertEquals(RecordingResponse.State.NOT_FOUND, response.getState());
+  }
+
+  @Test
+  public void testConcurrentRequestsShareRetrieval() throws Exception {
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    RequestThread first = new RequestThread(retriever, docId, true);
+    first.start();
+    assertTrue(adaptor.started.await(10, TimeUnit.SECONDS));
+    RequestThread second = new RequestThread(retriever, docId, true);
+    second.start();
+    waitForCoalescedRequests(1);
+    adaptor.release.countDown();
+    first.join();
+    second.join();
+    assertEquals(1, adaptor.calls.get());
+    assertArrayEquals(adaptor.content, getContent(first.response));
+    assertArrayEquals(adaptor.content, getContent(second.response));
+    assertEquals(0, retriever.getInFlightCount());
+  }
+
+  @Test
+  public void testDifferentClientsDoNotShare() throws Exception {
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    adaptor.release.countDown();
+    RequestThread gsa = new RequestThread(retriever, docId, true);
+    RequestThread user = new RequestThread(retriever, docId, false);
+    gsa.start();
+    user.start();
+    gsa.join();
+    user.join();
+    assertEquals(2, adaptor.calls.get());
+    assertEquals(0, journal.getSnapshot().numTotalCoalescedRequests);
+  }
+
+  @Test
+  public void testSequentialRequestsDoNotShare() throws Exception {
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    adaptor.release.countDown();
+    retriever.getDocContent(new SimpleRequest(docId), new RecordingResponse(),
+        true);
+    retriever.getDocContent(new SimpleRequest(docId), new RecordingResponse(),
+        true);
+    assertEquals(2, adaptor.calls.get());
+  }
+
+  @Test
+  public void testFailureSharedWithFollowers() throws Exception {
+    adaptor.failure = new IOException("back-end down");
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    RequestThread first = new RequestThread(retriever, docId, true);
+    first.start();
+    assertTrue(adaptor.started.await(10, TimeUnit.SECONDS));
+    RequestThread second = new RequestThread(retriever, docId, true);
+    second.start();
+    waitForCoalescedRequests(1);
+    adaptor.release.countDown();
+    first.join();
+    second.join();
+    assertTrue(first.failure instanceof IOException);
+    assertTrue(second.failure instanceof IOException);
+    assertEquals(adaptor.failure, second.failure.getCause());
+    assertEquals(1, adaptor.calls.get());
+  }
+
+  @Test
+  public void testLargeContentInFile() throws Exception {
+    CoalescingRetriever retriever
+        = new CoalescingRetriever(adaptor, journal, 4);
+    RequestThread first = new RequestThread(retriever, docId, true);
+    first.start();
+    assertTrue(adaptor.started.await(10, TimeUnit.SECONDS));
+    RequestThread second = new RequestThread(retriever, docId, true);
+    second.start();
+    waitForCoalescedRequests(1);
+    adaptor.release.countDown();
+    first.join();
+    second.join();
+    assertArrayEquals(adaptor.content, getContent(first.response));
+    assertArrayEquals(adaptor.content, getContent(second.response));
+  }
+
+  @Test
+  public void testContentStreamedBeforeAdaptorReturns() throws Exception {
+    StagedAdaptor adaptor = new StagedAdaptor();
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    RequestThread first = new RequestThread(retriever, docId, true);
+    first.start();
+    assertTrue(adaptor.started.await(10, TimeUnit.SECONDS));
+    RequestThread second = new RequestThread(retriever, docId, true);
+    second.start();
+    waitForCoalescedRequests(1);
+    adaptor.writeFirst.countDown();
+    assertTrue(adaptor.wroteFirst.await(10, TimeUnit.SECONDS));
+    // Both requests receive content while the adaptor is still running.
+    assertArrayEquals("first".getBytes(UTF_8), getContent(first.response));
+    waitForContent(second.response, "first");
+    adaptor.writeSecond.countDown();
+    first.join();
+    second.join();
+    assertArrayEquals("firstsecond".getBytes(UTF_8),
+        getContent(first.response));
+    assertArrayEquals("firstsecond".getBytes(UTF_8),
+        getContent(second.response));
+    assertEquals(1, adaptor.calls.get());
+  }
+
+  @Test
+  public void testNotSharedOnceContentStartsWithoutFollowers()
+      throws Exception {
+    StagedAdaptor adaptor = new StagedAdaptor();
+    adaptor.writeFirst.countDown();
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    RequestThread first = new RequestThread(retriever, docId, true);
+    first.start();
+    assertTrue(adaptor.wroteFirst.await(10, TimeUnit.SECONDS));
+    // Content is not buffered, so later requests make their own call.
+    assertEquals(0, retriever.getInFlightCount());
+    RequestThread second = new RequestThread(retriever, docId, true);
+    second.start();
+    adaptor.writeSecond.countDown();
+    first.join();
+    second.join();
+    assertEquals(2, adaptor.calls.get());
+    assertEquals(0, journal.getSnapshot().numTotalCoalescedRequests);
+    assertArrayEquals("firstsecond".getBytes(UTF_8),
+        getContent(second.response));
+  }
+
+  @Test
+  public void testFollowerCompletesWhenLeaderStreamFails() throws Exception {
+    final IOException clientGone = new IOException("client went away");
+    RecordingResponse failingResponse = new RecordingResponse(
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            throw clientGone;
+          }
+        });
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    RequestThread first
+        = new RequestThread(retriever, docId, true, failingResponse);
+    first.start();
+    assertTrue(adaptor.started.await(10, TimeUnit.SECONDS));
+    RequestThread second = new RequestThread(retriever, docId, true);
+    second.start();
+    waitForCoalescedRequests(1);
+    adaptor.release.countDown();
+    first.join();
+    second.join();
+    assertEquals(clientGone, first.failure);
+    assertEquals(null, second.failure);
+    assertArrayEquals(adaptor.content, getContent(second.response));
+  }
+
+  @Test
+  public void testLeaderStreamFailureWithoutFollowers() throws Exception {
+    final IOException clientGone = new IOException("client went away");
+    RecordingResponse failingResponse = new RecordingResponse(
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            throw clientGone;
+          }
+        });
+    adaptor.release.countDown();
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    thrown.expect(IOException.class);
+    retriever.getDocContent(new SimpleRequest(docId), failingResponse, true);
+  }
+
+  @Test
+  public void testFailureDuringContentSharedWithFollowers() throws Exception {
+    StagedAdaptor adaptor = new StagedAdaptor();
+    adaptor.failure = new IOException("back-end down");
+    CoalescingRetriever retriever = new CoalescingRetriever(adaptor, journal);
+    RequestThread first = new RequestThread(retriever, docId, true);
+    first.start();
+    assertTrue(adaptor.started.await(10, TimeUnit.SECONDS));
+    RequestThread second = new RequestThread(retriever, docId, true);
+    second.start();
+    waitForCoalescedRequests(1);
+    adaptor.writeFirst.countDown();
+    adaptor.writeSecond.countDown();
+    first.join();
+    second.join();
+    assertEquals(adaptor.failure, first.failure);
+    assertTrue(second.failure instanceof IOException);
+    assertEquals(adaptor.failure, second.failure.getCause());
+  }
+
+  @Test
+  public void testContentBuffer() throws Exception {
+    CoalescingRetriever.ContentBuffer buffer
+        = new CoalescingRetriever.ContentBuffer(4);
+    InputStream early = buffer.openInputStream();
+    buffer.write("abc".getBytes(UTF_8));
+    assertFalse(buffer.isInFile());
+    byte[] b = new byte[10];
+    assertEquals(3, early.read(b));
+    buffer.write('d');
+    assertFalse(buffer.isInFile());
+    buffer.write("efg".getBytes(UTF_8));
+    assertTrue(buffer.isInFile());
+    // Reads what was written so far, even though it is not yet flushed.
+    int read = 3;
+    while (read < 7) {
+      read += early.read(b, read, b.length - read);
+    }
+    assertEquals("abcdefg", new String(b, 0, 7, UTF_8));
+    buffer.finish(null);
+    assertEquals(-1, early.read(b));
+    early.close();
+    assertEquals("abcdefg", IOHelper.readInputStreamToString(
+        buffer.openInputStream(), UTF_8));
+    buffer.discard();
+    try {
+      buffer.openInputStream().read();
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      // The content was discarded.
+    }
+  }
+
+  @Test
+  public void testContentBufferReaderWaitsForContent() throws Exception {
+    final CoalescingRetriever.ContentBuffer buffer
+        = new CoalescingRetriever.ContentBuffer(4);
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 100; i++) {
+            buffer.write(("" + (i % 10)).getBytes(UTF_8));
+            Thread.sleep(1);
+          }
+          buffer.finish(null);
+        } catch (Exception e) {
+          buffer.finish(e);
+        }
+      }
+    };
+    writer.start();
+    String content = IOHelper.readInputStreamToString(
+        buffer.openInputStream(), UTF_8);
+    writer.join();
+    assertEquals(100, content.length());
+    assertEquals("0123456789", content.substring(40, 50));
+    buffer.discard();
+  }
+
+  @Test
+  public void testContentBufferFailure() throws Exception {
+    CoalescingRetriever.ContentBuffer buffer
+        = new CoalescingRetriever.ContentBuffer(4);
+    buffer.write("abc".getBytes(UTF_8));
+    IOException failure = new IOException("back-end down");
+    buffer.finish(failure);
+    try {
+      buffer.openInputStream().read();
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      assertEquals(failure, expected.getCause());
+    }
+  }
+
+  @Test
+  public void testNegativeMemoryBuffer() {
+    thrown.expect(IllegalArgumentException.class);
+    new CoalescingRetriever(adaptor, journal, -1);
+  }
+
+  private void waitForCoalescedRequests(long count) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (journal.getSnapshot().numTotalCoalescedRequests < count) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Requests were not coalesced");
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  private static void waitForContent(RecordingResponse response,
+      String content) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (response.getState() != RecordingResponse.State.SEND_BODY
+        || !content.equals(new String(getContent(response), UTF_8))) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Content was not streamed");
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  private static byte[] getContent(RecordingResponse response)
+      throws IOException {
+    return ((ByteArrayOutputStream) response.getOutputStream()).toByteArray();
+  }
+
+  private static class SimpleRequest implements Request {
+    private final DocId docId;
+
+    SimpleRequest(DocId docId) {
+      this.docId = docId;
+    }
+
+    @Override
+    public boolean hasChangedSinceLastAccess(Date lastModified) {
+      return true;
+    }
+
+    @Override
+    public boolean canRespondWithNoContent(Date lastModified) {
+      return false;
+    }
+
+    @Override
+    public Date getLastAccessTime() {
+      return null;
+    }
+
+    @Override
+    public DocId getDocId() {
+      return docId;
+    }
+  }
+
+  /** Returns content once released, recording the number of calls. */
+  private static class BlockingAdaptor extends MockAdaptor {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    final byte[] content = "some document content".getBytes(UTF_8);
+    volatile IOException failure;
+
+    @Override
+    public void getDocContent(Request request, Response response)
+        throws IOException, InterruptedException {
+      calls.incrementAndGet();
+      started.countDown();
+      release.await();
+      if (failure != null) {
+        throw failure;
+      }
+      OutputStream os = response.getOutputStream();
+      os.write(content);
+      os.close();
+    }
+  }
+
+  /** Writes content in two parts, waiting before each of them. */
+  private static class StagedAdaptor extends MockAdaptor {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch writeFirst = new CountDownLatch(1);
+    final CountDownLatch wroteFirst = new CountDownLatch(1);
+    final CountDownLatch writeSecond = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    volatile IOException failure;
+
+    @Override
+    public void getDocContent(Request request, Response response)
+        throws IOException, InterruptedException {
+      calls.incrementAndGet();
+      started.countDown();
+      writeFirst.await();
+      OutputStream os = response.getOutputStream();
+      os.write("first".getBytes(UTF_8));
+      os.flush();
+      wroteFirst.countDown();
+      writeSecond.await();
+      if (failure != null) {
+        throw failure;
+      }
+      os.write("second".getBytes(UTF_8));
+      os.close();
+    }
+  }
+
+  private static class RequestThread extends Thread {
+    private final CoalescingRetriever retriever;
+    private final DocId docId;
+    private final boolean fromGsa;
+    final RecordingResponse response;
+    volatile Exception failure;
+
+    RequestThread(CoalescingRetriever retriever, DocId docId,
+        boolean fromGsa) {
+      this(retriever, docId, fromGsa, new RecordingResponse());
+    }
+
+    RequestThread(CoalescingRetriever retriever, DocId docId,
+        boolean fromGsa, RecordingResponse response) {
+      this.retriever = retriever;
+      this.docId = docId;
+      this.fromGsa = fromGsa;
+      this.response = response;
+    }
+
+    @Override
+    public void run() {
+      try {
+        retriever.getDocContent(new SimpleRequest(docId), response, fromGsa);
+      } catch (Exception e) {
+        failure = e;
+      }
+    }
+  }
+}
@@ -15,6 +15,8 @@
 package com.google.enterprise.adaptor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -26,7 +28,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -384,6 +388,67 @@ public class ConfigTest {
     }
   }
 
+  @Test
+  public void testIncrementalPollMaxPeriodDefaultsToPollPeriod()
+      throws Exception {
+    configFile.setFileContents("gsa.hostname=not_used\n"
+                               + "adaptor.incrementalPollPeriodSecs=60\n");
+    config.load(configFile);
+    assertEquals(TimeUnit.SECONDS.toMillis(60),
+        config.getAdaptorIncrementalPollMaxPeriodMillis());
+    configFile.setFileContents("gsa.hostname=not_used\n"
+                               + "adaptor.incrementalPollPeriodSecs=60\n"
+                               + "adaptor.incrementalPollMaxPeriodSecs=600\n");
+    config.load(configFile);
+    assertEquals(TimeUnit.SECONDS.toMillis(600),
+        config.getAdaptorIncrementalPollMaxPeriodMillis());
+  }
+
+  @Test
+  public void testIncrementalPollMaxPeriodLessThanPollPeriod()
+      throws Exception {
+    configFile.setFileContents("gsa.hostname=not_used\n"
+                               + "adaptor.incrementalPollPeriodSecs=60\n"
+                               + "adaptor.incrementalPollMaxPeriodSecs=30\n");
+    config.load(configFile);
+    thrown.expect(InvalidConfigurationException.class);
+    config.getAdaptorIncrementalPollMaxPeriodMillis();
+  }
+
+  @Test
+  public void testFullListingLoadSettings() throws Exception {
+    configFile.setFileContents("gsa.hostname=not_used\n");
+    config.load(configFile);
+    assertEquals(0, config.getAdaptorFullListingJitterMillis());
+    assertEquals(0, config.getAdaptorFullListingDeferAboveGsaRequestsPerMin());
+    assertEquals(TimeUnit.HOURS.toMillis(1),
+        config.getAdaptorFullListingMaxDeferralMillis());
+    configFile.setFileContents("gsa.hostname=not_used\n"
+        + "adaptor.fullListingDeferAboveGsaRequestsPerMin=-1\n");
+    config.load(configFile);
+    thrown.expect(InvalidConfigurationException.class);
+    config.getAdaptorFullListingDeferAboveGsaRequestsPerMin();
+  }
+
+  @Test
+  public void testFeedArchiveSegmentSettings() throws Exception {
+    configFile.setFileContents("gsa.hostname=not_used\n");
+    config.load(configFile);
+    assertFalse(config.isFeedArchiveSegmented());
+    assertEquals(64 * 1024 * 1024, config.getFeedArchiveSegmentMaxBytes());
+    assertEquals(TimeUnit.HOURS.toMillis(1),
+        config.getFeedArchiveSegmentMaxMillis());
+    assertEquals(1024 * 1024 * 1024, config.getFeedArchiveMaxTotalBytes());
+    assertEquals(16, config.getFeedArchiveQueueSize());
+    assertEquals(2, config.getFeedReplayThreads());
+    assertEquals(60, config.getFeedReplayMaxFeedsPerMin());
+    configFile.setFileContents("gsa.hostname=not_used\n"
+        + "feed.archiveQueueSize=0\n");
+    config.load(configFile);
+    thrown.expect(InvalidConfigurationException.class);
+    config.getFeedArchiveQueueSize();
+  }
+
   @Test
   public void testPropertiesHeartbeatTimeoutMillis() throws Exception {
     // docheartbeatTimeoutSecs=0 and docheartbeatTimeoutSecs=-15 are invalid
@@ -444,4 +509,139 @@ public class ConfigTest {
       }
     }
   }
+
+  @Test
+  public void testConfigPollPeriod() throws Exception {
+    config.setValue("gsa.hostname", "notreal");
+    assertEquals(30000L, config.getAdaptorConfigPollPeriodMillis());
+    config.setValue("adaptor.configPollPeriodSecs", "0");
+    assertEquals(0L, config.getAdaptorConfigPollPeriodMillis());
+    config.setValue("adaptor.configPollPeriodSecs", "-1");
+    thrown.expect(InvalidConfigurationException.class);
+    config.getAdaptorConfigPollPeriodMillis();
+  }
+
+  @Test
+  public void testConfigModifiedNotifiesListener() throws Exception {
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.maxUrls=10\n");
+    configFile.setLastModified(1000);
+    config.load(configFile);
+    final List<ConfigModificationEvent> events
+        = new ArrayList<ConfigModificationEvent>();
+    config.addConfigModificationListener(new ConfigModificationListener() {
+      @Override
+      public void configModified(ConfigModificationEvent ev) {
+        events.add(ev);
+      }
+    });
+    assertFalse(config.ensureLatestConfigLoaded());
+
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.maxUrls=20\n"
+        + "feed.name=reloaded\n");
+    configFile.setLastModified(2000);
+    assertFalse(config.ensureLatestConfigLoaded());
+    assertTrue(config.ensureLatestConfigLoaded());
+    assertEquals(1, events.size());
+    ConfigModificationEvent ev = events.get(0);
+    assertSame(config, ev.getNewConfig());
+    assertEquals(new HashSet<String>(Arrays.asList("feed.maxUrls",
+        "feed.name")), ev.getModifiedKeys());
+    assertEquals("10", ev.getOldConfig().getValue("feed.maxUrls"));
+    assertEquals("20", config.getValue("feed.maxUrls"));
+    assertEquals("reloaded", config.getFeedName());
+    assertFalse(config.ensureLatestConfigLoaded());
+  }
+
+  @Test
+  public void testConfigReloadedOnceUnchanged() throws Exception {
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.maxUrls=10\n");
+    configFile.setLastModified(1000);
+    config.load(configFile);
+
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.maxUrls=");
+    configFile.setLastModified(2000);
+    assertFalse(config.ensureLatestConfigLoaded());
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.maxUrls=20\n");
+    configFile.setLastModified(3000);
+    assertFalse(config.ensureLatestConfigLoaded());
+    assertEquals("10", config.getValue("feed.maxUrls"));
+    assertTrue(config.ensureLatestConfigLoaded());
+    assertEquals("20", config.getValue("feed.maxUrls"));
+  }
+
+  @Test
+  public void testOldConfigKeepsHostname() throws Exception {
+    config.overrideKey("server.hostname", "adaptor.example.com");
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.maxUrls=10\n");
+    configFile.setLastModified(1000);
+    config.load(configFile);
+    final List<ConfigModificationEvent> events
+        = new ArrayList<ConfigModificationEvent>();
+    config.addConfigModificationListener(new ConfigModificationListener() {
+      @Override
+      public void configModified(ConfigModificationEvent ev) {
+        events.add(ev);
+      }
+    });
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.maxUrls=20\n");
+    configFile.setLastModified(2000);
+    assertFalse(config.ensureLatestConfigLoaded());
+    assertTrue(config.ensureLatestConfigLoaded());
+    assertEquals(1, events.size());
+    assertEquals("adaptor.example.com",
+        events.get(0).getOldConfig().getServerHostname());
+  }
+
+  @Test
+  public void testConfigReloadedWithoutChangesDoesNotNotify()
+      throws Exception {
+    configFile.setFileContents("gsa.hostname=notreal\n");
+    configFile.setLastModified(1000);
+    config.load(configFile);
+    config.addConfigModificationListener(new ConfigModificationListener() {
+      @Override
+      public void configModified(ConfigModificationEvent ev) {
+        fail("Unexpected modification: " + ev);
+      }
+    });
+    configFile.setLastModified(2000);
+    assertFalse(config.ensureLatestConfigLoaded());
+    assertTrue(config.ensureLatestConfigLoaded());
+  }
+
+  @Test
+  public void testSetValueOverridesReloadedConfig() throws Exception {
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.maxUrls=10\n");
+    configFile.setLastModified(1000);
+    config.load(configFile);
+    config.setValue("feed.maxUrls", "5");
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.maxUrls=20\n");
+    configFile.setLastModified(2000);
+    assertFalse(config.ensureLatestConfigLoaded());
+    assertTrue(config.ensureLatestConfigLoaded());
+    assertEquals("5", config.getValue("feed.maxUrls"));
+  }
+
+  @Test
+  public void testInvalidReloadKeepsPreviousConfig() throws Exception {
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.name=before\n");
+    configFile.setLastModified(1000);
+    config.load(configFile);
+    configFile.setFileContents("gsa.hostname=notreal\nfeed.name=after\n"
+        + "gsa.version=invalid\n");
+    configFile.setLastModified(2000);
+    assertFalse(config.ensureLatestConfigLoaded());
+    try {
+      config.ensureLatestConfigLoaded();
+      fail("Expected InvalidConfigurationException");
+    } catch (InvalidConfigurationException expected) {
+      // Expected.
+    }
+    assertEquals("before", config.getFeedName());
+  }
+
+  @Test
+  public void testConfigNotLoadedFromFile() throws Exception {
+    assertFalse(config.ensureLatestConfigLoaded());
+  }
 }
@@ -9,6 +9,9 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.TimeZone;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -258,4 +261,115 @@ public class CronSchedulerTest {
     assertNotNull(queue.poll(100, TimeUnit.MILLISECONDS));
     future.cancel(false);
   }
+
+  @Test
+  public void testJitter() throws Exception {
+    executor.shutdownNow();
+    final AtomicReference<Runnable> atomicCommand
+        = new AtomicReference<Runnable>();
+    final AtomicLong jitterDelay = new AtomicLong(-1);
+    executor = new ScheduledThreadPoolExecutor(1) {
+      @Override
+      public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+          long initialDelay, long period, TimeUnit unit) {
+        atomicCommand.set(command);
+        // Set high delay, because we don't want it to actually run.
+        return super.scheduleAtFixedRate(command, 100000, period, unit);
+      }
+
+      @Override
+      public ScheduledFuture<?> schedule(Runnable command, long delay,
+          TimeUnit unit) {
+        jitterDelay.set(unit.toMillis(delay));
+        return super.schedule(command, 0, unit);
+      }
+    };
+    MockTimeProvider timeProvider = new MockTimeProvider();
+    timeProvider.autoIncrement = false;
+    Random random = new Random() {
+      @Override
+      public double nextDouble() {
+        return 0.5;
+      }
+    };
+    CronScheduler scheduler = new CronScheduler(executor, timeProvider,
+        TimeZone.getTimeZone("America/Los_Angeles"), random);
+    final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+    Runnable runnable = new Runnable() {
+      @Override
+      public void run() {
+        assertTrue(queue.offer(new Object()));
+      }
+    };
+    Future<?> future = scheduler.schedule("* * * * *", 9999, runnable);
+    atomicCommand.get().run();
+    assertEquals(5000, jitterDelay.get());
+    assertNotNull(queue.poll(1, TimeUnit.SECONDS));
+    future.cancel(false);
+  }
+
+  @Test
+  public void testCancelWithSeveralDelayedRuns() throws Exception {
+    executor.shutdownNow();
+    final AtomicReference<Runnable> atomicCommand
+        = new AtomicReference<Runnable>();
+    final List<ScheduledFuture<?>> delayed
+        = new ArrayList<ScheduledFuture<?>>();
+    executor = new ScheduledThreadPoolExecutor(1) {
+      @Override
+      public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+          long initialDelay, long period, TimeUnit unit) {
+        atomicCommand.set(command);
+        // Set high delay, because we don't want it to actually run.
+        return super.scheduleAtFixedRate(command, 100000, period, unit);
+      }
+
+      @Override
+      public ScheduledFuture<?> schedule(Runnable command, long delay,
+          TimeUnit unit) {
+        ScheduledFuture<?> future = super.schedule(command, delay, unit);
+        delayed.add(future);
+        return future;
+      }
+    };
+    MockTimeProvider timeProvider = new MockTimeProvider();
+    timeProvider.autoIncrement = false;
+    Random random = new Random() {
+      @Override
+      public double nextDouble() {
+        return 0.5;
+      }
+    };
+    CronScheduler scheduler = new CronScheduler(executor, timeProvider,
+        TimeZone.getTimeZone("America/Los_Angeles"), random);
+    final AtomicLong runs = new AtomicLong();
+    Runnable runnable = new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    };
+    // Up to five minutes of jitter, so two matches a minute apart are both
+    // still delayed.
+    Future<?> future
+        = scheduler.schedule("* * * * *", 5 * 60 * 1000, runnable);
+    atomicCommand.get().run();
+    timeProvider.time += 60 * 1000;
+    atomicCommand.get().run();
+    assertEquals(2, delayed.size());
+    future.cancel(false);
+    assertTrue(delayed.get(0).isCancelled());
+    assertTrue(delayed.get(1).isCancelled());
+    // A match racing with the cancellation does not schedule another run.
+    atomicCommand.get().run();
+    assertTrue(delayed.get(2).isCancelled());
+    assertEquals(0, runs.get());
+  }
+
+  @Test
+  public void testNegativeJitter() {
+    CronScheduler scheduler = new CronScheduler(executor);
+    thrown.expect(IllegalArgumentException.class);
+    scheduler.schedule("* * * * *", -1, noopRunnable);
+  }
 }
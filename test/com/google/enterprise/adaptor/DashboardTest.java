@@ -17,10 +17,17 @@ package com.google.enterprise.adaptor;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.adaptor.secmgr.saml.SamlParserPool;
+
+import com.sun.net.httpserver.HttpExchange;
 
 import org.junit.Test;
 
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -227,4 +234,76 @@ public class DashboardTest {
     status = source.retrieveStatus();
     assertEquals(Status.Code.WARNING, status.getCode());
   }
+
+  @Test
+  public void testSessionStatusSource() {
+    SessionManager<HttpExchange> sessionManager
+        = new SessionManager<HttpExchange>(
+            new SessionManager.HttpExchangeClientStore(), 1000, 1000);
+    sessionManager.getSession(new MockHttpExchange("GET", "/", null));
+    StatusSource source = new Dashboard.SessionStatusSource(sessionManager);
+    assertNotNull(source.getName(locale));
+    Status status = source.retrieveStatus();
+    assertEquals(Status.Code.NORMAL, status.getCode());
+    assertTrue(status.getMessage(locale).startsWith("1 active sessions."));
+  }
+
+  @Test
+  public void testSamlParserPoolStatusSource() throws Exception {
+    SamlParserPool pool = new SamlParserPool();
+    pool.returnBuilder(pool.getBuilder());
+    pool.returnBuilder(pool.getBuilder());
+    StatusSource source = new Dashboard.SamlParserPoolStatusSource(pool);
+    assertNotNull(source.getName(locale));
+    Status status = source.retrieveStatus();
+    assertEquals(Status.Code.NORMAL, status.getCode());
+    assertTrue(status.getMessage(locale).startsWith(
+        "Parsers reused 1 times. Created 1 in "));
+  }
+
+  @Test
+  public void testBackChannelStatusSource() {
+    PooledHttpClient client = new PooledHttpClient(4, 1000);
+    client.getLatency().record(7);
+    StatusSource source = new Dashboard.BackChannelStatusSource(client);
+    assertNotNull(source.getName(locale));
+    Status status = source.retrieveStatus();
+    assertEquals(Status.Code.NORMAL, status.getCode());
+    assertEquals("1 requests, 0 failed. Latency: 50% under 7 ms, 90% under "
+        + "7 ms, 99% under 7 ms, max 7 ms. 0 of 4 connections in use.",
+        status.getMessage(locale));
+  }
+
+  @Test
+  public void testReverseProxyStatusSource() {
+    ReverseProxyHandler handler = new ReverseProxyHandler(
+        URI.create("http://localhost:1/"), 8, 1000);
+    handler.getLatency().record(5);
+    StatusSource source
+        = new Dashboard.ReverseProxyStatusSource("adaptor1", handler);
+    assertEquals("Requests to adaptor1", source.getName(locale));
+    Status status = source.retrieveStatus();
+    assertEquals(Status.Code.NORMAL, status.getCode());
+    assertEquals("1 requests, 0 failed, 0 rejected. Latency: 50% under 5 ms, "
+        + "90% under 5 ms, 99% under 5 ms, max 5 ms. 0 of 8 connections in "
+        + "use.", status.getMessage(locale));
+  }
+
+  @Test
+  public void testStartFeedReplayInvalidParameters() throws Exception {
+    RpcHandler.RpcMethod method = new Dashboard.StartFeedReplayRpcMethod(null);
+    List<List<Object>> invalid = new ArrayList<List<Object>>();
+    invalid.add(Arrays.<Object>asList("true"));
+    invalid.add(Arrays.<Object>asList(true, 0L));
+    invalid.add(Arrays.<Object>asList(true, "0", 1000L));
+    invalid.add(Arrays.<Object>asList(true, 0L, null));
+    for (List<Object> request : invalid) {
+      try {
+        method.run(request);
+        fail("Expected IllegalArgumentException for " + request);
+      } catch (IllegalArgumentException expected) {
+        // Expected.
+      }
+    }
+  }
 }
@@ -18,6 +18,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -49,8 +50,11 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.security.auth.kerberos.KerberosPrincipal;
@@ -352,6 +356,64 @@ public class DocumentHandlerTest {
     assertArrayEquals(new byte[] {}, ex.getResponseBytes());
   }
 
+  @Test
+  public void testCoalescedRequests() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    mockAdaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException, InterruptedException {
+        calls.incrementAndGet();
+        started.countDown();
+        release.await();
+        super.getDocContent(request, response);
+      }
+    };
+    Journal journal = new Journal(new MockTimeProvider());
+    final DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(mockAdaptor).setAuthzAuthority(mockAdaptor)
+        .setJournal(journal).setCoalesceRequests(true).build();
+    Thread get = new Thread() {
+      @Override
+      public void run() {
+        try {
+          handler.handle(ex);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    get.start();
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    Thread head = new Thread() {
+      @Override
+      public void run() {
+        try {
+          handler.handle(headEx);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    head.start();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (journal.getSnapshot().numTotalCoalescedRequests == 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    release.countDown();
+    get.join();
+    head.join();
+    assertEquals(1, calls.get());
+    assertEquals(1, journal.getSnapshot().numTotalCoalescedRequests);
+    assertEquals(200, ex.getResponseCode());
+    assertArrayEquals(mockAdaptor.documentBytes, ex.getResponseBytes());
+    assertEquals(200, headEx.getResponseCode());
+    assertArrayEquals(new byte[] {}, headEx.getResponseBytes());
+  }
+
   @Test
   public void testNormalPost() throws Exception {
     MockHttpExchange ex = new MockHttpExchange("POST", defaultPath,
@@ -2516,6 +2578,51 @@ public class DocumentHandlerTest {
                  + "%2A%28%29%5B%5D%7B%7D%C3%AB%01", encoded);
   }
 
+  @Test
+  public void testPercentEncodingMatchesUtf8Bytes() {
+    StringBuilder value = new StringBuilder();
+    for (char c = 0; c < 0x3000; c++) {
+      value.append(c);
+    }
+    // Supplementary characters and unpaired surrogates.
+    value.append("\uD83D\uDE00x\uD800y\uDC00\uDBFF\uDFFF\uD800");
+    String s = value.toString();
+    assertEquals(referencePercentEncode(s), DocumentHandler.percentEncode(s));
+  }
+
+  @Test
+  public void testPercentEncodingCjkAndLoneSurrogate() {
+    assertEquals("%E6%9D%B1%E4%BA%AC%3Fa%3F",
+        DocumentHandler.percentEncode("\u6771\u4eac\uD800a\uDC00"));
+  }
+
+  @Test
+  public void testPercentEncodingUnreservedReturnsSameString() {
+    String value = "AaZz09-_.~";
+    assertSame(value, DocumentHandler.percentEncode(value));
+  }
+
+  @Test
+  public void testPercentEncodingAppends() {
+    StringBuilder sb = new StringBuilder("acl=");
+    DocumentHandler.percentEncode(sb, "a b");
+    assertEquals("acl=a%20b", sb.toString());
+  }
+
+  private static String referencePercentEncode(String value) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : value.getBytes(Charsets.UTF_8)) {
+      if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+          || (b >= '0' && b <= '9')
+          || b == '-' || b == '_' || b == '.' || b == '~') {
+        sb.append((char) b);
+      } else {
+        sb.append(String.format("%%%02X", b & 0xff));
+      }
+    }
+    return sb.toString();
+  }
+
   // tests for hostsSkipCertCheck
 
   // server.fullAccessHosts=NOT_OUR_IP_ADDRESS
@@ -3072,6 +3179,7 @@ public class DocumentHandlerTest {
     private String scoring = "content";
     private boolean alwaysGiveAclsAndMetadata = false;
     private GsaVersion gsaVersion = new GsaVersion("7.2.0-0");
+    private boolean coalesceRequests;
     
     public DocumentHandlerBuilder setDocIdDecoder(DocIdDecoder docIdDecoder) {
       this.docIdDecoder = docIdDecoder;
@@ -3191,13 +3299,19 @@ public class DocumentHandlerTest {
       return this;
     }
 
+    public DocumentHandlerBuilder setCoalesceRequests(
+        boolean coalesceRequests) {
+      this.coalesceRequests = coalesceRequests;
+      return this;
+    }
+
     public DocumentHandler build() {
       return new DocumentHandler(docIdDecoder, docIdEncoder, journal, adaptor,
           authzAuthority, gsaHostname, fullAccessHosts, skipCertHosts, samlServiceProvider,
           transform, aclTransform, contentTransformPipeline, useCompression,
           watchdog, pusher, sendDocControls, markDocsPublic,
           headerTimeoutMillis, contentTimeoutMillis, scoring,
-          alwaysGiveAclsAndMetadata, gsaVersion);
+          alwaysGiveAclsAndMetadata, gsaVersion, coalesceRequests);
     }
   }
 }
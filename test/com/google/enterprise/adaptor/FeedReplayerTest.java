@@ -0,0 +1,222 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Unit tests for {@link FeedReplayer}. */
+public class FeedReplayerTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String DOC_FEED = "<gsafeed><header>"
+      + "<datasource>src</datasource><feedtype>metadata-and-url</feedtype>"
+      + "</header></gsafeed>";
+  private static final String GROUPS_FEED = "<xmlgroups></xmlgroups>";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private RecordingSender sender = new RecordingSender();
+
+  @Test
+  public void testReplayFailedFeedsInBothFormats() throws Exception {
+    writeArchive();
+    FeedReplayer replayer
+        = new FeedReplayer(temp.getRoot(), sender, false, 2, 0);
+    assertTrue(replayer.replay(true, 0, Long.MAX_VALUE));
+    Collections.sort(sender.sent);
+    assertEquals(Arrays.asList("groups:src-1:" + GROUPS_FEED,
+        "metadata-and-url:src:" + DOC_FEED), sender.sent);
+    assertEquals(Status.Code.NORMAL, replayer.retrieveStatus().getCode());
+    assertTrue(new File(temp.getRoot(), FeedReplayer.DELIVERED_FILE_NAME)
+        .exists());
+  }
+
+  @Test
+  public void testReplayAllFeeds() throws Exception {
+    writeArchive();
+    FeedReplayer replayer
+        = new FeedReplayer(temp.getRoot(), sender, false, 1, 0);
+    assertTrue(replayer.replay(false, 0, Long.MAX_VALUE));
+    assertEquals(4, sender.sent.size());
+  }
+
+  @Test
+  public void testDeliveredFeedsNotSentAgain() throws Exception {
+    writeArchive();
+    FeedReplayer replayer
+        = new FeedReplayer(temp.getRoot(), sender, false, 2, 0);
+    replayer.replay(true, 0, Long.MAX_VALUE);
+    sender.sent.clear();
+    replayer.replay(false, 0, Long.MAX_VALUE);
+    assertEquals(2, sender.sent.size());
+    replayer = new FeedReplayer(temp.getRoot(), sender, false, 2, 0);
+    sender.sent.clear();
+    replayer.replay(false, 0, Long.MAX_VALUE);
+    assertEquals(0, sender.sent.size());
+  }
+
+  @Test
+  public void testFailedSendRetriedByNextReplay() throws Exception {
+    writeArchive();
+    FeedReplayer replayer
+        = new FeedReplayer(temp.getRoot(), sender, false, 2, 0);
+    sender.fail = true;
+    replayer.replay(true, 0, Long.MAX_VALUE);
+    assertEquals(Status.Code.WARNING, replayer.retrieveStatus().getCode());
+    sender.fail = false;
+    replayer.replay(true, 0, Long.MAX_VALUE);
+    assertEquals(2, sender.sent.size());
+    assertEquals(Status.Code.NORMAL, replayer.retrieveStatus().getCode());
+  }
+
+  @Test
+  public void testTimeRange() throws Exception {
+    writeArchive();
+    FeedReplayer replayer
+        = new FeedReplayer(temp.getRoot(), sender, false, 2, 0);
+    replayer.replay(false, 0, 1000);
+    assertEquals(Collections.singletonList("metadata-and-url:src:" + DOC_FEED),
+        sender.sent);
+  }
+
+  @Test
+  public void testReplayFromSegmentBeingWritten() throws Exception {
+    SegmentedFeedArchiver archiver = new SegmentedFeedArchiver(
+        temp.getRoot(), 1024 * 1024, 60 * 60 * 1000, 0, 4);
+    try {
+      archiver.saveFeed("src-1", GROUPS_FEED);
+      long end = System.currentTimeMillis() + 10000;
+      while (archiver.getArchivedCount() < 1
+          && System.currentTimeMillis() < end) {
+        Thread.sleep(10);
+      }
+      FeedReplayer replayer
+          = new FeedReplayer(temp.getRoot(), sender, false, 2, 0);
+      assertTrue(replayer.replay(false, 0, Long.MAX_VALUE));
+      assertEquals(Collections.singletonList("groups:src-1:" + GROUPS_FEED),
+          sender.sent);
+      assertEquals(Status.Code.NORMAL, replayer.retrieveStatus().getCode());
+    } finally {
+      archiver.close();
+    }
+  }
+
+  @Test
+  public void testFeedsOfDatasourceSentInOrder() throws Exception {
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 6; i++) {
+      String xml = DOC_FEED.replace("</gsafeed>", "<!--" + i + "--></gsafeed>");
+      File file = new File(temp.getRoot(), "src-" + i + ".xml");
+      Files.write(xml, file, UTF_8);
+      file.setLastModified(1000 * (i + 1));
+      expected.add("metadata-and-url:src:" + xml);
+    }
+    // The first feed is the slowest to send, to tempt later ones past it.
+    sender.delayMillis = 100;
+    FeedReplayer replayer
+        = new FeedReplayer(temp.getRoot(), sender, false, 4, 0);
+    assertTrue(replayer.replay(false, 0, Long.MAX_VALUE));
+    assertEquals(expected, sender.sent);
+  }
+
+  @Test
+  public void testNotStarted() {
+    FeedReplayer replayer
+        = new FeedReplayer(temp.getRoot(), sender, false, 2, 60);
+    assertEquals(Status.Code.UNAVAILABLE,
+        replayer.retrieveStatus().getCode());
+  }
+
+  /**
+   * Archives a failed and a sent document feed one per file, and a failed and
+   * a sent groups feed in a segment.
+   */
+  private void writeArchive() throws Exception {
+    File failed = new File(temp.getRoot(), "FAILED-src-123.xml");
+    Files.write(DOC_FEED, failed, UTF_8);
+    failed.setLastModified(1000);
+    File sent = new File(temp.getRoot(), "src-456.xml");
+    Files.write(DOC_FEED, sent, UTF_8);
+    sent.setLastModified(2000);
+    SegmentedFeedArchiver archiver = new SegmentedFeedArchiver(
+        temp.getRoot(), 1024, 60 * 60 * 1000, 0, 4);
+    archiver.saveFeed("src-1", GROUPS_FEED);
+    archiver.saveFailedFeed("src-1", GROUPS_FEED);
+    archiver.close();
+  }
+
+  private static class RecordingSender extends GsaFeedFileSender {
+    final List<String> sent
+        = Collections.synchronizedList(new ArrayList<String>());
+    volatile boolean fail;
+    /** How long the first send takes. */
+    volatile long delayMillis;
+
+    RecordingSender() {
+      super(url(), url(), UTF_8);
+    }
+
+    @Override
+    public void sendMetadataAndUrl(String datasource, String xmlString,
+        boolean useCompression) throws IOException {
+      record("metadata-and-url:" + datasource + ":" + xmlString);
+    }
+
+    @Override
+    void sendGroups(String groupsource, String xmlString,
+        boolean useCompression) throws IOException {
+      record("groups:" + groupsource + ":" + xmlString);
+    }
+
+    private void record(String feed) throws IOException {
+      if (fail) {
+        throw new IOException("test failure");
+      }
+      if (delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException ex) {
+          throw new AssertionError(ex);
+        }
+        delayMillis = 0;
+      }
+      sent.add(feed);
+    }
+
+    private static URL url() {
+      try {
+        return new URL("http://localhost:1/");
+      } catch (IOException ex) {
+        throw new AssertionError(ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,182 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test cases for {@link FileSharedSessionStore}.
+ */
+public class FileSharedSessionStoreTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private FileSharedSessionStore store;
+  private AuthnIdentity identity = new AuthnIdentityImpl
+      .Builder(new UserPrincipal("user@example.com", "ns1"))
+      .setGroups(new HashSet<GroupPrincipal>(Arrays.asList(
+          new GroupPrincipal("g1", "ns1"), new GroupPrincipal("g2", "ns2"),
+          new GroupPrincipal("g3", "ns1"))))
+      .build();
+
+  @Before
+  public void setUp() throws Exception {
+    store = new FileSharedSessionStore(temp.newFolder("sessions"));
+  }
+
+  @Test
+  public void testStoreAndLoad() throws Exception {
+    store.store("abc+/def==", identity, 1000);
+    SharedSessionStore.Entry entry = store.load("abc+/def==", 500);
+    assertEquals(1000, entry.getExpirationTimeMillis());
+    assertEquals(identity.getUser(), entry.getIdentity().getUser());
+    assertEquals(identity.getGroups(), entry.getIdentity().getGroups());
+    assertNull(entry.getIdentity().getPassword());
+    // Shared by other instances using the same directory.
+    FileSharedSessionStore other
+        = new FileSharedSessionStore(temp.getRoot().listFiles()[0]);
+    assertEquals(identity.getUser(),
+        other.load("abc+/def==", 500).getIdentity().getUser());
+  }
+
+  @Test
+  public void testFileNameDoesNotRevealId() throws Exception {
+    store.store("secret", identity, 1000);
+    String[] names = temp.getRoot().listFiles()[0].list();
+    assertEquals(1, names.length);
+    // SHA-256 of "secret".
+    assertEquals("2bb80d537b1da3e38bd30361aa855686bde0eacd7162fef6a25fe97bf527"
+        + "a25b.session", names[0]);
+  }
+
+  @Test
+  public void testDirectoryCreatedOwnerOnly() throws Exception {
+    PermissionRecordingFile dir = new PermissionRecordingFile(
+        new File(temp.getRoot(), "created").getPath());
+    new FileSharedSessionStore(dir);
+    assertTrue(dir.isDirectory());
+    assertEquals(Arrays.asList(
+        "readable=false ownerOnly=false", "writable=false ownerOnly=false",
+        "executable=false ownerOnly=false", "readable=true ownerOnly=true",
+        "writable=true ownerOnly=true", "executable=true ownerOnly=true"),
+        dir.changes);
+  }
+
+  @Test
+  public void testStoreReplaces() throws Exception {
+    store.store("id", identity, 1000);
+    AuthnIdentity replacement = new AuthnIdentityImpl
+        .Builder(new UserPrincipal("other")).build();
+    store.store("id", replacement, 2000);
+    SharedSessionStore.Entry entry = store.load("id", 500);
+    assertEquals(2000, entry.getExpirationTimeMillis());
+    assertEquals(replacement.getUser(), entry.getIdentity().getUser());
+    assertNull(entry.getIdentity().getGroups());
+  }
+
+  @Test
+  public void testLoadMissing() throws Exception {
+    assertNull(store.load("missing", 0));
+  }
+
+  @Test
+  public void testLoadExpired() throws Exception {
+    store.store("id", identity, 1000);
+    assertNull(store.load("id", 1001));
+  }
+
+  @Test
+  public void testLoadInvalidIds() throws Exception {
+    assertNull(store.load("", 0));
+    assertNull(store.load("../../etc/passwd", 0));
+    char[] longId = new char[1000];
+    Arrays.fill(longId, 'a');
+    assertNull(store.load(new String(longId), 0));
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    store.store("id", identity, 1000);
+    store.remove("id");
+    assertNull(store.load("id", 0));
+    // Removing again is fine.
+    store.remove("id");
+  }
+
+  @Test
+  public void testRemoveExpired() throws Exception {
+    store.store("id1", identity, 1000);
+    store.store("id2", identity, 3000);
+    store.removeExpired(2000);
+    Set<String> names = new HashSet<String>(
+        Arrays.asList(temp.getRoot().listFiles()[0].list()));
+    assertEquals(1, names.size());
+    assertEquals(3000, store.load("id2", 0).getExpirationTimeMillis());
+    assertNull(store.load("id1", 0));
+  }
+
+  @Test
+  public void testLoadBackup() throws Exception {
+    store.store("id", identity, 1000);
+    File dir = temp.getRoot().listFiles()[0];
+    File file = dir.listFiles()[0];
+    // As left by a store interrupted between its two renames.
+    assertTrue(file.renameTo(IOHelper.backupFileFor(file)));
+    assertEquals(1000, store.load("id", 0).getExpirationTimeMillis());
+    store.removeExpired(2000);
+    assertEquals(0, dir.list().length);
+  }
+
+  /** Records permission changes in addition to making them. */
+  private static class PermissionRecordingFile extends File {
+    final List<String> changes = new ArrayList<String>();
+
+    PermissionRecordingFile(String path) {
+      super(path);
+    }
+
+    @Override
+    public boolean setReadable(boolean readable, boolean ownerOnly) {
+      changes.add("readable=" + readable + " ownerOnly=" + ownerOnly);
+      return super.setReadable(readable, ownerOnly);
+    }
+
+    @Override
+    public boolean setWritable(boolean writable, boolean ownerOnly) {
+      changes.add("writable=" + writable + " ownerOnly=" + ownerOnly);
+      return super.setWritable(writable, ownerOnly);
+    }
+
+    @Override
+    public boolean setExecutable(boolean executable, boolean ownerOnly) {
+      changes.add("executable=" + executable + " ownerOnly=" + ownerOnly);
+      return super.setExecutable(executable, ownerOnly);
+    }
+  }
+}
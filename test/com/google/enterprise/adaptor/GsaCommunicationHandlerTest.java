@@ -15,12 +15,15 @@
 package com.google.enterprise.adaptor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.io.Files;
+
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
@@ -29,7 +32,9 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.charset.Charset;
@@ -40,12 +45,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Tests for {@link GsaCommunicationHandler}.
  */
 public class GsaCommunicationHandlerTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
   /**
    * Generated with {@code keytool -alias notadaptor -keystore
    * test/com/google/enterprise/adaptor/GsaCommunicationHandlerTest.valid.jks
@@ -64,6 +72,9 @@ public class GsaCommunicationHandlerTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   @Before
   public void setup() {
     config = new Config();
@@ -358,6 +369,71 @@ public class GsaCommunicationHandlerTest {
         = GsaCommunicationHandler.createMetadataTransformPipeline(config);
   }
 
+  @Test
+  public void testModifiedConfigResizesServerExecutor() throws Exception {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(4, 4, 1,
+        TimeUnit.MINUTES, new ResizableBlockingQueue<Runnable>(10));
+    try {
+      mockServer.setExecutor(pool);
+      File configFile = loadConfigFile(
+          "server.maxWorkerThreads=4\nserver.queueCapacity=10\n");
+      gsa.setup(mockServer, mockServer, null);
+      gsa.start(null);
+
+      reloadConfigFile(configFile,
+          "server.maxWorkerThreads=8\nserver.queueCapacity=20\n");
+      assertEquals(8, pool.getCorePoolSize());
+      assertEquals(8, pool.getMaximumPoolSize());
+      assertEquals(20,
+          ((ResizableBlockingQueue<?>) pool.getQueue()).getCapacity());
+
+      reloadConfigFile(configFile,
+          "server.maxWorkerThreads=2\nserver.queueCapacity=20\n");
+      assertEquals(2, pool.getCorePoolSize());
+      assertEquals(2, pool.getMaximumPoolSize());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testModifiedConfigChangesBatchSize() throws Exception {
+    File configFile = loadConfigFile("feed.maxUrls=100\n");
+    gsa.setup(mockServer, mockServer, null);
+    gsa.start(null);
+    assertEquals(100, gsa.getAsyncDocIdSender().getMaxBatchSize());
+
+    reloadConfigFile(configFile, "feed.maxUrls=50\n");
+    assertEquals(50, gsa.getAsyncDocIdSender().getMaxBatchSize());
+  }
+
+  @Test
+  public void testModifiedConfigReplacesTransforms() throws Exception {
+    File configFile = loadConfigFile("");
+    gsa.setup(mockServer, mockServer, null);
+    gsa.start(null);
+    assertEquals(new AclTransform(Arrays.<AclTransform.Rule>asList()),
+        gsa.getFeedFileMaker().getAclTransform());
+
+    reloadConfigFile(configFile, "transform.acl.0=name=u1;name=u2\n");
+    assertEquals(new AclTransform(Arrays.asList(new AclTransform.Rule(
+            new AclTransform.MatchData(null, "u1", null, null),
+            new AclTransform.MatchData(null, "u2", null, null)))),
+        gsa.getFeedFileMaker().getAclTransform());
+  }
+
+  @Test
+  public void testInvalidModifiedTransformKeepsPrevious() throws Exception {
+    File configFile = loadConfigFile("transform.acl.0=name=u1;name=u2\n");
+    gsa.setup(mockServer, mockServer, null);
+    gsa.start(null);
+    AclTransform before = gsa.getFeedFileMaker().getAclTransform();
+
+    reloadConfigFile(configFile, "transform.acl.0=name=u1;name=u2\n"
+        + "metadata.transform.pipeline=missing\n");
+    assertSame(before, gsa.getFeedFileMaker().getAclTransform());
+  }
+
   @Test
   public void testCreateAclTransformNone() throws Exception {
     Map<String, String> config = new HashMap<String, String>();
@@ -424,6 +500,23 @@ public class GsaCommunicationHandlerTest {
         "notchangeit");
   }
 
+  private File loadConfigFile(String contents) throws IOException {
+    File configFile = temp.newFile("adaptor-config.properties");
+    Files.write(contents, configFile, UTF_8);
+    config.load(configFile);
+    return configFile;
+  }
+
+  /** Rewrites the config file and reloads it the way polling does. */
+  private void reloadConfigFile(File configFile, String contents)
+      throws IOException {
+    long lastModified = configFile.lastModified();
+    Files.write(contents, configFile, UTF_8);
+    configFile.setLastModified(lastModified + 2000);
+    assertFalse(config.ensureLatestConfigLoaded());
+    assertTrue(config.ensureLatestConfigLoaded());
+  }
+
   private static class NullAdaptor extends AbstractAdaptor {
     private boolean inited;
 
@@ -18,6 +18,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.sun.net.httpserver.HttpExchange;
@@ -29,14 +30,18 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for {@link HeartbeatHandler}.
@@ -442,7 +447,8 @@ public class HeartbeatHandlerTest {
         new MockWatchdog(), new MockPusher(), false /* sendDocControls */,
         false /* markDocsPublic */, 30000 /* headerTimeoutMillis */,
         180000 /* contentTimeoutMillis */, "content",
-        false /* alwaysGiveAclsAndMetadata */, new GsaVersion("7.2.0-0")) {
+        false /* alwaysGiveAclsAndMetadata */, new GsaVersion("7.2.0-0"),
+        false /* coalesceRequests */) {
           @Override
           public void handle(HttpExchange ex) throws IOException {
             // add a header that starts with "X-Gsa"
@@ -469,6 +475,152 @@ public class HeartbeatHandlerTest {
         ex.getResponseHeaders().get("X-gsa-initial"));
   }
 
+  @Test
+  public void testNegativeProbeCacheMillis() {
+    thrown.expect(IllegalArgumentException.class);
+    createHeartbeatHandlerBuilder().setProbeCacheMillis(-1).build();
+  }
+
+  @Test
+  public void testProbeAvailable() throws Exception {
+    CountingProbe probe = new CountingProbe(true);
+    HeartbeatHandler handler = createHeartbeatHandlerBuilder()
+        .setDocHandler(createTrustingDocHandler(new NoContentMockAdaptor()))
+        .setProbe(probe).build();
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertArrayEquals(new byte[] {}, ex.getResponseBytes());
+    handler.handle(headEx);
+    assertEquals(200, headEx.getResponseCode());
+    assertEquals(1, probe.calls.get());
+    assertEquals(defaultDocId, probe.lastDocId);
+  }
+
+  @Test
+  public void testProbeNotFound() throws Exception {
+    CountingProbe probe = new CountingProbe(false);
+    HeartbeatHandler handler = createHeartbeatHandlerBuilder()
+        .setDocHandler(createTrustingDocHandler(new NoContentMockAdaptor()))
+        .setProbe(probe).build();
+    handler.handle(ex);
+    assertEquals(404, ex.getResponseCode());
+    handler.handle(headEx);
+    assertEquals(404, headEx.getResponseCode());
+    assertEquals(1, probe.calls.get());
+  }
+
+  @Test
+  public void testProbeCacheDisabled() throws Exception {
+    CountingProbe probe = new CountingProbe(true);
+    HeartbeatHandler handler = createHeartbeatHandlerBuilder()
+        .setDocHandler(createTrustingDocHandler(new NoContentMockAdaptor()))
+        .setProbe(probe).setProbeCacheMillis(0).build();
+    handler.handle(ex);
+    handler.handle(headEx);
+    assertEquals(200, headEx.getResponseCode());
+    assertEquals(2, probe.calls.get());
+  }
+
+  @Test
+  public void testProbeFailureNotCached() throws Exception {
+    final AtomicInteger calls = new AtomicInteger();
+    HeartbeatProbe probe = new HeartbeatProbe() {
+      @Override
+      public boolean isDocumentAvailable(DocId id) throws IOException {
+        if (calls.incrementAndGet() == 1) {
+          throw new IOException("repository unreachable");
+        }
+        return true;
+      }
+    };
+    HeartbeatHandler handler = createHeartbeatHandlerBuilder()
+        .setDocHandler(createTrustingDocHandler(new NoContentMockAdaptor()))
+        .setProbe(probe).build();
+    try {
+      handler.handle(ex);
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      assertEquals("repository unreachable", e.getCause().getMessage());
+    }
+    handler.handle(headEx);
+    assertEquals(200, headEx.getResponseCode());
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testProbeNotUsedForUntrustedClient() throws Exception {
+    CountingProbe probe = new CountingProbe(true);
+    HeartbeatHandler handler = createHeartbeatHandlerBuilder()
+        .setDocHandler(createDocHandlerForAdaptor(new PrivateMockAdaptor()))
+        .setProbe(probe).build();
+    ex.setRemoteAddress(new InetSocketAddress(NOT_OUR_IP_ADDRESS, 80));
+    handler.handle(ex);
+    assertEquals(403, ex.getResponseCode());
+    assertEquals(0, probe.calls.get());
+  }
+
+  @Test
+  public void testProbeNotUsedForSecMgr() throws Exception {
+    CountingProbe probe = new CountingProbe(true);
+    HeartbeatHandler handler = createHeartbeatHandlerBuilder()
+        .setProbe(probe).build();
+    ex.getRequestHeaders().add("User-Agent", "SecMgr");
+    handler.handle(ex);
+    assertEquals(403, ex.getResponseCode());
+    assertEquals(0, probe.calls.get());
+  }
+
+  @Test
+  public void testProbeSharedByConcurrentHeartbeats() throws Exception {
+    final CountDownLatch probeStarted = new CountDownLatch(1);
+    final CountDownLatch releaseProbe = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    HeartbeatProbe probe = new HeartbeatProbe() {
+      @Override
+      public boolean isDocumentAvailable(DocId id)
+          throws InterruptedException {
+        calls.incrementAndGet();
+        probeStarted.countDown();
+        releaseProbe.await();
+        return true;
+      }
+    };
+    final HeartbeatHandler handler = createHeartbeatHandlerBuilder()
+        .setDocHandler(createTrustingDocHandler(new NoContentMockAdaptor()))
+        .setProbe(probe).build();
+    Thread first = new Thread() {
+      @Override
+      public void run() {
+        try {
+          handler.handle(ex);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    first.start();
+    assertTrue(probeStarted.await(10, TimeUnit.SECONDS));
+    Thread second = new Thread() {
+      @Override
+      public void run() {
+        try {
+          handler.handle(headEx);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    second.start();
+    // Give the second heartbeat time to wait on the first one's probe.
+    Thread.sleep(50);
+    releaseProbe.countDown();
+    first.join();
+    second.join();
+    assertEquals(200, ex.getResponseCode());
+    assertEquals(200, headEx.getResponseCode());
+    assertEquals(1, calls.get());
+  }
+
   private DocumentHandlerBuilder createDocHandlerBuilder() {
     return new DocumentHandlerBuilder()
         .setDocIdDecoder(docIdCodec)
@@ -489,6 +641,12 @@ public class HeartbeatHandlerTest {
         .setAuthzAuthority(authzAuthority).build();
   }
 
+  /** Creates a handler that fully trusts {@link MockHttpExchange}s. */
+  private DocumentHandler createTrustingDocHandler(Adaptor adaptor) {
+    return createDocHandlerBuilder().setAdaptor(adaptor)
+        .setFullAccessHosts(new String[] {"127.0.0.3"}).build();
+  }
+
   private HeartbeatHandlerBuilder createHeartbeatHandlerBuilder() {
     return new HeartbeatHandlerBuilder()
         .setHeartbeatDecoder(docIdCodec)
@@ -497,6 +655,30 @@ public class HeartbeatHandlerTest {
         .setWatchdog(new MockWatchdog());
   }
 
+  private static class NoContentMockAdaptor extends MockAdaptor {
+    @Override
+    public void getDocContent(Request request, Response response) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class CountingProbe implements HeartbeatProbe {
+    private final boolean available;
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile DocId lastDocId;
+
+    public CountingProbe(boolean available) {
+      this.available = available;
+    }
+
+    @Override
+    public boolean isDocumentAvailable(DocId id) {
+      calls.incrementAndGet();
+      lastDocId = id;
+      return available;
+    }
+  }
+
   private static class UserPrivateMockAdaptor extends MockAdaptor {
       @Override
       public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
@@ -702,7 +884,7 @@ public class HeartbeatHandlerTest {
           transform, aclTransform, contentTransformPipeline, useCompression,
           watchdog, pusher, sendDocControls, markDocsPublic,
           headerTimeoutMillis, contentTimeoutMillis, scoring,
-          alwaysGiveAclsAndMetadata, gsaVersion);
+          alwaysGiveAclsAndMetadata, gsaVersion, false);
     }
   }
 
@@ -712,6 +894,8 @@ public class HeartbeatHandlerTest {
     private DocumentHandler docHandler;
     private Watchdog watchdog;
     private long timeoutMillis = 30 * 1000;
+    private HeartbeatProbe probe;
+    private long probeCacheMillis = 10 * 1000;
 
     public HeartbeatHandlerBuilder setHeartbeatDecoder(
         DocIdDecoder heartbeatDecoder) {
@@ -739,9 +923,19 @@ public class HeartbeatHandlerTest {
       return this;
     }
 
+    public HeartbeatHandlerBuilder setProbe(HeartbeatProbe probe) {
+      this.probe = probe;
+      return this;
+    }
+
+    public HeartbeatHandlerBuilder setProbeCacheMillis(long probeCacheMillis) {
+      this.probeCacheMillis = probeCacheMillis;
+      return this;
+    }
+
     public HeartbeatHandler build() {
       return new HeartbeatHandler(heartbeatDecoder, docIdEncoder, docHandler,
-          watchdog, timeoutMillis);
+          watchdog, timeoutMillis, probe, probeCacheMillis);
     }
   }
 }
@@ -0,0 +1,177 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/** Unit tests for {@link HighWaterMarkLister}. */
+public class HighWaterMarkListerTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final MockTimeProvider timeProvider = new MockTimeProvider();
+  private final AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+  private File stateFile;
+
+  @Before
+  public void setUp() {
+    timeProvider.autoIncrement = false;
+    timeProvider.time = 100000;
+    stateFile = new File(temp.getRoot(), "marks.properties");
+  }
+
+  @Test
+  public void testAdvancesAndPersists() throws Exception {
+    SequenceSource source = new SequenceSource("seq", 5, 2);
+    HighWaterMarkLister lister = createLister(source);
+    assertEquals(Status.Code.UNAVAILABLE, lister.retrieveStatus().getCode());
+    lister.getModifiedDocIds(pusher);
+    assertEquals(Arrays.asList(new DocId("1"), new DocId("2"), new DocId("3"),
+        new DocId("4"), new DocId("5")), pusher.getDocIds());
+    assertEquals(Arrays.asList(null, "2", "4"), source.requestedMarks);
+    assertEquals("5", lister.getHighWaterMark("seq"));
+
+    // A new instance, as after a restart, continues where the last one ended.
+    source = new SequenceSource("seq", 7, 10);
+    pusher.reset();
+    lister = createLister(source);
+    assertEquals("5", lister.getHighWaterMark("seq"));
+    lister.getModifiedDocIds(pusher);
+    assertEquals(Arrays.asList(new DocId("6"), new DocId("7")),
+        pusher.getDocIds());
+    assertEquals(Arrays.asList("5"), source.requestedMarks);
+  }
+
+  @Test
+  public void testLoadsBackup() throws Exception {
+    HighWaterMarkLister lister = createLister(new SequenceSource("seq", 5, 10));
+    lister.getModifiedDocIds(pusher);
+    // As left by a save interrupted between its two renames.
+    assertTrue(stateFile.renameTo(IOHelper.backupFileFor(stateFile)));
+    lister = createLister(new SequenceSource("seq", 5, 10));
+    assertEquals("5", lister.getHighWaterMark("seq"));
+  }
+
+  @Test
+  public void testDoesNotAdvanceWhenPushFails() throws Exception {
+    SequenceSource source = new SequenceSource("seq", 3, 10);
+    HighWaterMarkLister lister = createLister(source);
+    DocIdPusher failingPusher = new AccumulatingDocIdPusher() {
+      @Override
+      public Record pushRecords(Iterable<Record> records,
+          ExceptionHandler handler) {
+        return records.iterator().next();
+      }
+    };
+    try {
+      lister.getModifiedDocIds(failingPusher);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+    assertNull(lister.getHighWaterMark("seq"));
+    assertFalse(stateFile.exists());
+    lister.getModifiedDocIds(pusher);
+    assertEquals(3, pusher.getDocIds().size());
+    assertEquals(Arrays.asList(null, null), source.requestedMarks);
+  }
+
+  @Test
+  public void testLagStatus() throws Exception {
+    SequenceSource first = new SequenceSource("first", 1, 10);
+    SequenceSource second = new SequenceSource("second", 1, 10);
+    HighWaterMarkLister lister = new HighWaterMarkLister(stateFile,
+        Arrays.asList(first, second), 60 * 1000, timeProvider);
+    first.markMillis = 40000;
+    second.markMillis = 90000;
+    lister.getModifiedDocIds(pusher);
+    assertEquals(60000, lister.getLagMillis());
+    Status status = lister.retrieveStatus();
+    assertEquals(Status.Code.NORMAL, status.getCode());
+    assertEquals("Changes sent up to 60 seconds ago",
+        status.getMessage(Locale.ENGLISH));
+    timeProvider.time += 1000;
+    assertEquals(Status.Code.WARNING, lister.retrieveStatus().getCode());
+    assertEquals("Incremental Lag", lister.getName(Locale.ENGLISH));
+  }
+
+  @Test
+  public void testDuplicateNames() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new HighWaterMarkLister(stateFile, Arrays.asList(
+        new SequenceSource("a", 1, 1), new SequenceSource("a", 1, 1)));
+  }
+
+  private HighWaterMarkLister createLister(SequenceSource source)
+      throws IOException {
+    return new HighWaterMarkLister(stateFile,
+        Collections.singletonList(source), 60 * 1000, timeProvider);
+  }
+
+  /** Source whose documents are numbered, and whose mark is a number. */
+  private static class SequenceSource
+      implements HighWaterMarkLister.ChangeSource {
+    private final String name;
+    private final int latest;
+    private final int batchSize;
+    final List<String> requestedMarks = new ArrayList<String>();
+    long markMillis = 1000;
+
+    SequenceSource(String name, int latest, int batchSize) {
+      this.name = name;
+      this.latest = latest;
+      this.batchSize = batchSize;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public HighWaterMarkLister.Changes getChangesSince(String highWaterMark) {
+      requestedMarks.add(highWaterMark);
+      int start = highWaterMark == null ? 0 : Integer.parseInt(highWaterMark);
+      int end = Math.min(latest, start + batchSize);
+      List<DocIdPusher.Record> records = new ArrayList<DocIdPusher.Record>();
+      for (int i = start + 1; i <= end; i++) {
+        records.add(new DocIdPusher.Record.Builder(
+            new DocId(Integer.toString(i))).build());
+      }
+      return new HighWaterMarkLister.Changes(records, Integer.toString(end),
+          markMillis, end < latest);
+    }
+  }
+}
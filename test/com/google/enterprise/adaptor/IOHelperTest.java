@@ -15,10 +15,16 @@
 package com.google.enterprise.adaptor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
+import com.google.common.io.Files;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.nio.charset.Charset;
 
 /**
@@ -26,6 +32,10 @@ import java.nio.charset.Charset;
  */
 public class IOHelperTest {
   private static final Charset charset = Charset.forName("ASCII");
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   @Test
   public void testReadFullySuccess() throws Exception {
     final String golden = "Testing";
@@ -62,4 +72,25 @@ public class IOHelperTest {
         new ByteArrayInputStream(new byte[1]), in, 0, 0);
     assertEquals(0, read);
   }
+
+  @Test
+  public void testRenameOver() throws Exception {
+    File file = temp.newFile("state");
+    Files.write("old", file, charset);
+    File newer = temp.newFile("state.tmp");
+    Files.write("new", newer, charset);
+    IOHelper.renameOver(newer, file);
+    assertEquals("new", Files.toString(file, charset));
+    assertFalse(newer.exists());
+    assertFalse(IOHelper.backupFileFor(file).exists());
+  }
+
+  @Test
+  public void testRenameOverMissingFile() throws Exception {
+    File file = new File(temp.getRoot(), "state");
+    File newer = temp.newFile("state.tmp");
+    Files.write("new", newer, charset);
+    IOHelper.renameOver(newer, file);
+    assertEquals("new", Files.toString(file, charset));
+  }
 }
@@ -160,6 +160,33 @@ public class JournalTest {
     assertEquals(3, snapshot.numTotalGsaRequests);
   }
 
+  @Test
+  public void testCoalescedRequestCount() {
+    Journal journal = new Journal(new MockTimeProvider());
+    assertEquals(0, journal.getSnapshot().numTotalCoalescedRequests);
+    journal.recordCoalescedRequest();
+    journal.recordCoalescedRequest();
+    assertEquals(2, journal.getSnapshot().numTotalCoalescedRequests);
+  }
+
+  @Test
+  public void testGsaRequestsInLastMinute() {
+    MockTimeProvider timeProvider = new MockTimeProvider();
+    Journal journal = new Journal(timeProvider);
+    timeProvider.autoIncrement = false;
+    assertEquals(0, journal.getGsaRequestsInLastMinute());
+    journal.recordGsaContentRequest(new DocId("a"));
+    journal.recordGsaContentRequest(new DocId("a"));
+    journal.recordNonGsaContentRequest(new DocId("b"));
+    timeProvider.time += 30 * 1000;
+    journal.recordGsaContentRequest(new DocId("c"));
+    assertEquals(3, journal.getGsaRequestsInLastMinute());
+    timeProvider.time += 45 * 1000;
+    assertEquals(1, journal.getGsaRequestsInLastMinute());
+    timeProvider.time += 60 * 1000;
+    assertEquals(0, journal.getGsaRequestsInLastMinute());
+  }
+
   @Test
   public void testStats() throws InterruptedException {
     final MockTimeProvider timeProvider = new MockTimeProvider();
@@ -0,0 +1,67 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link LatencyHistogram}. */
+public class LatencyHistogramTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private LatencyHistogram histogram = new LatencyHistogram();
+
+  @Test
+  public void testEmpty() {
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(50));
+  }
+
+  @Test
+  public void testPercentiles() {
+    for (int i = 0; i < 90; i++) {
+      histogram.record(3);
+    }
+    for (int i = 0; i < 9; i++) {
+      histogram.record(150);
+    }
+    histogram.record(70000);
+    assertEquals(100, histogram.getCount());
+    assertEquals(70000, histogram.getMax());
+    assertEquals(5, histogram.getPercentile(50));
+    assertEquals(5, histogram.getPercentile(90));
+    assertEquals(200, histogram.getPercentile(99));
+    assertEquals(70000, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void testPercentileLimitedByMax() {
+    histogram.record(-5);
+    histogram.record(12);
+    assertEquals(1, histogram.getPercentile(50));
+    assertEquals(12, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void testInvalidPercentile() {
+    thrown.expect(IllegalArgumentException.class);
+    histogram.getPercentile(101);
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Unit tests for {@link LoadDeferringRunnable}. */
+public class LoadDeferringRunnableTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final MockTimeProvider timeProvider = new MockTimeProvider();
+  private final Journal journal = new Journal(timeProvider);
+  private final AtomicInteger runs = new AtomicInteger();
+  private final Runnable counter = new Runnable() {
+    @Override
+    public void run() {
+      runs.incrementAndGet();
+    }
+  };
+  private final AtomicReference<Runnable> recheck
+      = new AtomicReference<Runnable>();
+  private final ScheduledThreadPoolExecutor executor
+      = new ScheduledThreadPoolExecutor(1) {
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay,
+        TimeUnit unit) {
+      assertEquals(LoadDeferringRunnable.RECHECK_MILLIS, unit.toMillis(delay));
+      recheck.set(command);
+      // Set high delay, because we don't want it to actually run.
+      return super.schedule(command, 100000, TimeUnit.SECONDS);
+    }
+  };
+
+  {
+    timeProvider.autoIncrement = false;
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testRunsWhenIdle() {
+    Runnable runnable = new LoadDeferringRunnable(
+        counter, journal, executor, 2, 60 * 60 * 1000, timeProvider);
+    recordGsaRequests(2);
+    runnable.run();
+    assertEquals(1, runs.get());
+    assertNull(recheck.get());
+  }
+
+  @Test
+  public void testDefersWhileBusy() {
+    Runnable runnable = new LoadDeferringRunnable(
+        counter, journal, executor, 2, 60 * 60 * 1000, timeProvider);
+    recordGsaRequests(3);
+    runnable.run();
+    assertEquals(0, runs.get());
+
+    // Still busy.
+    timeProvider.time += LoadDeferringRunnable.RECHECK_MILLIS - 1000;
+    recordGsaRequests(3);
+    recheck.getAndSet(null).run();
+    assertEquals(0, runs.get());
+    Runnable pending = recheck.getAndSet(null);
+    assertNotNull(pending);
+
+    // Invocations while deferring are ignored.
+    runnable.run();
+    assertEquals(0, runs.get());
+    assertNull(recheck.get());
+
+    timeProvider.time += LoadDeferringRunnable.RECHECK_MILLIS + 1000;
+    pending.run();
+    assertEquals(1, runs.get());
+
+    // Not deferring anymore, so the recheck does nothing.
+    pending.run();
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void testMaxDeferral() {
+    Runnable runnable = new LoadDeferringRunnable(
+        counter, journal, executor, 2, 90 * 1000, timeProvider);
+    recordGsaRequests(3);
+    runnable.run();
+    assertEquals(0, runs.get());
+    for (int i = 0; i < 2; i++) {
+      timeProvider.time += LoadDeferringRunnable.RECHECK_MILLIS;
+      recordGsaRequests(3);
+      recheck.get().run();
+    }
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void testInvalidThreshold() {
+    thrown.expect(IllegalArgumentException.class);
+    new LoadDeferringRunnable(counter, journal, executor, 0, 1000,
+        timeProvider);
+  }
+
+  private void recordGsaRequests(int count) {
+    for (int i = 0; i < count; i++) {
+      journal.recordGsaContentRequest(new DocId("doc" + i));
+    }
+  }
+}
@@ -18,15 +18,21 @@ import static java.util.AbstractMap.SimpleEntry;
 import static java.util.Map.Entry;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -456,4 +462,161 @@ public class MetadataTest {
     thrown.expect(UnsupportedOperationException.class);
     keys.remove("sna");
   }
+
+  @Test
+  public void testCopyOnWriteCopyIsIndependent() {
+    Metadata m1 = new Metadata();
+    m1.set("foo", makeSet("bar", "home"));
+    Metadata m2 = m1.copyOnWriteCopy();
+    assertTrue(m1.sharesStorageWith(m2));
+    assertEquals(m1, m2);
+
+    m2.add("foo", "villa");
+    assertFalse(m1.sharesStorageWith(m2));
+    assertEquals(makeSet("bar", "home"), m1.getAllValues("foo"));
+    assertEquals(makeSet("bar", "home", "villa"), m2.getAllValues("foo"));
+
+    m1.set("sna", "fu");
+    assertEquals(Collections.<String>emptySet(), m2.getAllValues("sna"));
+  }
+
+  @Test
+  public void testCopyOnWriteReadsDoNotCopy() {
+    Metadata m1 = new Metadata();
+    m1.set("foo", makeSet("bar", "home"));
+    Metadata m2 = m1.copyOnWriteCopy();
+    m2.getKeys().contains("foo");
+    m2.getAllValues("foo");
+    m2.add("foo", "bar");
+    m2.set("missing", Collections.<String>emptySet());
+    m2.getKeys().remove("missing");
+    assertTrue(m1.sharesStorageWith(m2));
+  }
+
+  @Test
+  public void testCopyOnWriteKeyRemoval() {
+    Metadata m1 = new Metadata();
+    m1.set("foo", "bar");
+    m1.set("sna", "fu");
+    Metadata m2 = m1.copyOnWriteCopy();
+    Iterator<String> it = m2.getKeys().iterator();
+    while (it.hasNext()) {
+      if ("foo".equals(it.next())) {
+        it.remove();
+      }
+    }
+    assertEquals(makeSet("sna"), m2.getKeys());
+    assertEquals(makeSet("foo", "sna"), m1.getKeys());
+  }
+
+  @Test
+  public void testReplaceWithKeepsViewsCurrent() {
+    Metadata m1 = new Metadata();
+    m1.set("foo", "bar");
+    Metadata view = m1.unmodifiableView();
+    Metadata m2 = m1.copyOnWriteCopy();
+    m2.set("sna", "fu");
+    m1.replaceWith(m2);
+    assertEquals(makeSet("foo", "sna"), m1.getKeys());
+    assertEquals(m1, view);
+  }
+
+  @Test
+  public void testViewCurrentAfterUnmodifiedCopyReplaces() {
+    Metadata m1 = new Metadata();
+    m1.set("foo", "bar");
+    Metadata view = m1.unmodifiableView();
+    // Like a pipeline of transforms that only read.
+    m1.replaceWith(m1.copyOnWriteCopy());
+    m1.set("sna", "fu");
+    assertEquals(makeSet("foo", "sna"), view.getKeys());
+    assertEquals("fu", view.getOneValue("sna"));
+  }
+
+  @Test
+  public void testViewCurrentAfterCopyOnWrite() {
+    Metadata m1 = new Metadata();
+    m1.set("foo", "bar");
+    Metadata view = m1.unmodifiableView();
+    Metadata m2 = m1.copyOnWriteCopy();
+    m1.add("foo", "home");
+    m1.add("sna", "fu");
+    assertEquals(makeSet("bar", "home"), view.getAllValues("foo"));
+    assertEquals(m1, view);
+    assertEquals(makeSet("bar"), m2.getAllValues("foo"));
+  }
+
+  @Test
+  public void testViewCurrentAfterSetFromMetadata() {
+    Metadata m1 = new Metadata();
+    Metadata view = m1.unmodifiableView();
+    m1.copyOnWriteCopy();
+    Metadata other = new Metadata();
+    other.set("foo", "bar");
+    m1.set(other);
+    assertEquals("bar", view.getOneValue("foo"));
+  }
+
+  @Test
+  public void testKeysAreShared() {
+    Metadata m1 = new Metadata();
+    m1.add(new String("author"), "alice");
+    Metadata m2 = new Metadata();
+    m2.set(new String("author"), makeSet("bob", "carol"));
+    assertSame(m1.getKeys().iterator().next(),
+        m2.getKeys().iterator().next());
+  }
+
+  @Test
+  public void testAddKeepsValuesSorted() {
+    Metadata m = new Metadata();
+    m.add("foo", "m");
+    m.add("foo", "z");
+    m.add("foo", "a");
+    m.add("foo", "m");
+    m.add("bar", "b");
+    m.add("foo", "q");
+    List<String> golden = Arrays.asList(
+        "bar=b", "foo=a", "foo=m", "foo=q", "foo=z");
+    List<String> actual = new ArrayList<String>();
+    for (Entry<String, String> e : m) {
+      actual.add(e.getKey() + "=" + e.getValue());
+    }
+    assertEquals(golden, actual);
+    assertEquals("a", m.getOneValue("foo"));
+    assertTrue(m.getAllValues("foo").contains("q"));
+    assertFalse(m.getAllValues("foo").contains("b"));
+  }
+
+  @Test
+  public void testHashCodeMatchesMapOfSets() {
+    Metadata m = new Metadata();
+    m.add("foo", "bar");
+    m.set("sna", makeSet("fu", "bar"));
+    Map<String, Set<String>> golden = new HashMap<String, Set<String>>();
+    golden.put("foo", makeSet("bar"));
+    golden.put("sna", makeSet("fu", "bar"));
+    assertEquals(golden.hashCode(), m.hashCode());
+  }
+
+  @Test
+  public void testKeyIteratorRemoveWhileIterating() {
+    Metadata m = new Metadata();
+    m.set("a", "1");
+    m.set("b", makeSet("2", "3"));
+    m.set("c", "4");
+    m.set("d", "5");
+    Iterator<String> it = m.getKeys().iterator();
+    List<String> seen = new ArrayList<String>();
+    while (it.hasNext()) {
+      String key = it.next();
+      seen.add(key);
+      if (!"c".equals(key)) {
+        it.remove();
+      }
+    }
+    assertEquals(Arrays.asList("a", "b", "c", "d"), seen);
+    assertEquals(makeSet("c"), m.getKeys());
+    assertEquals("[c=4]", m.toString());
+  }
 }
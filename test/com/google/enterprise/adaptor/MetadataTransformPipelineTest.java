@@ -15,6 +15,8 @@
 package com.google.enterprise.adaptor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -185,4 +187,52 @@ public class MetadataTransformPipelineTest {
       assertEquals(Collections.singletonMap("int", "1"), params);
     }
   }
+
+  @Test
+  public void testReadOnlyTransformDoesNotCopyMetadata() {
+    final Metadata metadata = new Metadata();
+    metadata.set("int", "0");
+    MetadataTransform readOnly = new MetadataTransform() {
+      @Override
+      public void transform(Metadata m, Map<String, String> p) {
+        assertNotSame(metadata, m);
+        assertEquals("0", m.getOneValue("int"));
+        assertTrue(m.getKeys().contains("int"));
+        assertTrue(metadata.sharesStorageWith(m));
+      }
+    };
+    MetadataTransformPipeline pipeline = new MetadataTransformPipeline(
+        Arrays.asList(readOnly, new IncrementTransform()),
+        Arrays.asList("ro", "it"));
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("int", "1");
+
+    pipeline.transform(metadata, params);
+
+    Metadata goldenMetadata = new Metadata();
+    goldenMetadata.set("int", "1");
+    assertEquals(goldenMetadata, metadata);
+    assertEquals(Collections.singletonMap("int", "2"), params);
+  }
+
+  @Test
+  public void testViewCurrentAfterReadOnlyTransform() {
+    Metadata metadata = new Metadata();
+    metadata.set("foo", "bar");
+    Metadata view = metadata.unmodifiableView();
+    MetadataTransform readOnly = new MetadataTransform() {
+      @Override
+      public void transform(Metadata m, Map<String, String> p) {
+        m.getOneValue("foo");
+      }
+    };
+    MetadataTransformPipeline pipeline = new MetadataTransformPipeline(
+        Arrays.asList(readOnly), Arrays.asList("ro"));
+    pipeline.transform(metadata, new HashMap<String, String>());
+
+    metadata.add("foo", "home");
+    metadata.set("sna", "fu");
+    assertEquals(metadata, view);
+    assertEquals("fu", view.getOneValue("sna"));
+  }
 }
@@ -33,6 +33,7 @@ import java.util.concurrent.Executor;
 public class MockHttpServer extends HttpServer {
   private final InetSocketAddress addr;
   final List<HttpContext> contexts = new ArrayList<HttpContext>();
+  private volatile Executor executor;
 
   public MockHttpServer() {
     this(new InetSocketAddress(80));
@@ -81,7 +82,7 @@ public class MockHttpServer extends HttpServer {
 
   @Override
   public Executor getExecutor() {
-    throw new UnsupportedOperationException();
+    return executor;
   }
 
   @Override
@@ -112,7 +113,7 @@ public class MockHttpServer extends HttpServer {
 
   @Override
   public void setExecutor(Executor executor) {
-    throw new UnsupportedOperationException();
+    this.executor = executor;
   }
 
   @Override
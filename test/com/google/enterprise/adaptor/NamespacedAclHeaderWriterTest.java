@@ -0,0 +1,138 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Unit tests for {@link NamespacedAclHeaderWriter}. */
+public class NamespacedAclHeaderWriterTest {
+  private final DocIdEncoder enc = new MockDocIdCodec();
+
+  @Test
+  public void testBusyAclMatchesJsonSimple() throws Exception {
+    Acl acl = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(new UserPrincipal("pu1@d.g", "ns"),
+            new UserPrincipal("uid=pu2,dc=m")))
+        .setPermitGroups(Arrays.asList(new GroupPrincipal("pg1@d.g"),
+            new GroupPrincipal("gid=pg2,dc=m", "ns")))
+        .setDenyUsers(Arrays.asList(new UserPrincipal("du1@d.g")))
+        .setDenyGroups(Arrays.asList(new GroupPrincipal("dg1@d.g", "ns")))
+        .setInheritFrom(new DocId("some docId"), "frag")
+        .setInheritanceType(Acl.InheritanceType.AND_BOTH_PERMIT)
+        .setEverythingCaseInsensitive()
+        .build();
+    assertEquals(jsonSimple(acl), write(acl, false));
+  }
+
+  @Test
+  public void testEscapingMatchesJsonSimple() throws Exception {
+    StringBuilder name = new StringBuilder("a\"b\\c/d\b\f\n\r\t");
+    for (char c = 0; c < 0x2200; c += 7) {
+      name.append(c);
+    }
+    name.append("\u2000\u20FF\u2100\uD83D\uDE00\u00EB");
+    Acl acl = new Acl.Builder()
+        .setPermitUsers(Collections.singleton(
+            new UserPrincipal(name.toString(), "n/s\u0080")))
+        .build();
+    assertEquals(jsonSimple(acl), write(acl, false));
+  }
+
+  @Test
+  public void testOnlyInheritance() {
+    Acl acl = new Acl.Builder()
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES).build();
+    assertEquals("{\"inheritance_type\":\"CHILD_OVERRIDES\"}",
+        write(acl, false));
+  }
+
+  @Test
+  public void testPercentEncoded() throws Exception {
+    Acl acl = new Acl.Builder()
+        .setPermitGroups(Collections.singleton(
+            new GroupPrincipal("gr\u00F6up/\u0001 \uD83D\uDE00", "ns")))
+        .setDenyUsers(Collections.singleton(new UserPrincipal("user")))
+        .setInheritFrom(new DocId("parent"))
+        .build();
+    String json = write(acl, false);
+    assertEquals(jsonSimple(acl), json);
+    assertEquals(DocumentHandler.percentEncode(json), write(acl, true));
+  }
+
+  private String write(Acl acl, boolean percentEncode) {
+    StringBuilder sb = new StringBuilder();
+    new NamespacedAclHeaderWriter(sb, percentEncode, enc).write(acl);
+    return sb.toString();
+  }
+
+  /** How the header was formed before, using maps and json_simple. */
+  private String jsonSimple(Acl acl) throws URISyntaxException {
+    Map<String, Object> gsaAcl = new TreeMap<String, Object>();
+    List<Map<String, String>> entries = new ArrayList<Map<String, String>>();
+    for (Principal p : acl.getPermitGroups()) {
+      entries.add(entry("permit", acl, p));
+    }
+    for (Principal p : acl.getDenyGroups()) {
+      entries.add(entry("deny", acl, p));
+    }
+    for (Principal p : acl.getPermitUsers()) {
+      entries.add(entry("permit", acl, p));
+    }
+    for (Principal p : acl.getDenyUsers()) {
+      entries.add(entry("deny", acl, p));
+    }
+    if (!entries.isEmpty()) {
+      gsaAcl.put("entries", entries);
+    }
+    if (acl.getInheritFrom() != null) {
+      URI from = enc.encodeDocId(acl.getInheritFrom());
+      from = new URI(from.getScheme(), from.getAuthority(), from.getPath(),
+          acl.getInheritFromFragment(), null);
+      gsaAcl.put("inherit_from", "" + from);
+    }
+    if (acl.getInheritanceType() != Acl.InheritanceType.LEAF_NODE) {
+      gsaAcl.put("inheritance_type", "" + acl.getInheritanceType());
+    }
+    return JSONObject.toJSONString(gsaAcl);
+  }
+
+  private static Map<String, String> entry(String access, Acl acl,
+      Principal p) {
+    Map<String, String> gsaEntry = new TreeMap<String, String>();
+    gsaEntry.put("access", access);
+    gsaEntry.put("scope", p.isUser() ? "user" : "group");
+    gsaEntry.put("name", p.getName());
+    if (!Principal.DEFAULT_NAMESPACE.equals(p.getNamespace())) {
+      gsaEntry.put("namespace", p.getNamespace());
+    }
+    if (!acl.isEverythingCaseSensitive()) {
+      gsaEntry.put("case_sensitivity_type", "everything_case_insensitive");
+    }
+    return gsaEntry;
+  }
+}
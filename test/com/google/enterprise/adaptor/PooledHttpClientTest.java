@@ -0,0 +1,149 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.enterprise.adaptor.secmgr.http.HttpExchange;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Unit tests for {@link PooledHttpClient}. */
+public class PooledHttpClientTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private HttpServer server;
+  private final Set<Integer> clientPorts
+      = Collections.synchronizedSet(new HashSet<Integer>());
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.createContext("/ok", new RespondingHandler(200));
+    server.createContext("/error", new RespondingHandler(500));
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testConnectionReused() throws Exception {
+    PooledHttpClient client = new PooledHttpClient(2, 10000);
+    for (int i = 0; i < 3; i++) {
+      HttpExchange exchange = client.postExchange(url("/ok"), null);
+      exchange.setRequestBody("request".getBytes(UTF_8));
+      assertEquals(200, exchange.exchange());
+      exchange.close();
+    }
+    assertEquals(1, clientPorts.size());
+    assertEquals(0, client.getActiveConnections());
+    assertEquals(3, client.getLatency().getCount());
+    assertEquals(0, client.getFailureCount());
+  }
+
+  @Test
+  public void testErrorResponse() throws Exception {
+    PooledHttpClient client = new PooledHttpClient(1, 10000);
+    HttpExchange exchange = client.postExchange(url("/error"), null);
+    assertEquals(500, exchange.exchange());
+    assertEquals(1, client.getActiveConnections());
+    exchange.close();
+    assertEquals(0, client.getActiveConnections());
+    assertEquals(0, client.getFailureCount());
+  }
+
+  @Test
+  public void testConnectionLimit() throws Exception {
+    PooledHttpClient client = new PooledHttpClient(1, 50);
+    HttpExchange first = client.postExchange(url("/ok"), null);
+    assertEquals(200, first.exchange());
+    HttpExchange second = client.postExchange(url("/ok"), null);
+    try {
+      thrown.expect(IOException.class);
+      second.exchange();
+    } finally {
+      assertEquals(1, client.getFailureCount());
+      first.close();
+      second.close();
+      assertEquals(0, client.getActiveConnections());
+    }
+  }
+
+  @Test
+  public void testConnectFailure() throws Exception {
+    PooledHttpClient client = new PooledHttpClient(1, 10000);
+    HttpExchange exchange = client.postExchange(url("/ok"), null);
+    server.stop(0);
+    try {
+      thrown.expect(IOException.class);
+      exchange.exchange();
+    } finally {
+      assertEquals(1, client.getFailureCount());
+      assertEquals(0, client.getActiveConnections());
+      // The server is stopped again by stopServer().
+      server = HttpServer.create(new InetSocketAddress(0), 0);
+    }
+  }
+
+  @Test
+  public void testInvalidArguments() {
+    thrown.expect(IllegalArgumentException.class);
+    new PooledHttpClient(0, 1000);
+  }
+
+  private URL url(String path) throws IOException {
+    return new URL("http://localhost:" + server.getAddress().getPort() + path);
+  }
+
+  private class RespondingHandler implements HttpHandler {
+    private final int code;
+
+    public RespondingHandler(int code) {
+      this.code = code;
+    }
+
+    @Override
+    public void handle(com.sun.net.httpserver.HttpExchange ex)
+        throws IOException {
+      clientPorts.add(ex.getRemoteAddress().getPort());
+      IOHelper.readInputStreamToByteArray(ex.getRequestBody());
+      byte[] response = "response".getBytes(UTF_8);
+      ex.sendResponseHeaders(code, response.length);
+      ex.getResponseBody().write(response);
+      ex.close();
+    }
+  }
+}
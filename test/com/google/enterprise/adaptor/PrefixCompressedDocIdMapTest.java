@@ -0,0 +1,72 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test cases for {@link PrefixCompressedDocIdMap}.
+ */
+public class PrefixCompressedDocIdMapTest {
+  @Test
+  public void testPutAndGet() {
+    Map<DocId, Integer> map = new PrefixCompressedDocIdMap<Integer>();
+    assertNull(map.put(new DocId("a/b/c"), 1));
+    assertNull(map.put(new DocId("a/b/d"), 2));
+    assertNull(map.put(new DocId("top"), 3));
+    assertNull(map.put(new DocId("a/b/"), 4));
+    assertEquals(Integer.valueOf(1), map.put(new DocId("a/b/c"), 5));
+    assertEquals(4, map.size());
+    assertEquals(Integer.valueOf(5), map.get(new DocId("a/b/c")));
+    assertEquals(Integer.valueOf(2), map.get(new DocId("a/b/d")));
+    assertEquals(Integer.valueOf(3), map.get(new DocId("top")));
+    assertEquals(Integer.valueOf(4), map.get(new DocId("a/b/")));
+    assertNull(map.get(new DocId("a/b")));
+    assertFalse(map.containsKey(new DocId("a/c")));
+    assertFalse(map.containsKey("a/b/c"));
+  }
+
+  @Test
+  public void testRemove() {
+    Map<DocId, Integer> map = new PrefixCompressedDocIdMap<Integer>();
+    map.put(new DocId("a/b"), 1);
+    map.put(new DocId("a/c"), 2);
+    assertEquals(Integer.valueOf(1), map.remove(new DocId("a/b")));
+    assertNull(map.remove(new DocId("a/b")));
+    assertEquals(1, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void testEqualsHashMap() {
+    Map<DocId, Integer> map = new PrefixCompressedDocIdMap<Integer>();
+    Map<DocId, Integer> golden = new HashMap<DocId, Integer>();
+    for (String id : new String[] {"x/1", "x/2", "y/1", "z", "/", ""}) {
+      map.put(new DocId(id), id.length());
+      golden.put(new DocId(id), id.length());
+    }
+    assertEquals(golden, map);
+    assertEquals(golden.hashCode(), map.hashCode());
+  }
+}
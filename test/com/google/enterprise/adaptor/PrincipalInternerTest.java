@@ -0,0 +1,100 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link PrincipalInterner}.
+ */
+public class PrincipalInternerTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testSameInstanceReturned() {
+    PrincipalInterner interner = new PrincipalInterner(10);
+    GroupPrincipal first = new GroupPrincipal("eng", "ns");
+    assertSame(first, interner.intern(first));
+    assertSame(first, interner.intern(new GroupPrincipal("eng", "ns")));
+    assertEquals(1, interner.size());
+  }
+
+  @Test
+  public void testTypeAndNamespaceDistinguish() {
+    PrincipalInterner interner = new PrincipalInterner(10);
+    UserPrincipal user = interner.intern(new UserPrincipal("eng", "ns"));
+    GroupPrincipal group = interner.intern(new GroupPrincipal("eng", "ns"));
+    GroupPrincipal other = interner.intern(new GroupPrincipal("eng", "ns2"));
+    assertTrue(user.isUser());
+    assertTrue(group.isGroup());
+    assertEquals("ns2", other.getNamespace());
+    assertEquals(3, interner.size());
+  }
+
+  @Test
+  public void testEquivalentDomainFormatsKeptSeparate() {
+    PrincipalInterner interner = new PrincipalInterner(10);
+    UserPrincipal netbios = new UserPrincipal("DOMAIN\\user");
+    UserPrincipal dns = new UserPrincipal("user@DOMAIN");
+    assertEquals(netbios, dns);
+    assertSame(netbios, interner.intern(netbios));
+    UserPrincipal interned = interner.intern(dns);
+    assertNotSame(netbios, interned);
+    assertEquals("user@DOMAIN", interned.getName());
+  }
+
+  @Test
+  public void testInternAll() {
+    PrincipalInterner interner = new PrincipalInterner(10);
+    GroupPrincipal eng = interner.intern(new GroupPrincipal("eng"));
+    List<GroupPrincipal> interned = interner.internAll(Arrays.asList(
+        new GroupPrincipal("eng"), new GroupPrincipal("sales")));
+    assertSame(eng, interned.get(0));
+    assertEquals(new GroupPrincipal("sales"), interned.get(1));
+  }
+
+  @Test
+  public void testBounded() {
+    PrincipalInterner interner = new PrincipalInterner(5);
+    for (int i = 0; i < 100; i++) {
+      interner.intern(new UserPrincipal("user" + i));
+    }
+    assertTrue(interner.size() <= 5);
+  }
+
+  @Test
+  public void testInvalidSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new PrincipalInterner(0);
+  }
+
+  @Test
+  public void testNull() {
+    PrincipalInterner interner = new PrincipalInterner(10);
+    thrown.expect(NullPointerException.class);
+    interner.intern(null);
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link ResizableBlockingQueue}. */
+public class ResizableBlockingQueueTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private ResizableBlockingQueue<String> queue
+      = new ResizableBlockingQueue<String>(2);
+
+  @Test
+  public void testOfferHonorsCapacity() {
+    assertTrue(queue.offer("a"));
+    assertTrue(queue.offer("b"));
+    assertEquals(0, queue.remainingCapacity());
+    assertFalse(queue.offer("c"));
+    assertEquals(2, queue.size());
+  }
+
+  @Test
+  public void testGrow() {
+    assertTrue(queue.offer("a"));
+    assertTrue(queue.offer("b"));
+    queue.setCapacity(3);
+    assertEquals(3, queue.getCapacity());
+    assertEquals(1, queue.remainingCapacity());
+    assertTrue(queue.offer("c"));
+    assertFalse(queue.offer("d"));
+  }
+
+  @Test
+  public void testShrinkKeepsQueuedElements() {
+    assertTrue(queue.offer("a"));
+    assertTrue(queue.offer("b"));
+    queue.setCapacity(1);
+    assertEquals(2, queue.size());
+    assertEquals(0, queue.remainingCapacity());
+    assertEquals("a", queue.poll());
+    assertFalse(queue.offer("c"));
+    assertEquals("b", queue.poll());
+    assertTrue(queue.offer("c"));
+  }
+
+  @Test
+  public void testInvalidCapacity() {
+    thrown.expect(IllegalArgumentException.class);
+    queue.setCapacity(0);
+  }
+}
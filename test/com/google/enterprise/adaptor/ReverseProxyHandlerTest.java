@@ -27,7 +27,9 @@ import com.sun.net.httpserver.HttpServer;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 
 import java.io.IOException;
 import java.net.Authenticator;
@@ -37,15 +39,23 @@ import java.net.PasswordAuthentication;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /** Unit tests for {@link ReverseProxyHandler}. */
 public class ReverseProxyHandlerTest {
   private static final Charset charset = Charset.forName("UTF-8");
 
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
   private HttpServer server;
   private int port;
   private HttpServerScope scope;
@@ -312,6 +322,106 @@ public class ReverseProxyHandlerTest {
     assertArrayEquals(response, ex.getResponseBytes());
   }
 
+  @Test
+  public void testConnectionReused() throws IOException {
+    final Set<Integer> clientPorts
+        = Collections.synchronizedSet(new HashSet<Integer>());
+    final byte[] response = "reused".getBytes(charset);
+    server.createContext("/get", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange ex) throws IOException {
+        clientPorts.add(ex.getRemoteAddress().getPort());
+        ex.sendResponseHeaders(200, response.length);
+        ex.getResponseBody().write(response);
+        ex.close();
+      }
+    });
+    ReverseProxyHandler handler = new ReverseProxyHandler(
+        URI.create("http://localhost:" + port + "/"));
+    for (int i = 0; i < 3; i++) {
+      MockHttpExchange ex = new MockHttpExchange("GET", "example.com",
+          "/proxy/get", context);
+      handler.handle(ex);
+      assertEquals(200, ex.getResponseCode());
+      assertArrayEquals(response, ex.getResponseBytes());
+    }
+    assertEquals(1, clientPorts.size());
+    assertEquals(3, handler.getLatency().getCount());
+    assertEquals(0, handler.getActiveConnections());
+    assertEquals(0, handler.getFailureCount());
+  }
+
+  @Test
+  public void testConnectionLimit() throws Exception {
+    final CountDownLatch requested = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    server.createContext("/slow", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange ex) throws IOException {
+        requested.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        ex.sendResponseHeaders(200, -1);
+        ex.close();
+      }
+    });
+    final ReverseProxyHandler handler = new ReverseProxyHandler(
+        URI.create("http://localhost:" + port + "/"), 1, 50);
+    final MockHttpExchange slowEx = new MockHttpExchange("GET", "example.com",
+        "/proxy/slow", context);
+    Thread slow = new Thread() {
+      @Override
+      public void run() {
+        try {
+          handler.handle(slowEx);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    slow.start();
+    assertTrue(requested.await(10, TimeUnit.SECONDS));
+    assertEquals(1, handler.getActiveConnections());
+    MockHttpExchange ex = new MockHttpExchange("GET", "example.com",
+        "/proxy/slow", context);
+    handler.handle(ex);
+    assertEquals(503, ex.getResponseCode());
+    assertEquals(1, handler.getRejectionCount());
+    release.countDown();
+    slow.join();
+    assertEquals(200, slowEx.getResponseCode());
+    assertEquals(0, handler.getActiveConnections());
+  }
+
+  @Test
+  public void testFailureCounted() throws IOException {
+    ReverseProxyHandler handler = new ReverseProxyHandler(
+        URI.create("http://localhost:" + port + "/"));
+    server.stop(0);
+    MockHttpExchange ex = new MockHttpExchange("GET", "example.com",
+        "/proxy/get", context);
+    try {
+      handler.handle(ex);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      // The destination is not listening.
+    } finally {
+      // The server is stopped again by shutdownServer().
+      server = HttpServer.create(new InetSocketAddress(0), 0);
+    }
+    assertEquals(1, handler.getFailureCount());
+    assertEquals(0, handler.getActiveConnections());
+  }
+
+  @Test
+  public void testInvalidMaxConnections() {
+    thrown.expect(IllegalArgumentException.class);
+    new ReverseProxyHandler(URI.create("http://localhost/"), 0, 1000);
+  }
+
   private static void assertHeadersEquals(Headers golden, Headers header) {
     if (!Objects.equal(golden, header)) {
       fail("expected:" + new TreeMap<String, List<String>>(golden)
@@ -15,6 +15,8 @@
 package com.google.enterprise.adaptor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableMap;
 
@@ -659,6 +661,88 @@ public class SamlBatchAuthzHandlerTest {
     assertEquals(400, ex.getResponseCode());
   }
 
+  @Test
+  public void testStreamingMatchesOpenSaml() throws Exception {
+    String extensionStr = ""
+        + "<saml2p:Extensions xmlns:goog=\"http://www.google.com/\" "
+        +   "xmlns:saml2p=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+        +   "<goog:SecmgrCredential "
+        +     "domain=\"test\" "
+        +     "name=\"j&amp;o&lt;e&gt;\u00e9\" "
+        +     "namespace=\"Default\" "
+        +     "xmlns:goog=\"http://www.google.com/\"/>"
+        + "</saml2p:Extensions>";
+    String request
+        = SOAP_HEADER
+        + generateAuthzDecisionQuery("http://localhost/doc/1234?a=1&amp;b=\"",
+                                     "aoeuaoeu1", "j&amp;o&lt;e&gt;\u00e9",
+                                     extensionStr)
+        + generateAuthzDecisionQuery("http://localhost/doc/1235",
+                                     "aoeuaoeu2", "j&amp;o&lt;e&gt;\u00e9",
+                                     null)
+        + generateAuthzDecisionQuery("http://wronghost/doc/1236",
+                                     "a&lt;&quot;3", "j&amp;o&lt;e&gt;\u00e9",
+                                     null)
+        + SOAP_FOOTER;
+    assertEquals(respond(request, false), respond(request, true));
+
+    // Not encoded by the streaming encoder.
+    request
+        = SOAP_HEADER
+        + generateAuthzDecisionQuery("http://localhost/doc/1234",
+                                     "aoeuaoeu4", "Polly&#9;Hedra", null)
+        + SOAP_FOOTER;
+    assertEquals(respond(request, false), respond(request, true));
+  }
+
+  @Test
+  public void testStreamingMatchesOpenSamlOnError() throws Exception {
+    String request
+        = SOAP_HEADER
+        + generateAuthzDecisionQuery("http://localhost/doc/1234",
+                                     "aoeuaoeu1", "", null)
+        + SOAP_FOOTER;
+    assertEquals(respond(request, false), respond(request, true));
+    assertEquals(respond(SOAP_HEADER, false), respond(SOAP_HEADER, true));
+  }
+
+  @Test
+  public void testStreamingMatchesOpenSamlWithoutId() throws Exception {
+    String request
+        = SOAP_HEADER
+        + "<samlp:AuthzDecisionQuery "
+        +   "IssueInstant=\"2009-10-20T17:52:29Z\" "
+        +   "Version=\"2.0\" "
+        +   "Resource=\"http://localhost/doc/1234\" "
+        +   "xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" "
+        +   "xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+        +   "<saml:Subject>"
+        +     "<saml:NameID>Polly Hedra</saml:NameID>"
+        +   "</saml:Subject>"
+        +   "<saml:Action "
+        +     "Namespace=\"urn:oasis:names:tc:SAML:1.0:action:ghpp\">"
+        +     "GET"
+        +   "</saml:Action>"
+        + "</samlp:AuthzDecisionQuery>"
+        + SOAP_FOOTER;
+    String response = respond(request, true);
+    assertTrue(response, response.startsWith("200 "));
+    assertFalse(response, response.contains("InResponseTo"));
+    assertEquals(respond(request, false), response);
+  }
+
+  private String respond(String request, boolean streaming) throws Exception {
+    SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(adaptor,
+        new MockDocIdCodec(), samlMetadata, Principal.DomainFormat.DNS,
+        streaming);
+    MockHttpExchange ex = new MockHttpExchange("POST", "/",
+        new MockHttpContext(handler, "/"));
+    ex.setRequestBody(stringToStream(request));
+    handler.handle(ex);
+    return ex.getResponseCode() + " " + ex.getResponseHeaders() + " "
+        + massageResponse(new String(ex.getResponseBytes(), charset));
+  }
+
   private String massageResponse(String response) {
     return response.replaceAll("ID=\"[^\"]+\"", "ID=\"someid\"")
         .replaceAll("IssueInstant=\"[^\"]+\"", "IssueInstant=\"sometime\"");
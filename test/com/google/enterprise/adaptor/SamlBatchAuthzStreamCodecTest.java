@@ -0,0 +1,163 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.adaptor.secmgr.saml.SecmgrCredential;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test cases for {@link SamlBatchAuthzStreamCodec}.
+ */
+public class SamlBatchAuthzStreamCodecTest {
+  private static final Charset charset = Charset.forName("UTF-8");
+  private static final String SOAP_HEADER
+      = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<soap11:Envelope "
+      +   "xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+      +   "<soap11:Body>";
+  private static final String SOAP_FOOTER
+      =   "</soap11:Body>"
+      + "</soap11:Envelope>";
+  private static final String QUERY_START
+      = "<samlp:AuthzDecisionQuery "
+      +   "ID=\"id1\" "
+      +   "IssueInstant=\"2009-10-20T17:52:29Z\" "
+      +   "Version=\"2.0\" "
+      +   "Resource=\"http://localhost/doc/a&amp;b\" "
+      +   "xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" "
+      +   "xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\">";
+  private static final String QUERY_BODY
+      =   "<saml:Subject>"
+      +     "<saml:NameID> Polly Hedra </saml:NameID>"
+      +   "</saml:Subject>"
+      +   "<saml:Action "
+      +     "Namespace=\"urn:oasis:names:tc:SAML:1.0:action:ghpp\">"
+      +     "GET"
+      +   "</saml:Action>";
+  private static final String QUERY_END = "</samlp:AuthzDecisionQuery>";
+
+  @BeforeClass
+  public static void initSaml() {
+    GsaCommunicationHandler.bootstrapOpenSaml();
+  }
+
+  private static List<SamlBatchAuthzHandler.AuthzQuery> decode(String body) {
+    return SamlBatchAuthzStreamCodec.decode(body.getBytes(charset));
+  }
+
+  @Test
+  public void testDecode() {
+    List<SamlBatchAuthzHandler.AuthzQuery> queries = decode(SOAP_HEADER
+        + QUERY_START + QUERY_BODY + QUERY_END + "\n"
+        + QUERY_START.replace("id1", "id2") + QUERY_BODY + QUERY_END
+        + SOAP_FOOTER + "\n");
+    assertEquals(2, queries.size());
+    assertEquals("id1", queries.get(0).id);
+    assertEquals("id2", queries.get(1).id);
+    assertEquals("http://localhost/doc/a&b", queries.get(0).resource);
+    // Trimmed, like OpenSAML.
+    assertEquals("Polly Hedra", queries.get(0).subject);
+    assertNull(queries.get(0).credential);
+  }
+
+  @Test
+  public void testDecodeCredential() {
+    List<SamlBatchAuthzHandler.AuthzQuery> queries = decode(SOAP_HEADER
+        + QUERY_START + QUERY_BODY
+        + "<saml2p:Extensions xmlns:goog=\"http://www.google.com/\" "
+        +   "xmlns:saml2p=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+        +   "<goog:SecmgrCredential domain=\"test\" name=\"joe\" "
+        +     "namespace=\"Default\" password=\"p@ssw0rd\">"
+        +     "<goog:Group domain=\"test\" name=\"group1\" "
+        +       "namespace=\"Default\"/>"
+        +   "</goog:SecmgrCredential>"
+        + "</saml2p:Extensions>"
+        + QUERY_END + SOAP_FOOTER);
+    SecmgrCredential cred = queries.get(0).credential;
+    assertEquals("joe", cred.getName());
+    assertEquals("test", cred.getDomain());
+    assertEquals("Default", cred.getNamespace());
+    assertEquals("p@ssw0rd", cred.getPassword());
+    assertEquals(1, cred.getGroups().size());
+    assertEquals("group1", cred.getGroups().get(0).getName());
+  }
+
+  @Test
+  public void testDecodeMissingSubject() {
+    List<SamlBatchAuthzHandler.AuthzQuery> queries = decode(SOAP_HEADER
+        + QUERY_START + "<saml:Subject><saml:NameID/></saml:Subject>"
+        + QUERY_END + SOAP_FOOTER);
+    assertNull(queries.get(0).subject);
+  }
+
+  @Test
+  public void testDecodeUnsupported() {
+    String query = QUERY_START + QUERY_BODY + QUERY_END;
+    List<String> unsupported = Arrays.asList(
+        "not xml",
+        SOAP_HEADER,
+        SOAP_HEADER + SOAP_FOOTER,
+        "<!DOCTYPE foo>" + SOAP_HEADER.substring(39) + query + SOAP_FOOTER,
+        SOAP_HEADER.replace("<soap11:Body>",
+            "<soap11:Header/><soap11:Body>") + query + SOAP_FOOTER,
+        SOAP_HEADER + "<!-- comment -->" + query + SOAP_FOOTER,
+        SOAP_HEADER + query.replace("Version=\"2.0\"",
+            "Version=\"2.0\" Destination=\"http://localhost/\"")
+            + SOAP_FOOTER,
+        SOAP_HEADER + query.replace("Version=\"2.0\"", "Version=\"1.1\"")
+            + SOAP_FOOTER,
+        SOAP_HEADER + query.replace("2009-10-20T17:52:29Z", "yesterday")
+            + SOAP_FOOTER,
+        SOAP_HEADER + query.replace("<saml:Subject>",
+            "<saml:Issuer Format=\"other\">gsa</saml:Issuer><saml:Subject>")
+            + SOAP_FOOTER,
+        SOAP_HEADER + query.replace("GET", "GET<!-- x -->") + SOAP_FOOTER,
+        SOAP_HEADER + query.replace(QUERY_END, "<other/>" + QUERY_END)
+            + SOAP_FOOTER,
+        SOAP_HEADER + query.replace(QUERY_END, "text" + QUERY_END)
+            + SOAP_FOOTER);
+    for (String body : unsupported) {
+      assertNull(body, decode(body));
+    }
+  }
+
+  @Test
+  public void testCanEncode() {
+    List<SamlBatchAuthzHandler.AuthzQuery> plain = Collections.singletonList(
+        new SamlBatchAuthzHandler.AuthzQuery("id", "http://h/a&b<\"c'>",
+            "us\u00e9r", null));
+    assertTrue(SamlBatchAuthzStreamCodec.canEncode("issuer", plain));
+    List<SamlBatchAuthzHandler.AuthzQuery> control
+        = Collections.singletonList(new SamlBatchAuthzHandler.AuthzQuery(
+            "id", "http://h/a\tb", "user", null));
+    assertFalse(SamlBatchAuthzStreamCodec.canEncode("issuer", control));
+    List<SamlBatchAuthzHandler.AuthzQuery> surrogate
+        = Collections.singletonList(new SamlBatchAuthzHandler.AuthzQuery(
+            "id", "http://h/", "\ud83d\ude00", null));
+    assertFalse(SamlBatchAuthzStreamCodec.canEncode("issuer", surrogate));
+  }
+}
@@ -30,6 +30,7 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.opensaml.common.binding.SAMLMessageContext;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.binding.decoding.HTTPRedirectDeflateDecoder;
@@ -55,6 +56,9 @@ public class SamlServiceProviderTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   private Charset charset = Charset.forName("UTF-8");
   private SessionManager<HttpExchange> sessionManager
       = new SessionManager<HttpExchange>(new MockTimeProvider(),
@@ -175,6 +179,23 @@ public class SamlServiceProviderTest {
     assertTrue(!isAuthned(ex));
   }
 
+  @Test
+  public void testGetUserIdentityFromSharedStore() throws Exception {
+    SharedSessionStore sharedStore
+        = new FileSharedSessionStore(temp.newFolder("sessions"));
+    sessionManager.setSharedStore(sharedStore);
+    AuthnIdentity identity = new AuthnIdentityImpl
+        .Builder(new UserPrincipal("test")).build();
+    sharedStore.store("sharedid", identity, Long.MAX_VALUE);
+    ex.getRequestHeaders().set("Cookie", "sessid=sharedid");
+
+    assertEquals(identity.getUser(),
+        serviceProvider.getUserIdentity(ex).getUser());
+    // The identity is now kept in the adopted local session.
+    sharedStore.remove("sharedid");
+    assertTrue(isAuthned(ex));
+  }
+
   @Test
   public void testHandleAuthenticationHead() throws Exception {
     MockHttpExchange ex = new MockHttpExchange("HEAD", "/",
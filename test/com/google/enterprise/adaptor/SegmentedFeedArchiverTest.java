@@ -0,0 +1,243 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/** Unit tests for {@link SegmentedFeedArchiver}. */
+public class SegmentedFeedArchiverTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private SegmentedFeedArchiver archiver;
+
+  @After
+  public void close() throws Exception {
+    if (archiver != null) {
+      archiver.close();
+    }
+  }
+
+  @Test
+  public void testArchiveAndRead() throws Exception {
+    archiver = new SegmentedFeedArchiver(temp.getRoot(), 1024 * 1024,
+        60 * 60 * 1000, 0, 4);
+    archiver.saveFeed("first", "<feed>été</feed>");
+    archiver.saveFailedFeed("second", "<feed>2</feed>");
+    archiver.flush();
+
+    assertEquals(1, getSegments().length);
+    List<SegmentedFeedArchiver.IndexEntry> entries
+        = SegmentedFeedArchiver.readIndex(temp.getRoot());
+    assertEquals(2, entries.size());
+    assertEquals("first", entries.get(0).feedName);
+    assertFalse(entries.get(0).failed);
+    assertEquals("<feed>été</feed>",
+        SegmentedFeedArchiver.readFeed(entries.get(0)));
+    assertEquals("second", entries.get(1).feedName);
+    assertTrue(entries.get(1).failed);
+    assertEquals("<feed>2</feed>",
+        SegmentedFeedArchiver.readFeed(entries.get(1)));
+    assertEquals(2, archiver.getArchivedCount());
+    assertEquals(0, archiver.getFailureCount());
+    assertEquals(0, archiver.getQueueLength());
+  }
+
+  @Test
+  public void testRotateBySize() throws Exception {
+    archiver = new SegmentedFeedArchiver(temp.getRoot(), 10,
+        60 * 60 * 1000, 0, 4);
+    archiver.saveFeed("a", "<feed/>");
+    archiver.saveFeed("b", "<feed/>");
+    archiver.saveFeed("c", "<feed/>");
+    archiver.flush();
+
+    assertEquals(3, getSegments().length);
+    List<SegmentedFeedArchiver.IndexEntry> entries
+        = SegmentedFeedArchiver.readIndex(temp.getRoot());
+    assertEquals(3, entries.size());
+    for (SegmentedFeedArchiver.IndexEntry entry : entries) {
+      assertEquals(0, entry.offset);
+      assertEquals("<feed/>", SegmentedFeedArchiver.readFeed(entry));
+    }
+    assertEquals("c", entries.get(2).feedName);
+  }
+
+  @Test
+  public void testRetention() throws Exception {
+    archiver = new SegmentedFeedArchiver(temp.getRoot(), 10,
+        60 * 60 * 1000, 1, 4);
+    archiver.saveFeed("a", "<feed/>");
+    archiver.saveFeed("b", "<feed/>");
+    archiver.saveFeed("c", "<feed/>");
+    archiver.flush();
+
+    assertEquals(1, getSegments().length);
+    List<SegmentedFeedArchiver.IndexEntry> entries
+        = SegmentedFeedArchiver.readIndex(temp.getRoot());
+    assertEquals(1, entries.size());
+    assertEquals("c", entries.get(0).feedName);
+  }
+
+  @Test
+  public void testSaveAfterClose() throws Exception {
+    archiver = new SegmentedFeedArchiver(temp.getRoot(), 1024,
+        60 * 60 * 1000, 0, 1);
+    archiver.saveFeed("a", "<feed/>");
+    archiver.close();
+    archiver.saveFeed("b", "<feed/>");
+    assertEquals(1, archiver.getArchivedCount());
+    assertEquals(1, SegmentedFeedArchiver.readIndex(temp.getRoot()).size());
+    archiver = null;
+  }
+
+  @Test
+  public void testFeedReadableBeforeSegmentComplete() throws Exception {
+    archiver = new SegmentedFeedArchiver(temp.getRoot(), 1024 * 1024,
+        60 * 60 * 1000, 0, 4);
+    archiver.saveFeed("a", "<feed>a</feed>");
+    archiver.saveFeed("b", "<feed>b</feed>");
+    List<SegmentedFeedArchiver.IndexEntry> entries = awaitIndexEntries(2);
+
+    assertEquals(1, getSegments().length);
+    assertTrue(entries.get(1).offset > 0);
+    assertEquals("<feed>a</feed>",
+        SegmentedFeedArchiver.readFeed(entries.get(0)));
+    assertEquals("<feed>b</feed>",
+        SegmentedFeedArchiver.readFeed(entries.get(1)));
+  }
+
+  @Test
+  public void testReadTruncatedSegment() throws Exception {
+    archiver = new SegmentedFeedArchiver(temp.getRoot(), 1024 * 1024,
+        60 * 60 * 1000, 0, 4);
+    archiver.saveFeed("a", "<feed>a</feed>");
+    archiver.close();
+    archiver = null;
+    SegmentedFeedArchiver.IndexEntry entry
+        = SegmentedFeedArchiver.readIndex(temp.getRoot()).get(0);
+    SegmentedFeedArchiver.IndexEntry beyondEnd
+        = new SegmentedFeedArchiver.IndexEntry(entry.segment, entry.offset,
+            entry.length + 1, entry.timeMillis, false, "a");
+
+    thrown.expect(IOException.class);
+    SegmentedFeedArchiver.readFeed(beyondEnd);
+  }
+
+  @Test
+  public void testIncompleteIndexLineIgnored() throws Exception {
+    archiver = new SegmentedFeedArchiver(temp.getRoot(), 1024 * 1024,
+        60 * 60 * 1000, 0, 4);
+    archiver.saveFeed("a", "<feed>a</feed>");
+    archiver.close();
+    archiver = null;
+    File[] indexes = temp.getRoot().listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SegmentedFeedArchiver.INDEX_SUFFIX);
+      }
+    });
+    Files.append("40\t14\t1500000000000\tSE", indexes[0],
+        Charset.forName("UTF-8"));
+
+    List<SegmentedFeedArchiver.IndexEntry> entries
+        = SegmentedFeedArchiver.readIndex(temp.getRoot());
+    assertEquals(1, entries.size());
+    assertEquals("a", entries.get(0).feedName);
+  }
+
+  @Test(timeout = 30000)
+  public void testCloseWhileSaving() throws Exception {
+    archiver = new SegmentedFeedArchiver(temp.getRoot(), 1024 * 1024,
+        60 * 60 * 1000, 0, 1);
+    final SegmentedFeedArchiver saving = archiver;
+    final CountDownLatch started = new CountDownLatch(1);
+    Thread saver = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 1000; i++) {
+          saving.saveFeed("feed" + i, "<feed/>");
+          started.countDown();
+        }
+      }
+    };
+    saver.start();
+    started.await();
+    archiver.close();
+    saver.join();
+    archiver = null;
+
+    assertEquals(0, saving.getQueueLength());
+    assertEquals(saving.getArchivedCount(),
+        SegmentedFeedArchiver.readIndex(temp.getRoot()).size());
+  }
+
+  @Test
+  public void testFlushAfterClose() throws Exception {
+    archiver = new SegmentedFeedArchiver(temp.getRoot(), 1024,
+        60 * 60 * 1000, 0, 1);
+    archiver.close();
+    archiver.flush();
+    archiver = null;
+  }
+
+  @Test
+  public void testInvalidQueueSize() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new SegmentedFeedArchiver(temp.getRoot(), 1024, 1000, 0, 0);
+  }
+
+  private List<SegmentedFeedArchiver.IndexEntry> awaitIndexEntries(int count)
+      throws Exception {
+    long end = System.currentTimeMillis() + 10000;
+    while (true) {
+      List<SegmentedFeedArchiver.IndexEntry> entries
+          = SegmentedFeedArchiver.readIndex(temp.getRoot());
+      if (entries.size() >= count || System.currentTimeMillis() > end) {
+        return entries;
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private File[] getSegments() {
+    return temp.getRoot().listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SegmentedFeedArchiver.SEGMENT_SUFFIX);
+      }
+    });
+  }
+}
@@ -17,7 +17,13 @@ package com.google.enterprise.adaptor;
 import static com.google.enterprise.adaptor.SensitiveValueCodec.SecurityLevel;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Ticker;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -25,6 +31,11 @@ import org.junit.rules.ExpectedException;
 
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.Cipher;
 
@@ -134,4 +145,141 @@ public class SensitiveValueCodecTest {
     thrown.expect(IllegalArgumentException.class);
     codec.decodeValue(encrypted);
   }
+
+  @Test
+  public void testDecodedValueRemembered() {
+    FakeTicker ticker = new FakeTicker();
+    codec = new SensitiveValueCodec(key, 1000, ticker);
+    String encoded = codec.encodeValue("secret", SecurityLevel.ENCRYPTED);
+    String decoded = codec.decodeValue(encoded);
+    assertEquals("secret", decoded);
+    ticker.advance(TimeUnit.MILLISECONDS.toNanos(999));
+    assertSame(decoded, codec.decodeValue(encoded));
+    ticker.advance(TimeUnit.MILLISECONDS.toNanos(1));
+    String again = codec.decodeValue(encoded);
+    assertEquals("secret", again);
+    assertNotSame(decoded, again);
+  }
+
+  @Test
+  public void testExpiredValuesRemovedInBackground() {
+    FakeTicker ticker = new FakeTicker();
+    codec = new SensitiveValueCodec(key, 1000, ticker);
+    MockScheduledExecutor executor = new MockScheduledExecutor();
+    codec.startBackgroundCleanup(executor);
+    assertEquals(250, executor.period);
+    codec.decodeValue(codec.encodeValue("secret", SecurityLevel.ENCRYPTED));
+    executor.command.run();
+    assertEquals(1, codec.getDecodedCount());
+    ticker.advance(TimeUnit.MILLISECONDS.toNanos(1000));
+    // Without use, the cache does not remove the value by itself.
+    assertEquals(1, codec.getDecodedCount());
+    executor.command.run();
+    assertEquals(0, codec.getDecodedCount());
+  }
+
+  @Test
+  public void testNoBackgroundCleanupWhenNotRemembered() {
+    codec = new SensitiveValueCodec(key, 0);
+    MockScheduledExecutor executor = new MockScheduledExecutor();
+    assertNull(codec.startBackgroundCleanup(executor));
+    assertNull(executor.command);
+  }
+
+  @Test
+  public void testForgetDecodedValues() {
+    codec.decodeValue(codec.encodeValue("secret", SecurityLevel.OBFUSCATED));
+    assertEquals(1, codec.getDecodedCount());
+    codec.forgetDecodedValues();
+    assertEquals(0, codec.getDecodedCount());
+  }
+
+  @Test
+  public void testDecodedValueNotRemembered() {
+    codec = new SensitiveValueCodec(key, 0);
+    String encoded = codec.encodeValue("secret", SecurityLevel.OBFUSCATED);
+    String decoded = codec.decodeValue(encoded);
+    assertEquals("secret", decoded);
+    assertNotSame(decoded, codec.decodeValue(encoded));
+  }
+
+  @Test
+  public void testNegativeTtl() {
+    thrown.expect(IllegalArgumentException.class);
+    new SensitiveValueCodec(key, -1);
+  }
+
+  @Test
+  public void testDecodeAfterFailure() {
+    String encoded = codec.encodeValue("secret", SecurityLevel.OBFUSCATED);
+    try {
+      codec.decodeValue(SecurityLevel.OBFUSCATED.getPrefix()
+          + "AAAAAAAAAAAAAAAAAAAAAA==");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals("secret", codec.decodeValue(encoded));
+  }
+
+  @Test
+  public void testConcurrentUse() throws Exception {
+    codec = new SensitiveValueCodec(key, 0);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final String golden = "value" + i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 50; j++) {
+              for (SecurityLevel security : SecurityLevel.values()) {
+                assertEquals(golden,
+                    codec.decodeValue(codec.encodeValue(golden, security)));
+              }
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+  }
+
+  private static class FakeTicker extends Ticker {
+    private final AtomicLong nanos = new AtomicLong();
+
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+
+    public void advance(long amountNanos) {
+      nanos.addAndGet(amountNanos);
+    }
+  }
+
+  /** Captures the periodic task instead of running it. */
+  private static class MockScheduledExecutor
+      extends ScheduledThreadPoolExecutor {
+    Runnable command;
+    long period;
+
+    MockScheduledExecutor() {
+      super(1);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+        long initialDelay, long period, TimeUnit unit) {
+      this.command = command;
+      this.period = unit.toMillis(period);
+      return null;
+    }
+  }
 }
@@ -26,6 +26,12 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Test cases for {@link SessionManager}.
  */
@@ -110,6 +116,58 @@ public class SessionManagerTest {
     assertNotSame(sess1, sess2);
   }
 
+  @Test
+  public void testBackgroundCleanup() throws Exception {
+    MockScheduledExecutor executor = new MockScheduledExecutor();
+    sessionManager.startBackgroundCleanup(executor);
+    Reference ref1 = new Reference();
+    sessionManager.getSession(ref1);
+    sessionManager.getSession(new Reference());
+
+    timeProvider.time += 1000;
+    // Creating sessions no longer removes expired ones.
+    Reference ref3 = new Reference();
+    Session sess3 = sessionManager.getSession(ref3);
+    assertEquals(3, sessionManager.getSessionCount());
+
+    executor.command.run();
+    assertEquals(1, sessionManager.getSessionCount());
+    assertEquals(2, sessionManager.getLastCleanupExpiredSessions());
+    assertEquals(2, sessionManager.getTotalExpiredSessions());
+    assertNull(sessionManager.getSession(ref1, false));
+    assertSame(sess3, sessionManager.getSession(ref3, false));
+  }
+
+  @Test
+  public void testAccessKeepsSessionAlive() {
+    Reference ref1 = new Reference();
+    Session sess1 = sessionManager.getSession(ref1);
+    Reference ref2 = new Reference();
+    sessionManager.getSession(ref2);
+
+    timeProvider.time += 600;
+    assertSame(sess1, sessionManager.getSession(ref1, false));
+    timeProvider.time += 600;
+    // Create a new session to allow checking for expired sessions.
+    sessionManager.getSession(new Reference());
+    assertEquals(2, sessionManager.getSessionCount());
+    assertSame(sess1, sessionManager.getSession(ref1, false));
+    assertNull(sessionManager.getSession(ref2, false));
+  }
+
+  @Test
+  public void testManySessions() {
+    Reference[] refs = new Reference[100];
+    for (int i = 0; i < refs.length; i++) {
+      refs[i] = new Reference();
+      sessionManager.getSession(refs[i]);
+    }
+    assertEquals(refs.length, sessionManager.getSessionCount());
+    for (Reference ref : refs) {
+      assertNotNull(sessionManager.getSession(ref, false));
+    }
+  }
+
   @Test
   public void testHttpExchangeClientStoreInitNull() {
     thrown.expect(NullPointerException.class);
@@ -131,6 +189,150 @@ public class SessionManagerTest {
     assertNull(clientStore3.retrieve(ex));
   }
 
+  @Test
+  public void testSharedIdentityAdoptedByOtherManager() {
+    MemorySharedSessionStore sharedStore = new MemorySharedSessionStore();
+    sessionManager.setSharedStore(sharedStore);
+    SessionManager<Reference> otherManager = new SessionManager<Reference>(
+        timeProvider, new ReferenceClientStore(), 1000, 500);
+    otherManager.setSharedStore(sharedStore);
+
+    Reference ref = new Reference();
+    sessionManager.getSession(ref);
+    AuthnIdentity identity = new AuthnIdentityImpl
+        .Builder(new UserPrincipal("user")).build();
+    sessionManager.shareIdentity(ref, identity, 100);
+
+    // The other manager does not know the session, but adopts its id.
+    Session adopted = otherManager.getSession(ref, false);
+    assertNotNull(adopted);
+    assertSame(adopted, otherManager.getSession(ref, false));
+    assertEquals(1, otherManager.getSessionCount());
+    assertSame(identity, otherManager.getSharedIdentity(ref).getIdentity());
+  }
+
+  @Test
+  public void testUnknownSessionNotAdopted() {
+    sessionManager.setSharedStore(new MemorySharedSessionStore());
+    Reference ref = new Reference();
+    ref.ref = "unknown";
+    assertNull(sessionManager.getSession(ref, false));
+    assertNull(sessionManager.getSharedIdentity(ref));
+    assertEquals(0, sessionManager.getSessionCount());
+  }
+
+  @Test
+  public void testIdentityWithPasswordNotShared() {
+    MemorySharedSessionStore sharedStore = new MemorySharedSessionStore();
+    sessionManager.setSharedStore(sharedStore);
+    Reference ref = new Reference();
+    sessionManager.getSession(ref);
+    sessionManager.shareIdentity(ref, new AuthnIdentityImpl
+        .Builder(new UserPrincipal("user")).setPassword("pass").build(), 100);
+    assertEquals(0, sharedStore.entries.size());
+  }
+
+  @Test
+  public void testSharedIdentityLoadedOnce() {
+    MemorySharedSessionStore sharedStore = new MemorySharedSessionStore();
+    sessionManager.setSharedStore(sharedStore);
+    SessionManager<Reference> otherManager = new SessionManager<Reference>(
+        timeProvider, new ReferenceClientStore(), 1000, 500);
+    otherManager.setSharedStore(sharedStore);
+
+    Reference ref = new Reference();
+    sessionManager.getSession(ref);
+    sessionManager.shareIdentity(ref, new AuthnIdentityImpl
+        .Builder(new UserPrincipal("user")).build(), 100000);
+    assertNotNull(otherManager.getSession(ref, false));
+    assertNotNull(otherManager.getSession(ref, false));
+    assertNotNull(otherManager.getSharedIdentity(ref));
+    assertEquals(1, sharedStore.loads);
+  }
+
+  @Test
+  public void testSharedIdentityRemovedWhenSessionExpires() {
+    MemorySharedSessionStore sharedStore = new MemorySharedSessionStore();
+    sessionManager.setSharedStore(sharedStore);
+    Reference ref = new Reference();
+    sessionManager.getSession(ref);
+    sessionManager.shareIdentity(ref, new AuthnIdentityImpl
+        .Builder(new UserPrincipal("user")).build(), 100000);
+    assertEquals(1, sharedStore.entries.size());
+
+    timeProvider.time += 1000;
+    assertNull(sessionManager.getSession(ref, false));
+    assertEquals(0, sharedStore.entries.size());
+  }
+
+  @Test
+  public void testSharedIdentityRemovedDuringCleanup() {
+    MemorySharedSessionStore sharedStore = new MemorySharedSessionStore();
+    sessionManager.setSharedStore(sharedStore);
+    Reference ref = new Reference();
+    sessionManager.getSession(ref);
+    sessionManager.shareIdentity(ref, new AuthnIdentityImpl
+        .Builder(new UserPrincipal("user")).build(), 100000);
+
+    timeProvider.time += 1000;
+    // Create a new session to allow checking for expired sessions.
+    sessionManager.getSession(new Reference());
+    assertEquals(0, sharedStore.entries.size());
+  }
+
+  @Test
+  public void testAdoptedIdentityKeptWhenSessionExpires() {
+    MemorySharedSessionStore sharedStore = new MemorySharedSessionStore();
+    sessionManager.setSharedStore(sharedStore);
+    SessionManager<Reference> otherManager = new SessionManager<Reference>(
+        timeProvider, new ReferenceClientStore(), 1000, 500);
+    otherManager.setSharedStore(sharedStore);
+
+    Reference ref = new Reference();
+    sessionManager.getSession(ref);
+    sessionManager.shareIdentity(ref, new AuthnIdentityImpl
+        .Builder(new UserPrincipal("user")).build(), 100000);
+    assertNotNull(otherManager.getSession(ref, false));
+
+    timeProvider.time += 1000;
+    // Only the instance that shared the identity removes it.
+    otherManager.getSession(new Reference());
+    assertEquals(1, sharedStore.entries.size());
+  }
+
+  private static class MemorySharedSessionStore
+      implements SharedSessionStore {
+    final Map<String, Entry> entries = new HashMap<String, Entry>();
+    int loads;
+
+    @Override
+    public synchronized void store(String sessionId, AuthnIdentity identity,
+        long expirationTimeMillis) {
+      entries.put(sessionId, new Entry(identity, expirationTimeMillis));
+    }
+
+    @Override
+    public synchronized Entry load(String sessionId, long currentTimeMillis) {
+      loads++;
+      Entry entry = entries.get(sessionId);
+      if (entry == null
+          || entry.getExpirationTimeMillis() < currentTimeMillis) {
+        return null;
+      }
+      return entry;
+    }
+
+    @Override
+    public synchronized void remove(String sessionId) {
+      entries.remove(sessionId);
+    }
+
+    @Override
+    public synchronized void removeExpired(long currentTimeMillis) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   private static class ReferenceClientStore
       implements SessionManager.ClientStore<Reference> {
     public String retrieve(Reference clientState) {
@@ -145,4 +347,21 @@ public class SessionManagerTest {
   private static class Reference {
     public Object ref;
   }
+
+  /** Captures the periodic task instead of running it. */
+  private static class MockScheduledExecutor
+      extends ScheduledThreadPoolExecutor {
+    Runnable command;
+
+    MockScheduledExecutor() {
+      super(1);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+        long initialDelay, long period, TimeUnit unit) {
+      this.command = command;
+      return null;
+    }
+  }
 }
@@ -46,6 +46,7 @@ public class StatRpcMethodTest {
       simpleStats.put("numUniqueDocIdsPushed", 0L);
       simpleStats.put("numUniqueGsaRequests", 0L);
       simpleStats.put("numUniqueNonGsaRequests", 0L);
+      simpleStats.put("numTotalCoalescedRequests", 0L);
       simpleStats.put("timeResolution", 1L);
       simpleStats.put("lastSuccessfulFullPushStart", 0L);
       simpleStats.put("lastSuccessfulFullPushEnd", 0L);
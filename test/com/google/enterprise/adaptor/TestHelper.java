@@ -75,6 +75,9 @@ public class TestHelper {
 
       @Override
       public void setAuthzAuthority(AuthzAuthority authzAuthority) {}
+
+      @Override
+      public void setHeartbeatProbe(HeartbeatProbe heartbeatProbe) {}
     });
     adaptor.getDocIds(pusher);
     return pusher.getDocIds();
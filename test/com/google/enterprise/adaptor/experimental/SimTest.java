@@ -16,13 +16,22 @@ package com.google.enterprise.adaptor.experimental;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.simple.JSONValue;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /** Tests for {@link Sim}. */
@@ -122,4 +131,117 @@ public class SimTest {
         + "%2A%28%29%5B%5D%7B%7D%C3%AB%01");
     assertEquals("AaZz09-_.~`=/?+';\\/\"!@#$%^&*()[]{}ë\u0001", decoded);
   }
+
+  @Test
+  public void testLatencyRecorderPercentiles() {
+    LatencyRecorder recorder = new LatencyRecorder();
+    for (int i = 1; i <= 1000; i++) {
+      recorder.record(i * 1000000L);
+    }
+    assertEquals(1000, recorder.getCount());
+    assertEquals(1000.0, recorder.getMaxMillis(), 0);
+    assertEquals(500.0, recorder.getPercentileMillis(50), 500 * 0.04);
+    assertEquals(990.0, recorder.getPercentileMillis(99), 990 * 0.04);
+    assertEquals(999.0, recorder.getPercentileMillis(99.9), 999 * 0.04);
+    assertEquals(0.0, new LatencyRecorder().getPercentileMillis(99), 0);
+  }
+
+  @Test
+  public void testLatencyRecorderBuckets() {
+    for (long micros : new long[] {0, 63, 64, 65, 1000, 123456789L,
+        Long.MAX_VALUE}) {
+      int bucket = LatencyRecorder.bucketOf(micros);
+      assertTrue(micros <= LatencyRecorder.upperBoundOf(bucket));
+      if (bucket > 0) {
+        assertTrue(micros > LatencyRecorder.upperBoundOf(bucket - 1));
+      }
+    }
+  }
+
+  @Test
+  public void testOptions() {
+    Sim.Options options = Sim.Options.parse(new String[] {"--threads=4",
+        "--headPercent=20", "--ifModifiedSincePercent=30", "--seed=7"});
+    assertEquals(4, options.threads);
+    assertEquals(20, options.headPercent);
+    assertEquals(30, options.ifModifiedSincePercent);
+    assertEquals(7, options.seed);
+  }
+
+  @Test
+  public void testOptionsPercentagesTooLarge() {
+    thrown.expect(IllegalArgumentException.class);
+    Sim.Options.parse(new String[] {"--headPercent=60",
+        "--ifModifiedSincePercent=50"});
+  }
+
+  @Test
+  public void testBenchmark() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.createContext("/doc/", new DocHandler());
+    server.createContext("/saml-authz", new DocHandler());
+    server.start();
+    try {
+      String base = "http://localhost:" + server.getAddress().getPort();
+      Set<URL> urls = new HashSet<URL>();
+      for (int i = 0; i < 10; i++) {
+        urls.add(new URL(base + "/doc/" + i));
+      }
+      Sim.Options options = new Sim.Options();
+      options.feedPort = 0;
+      options.threads = 3;
+      options.passPauseMillis = 0;
+      options.headPercent = 20;
+      options.ifModifiedSincePercent = 30;
+      options.authzPercent = 10;
+      options.authzUrl = base + "/saml-authz";
+      options.authzBatchSize = 5;
+      options.maxRequests = 300;
+      Sim sim = new Sim(options);
+      sim.addUrls(urls);
+      new Thread(sim).start();
+      Map<String, Object> report = sim.runToEnd();
+
+      assertEquals(300L, report.get("requests"));
+      Map<?, ?> endpoints = (Map<?, ?>) report.get("endpoints");
+      for (Sim.Endpoint endpoint : Sim.Endpoint.values()) {
+        Map<?, ?> stats = (Map<?, ?>) endpoints.get(endpoint.name());
+        assertTrue(endpoint.name(), (Long) stats.get("requests") > 0);
+        assertEquals(endpoint.name(), 0L, stats.get("errors"));
+        assertTrue(stats.containsKey("p999Millis"));
+      }
+      Map<?, ?> parsed
+          = (Map<?, ?>) JSONValue.parse(JSONValue.toJSONString(report));
+      assertEquals(300L, parsed.get("requests"));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Serves documents that are never modified, and accepts any POST. */
+  private static class DocHandler implements HttpHandler {
+    private static final String LAST_MODIFIED
+        = "Tue, 01 Jan 2013 00:00:00 GMT";
+
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+      if (ex.getRequestMethod().equals("POST")) {
+        while (ex.getRequestBody().read() != -1) {
+        }
+      }
+      ex.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+      if (LAST_MODIFIED.equals(
+          ex.getRequestHeaders().getFirst("If-Modified-Since"))) {
+        ex.sendResponseHeaders(304, -1);
+      } else if (ex.getRequestMethod().equals("HEAD")) {
+        ex.sendResponseHeaders(200, -1);
+      } else {
+        byte[] body = "content".getBytes(Sim.UTF8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain");
+        ex.sendResponseHeaders(200, body.length);
+        ex.getResponseBody().write(body);
+      }
+      ex.close();
+    }
+  }
 }
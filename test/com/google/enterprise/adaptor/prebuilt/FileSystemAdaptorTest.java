@@ -0,0 +1,261 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.adaptor.Acl;
+import com.google.enterprise.adaptor.AdaptorContext;
+import com.google.enterprise.adaptor.Config;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdPusher;
+import com.google.enterprise.adaptor.ExceptionHandler;
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tests for {@link FileSystemAdaptor}.
+ */
+public class FileSystemAdaptorTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final RecordingPusher pusher = new RecordingPusher();
+  private final List<Object> registeredListers = new ArrayList<Object>();
+
+  @Test
+  public void testIncrementalPollingOffByDefault() throws Exception {
+    File root = temp.newFolder("root");
+    createAdaptor(root, null, "");
+    assertEquals(0, registeredListers.size());
+  }
+
+  @Test
+  public void testIncrementalPollingEnabled() throws Exception {
+    File root = temp.newFolder("root");
+    FileSystemAdaptor adaptor = createAdaptor(root, "");
+    assertEquals(1, registeredListers.size());
+    assertSame(adaptor, registeredListers.get(0));
+  }
+
+  @Test
+  public void testFirstPollWithoutSnapshotFileOnlyRecords() throws Exception {
+    File root = temp.newFolder("root");
+    writeFile(root, "a.txt", 1000);
+    FileSystemAdaptor adaptor = createAdaptor(root, "");
+
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(0, pusher.pushes);
+
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(0, pusher.pushes);
+  }
+
+  @Test
+  public void testChangesPushed() throws Exception {
+    File root = temp.newFolder("root");
+    writeFile(root, "same.txt", 1000);
+    File modified = writeFile(root, "modified.txt", 1000);
+    File deleted = writeFile(root, "deleted.txt", 1000);
+    FileSystemAdaptor adaptor = createAdaptor(root, "");
+    adaptor.getModifiedDocIds(pusher);
+
+    assertTrue(modified.setLastModified(2000));
+    assertTrue(deleted.delete());
+    writeFile(root, "added.txt", 1000);
+    adaptor.getModifiedDocIds(pusher);
+
+    assertEquals(1, pusher.pushes);
+    Map<String, DocIdPusher.Record> records = pusher.getRecordsByName();
+    assertEquals(3, records.size());
+    assertTrue(records.get("added.txt").isToBeCrawledImmediately());
+    assertFalse(records.get("added.txt").isToBeDeleted());
+    assertTrue(records.get("modified.txt").isToBeCrawledImmediately());
+    assertFalse(records.get("modified.txt").isToBeDeleted());
+    assertTrue(records.get("deleted.txt").isToBeDeleted());
+  }
+
+  @Test
+  public void testFailedPushKeepsPreviousSnapshot() throws Exception {
+    File root = temp.newFolder("root");
+    writeFile(root, "kept.txt", 1000);
+    File deleted = writeFile(root, "deleted.txt", 1000);
+    FileSystemAdaptor adaptor = createAdaptor(root, "");
+    adaptor.getModifiedDocIds(pusher);
+
+    assertTrue(deleted.delete());
+    pusher.fail = true;
+    try {
+      adaptor.getModifiedDocIds(pusher);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+
+    pusher.fail = false;
+    pusher.records.clear();
+    adaptor.getModifiedDocIds(pusher);
+    Map<String, DocIdPusher.Record> records = pusher.getRecordsByName();
+    assertEquals(1, records.size());
+    assertTrue(records.get("deleted.txt").isToBeDeleted());
+  }
+
+  @Test
+  public void testSnapshotFileNoticesChangesWhileStopped() throws Exception {
+    File root = temp.newFolder("root");
+    writeFile(root, "kept.txt", 1000);
+    File deleted = writeFile(root, "deleted.txt", 1000);
+    String snapshotFile = new File(temp.getRoot(), "snapshot").getPath();
+    createAdaptor(root, snapshotFile).getModifiedDocIds(pusher);
+    assertEquals(0, pusher.pushes);
+
+    assertTrue(deleted.delete());
+    createAdaptor(root, snapshotFile).getModifiedDocIds(pusher);
+    Map<String, DocIdPusher.Record> records = pusher.getRecordsByName();
+    assertEquals(1, records.size());
+    assertTrue(records.get("deleted.txt").isToBeDeleted());
+  }
+
+  /** Creates an adaptor with incremental polling enabled. */
+  private FileSystemAdaptor createAdaptor(File root, String snapshotFile)
+      throws Exception {
+    return createAdaptor(root, "true", snapshotFile);
+  }
+
+  /**
+   * Creates an adaptor, leaving filesystemadaptor.incrementalPolling at its
+   * default if {@code incrementalPolling} is {@code null}.
+   */
+  private FileSystemAdaptor createAdaptor(File root,
+      String incrementalPolling, String snapshotFile) throws Exception {
+    final Config config = new Config();
+    FileSystemAdaptor adaptor = new FileSystemAdaptor();
+    adaptor.initConfig(config);
+    config.overrideKey("filesystemadaptor.src", root.getPath());
+    if (incrementalPolling != null) {
+      config.overrideKey("filesystemadaptor.incrementalPolling",
+          incrementalPolling);
+    }
+    config.overrideKey("filesystemadaptor.snapshotFile", snapshotFile);
+    adaptor.init((AdaptorContext) Proxy.newProxyInstance(
+        AdaptorContext.class.getClassLoader(),
+        new Class<?>[] {AdaptorContext.class},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("setPollingIncrementalLister".equals(method.getName())) {
+              registeredListers.add(args[0]);
+            }
+            return "getConfig".equals(method.getName()) ? config : null;
+          }
+        }));
+    return adaptor;
+  }
+
+  private static File writeFile(File dir, String name, long lastModified)
+      throws IOException {
+    File file = new File(dir, name);
+    assertTrue(file.createNewFile());
+    assertTrue(file.setLastModified(lastModified));
+    return file;
+  }
+
+  private static class RecordingPusher implements DocIdPusher {
+    final List<Record> records = new ArrayList<Record>();
+    int pushes;
+    boolean fail;
+
+    Map<String, Record> getRecordsByName() {
+      Map<String, Record> byName = new TreeMap<String, Record>();
+      for (Record record : records) {
+        byName.put(record.getDocId().getUniqueId(), record);
+      }
+      return byName;
+    }
+
+    @Override
+    public Record pushRecords(Iterable<Record> records) {
+      return pushRecords(records, null);
+    }
+
+    @Override
+    public Record pushRecords(Iterable<Record> records,
+        ExceptionHandler handler) {
+      pushes++;
+      if (fail) {
+        return records.iterator().next();
+      }
+      for (Record record : records) {
+        this.records.add(record);
+      }
+      return null;
+    }
+
+    @Override
+    public DocId pushDocIds(Iterable<DocId> docIds) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DocId pushDocIds(Iterable<DocId> docIds,
+        ExceptionHandler handler) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DocId pushNamedResources(Map<DocId, Acl> resources) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DocId pushNamedResources(Map<DocId, Acl> resources,
+        ExceptionHandler handler) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public GroupPrincipal pushGroupDefinitions(
+        Map<GroupPrincipal, ? extends Collection<Principal>> defs,
+        boolean caseSensitive) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public GroupPrincipal pushGroupDefinitions(
+        Map<GroupPrincipal, ? extends Collection<Principal>> defs,
+        boolean caseSensitive, ExceptionHandler handler) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
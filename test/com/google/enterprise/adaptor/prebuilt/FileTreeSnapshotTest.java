@@ -0,0 +1,89 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.enterprise.adaptor.IOHelper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests for {@link FileTreeSnapshot}.
+ */
+public class FileTreeSnapshotTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testDiff() {
+    FileTreeSnapshot previous = new FileTreeSnapshot();
+    previous.put("same", 10, 1000);
+    previous.put("resized", 10, 1000);
+    previous.put("touched", 10, 1000);
+    previous.put("deleted", 10, 1000);
+    FileTreeSnapshot current = new FileTreeSnapshot();
+    current.put("same", 10, 1000);
+    current.put("resized", 11, 1000);
+    current.put("touched", 10, 2000);
+    current.put("added", 10, 1000);
+    assertEquals(
+        new HashSet<String>(Arrays.asList("resized", "touched", "added")),
+        new HashSet<String>(current.getAddedOrModified(previous)));
+    assertEquals(Collections.singletonList("deleted"),
+        current.getDeleted(previous));
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    File file = new File(temp.getRoot(), "snapshot");
+    assertNull(FileTreeSnapshot.readFrom(file));
+    FileTreeSnapshot snapshot = new FileTreeSnapshot();
+    snapshot.put("dir/a", 1, 2);
+    snapshot.put("b", 3, 4);
+    snapshot.writeTo(file);
+    // Replaces the existing file.
+    snapshot.put("c", 5, 6);
+    snapshot.writeTo(file);
+
+    FileTreeSnapshot read = FileTreeSnapshot.readFrom(file);
+    assertEquals(3, read.size());
+    assertEquals(Collections.emptyList(), read.getAddedOrModified(snapshot));
+    assertEquals(Collections.emptyList(), read.getDeleted(snapshot));
+    List<String> leftover = Arrays.asList(temp.getRoot().list());
+    assertEquals(Collections.singletonList("snapshot"), leftover);
+  }
+
+  @Test
+  public void testReadFromBackup() throws Exception {
+    File file = new File(temp.getRoot(), "snapshot");
+    FileTreeSnapshot snapshot = new FileTreeSnapshot();
+    snapshot.put("a", 1, 2);
+    // As left by a write interrupted between its two renames.
+    snapshot.writeTo(IOHelper.backupFileFor(file));
+    FileTreeSnapshot read = FileTreeSnapshot.readFrom(file);
+    assertEquals(1, read.size());
+    assertEquals(Collections.emptyList(), read.getAddedOrModified(snapshot));
+  }
+}
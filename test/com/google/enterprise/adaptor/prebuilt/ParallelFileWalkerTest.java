@@ -0,0 +1,177 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link ParallelFileWalker}.
+ */
+public class ParallelFileWalkerTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final FileFilter acceptAll = new FileFilter() {
+    @Override
+    public boolean accept(File file) {
+      return true;
+    }
+  };
+
+  @Test
+  public void testWalk() throws Exception {
+    File root = temp.newFolder("root");
+    Set<String> expected = new HashSet<String>();
+    for (int i = 0; i < 5; i++) {
+      File dir = new File(root, "dir" + i);
+      assertTrue(dir.mkdir());
+      new File(dir, "empty").mkdir();
+      for (int j = 0; j < 7; j++) {
+        File file = new File(dir, "file" + j);
+        assertTrue(file.createNewFile());
+        expected.add(file.getPath());
+      }
+    }
+    File file = new File(root, "top");
+    assertTrue(file.createNewFile());
+    expected.add(file.getPath());
+
+    RecordingHandler handler = new RecordingHandler();
+    new ParallelFileWalker(3, 4, 2).walk(root, acceptAll, handler);
+    assertEquals(expected, handler.paths);
+    assertEquals(36, handler.count);
+    for (int size : handler.batchSizes) {
+      assertTrue("batch of " + size, size > 0 && size <= 4);
+    }
+  }
+
+  @Test
+  public void testFilter() throws Exception {
+    File root = temp.newFolder("root");
+    File dir = new File(root, "skipped.dir");
+    assertTrue(dir.mkdir());
+    assertTrue(new File(dir, "a.txt").createNewFile());
+    assertTrue(new File(dir, "b.skipped").createNewFile());
+    RecordingHandler handler = new RecordingHandler();
+    new ParallelFileWalker(2, 10, 10).walk(root, new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return !file.getName().endsWith(".skipped");
+      }
+    }, handler);
+    // The filter does not apply to directories.
+    assertEquals(new HashSet<String>(Arrays.asList(
+        new File(dir, "a.txt").getPath())), handler.paths);
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    RecordingHandler handler = new RecordingHandler();
+    new ParallelFileWalker(2, 10, 10).walk(temp.newFolder("root"), acceptAll,
+        handler);
+    assertEquals(0, handler.batchSizes.size());
+  }
+
+  @Test
+  public void testUnlistableDirectory() throws Exception {
+    final File root = temp.newFolder("root");
+    assertTrue(new File(root, "file").createNewFile());
+    final File broken = new File(root, "broken") {
+      @Override
+      public File[] listFiles() {
+        return null;
+      }
+
+      @Override
+      public boolean isDirectory() {
+        return true;
+      }
+    };
+    File mockRoot = new File(root.getPath()) {
+      @Override
+      public File[] listFiles() {
+        File[] files = root.listFiles();
+        File[] withBroken = Arrays.copyOf(files, files.length + 1);
+        withBroken[files.length] = broken;
+        return withBroken;
+      }
+    };
+    RecordingHandler handler = new RecordingHandler();
+    try {
+      new ParallelFileWalker(2, 10, 10).walk(mockRoot, acceptAll, handler);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+    // The rest of the tree is still handled.
+    assertEquals(1, handler.count);
+  }
+
+  @Test
+  public void testHandlerFailureStopsWalk() throws Exception {
+    File root = temp.newFolder("root");
+    for (int i = 0; i < 20; i++) {
+      assertTrue(new File(root, "file" + i).createNewFile());
+    }
+    thrown.expect(IOException.class);
+    new ParallelFileWalker(1, 2, 2).walk(root, acceptAll,
+        new ParallelFileWalker.BatchHandler() {
+          @Override
+          public void handle(List<File> batch) throws IOException {
+            throw new IOException("push failed");
+          }
+        });
+  }
+
+  @Test
+  public void testInvalidArguments() {
+    thrown.expect(IllegalArgumentException.class);
+    new ParallelFileWalker(0, 1, 1);
+  }
+
+  private static class RecordingHandler
+      implements ParallelFileWalker.BatchHandler {
+    final Set<String> paths = new HashSet<String>();
+    final List<Integer> batchSizes = new ArrayList<Integer>();
+    int count;
+
+    @Override
+    public void handle(List<File> batch) {
+      batchSizes.add(batch.size());
+      for (File file : batch) {
+        paths.add(file.getPath());
+        count++;
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.secmgr.saml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Unit tests for {@link OpenSamlUtil}. */
+public class OpenSamlUtilTest {
+  @Test
+  public void testGenerateIdentifier() {
+    String id = OpenSamlUtil.generateIdentifier();
+    assertTrue(id, id.matches("_[0-9a-f]{32}"));
+  }
+
+  @Test
+  public void testGenerateIdentifierConcurrently() throws Exception {
+    final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+    final int perThread = 1000;
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < perThread; j++) {
+            ids.add(OpenSamlUtil.generateIdentifier());
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(threads.length * perThread, ids.size());
+  }
+
+  @Test
+  public void testSamlDateString() {
+    DateTime date = new DateTime(2009, 10, 20, 10, 52, 29, 123,
+        DateTimeZone.forOffsetHours(-7));
+    assertEquals("2009-10-20T17:52:29.123Z", OpenSamlUtil.samlDateString(date));
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.secmgr.saml;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.opensaml.xml.parse.XMLParserException;
+import org.w3c.dom.Document;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilder;
+
+/** Unit tests for {@link SamlParserPool}. */
+public class SamlParserPoolTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private SamlParserPool pool = new SamlParserPool();
+
+  @Test
+  public void testParse() throws Exception {
+    Document doc = pool.parse(new StringReader(
+        "<a:root xmlns:a=\"urn:test\"><!-- comment -->text</a:root>"));
+    assertEquals("urn:test", doc.getDocumentElement().getNamespaceURI());
+    assertEquals("root", doc.getDocumentElement().getLocalName());
+    assertEquals(1, doc.getDocumentElement().getChildNodes().getLength());
+  }
+
+  @Test
+  public void testCounts() throws Exception {
+    assertEquals(0, pool.getHits());
+    assertEquals(0, pool.getMisses());
+
+    DocumentBuilder builder = pool.getBuilder();
+    assertEquals(0, pool.getHits());
+    assertEquals(1, pool.getMisses());
+    pool.returnBuilder(builder);
+
+    pool.getBuilder();
+    assertEquals(1, pool.getHits());
+    assertEquals(1, pool.getMisses());
+
+    pool.getBuilder();
+    assertEquals(1, pool.getHits());
+    assertEquals(2, pool.getMisses());
+  }
+
+  @Test
+  public void testDoctypeRejected() throws Exception {
+    thrown.expect(XMLParserException.class);
+    pool.parse(new StringReader("<!DOCTYPE root [<!ENTITY e \"x\">]>"
+        + "<root>&e;</root>"));
+  }
+}